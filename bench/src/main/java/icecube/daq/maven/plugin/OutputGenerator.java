@@ -0,0 +1,208 @@
+package icecube.daq.maven.plugin;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Generate synthetic Python unit test output for the parser benchmarks.
+ */
+class OutputGenerator
+{
+    /** Separator line of equals signs. */
+    private static final String SEP_EQUAL =
+        "===================================" +
+        "===================================";
+    /** Separator line of minus signs. */
+    private static final String SEP_MINUS =
+        "-----------------------------------" +
+        "-----------------------------------";
+
+    /** Test class name. */
+    private static final String CLASS_NAME = "__main__.GeneratedTest";
+
+    /** Number of test cases. */
+    private int numCases;
+    /** Number of frames in each traceback. */
+    private int traceDepth;
+    /** Number of lines written to standard output. */
+    private int outputLines;
+    /** Every <tt>failEvery</tt>th test fails (0 means no failures). */
+    private int failEvery;
+
+    /**
+     * Create an output generator.
+     *
+     * @param numCases number of test cases
+     * @param traceDepth number of frames in each traceback
+     * @param outputLines number of lines written to standard output
+     * @param failEvery every <tt>failEvery</tt>th test fails (0 means
+     *                  none fail)
+     */
+    OutputGenerator(int numCases, int traceDepth, int outputLines,
+                    int failEvery)
+    {
+        this.numCases = numCases;
+        this.traceDepth = traceDepth;
+        this.outputLines = outputLines;
+        this.failEvery = failEvery;
+    }
+
+    /**
+     * Add traceback frame lines.
+     *
+     * @param lines list of lines
+     * @param caseNum test case number
+     */
+    private void addFrames(List lines, int caseNum)
+    {
+        for (int i = 0; i < traceDepth; i++) {
+            lines.add("  File \"/home/user/prj/src/main/python/pkg/module" +
+                      i + ".py\", line " + (10 + i) + ", in function" + i);
+            lines.add("    value = helper" + i + "(data[" + caseNum + "])");
+        }
+    }
+
+    /**
+     * Get the name of a test case.
+     *
+     * @param caseNum test case number
+     *
+     * @return test name
+     */
+    private static String getName(int caseNum)
+    {
+        return "testGenerated" + caseNum;
+    }
+
+    /**
+     * Get the number of failed test cases.
+     *
+     * @return number of failures
+     */
+    private int getNumFailures()
+    {
+        int num = 0;
+        for (int i = 0; i < numCases; i++) {
+            if (isFailure(i)) {
+                num++;
+            }
+        }
+        return num;
+    }
+
+    /**
+     * Does the specified test case fail?
+     *
+     * @param caseNum test case number
+     *
+     * @return <tt>true</tt> if the test fails
+     */
+    private boolean isFailure(int caseNum)
+    {
+        return failEvery > 0 && caseNum % failEvery == failEvery - 1;
+    }
+
+    /**
+     * Generate the lines of a single traceback, as passed to
+     * TracebackParser.
+     *
+     * @return traceback lines
+     */
+    List traceback()
+    {
+        ArrayList lines = new ArrayList();
+        addFrames(lines, 0);
+        return lines;
+    }
+
+    /**
+     * Generate verbose unittest text output.
+     *
+     * @return text lines
+     */
+    List text()
+    {
+        ArrayList lines = new ArrayList();
+
+        for (int i = 0; i < numCases; i++) {
+            lines.add(getName(i) + " (" + CLASS_NAME + ") ... " +
+                      (isFailure(i) ? "FAIL" : "ok"));
+        }
+
+        for (int i = 0; i < numCases; i++) {
+            if (!isFailure(i)) {
+                continue;
+            }
+
+            lines.add("");
+            lines.add(SEP_EQUAL);
+            lines.add("FAIL: " + getName(i) + " (" + CLASS_NAME + ")");
+            lines.add(SEP_MINUS);
+            lines.add("Traceback (most recent call last):");
+            addFrames(lines, i);
+            lines.add("AssertionError: expected " + i + " but got " + (i + 1));
+        }
+
+        lines.add("");
+        lines.add(SEP_MINUS);
+        lines.add("Ran " + numCases + " tests in 12.345s");
+        lines.add("");
+
+        final int numFails = getNumFailures();
+        if (numFails == 0) {
+            lines.add("OK");
+        } else {
+            lines.add("FAILED (failures=" + numFails + ")");
+        }
+
+        for (int i = 0; i < outputLines; i++) {
+            lines.add("Output line " + i + " from the code under test");
+        }
+
+        return lines;
+    }
+
+    /**
+     * Generate xmlrunner output.
+     *
+     * @return XML lines
+     */
+    List xml()
+    {
+        ArrayList lines = new ArrayList();
+
+        lines.add("<testsuite errors=\"0\" failures=\"" + getNumFailures() +
+                  "\" name=\"unittest.TestSuite\" tests=\"" + numCases +
+                  "\" time=\"12.345\">");
+
+        for (int i = 0; i < numCases; i++) {
+            final String start = "  <testcase classname=\"" + CLASS_NAME +
+                "\" name=\"" + getName(i) + "\" time=\"0.0012\">";
+            if (!isFailure(i)) {
+                lines.add(start + "</testcase>");
+                continue;
+            }
+
+            lines.add(start);
+            lines.add("    <failure type=\"exceptions.AssertionError\">" +
+                      "expected " + i + " but got " + (i + 1));
+            addFrames(lines, i);
+            lines.add("    </failure>");
+            lines.add("  </testcase>");
+        }
+
+        if (outputLines == 0) {
+            lines.add("  <system-out><![CDATA[]]></system-out>");
+        } else {
+            lines.add("  <system-out><![CDATA[");
+            for (int i = 0; i < outputLines; i++) {
+                lines.add("Output line " + i + " from the code under test");
+            }
+            lines.add("]]></system-out>");
+        }
+        lines.add("  <system-err><![CDATA[]]></system-err>");
+        lines.add("</testsuite>");
+
+        return lines;
+    }
+}
@@ -0,0 +1,184 @@
+package icecube.daq.maven.plugin;
+
+import java.io.File;
+
+import java.util.Iterator;
+import java.util.List;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput benchmarks for the Python unit test output parsers.
+ *
+ * Build the plugin with <tt>mvn install</tt>, then build and run the
+ * benchmarks from this directory:
+ *
+ * <pre>
+ * mvn package
+ * java -jar target/benchmarks.jar -prof gc
+ * </pre>
+ *
+ * The <tt>gc</tt> profiler adds the allocation rate
+ * (<tt>gc.alloc.rate.norm</tt>, bytes per operation) to each result.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParserBenchmark
+{
+    /** Fake test file used to name the suite. */
+    private static final File TEST_FILE = new File("GeneratedTest.py");
+
+    /** Number of test cases. */
+    @Param({"10", "1000", "10000"})
+    public int numCases;
+
+    /** Number of frames in each traceback. */
+    @Param({"5", "30"})
+    public int traceDepth;
+
+    /** Number of lines written to standard output. */
+    @Param({"0", "10000"})
+    public int outputLines;
+
+    /** Every <tt>failEvery</tt>th test fails. */
+    @Param({"10"})
+    public int failEvery;
+
+    /** Generated xmlrunner output. */
+    private List xmlLines;
+    /** Generated verbose text output. */
+    private List textLines;
+    /** Generated traceback lines. */
+    private List traceLines;
+
+    /**
+     * Generate the test output.
+     */
+    @Setup
+    public void setUp()
+    {
+        OutputGenerator gen =
+            new OutputGenerator(numCases, traceDepth, outputLines, failEvery);
+
+        xmlLines = gen.xml();
+        textLines = gen.text();
+        traceLines = gen.traceback();
+    }
+
+    /**
+     * Parse XML output through the top-level parser.
+     *
+     * @return parsed data
+     *
+     * @throws PyTestException if the output could not be parsed
+     */
+    @Benchmark
+    public SuiteData pyTestParserXML()
+        throws PyTestException
+    {
+        SuiteData data = new SuiteData(TEST_FILE);
+        new PyTestParser(xmlLines, data);
+        return data;
+    }
+
+    /**
+     * Parse text output through the top-level parser, which scans for the
+     * first line that identifies the format before parsing it once.
+     *
+     * @return parsed data
+     *
+     * @throws PyTestException if the output could not be parsed
+     */
+    @Benchmark
+    public SuiteData pyTestParserText()
+        throws PyTestException
+    {
+        SuiteData data = new SuiteData(TEST_FILE);
+        new PyTestParser(textLines, data);
+        return data;
+    }
+
+    /**
+     * Parse XML output directly.
+     *
+     * @return parsed data
+     *
+     * @throws Exception if the output could not be parsed
+     */
+    @Benchmark
+    public SuiteData testXMLParser()
+        throws Exception
+    {
+        SuiteData data = new SuiteData(TEST_FILE);
+        new TestXMLParser(data).parse(xmlLines);
+        return data;
+    }
+
+    /**
+     * Parse text output directly.
+     *
+     * @return parsed data
+     *
+     * @throws PyTestException if the output could not be parsed
+     */
+    @Benchmark
+    public SuiteData testTextParser()
+        throws PyTestException
+    {
+        SuiteData data = new SuiteData(TEST_FILE);
+        new TestTextParser(data).parse(textLines);
+        return data;
+    }
+
+    /**
+     * Parse text output directly, matching every line with the regular
+     * expressions instead of the hand-written scanner.
+     *
+     * @return parsed data
+     *
+     * @throws PyTestException if the output could not be parsed
+     */
+    @Benchmark
+    public SuiteData testTextParserRegex()
+        throws PyTestException
+    {
+        SuiteData data = new SuiteData(TEST_FILE);
+        new TestTextParser(data, true).parse(textLines);
+        return data;
+    }
+
+    /**
+     * Parse a single traceback.
+     *
+     * @return parsed data
+     *
+     * @throws PyTestException if the traceback could not be parsed
+     */
+    @Benchmark
+    public ErrorData tracebackParser()
+        throws PyTestException
+    {
+        ErrorData err = new ErrorData(false);
+        TracebackParser parser = new TracebackParser();
+        for (Iterator it = traceLines.iterator(); it.hasNext(); ) {
+            parser.parse(err, (String) it.next());
+        }
+        return err;
+    }
+}
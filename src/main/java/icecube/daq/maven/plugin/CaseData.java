@@ -35,6 +35,56 @@ class CaseData
         }
     }
 
+    /**
+     * Get the test runner class name.
+     *
+     * @return test runner class name
+     */
+    String getClassName()
+    {
+        return className;
+    }
+
+    /**
+     * Get the error data for this test case.
+     *
+     * @return <tt>null</tt> if there was no error
+     */
+    ErrorData getError()
+    {
+        return error;
+    }
+
+    /**
+     * Get the failure data for this test case.
+     *
+     * @return <tt>null</tt> if there was no failure
+     */
+    ErrorData getFailure()
+    {
+        return failure;
+    }
+
+    /**
+     * Get the test name.
+     *
+     * @return test name
+     */
+    String getName()
+    {
+        return name;
+    }
+
+    /**
+     * Get the time needed to run the test.
+     *
+     * @return time
+     */
+    double getTime()
+    {
+        return time;
+    }
+
     /**
      * Does this case have output data to dump?
      *
@@ -65,7 +115,7 @@ class CaseData
      */
     void setClassName(String className)
     {
-        this.className = className;
+        this.className = InternPool.internName(className);
     }
 
     /**
@@ -75,6 +125,9 @@ class CaseData
      */
     void setError(ErrorData error)
     {
+        if (error != null) {
+            error.compact();
+        }
         this.error = error;
     }
 
@@ -85,6 +138,9 @@ class CaseData
      */
     void setFailure(ErrorData failure)
     {
+        if (failure != null) {
+            failure.compact();
+        }
         this.failure = failure;
     }
 
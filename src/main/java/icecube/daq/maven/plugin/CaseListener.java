@@ -0,0 +1,15 @@
+package icecube.daq.maven.plugin;
+
+/**
+ * Notified as each test case finishes.
+ */
+interface CaseListener
+{
+    /**
+     * A test case has finished.
+     *
+     * @param caseData test case data
+     * @param status "ok", "FAIL" or "ERROR"
+     */
+    void caseFinished(CaseData caseData, String status);
+}
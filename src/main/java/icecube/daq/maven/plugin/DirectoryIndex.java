@@ -0,0 +1,712 @@
+package icecube.daq.maven.plugin;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.codehaus.plexus.util.SelectorUtils;
+
+/**
+ * Saved directory listings, used to find test and source files without
+ * listing every directory on every build.  A directory's modification time
+ * changes whenever an entry is added, removed or renamed, so its saved
+ * listing can be reused as long as the time hasn't changed.  Directory
+ * trees are walked on several threads at once, which helps most on
+ * network filesystems.
+ */
+class DirectoryIndex
+{
+    /** Property name suffixes. */
+    private static final String SUFFIX_MTIME = ".mtime";
+    private static final String SUFFIX_DIRS = ".dirs";
+    private static final String SUFFIX_FILES = ".files";
+
+    /** Separator for saved names (which can never contain a slash). */
+    private static final String NAME_SEPARATOR = "/";
+
+    /** Number of threads used to walk a directory tree. */
+    private static final int NUM_THREADS = 8;
+
+    /**
+     * Listings of directories changed this recently are not reused, since
+     * a further change within the timestamp granularity would be missed.
+     */
+    private static final long MTIME_SLOP_MILLIS = 2000;
+
+    /** Version control directories which are never walked. */
+    private static final HashSet SKIPPED_DIRS =
+        new HashSet(Arrays.asList(new String[] {
+                    "CVS", "SCCS", ".svn", ".git", ".hg", ".bzr", "_darcs",
+                    ".arch-ids", "{arch}",
+                }));
+
+    /** Files excluded by <tt>DirectoryScanner.addDefaultExcludes()</tt>. */
+    private static final String[] DEFAULT_EXCLUDES = {
+        "**/*~", "**/#*#", "**/.#*", "**/%*%", "**/._*", "**/.cvsignore",
+        "**/vssver.scc", "**/.DS_Store", "**/.gitignore",
+        "**/.gitattributes", "**/.hgignore", "**/.hgtags",
+    };
+
+    /** Index file. */
+    private File indexFile;
+    /** Saved listings. */
+    private Properties props = new Properties();
+    /** Has anything been added to or removed from the saved listings? */
+    private boolean changed;
+    /** Absolute paths of directories visited during this build. */
+    private HashSet visited = new HashSet();
+    /** Directories found under each tree walked during this build. */
+    private HashMap walked = new HashMap();
+
+    /**
+     * Load the saved listings.  A missing or unreadable file results in an
+     * empty index.
+     *
+     * @param indexFile index file
+     */
+    DirectoryIndex(File indexFile)
+    {
+        this.indexFile = indexFile;
+
+        PropertiesFile.load(indexFile, props);
+    }
+
+    /**
+     * Find files matching a set of patterns.  Patterns use the same syntax
+     * as <tt>DirectoryScanner</tt> and are matched without regard to case.
+     * Files matching <tt>DirectoryScanner</tt>'s default excludes are
+     * always excluded.
+     *
+     * @param root base directory
+     * @param includes patterns for included files
+     * @param excludes patterns for excluded files (may be <tt>null</tt>)
+     *
+     * @return sorted paths of matching files, relative to <tt>root</tt>
+     *
+     * @throws PyTestException if the walk was interrupted
+     */
+    String[] findFiles(File root, String[] includes, String[] excludes)
+        throws PyTestException
+    {
+        String[] incPats = normalize(includes);
+
+        String[] excPats = normalize(excludes);
+        String[] defPats = normalize(DEFAULT_EXCLUDES);
+
+        ArrayList names = new ArrayList();
+        for (Iterator it = walk(root).iterator(); it.hasNext(); ) {
+            IndexedDir dir = (IndexedDir) it.next();
+
+            String[] files = dir.getFiles();
+            for (int i = 0; i < files.length; i++) {
+                final String name = dir.getRelativePath(files[i]);
+                if (matches(incPats, name) && !matches(excPats, name) &&
+                    !matches(defPats, name))
+                {
+                    names.add(name);
+                }
+            }
+        }
+
+        // files at the top of a directory would otherwise come before
+        // files in its subdirectories, regardless of their names
+        String[] array = (String[]) names.toArray(new String[names.size()]);
+        Arrays.sort(array);
+        return array;
+    }
+
+    /**
+     * Find the directories which contain files with the specified suffix.
+     *
+     * @param root base directory
+     * @param suffix file suffix, matched without regard to case
+     *
+     * @return list of canonical directories
+     *
+     * @throws PyTestException if the walk was interrupted
+     */
+    List findDirectories(File root, String suffix)
+        throws PyTestException
+    {
+        final String lowSuffix = suffix.toLowerCase();
+
+        ArrayList dirs = new ArrayList();
+        for (Iterator it = walk(root).iterator(); it.hasNext(); ) {
+            IndexedDir dir = (IndexedDir) it.next();
+
+            String[] files = dir.getFiles();
+            for (int i = 0; i < files.length; i++) {
+                if (files[i].toLowerCase().endsWith(lowSuffix)) {
+                    dirs.add(dir.getCanonicalFile());
+                    break;
+                }
+            }
+        }
+
+        return dirs;
+    }
+
+    /**
+     * Is the directory one which should never be walked?
+     *
+     * @param name directory name
+     *
+     * @return <tt>true</tt> if the directory should be skipped
+     */
+    static boolean isSkipped(String name)
+    {
+        return SKIPPED_DIRS.contains(name);
+    }
+
+    /**
+     * Does the path match one of the patterns?
+     *
+     * @param patterns normalized patterns
+     * @param name relative path
+     *
+     * @return <tt>true</tt> if there is a match
+     */
+    private static boolean matches(String[] patterns, String name)
+    {
+        for (int i = 0; i < patterns.length; i++) {
+            if (SelectorUtils.matchPath(patterns[i], name, false)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Convert patterns to use the local file separator, the same way
+     * <tt>DirectoryScanner</tt> does.
+     *
+     * @param patterns patterns (may be <tt>null</tt>)
+     *
+     * @return normalized patterns
+     */
+    private static String[] normalize(String[] patterns)
+    {
+        if (patterns == null) {
+            return new String[0];
+        }
+
+        String[] norm = new String[patterns.length];
+        for (int i = 0; i < patterns.length; i++) {
+            String pat = patterns[i].trim().replace('/', File.separatorChar).
+                replace('\\', File.separatorChar);
+            if (pat.endsWith(File.separator)) {
+                pat += "**";
+            }
+            norm[i] = pat;
+        }
+
+        return norm;
+    }
+
+    /**
+     * Get the contents of a directory, listing it only if it has changed
+     * since it was saved.
+     *
+     * @param dir directory
+     * @param relPath path relative to the base of the walk
+     * @param canonical canonical directory
+     *
+     * @return <tt>null</tt> if the directory could not be read
+     */
+    IndexedDir read(File dir, String relPath, File canonical)
+    {
+        final String key = dir.getAbsolutePath();
+
+        final long mtime = dir.lastModified();
+        if (mtime == 0L) {
+            return null;
+        }
+
+        synchronized (this) {
+            visited.add(key);
+
+            String saved = props.getProperty(key + SUFFIX_MTIME);
+            if (saved != null && saved.equals(Long.toString(mtime))) {
+                return new IndexedDir(relPath, canonical,
+                                      split(props.getProperty(key +
+                                                              SUFFIX_DIRS)),
+                                      split(props.getProperty(key +
+                                                              SUFFIX_FILES)));
+            }
+        }
+
+        File[] list = dir.listFiles();
+        if (list == null) {
+            return null;
+        }
+
+        ArrayList dirs = new ArrayList();
+        ArrayList files = new ArrayList();
+        for (int i = 0; i < list.length; i++) {
+            if (list[i].isDirectory()) {
+                dirs.add(list[i].getName());
+            } else if (list[i].isFile()) {
+                files.add(list[i].getName());
+            }
+        }
+        Collections.sort(dirs);
+        Collections.sort(files);
+
+        long savedTime = mtime;
+        if (System.currentTimeMillis() - mtime < MTIME_SLOP_MILLIS) {
+            savedTime = -1L;
+        }
+
+        synchronized (this) {
+            props.setProperty(key + SUFFIX_MTIME, Long.toString(savedTime));
+            props.setProperty(key + SUFFIX_DIRS, join(dirs));
+            props.setProperty(key + SUFFIX_FILES, join(files));
+            changed = true;
+        }
+
+        return new IndexedDir(relPath, canonical,
+                              (String[]) dirs.toArray(new String[0]),
+                              (String[]) files.toArray(new String[0]));
+    }
+
+    /**
+     * Save the listings, dropping any for directories which were not found
+     * in the trees walked during this build.
+     *
+     * @throws PyTestException if the index file could not be written
+     */
+    synchronized void save()
+        throws PyTestException
+    {
+        ArrayList roots = new ArrayList();
+        for (Iterator it = walked.keySet().iterator(); it.hasNext(); ) {
+            roots.add(it.next() + File.separator);
+        }
+
+        ArrayList stale = new ArrayList();
+        for (Iterator it = props.keySet().iterator(); it.hasNext(); ) {
+            String key = (String) it.next();
+            if (!key.endsWith(SUFFIX_MTIME)) {
+                continue;
+            }
+
+            String path =
+                key.substring(0, key.length() - SUFFIX_MTIME.length());
+            if (visited.contains(path)) {
+                continue;
+            }
+
+            for (Iterator ri = roots.iterator(); ri.hasNext(); ) {
+                if (path.startsWith((String) ri.next())) {
+                    stale.add(path);
+                    break;
+                }
+            }
+        }
+
+        for (Iterator it = stale.iterator(); it.hasNext(); ) {
+            String path = (String) it.next();
+            props.remove(path + SUFFIX_MTIME);
+            props.remove(path + SUFFIX_DIRS);
+            props.remove(path + SUFFIX_FILES);
+            changed = true;
+        }
+
+        if (!changed) {
+            return;
+        }
+
+        File dir = indexFile.getParentFile();
+        if (dir != null && !dir.exists()) {
+            dir.mkdirs();
+        }
+
+        try {
+            FileOutputStream out = new FileOutputStream(indexFile);
+            try {
+                props.store(out, "Python test directory listings");
+            } finally {
+                out.close();
+            }
+        } catch (IOException ioe) {
+            throw new PyTestException("Couldn't write " + indexFile, ioe);
+        }
+
+        changed = false;
+    }
+
+    /**
+     * Join names into a single string.
+     *
+     * @param names list of names
+     *
+     * @return joined names
+     */
+    private static String join(List names)
+    {
+        StringBuffer buf = new StringBuffer();
+        for (Iterator it = names.iterator(); it.hasNext(); ) {
+            if (buf.length() > 0) {
+                buf.append(NAME_SEPARATOR);
+            }
+            buf.append(it.next());
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Split a string created by <tt>join()</tt>.
+     *
+     * @param str joined names (may be <tt>null</tt>)
+     *
+     * @return array of names
+     */
+    private static String[] split(String str)
+    {
+        if (str == null || str.length() == 0) {
+            return new String[0];
+        }
+
+        return str.split(NAME_SEPARATOR);
+    }
+
+    /**
+     * Walk a directory tree, reusing the results if it has already been
+     * walked during this build.
+     *
+     * @param root base directory
+     *
+     * @return list of <tt>IndexedDir</tt>s, sorted by relative path
+     *
+     * @throws PyTestException if the walk was interrupted
+     */
+    private List walk(File root)
+        throws PyTestException
+    {
+        final String key = root.getAbsolutePath();
+
+        synchronized (this) {
+            List dirs = (List) walked.get(key);
+            if (dirs != null) {
+                return dirs;
+            }
+        }
+
+        ExecutorService pool =
+            Executors.newFixedThreadPool(NUM_THREADS,
+                                         new WorkerFactory("PyTest discovery"));
+        List dirs;
+        try {
+            dirs = new DirectoryWalk(this, pool).walk(root);
+        } finally {
+            pool.shutdownNow();
+        }
+
+        synchronized (this) {
+            walked.put(key, dirs);
+        }
+
+        return dirs;
+    }
+}
+
+/**
+ * The contents of a single directory found during a walk.
+ */
+class IndexedDir
+    implements Comparable
+{
+    /** Path relative to the base of the walk (empty for the base). */
+    private String relPath;
+    /** Canonical directory. */
+    private File canonical;
+    /** Names of subdirectories. */
+    private String[] dirs;
+    /** Names of files. */
+    private String[] files;
+
+    /**
+     * Create a directory entry.
+     *
+     * @param relPath path relative to the base of the walk
+     * @param canonical canonical directory
+     * @param dirs names of subdirectories
+     * @param files names of files
+     */
+    IndexedDir(String relPath, File canonical, String[] dirs, String[] files)
+    {
+        this.relPath = relPath;
+        this.canonical = canonical;
+        this.dirs = dirs;
+        this.files = files;
+    }
+
+    /**
+     * Sort by relative path.
+     *
+     * @param obj object being compared
+     *
+     * @return the usual comparison values
+     */
+    public int compareTo(Object obj)
+    {
+        return relPath.compareTo(((IndexedDir) obj).relPath);
+    }
+
+    /**
+     * Get the canonical directory.
+     *
+     * @return canonical directory
+     */
+    File getCanonicalFile()
+    {
+        return canonical;
+    }
+
+    /**
+     * Get the names of the subdirectories.
+     *
+     * @return subdirectory names
+     */
+    String[] getDirectories()
+    {
+        return dirs;
+    }
+
+    /**
+     * Get the names of the files.
+     *
+     * @return file names
+     */
+    String[] getFiles()
+    {
+        return files;
+    }
+
+    /**
+     * Get the relative path of an entry in this directory.
+     *
+     * @param name entry name
+     *
+     * @return path relative to the base of the walk
+     */
+    String getRelativePath(String name)
+    {
+        if (relPath.length() == 0) {
+            return name;
+        }
+
+        return relPath + File.separator + name;
+    }
+}
+
+/**
+ * Walk a directory tree on a pool of threads, one task per directory.
+ */
+class DirectoryWalk
+{
+    /** Saved directory listings. */
+    private DirectoryIndex index;
+    /** Threads which read directories. */
+    private ExecutorService pool;
+    /** Number of directories which have been queued but not yet read. */
+    private int pending;
+    /** Canonical base directory. */
+    private File rootCanonical;
+    /** Relative path chosen for each canonical directory found so far. */
+    private HashMap chosen = new HashMap();
+    /** Directories found so far, keyed by canonical directory. */
+    private HashMap found = new HashMap();
+
+    /**
+     * Create a directory walker.
+     *
+     * @param index saved directory listings
+     * @param pool threads which read directories
+     */
+    DirectoryWalk(DirectoryIndex index, ExecutorService pool)
+    {
+        this.index = index;
+        this.pool = pool;
+    }
+
+    /**
+     * Queue a directory to be read.
+     *
+     * @param dir directory
+     * @param relPath path relative to the base of the walk
+     */
+    private void submit(final File dir, final String relPath)
+    {
+        synchronized (this) {
+            pending++;
+        }
+
+        pool.submit(new Runnable() {
+                public void run()
+                {
+                    try {
+                        visit(dir, relPath);
+                    } finally {
+                        synchronized (DirectoryWalk.this) {
+                            pending--;
+                            if (pending == 0) {
+                                DirectoryWalk.this.notifyAll();
+                            }
+                        }
+                    }
+                }
+            });
+    }
+
+    /**
+     * Get the canonical version of a directory.
+     *
+     * @param dir directory
+     *
+     * @return canonical directory (or the absolute directory if the
+     *         canonical path couldn't be found)
+     */
+    private static File getCanonicalFile(File dir)
+    {
+        try {
+            return dir.getCanonicalFile();
+        } catch (IOException ioe) {
+            return dir.getAbsoluteFile();
+        }
+    }
+
+    /**
+     * Should a directory found through one path be listed under that path
+     * rather than another?  The path which matches the directory's
+     * canonical location wins, otherwise the first path in component
+     * order does, so the choice doesn't depend on which thread got there
+     * first.
+     *
+     * @param canonical canonical directory
+     * @param relPath candidate path relative to the base of the walk
+     * @param other path already chosen for the directory
+     *
+     * @return <tt>true</tt> if <tt>relPath</tt> should replace
+     *         <tt>other</tt>
+     */
+    private boolean isPreferred(File canonical, String relPath, String other)
+    {
+        final boolean real = isCanonicalPath(canonical, relPath);
+        if (real != isCanonicalPath(canonical, other)) {
+            return real;
+        }
+
+        // compare one name at a time, so "a/b" sorts before "a-b"
+        return relPath.replace(File.separatorChar, '\0').
+            compareTo(other.replace(File.separatorChar, '\0')) < 0;
+    }
+
+    /**
+     * Does the relative path lead to the directory without following any
+     * symbolic links below the base of the walk?
+     *
+     * @param canonical canonical directory
+     * @param relPath path relative to the base of the walk
+     *
+     * @return <tt>true</tt> if this is the directory's real path
+     */
+    private boolean isCanonicalPath(File canonical, String relPath)
+    {
+        if (relPath.length() == 0) {
+            return canonical.equals(rootCanonical);
+        }
+
+        return canonical.equals(new File(rootCanonical, relPath));
+    }
+
+    /**
+     * Read a directory and queue its subdirectories.  A directory which
+     * can be reached through more than one path (such as a symbolic link)
+     * is only listed once, under the path chosen by
+     * <tt>isPreferred()</tt>.
+     *
+     * @param dir directory
+     * @param relPath path relative to the base of the walk
+     */
+    private void visit(File dir, String relPath)
+    {
+        final File canonical = getCanonicalFile(dir);
+
+        synchronized (this) {
+            String other = (String) chosen.get(canonical);
+            if (other != null && !isPreferred(canonical, relPath, other)) {
+                return;
+            }
+
+            chosen.put(canonical, relPath);
+        }
+
+        IndexedDir entry = index.read(dir, relPath, canonical);
+        if (entry == null) {
+            return;
+        }
+
+        synchronized (this) {
+            if (!relPath.equals(chosen.get(canonical))) {
+                // a better path was found while the directory was read
+                return;
+            }
+
+            found.put(canonical, entry);
+        }
+
+        String[] subdirs = entry.getDirectories();
+        for (int i = 0; i < subdirs.length; i++) {
+            if (!DirectoryIndex.isSkipped(subdirs[i])) {
+                submit(new File(dir, subdirs[i]),
+                       entry.getRelativePath(subdirs[i]));
+            }
+        }
+    }
+
+    /**
+     * Walk the directory tree.
+     *
+     * @param root base directory
+     *
+     * @return list of <tt>IndexedDir</tt>s, sorted by relative path
+     *
+     * @throws PyTestException if the walk was interrupted
+     */
+    List walk(File root)
+        throws PyTestException
+    {
+        rootCanonical = getCanonicalFile(root);
+
+        submit(root, "");
+
+        synchronized (this) {
+            while (pending > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException ie) {
+                    throw new PyTestException("Interrupted while reading " +
+                                              root, ie);
+                }
+            }
+
+            ArrayList dirs = new ArrayList(found.values());
+            Collections.sort(dirs);
+            return dirs;
+        }
+    }
+}
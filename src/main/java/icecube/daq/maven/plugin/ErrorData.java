@@ -5,30 +5,113 @@ import java.io.PrintStream;
 
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 
+/**
+ * A single frame from a Python traceback.  Frames are only changed while
+ * their traceback is being parsed, after which they may be shared by many
+ * tracebacks.
+ */
 class TraceFrame
 {
-    private File file;
+    /** File name, as written in the traceback. */
+    private String fileName;
+    /** Line number. */
     private int line;
+    /** Name of the function. */
     private String test;
+    /** Source line (<tt>null</tt> if none was written). */
     private String srcLine;
 
     TraceFrame(String name, int line, String test)
     {
-        this.file = new File(name);
+        this.fileName = InternPool.internName(name);
         this.line = line;
-        this.test = test;
+        this.test = InternPool.internName(test);
     }
 
     void dump(PrintStream out)
     {
-        out.println("  File \"" + file.getName() + "\", line " + line +
+        out.println("  File \"" + getBaseName() + "\", line " + line +
                     ", in " + test);
         if (srcLine != null) {
             out.println("    " + srcLine);
         }
     }
 
+    void dump(StringBuilder buf)
+    {
+        buf.append("  File \"").append(getBaseName()).append("\", line ").
+            append(line).append(", in ").append(test).append('\n');
+        if (srcLine != null) {
+            buf.append("    ").append(srcLine).append('\n');
+        }
+    }
+
+    /**
+     * Is this the same frame?
+     *
+     * @param obj object being compared
+     *
+     * @return <tt>true</tt> if the file, line, function and source match
+     */
+    public boolean equals(Object obj)
+    {
+        if (obj == this) {
+            return true;
+        } else if (!(obj instanceof TraceFrame)) {
+            return false;
+        }
+
+        TraceFrame other = (TraceFrame) obj;
+        return line == other.line && fileName.equals(other.fileName) &&
+            isEqual(test, other.test) && isEqual(srcLine, other.srcLine);
+    }
+
+    /**
+     * Get the final component of the file name.
+     *
+     * @return base file name
+     */
+    private String getBaseName()
+    {
+        final int idx = fileName.lastIndexOf(File.separatorChar);
+        if (idx < 0) {
+            return fileName;
+        }
+
+        return fileName.substring(idx + 1);
+    }
+
+    public int hashCode()
+    {
+        int hash = fileName.hashCode() * 31 + line;
+        if (test != null) {
+            hash = hash * 31 + test.hashCode();
+        }
+        if (srcLine != null) {
+            hash = hash * 31 + srcLine.hashCode();
+        }
+        return hash;
+    }
+
+    /**
+     * Compare two strings, either of which may be <tt>null</tt>.
+     *
+     * @param a first string
+     * @param b second string
+     *
+     * @return <tt>true</tt> if the strings are equal
+     */
+    private static boolean isEqual(String a, String b)
+    {
+        if (a == null) {
+            return b == null;
+        }
+
+        return a.equals(b);
+    }
+
     boolean isPartial()
     {
         return test == null;
@@ -36,13 +119,13 @@ class TraceFrame
 
     boolean isSkippable()
     {
-        return file.getName().startsWith("unittest.py");
+        return getBaseName().startsWith("unittest.py");
     }
 
     void setSource(String line)
     {
         if (srcLine != null) {
-            throw new Error("Multiple source lines for " + file +
+            throw new Error("Multiple source lines for " + fileName +
                             " test " + test + ": \"" + srcLine + "\" and \"" +
                             line + "\"");
         }
@@ -53,17 +136,17 @@ class TraceFrame
     void setTest(String test)
     {
         if (this.test != null) {
-            throw new Error("Multiple test names for " + file + ": \"" +
+            throw new Error("Multiple test names for " + fileName + ": \"" +
                             this.test + "\" and \"" + test + "\"");
         }
 
-        this.test = test;
+        this.test = InternPool.internName(test);
     }
 
     public String toString()
     {
         StringBuilder buf = new StringBuilder("TraceFrame[");
-        buf.append(file).append('#').append(line).append('@').append(test);
+        buf.append(fileName).append('#').append(line).append('@').append(test);
         if (srcLine != null) {
             buf.append('*').append(srcLine);
         }
@@ -77,6 +160,11 @@ class TraceFrame
  */
 class ErrorData
 {
+    /** Frames shared by all tracebacks. */
+    private static InternPool framePool = new InternPool();
+    /** Tracebacks shared by test cases with identical frames. */
+    private static InternPool tracePool = new InternPool();
+
     /** <tt>true</tt> if this represents an error (as opposed to a failure) */
     private boolean isError;
     /** exception name */
@@ -87,6 +175,8 @@ class ErrorData
     private ArrayList trace;
     /** Current trace stack entry. */
     private TraceFrame curFrame;
+    /** Is <tt>trace</tt> a shared copy which must not be changed? */
+    private boolean sharedTrace;
 
     ErrorData(String type)
     {
@@ -110,6 +200,9 @@ class ErrorData
 
         if (trace == null) {
             trace = new ArrayList();
+        } else if (sharedTrace) {
+            trace = new ArrayList(trace);
+            sharedTrace = false;
         }
 
         trace.add(curFrame);
@@ -124,26 +217,70 @@ class ErrorData
         curFrame.setSource(line);
     }
 
-    void dump(String className, String name, PrintStream out)
+    /**
+     * Replace the finished traceback with a shared copy, so identical
+     * tracebacks from many test cases are only stored once.
+     */
+    void compact()
     {
-        String errType;
-        if (isError) {
-            errType = "ERROR";
-        } else {
-            errType = "FAIL";
+        if (trace != null && !sharedTrace) {
+            for (int i = 0; i < trace.size(); i++) {
+                trace.set(i, framePool.intern(trace.get(i)));
+            }
+            trace.trimToSize();
+
+            trace = (ArrayList) tracePool.intern(trace);
+            sharedTrace = true;
         }
 
+        // the current frame may now be shared
+        curFrame = null;
+    }
+
+    void dump(String className, String name, PrintStream out)
+    {
         out.println("===================================" +
                     "===================================");
-        out.println(errType + ": " + name + " (" + className + ")");
+        out.println(getTypeName() + ": " + name + " (" + className + ")");
+        dumpTraceback(out);
+    }
+
+    /**
+     * Dump an error or failure shared by several test cases, listing the
+     * affected test cases before the traceback.
+     *
+     * @param cases list of <tt>CaseData</tt>
+     * @param out output stream
+     */
+    void dump(List cases, PrintStream out)
+    {
+        out.println("===================================" +
+                    "===================================");
+        out.println(getTypeName() + ": " + cases.size() + " tests");
+        for (Iterator it = cases.iterator(); it.hasNext(); ) {
+            CaseData cd = (CaseData) it.next();
+            out.println("  " + cd.getName() + " (" + cd.getClassName() + ")");
+        }
+        dumpTraceback(out);
+    }
+
+    /**
+     * Dump the traceback and exception.
+     *
+     * @param out output stream
+     */
+    private void dumpTraceback(PrintStream out)
+    {
         out.println("-----------------------------------" +
                     "-----------------------------------");
         out.println("Traceback (most recent call last):");
 
-        for (Iterator it = trace.iterator(); it.hasNext(); ) {
-            TraceFrame frame = (TraceFrame) it.next();
-            if (!frame.isSkippable()) {
-                frame.dump(out);
+        if (trace != null) {
+            for (Iterator it = trace.iterator(); it.hasNext(); ) {
+                TraceFrame frame = (TraceFrame) it.next();
+                if (!frame.isSkippable()) {
+                    frame.dump(out);
+                }
             }
         }
 
@@ -162,6 +299,105 @@ class ErrorData
         }
     }
 
+    /**
+     * Get the exception name.
+     *
+     * @return exception name
+     */
+    String getExceptionName()
+    {
+        return excName;
+    }
+
+    /**
+     * Get the exception text.
+     *
+     * @return <tt>null</tt> if there is no exception text
+     */
+    String getExceptionText()
+    {
+        return excText;
+    }
+
+    /**
+     * Get the traceback frames.
+     *
+     * @return list of <tt>TraceFrame</tt>s (<tt>null</tt> if there was no
+     *         traceback)
+     */
+    List getFrames()
+    {
+        return trace;
+    }
+
+    /**
+     * Get a key which is equal for errors or failures with the same type,
+     * exception and traceback.
+     *
+     * @return signature
+     */
+    Object getSignature()
+    {
+        return new FailureSignature(isError, excName, excText, trace);
+    }
+
+    /**
+     * Get the traceback and exception as the text Python would print.
+     *
+     * @return traceback text
+     */
+    String getTraceback()
+    {
+        StringBuilder buf = new StringBuilder("Traceback (most recent call" +
+                                              " last):\n");
+
+        if (trace != null) {
+            for (Iterator it = trace.iterator(); it.hasNext(); ) {
+                TraceFrame frame = (TraceFrame) it.next();
+                if (!frame.isSkippable()) {
+                    frame.dump(buf);
+                }
+            }
+        }
+
+        if (excName != null) {
+            buf.append(excName);
+            if (excText != null) {
+                buf.append(": ");
+            }
+        }
+        if (excText != null) {
+            buf.append(excText);
+        }
+        buf.append('\n');
+
+        return buf.toString();
+    }
+
+    /**
+     * Get the name printed before the test name.
+     *
+     * @return <tt>ERROR</tt> or <tt>FAIL</tt>
+     */
+    private String getTypeName()
+    {
+        if (isError) {
+            return "ERROR";
+        }
+
+        return "FAIL";
+    }
+
+    /**
+     * Is this an error (as opposed to a failure)?
+     *
+     * @return <tt>true</tt> for an error
+     */
+    boolean isError()
+    {
+        return isError;
+    }
+
     /**
      * Has the exception text has been set?
      *
@@ -193,7 +429,7 @@ class ErrorData
             throw new Error("Multiple exception names found");
         }
 
-        excName = name;
+        excName = InternPool.internName(name);
     }
 
     /**
@@ -238,3 +474,86 @@ class ErrorData
         return buf.toString();
     }
 }
+
+/**
+ * The parts of an error or failure which identify repeats of the same
+ * problem.
+ */
+class FailureSignature
+{
+    /** <tt>true</tt> for an error, <tt>false</tt> for a failure. */
+    private boolean isError;
+    /** Exception name. */
+    private String excName;
+    /** Exception text. */
+    private String excText;
+    /** Traceback frames (<tt>null</tt> if there was no traceback). */
+    private List trace;
+
+    /**
+     * Create a signature.
+     *
+     * @param isError <tt>true</tt> for an error
+     * @param excName exception name
+     * @param excText exception text
+     * @param trace traceback frames
+     */
+    FailureSignature(boolean isError, String excName, String excText,
+                     List trace)
+    {
+        this.isError = isError;
+        this.excName = excName;
+        this.excText = excText;
+        this.trace = trace;
+    }
+
+    /**
+     * Compare two objects, either of which may be <tt>null</tt>.
+     *
+     * @param a first object
+     * @param b second object
+     *
+     * @return <tt>true</tt> if the objects are equal
+     */
+    private static boolean isEqual(Object a, Object b)
+    {
+        if (a == null) {
+            return b == null;
+        }
+
+        return a.equals(b);
+    }
+
+    /**
+     * Is this the same problem?
+     *
+     * @param obj object being compared
+     *
+     * @return <tt>true</tt> if the type, exception and traceback match
+     */
+    public boolean equals(Object obj)
+    {
+        if (!(obj instanceof FailureSignature)) {
+            return false;
+        }
+
+        FailureSignature other = (FailureSignature) obj;
+        return isError == other.isError && isEqual(excName, other.excName) &&
+            isEqual(excText, other.excText) && isEqual(trace, other.trace);
+    }
+
+    public int hashCode()
+    {
+        int hash = (isError ? 1 : 0);
+        if (excName != null) {
+            hash = hash * 31 + excName.hashCode();
+        }
+        if (excText != null) {
+            hash = hash * 31 + excText.hashCode();
+        }
+        if (trace != null) {
+            hash = hash * 31 + trace.hashCode();
+        }
+        return hash;
+    }
+}
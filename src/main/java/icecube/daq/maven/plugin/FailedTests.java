@@ -0,0 +1,220 @@
+package icecube.daq.maven.plugin;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Test files which failed in the most recent build which ran them, along
+ * with the names of their failed tests, so they can be rerun on their own.
+ * Each build only changes the entries for the test files it ran.
+ */
+class FailedTests
+{
+    /** Failed test files, mapped to their failed test names. */
+    private Properties props = new Properties();
+    /** State file. */
+    private File stateFile;
+    /** Was the state file loaded? */
+    private boolean loaded;
+
+    /**
+     * Load the failed tests.  A missing, unreadable or corrupt file results
+     * in an empty list.
+     *
+     * @param stateFile state file
+     */
+    FailedTests(File stateFile)
+    {
+        this.stateFile = stateFile;
+
+        loaded = PropertiesFile.load(stateFile, props);
+    }
+
+    /**
+     * Did the test file fail the last time it was run?
+     *
+     * @param f test file
+     *
+     * @return <tt>true</tt> if the file failed
+     */
+    synchronized boolean contains(File f)
+    {
+        return props.containsKey(getKey(f));
+    }
+
+    /**
+     * Get the key used for a test file.
+     *
+     * @param f test file
+     *
+     * @return property key
+     */
+    private static String getKey(File f)
+    {
+        return f.getAbsolutePath();
+    }
+
+    /**
+     * Get the name used to load a test case from its test file.  Test class
+     * names start with the module name ("__main__" when the file is run as
+     * a script), and newer versions of Python also include the test name.
+     *
+     * @param caseData test case data
+     *
+     * @return name relative to the test module (e.g. <tt>FooTest.testBar</tt>),
+     *         or <tt>null</tt> if the case has no name
+     */
+    static String getTestName(CaseData caseData)
+    {
+        String className = caseData.getClassName();
+        final String name = caseData.getName();
+        if (className == null || name == null) {
+            return null;
+        }
+
+        if (className.endsWith("." + name)) {
+            className = className.substring(0, className.length() -
+                                            name.length() - 1);
+        }
+
+        int dot = className.indexOf('.');
+        if (dot >= 0) {
+            className = className.substring(dot + 1);
+        }
+
+        if (className.length() == 0) {
+            return null;
+        }
+
+        return className + "." + name;
+    }
+
+    /**
+     * Get the names of the tests which failed in a test file.
+     *
+     * @param f test file
+     *
+     * @return list of test names (empty if the whole file should be run),
+     *         or <tt>null</tt> if the file didn't fail
+     */
+    synchronized List getTests(File f)
+    {
+        String val = props.getProperty(getKey(f));
+        if (val == null) {
+            return null;
+        }
+
+        ArrayList names = new ArrayList();
+
+        String[] flds = val.split(",");
+        for (int i = 0; i < flds.length; i++) {
+            if (flds[i].length() > 0) {
+                names.add(flds[i]);
+            }
+        }
+
+        return names;
+    }
+
+    /**
+     * Was there a state file from a previous build?
+     *
+     * @return <tt>true</tt> if the state file was loaded
+     */
+    boolean isLoaded()
+    {
+        return loaded;
+    }
+
+    /**
+     * Save the failed tests, dropping any test files which no longer exist.
+     *
+     * @throws PyTestException if the file could not be written
+     */
+    synchronized void save()
+        throws PyTestException
+    {
+        for (Iterator it = props.keySet().iterator(); it.hasNext(); ) {
+            if (!new File((String) it.next()).exists()) {
+                it.remove();
+            }
+        }
+
+        File dir = stateFile.getParentFile();
+        if (dir != null && !dir.exists()) {
+            dir.mkdirs();
+        }
+
+        try {
+            FileOutputStream out = new FileOutputStream(stateFile);
+            try {
+                props.store(out, "Failed Python tests");
+            } finally {
+                out.close();
+            }
+        } catch (IOException ioe) {
+            throw new PyTestException("Couldn't write " + stateFile, ioe);
+        }
+    }
+
+    /**
+     * Record the outcome of a test file.  A test file which passed is
+     * removed, and one which was skipped is left alone.  If the failed tests
+     * can't all be named, the whole file will be rerun.  This must be called
+     * before the test case details are discarded.
+     *
+     * @param result test file results
+     */
+    synchronized void update(SuiteResult result)
+    {
+        final String key = getKey(result.getFile());
+
+        if (result.isNotRun()) {
+            return;
+        } else if (!result.isFailed() && result.getRunException() == null) {
+            props.remove(key);
+            return;
+        }
+
+        StringBuffer buf = new StringBuffer();
+
+        SuiteData data = result.getData();
+        if (data != null && data.getCases() != null &&
+            result.getRunException() == null &&
+            result.getParseException() == null)
+        {
+            int numBad = 0;
+            for (Iterator it = data.getCases().iterator(); it.hasNext(); ) {
+                CaseData cd = (CaseData) it.next();
+                if (cd.getError() == null && cd.getFailure() == null) {
+                    continue;
+                }
+
+                final String name = getTestName(cd);
+                if (name == null) {
+                    buf.setLength(0);
+                    break;
+                }
+
+                if (buf.length() > 0) {
+                    buf.append(',');
+                }
+                buf.append(name);
+                numBad++;
+            }
+
+            if (numBad != data.getNumErrors() + data.getNumFailures()) {
+                // some failures weren't attributed to a test case
+                buf.setLength(0);
+            }
+        }
+
+        props.setProperty(key, buf.toString());
+    }
+}
@@ -0,0 +1,97 @@
+package icecube.daq.maven.plugin;
+
+/**
+ * One result for a single test case.
+ */
+class HistoryCase
+{
+    /** Run which included this result. */
+    private HistoryRun run;
+    /** Test class name. */
+    private String className;
+    /** Test name. */
+    private String name;
+    /** "ok", "FAIL" or "ERROR". */
+    private String status;
+    /** Test time in milliseconds (-1 if unknown). */
+    private long millis;
+
+    /**
+     * Create a test case result.
+     *
+     * @param run run which included this result
+     * @param className test class name
+     * @param name test name
+     * @param status "ok", "FAIL" or "ERROR"
+     * @param millis test time in milliseconds (-1 if unknown)
+     */
+    HistoryCase(HistoryRun run, String className, String name, String status,
+                long millis)
+    {
+        this.run = run;
+        this.className = className;
+        this.name = name;
+        this.status = status;
+        this.millis = millis;
+    }
+
+    /**
+     * Get the test class name.
+     *
+     * @return class name
+     */
+    String getClassName()
+    {
+        return className;
+    }
+
+    /**
+     * Get the test time.
+     *
+     * @return milliseconds (-1 if unknown)
+     */
+    long getMillis()
+    {
+        return millis;
+    }
+
+    /**
+     * Get the test name.
+     *
+     * @return test name
+     */
+    String getName()
+    {
+        return name;
+    }
+
+    /**
+     * Get the run which included this result.
+     *
+     * @return test file run
+     */
+    HistoryRun getRun()
+    {
+        return run;
+    }
+
+    /**
+     * Get the test status.
+     *
+     * @return "ok", "FAIL" or "ERROR"
+     */
+    String getStatus()
+    {
+        return status;
+    }
+
+    /**
+     * Did the test pass?
+     *
+     * @return <tt>true</tt> if the test passed
+     */
+    boolean isPassed()
+    {
+        return HistoryRun.CASE_OK.equals(status);
+    }
+}
@@ -0,0 +1,483 @@
+package icecube.daq.maven.plugin;
+
+import java.io.PrintStream;
+
+import java.text.DecimalFormat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Recent results for a single test file or test case.
+ */
+class HistoryStats
+{
+    /** Minimum number of times needed to look for a trend. */
+    static final int MIN_TREND_TIMES = 4;
+    /** Smallest slowdown worth reporting, in milliseconds. */
+    static final double MIN_TREND_MILLIS = 50.0;
+
+    /** Outcome bits recorded for each commit. */
+    private static final int SAW_PASS = 1;
+    private static final int SAW_FAIL = 2;
+
+    /** Test file name. */
+    private String suite;
+    /** Test description (<tt>null</tt> for the whole test file). */
+    private String test;
+
+    /** Known times, oldest first. */
+    private long[] times = new long[8];
+    /** Number of known times. */
+    private int numTimes;
+
+    /** Number of runs. */
+    private int numRuns;
+    /** Number of runs which did not pass. */
+    private int numFailed;
+    /** Number of times the outcome changed from the previous run. */
+    private int numChanges;
+    /** Did the previous run pass? */
+    private boolean lastPassed;
+    /** Map of commits to the outcomes seen for that commit. */
+    private HashMap commitOutcomes = new HashMap();
+
+    /**
+     * Create statistics for a test file or test case.
+     *
+     * @param suite test file name
+     * @param test test description (<tt>null</tt> for the whole file)
+     */
+    HistoryStats(String suite, String test)
+    {
+        this.suite = suite;
+        this.test = test;
+    }
+
+    /**
+     * Add a result.  Results must be added oldest first.
+     *
+     * @param passed <tt>true</tt> if the test passed
+     * @param millis time taken (-1 if unknown)
+     * @param commit source commit (<tt>null</tt> if unknown)
+     */
+    void add(boolean passed, long millis, String commit)
+    {
+        if (numRuns > 0 && passed != lastPassed) {
+            numChanges++;
+        }
+        lastPassed = passed;
+
+        numRuns++;
+        if (!passed) {
+            numFailed++;
+        }
+
+        if (commit != null) {
+            Integer prev = (Integer) commitOutcomes.get(commit);
+            int bits = (prev == null ? 0 : prev.intValue());
+            bits |= (passed ? SAW_PASS : SAW_FAIL);
+            commitOutcomes.put(commit, Integer.valueOf(bits));
+        }
+
+        if (millis >= 0) {
+            if (numTimes == times.length) {
+                long[] tmp = new long[times.length * 2];
+                System.arraycopy(times, 0, tmp, 0, numTimes);
+                times = tmp;
+            }
+
+            times[numTimes++] = millis;
+        }
+    }
+
+    /**
+     * Get the average time over a range of known times.
+     *
+     * @param start first index
+     * @param end index after the last one
+     *
+     * @return average milliseconds
+     */
+    private double average(int start, int end)
+    {
+        long total = 0;
+        for (int i = start; i < end; i++) {
+            total += times[i];
+        }
+
+        return (double) total / (double) (end - start);
+    }
+
+    /**
+     * Get the average time of the newer half of the known times.
+     *
+     * @return average milliseconds
+     */
+    double getNewerAverage()
+    {
+        return average(numTimes - numTimes / 2, numTimes);
+    }
+
+    /**
+     * Get the average time of the older half of the known times.
+     *
+     * @return average milliseconds
+     */
+    double getOlderAverage()
+    {
+        return average(0, numTimes / 2);
+    }
+
+    /**
+     * Get the average of the known times.
+     *
+     * @return average milliseconds (-1 if there are no known times)
+     */
+    double getAverage()
+    {
+        if (numTimes == 0) {
+            return -1.0;
+        }
+
+        return average(0, numTimes);
+    }
+
+    /**
+     * Get the number of commits which had both passing and failing runs.
+     *
+     * @return number of commits
+     */
+    int getMixedCommits()
+    {
+        int num = 0;
+        for (Iterator it = commitOutcomes.values().iterator(); it.hasNext(); ) {
+            if (((Integer) it.next()).intValue() == (SAW_PASS | SAW_FAIL)) {
+                num++;
+            }
+        }
+
+        return num;
+    }
+
+    /**
+     * Get the number of times the outcome changed from the previous run.
+     *
+     * @return number of changes
+     */
+    int getNumChanges()
+    {
+        return numChanges;
+    }
+
+    /**
+     * Get the number of runs which did not pass.
+     *
+     * @return number of failed runs
+     */
+    int getNumFailed()
+    {
+        return numFailed;
+    }
+
+    /**
+     * Get the number of runs.
+     *
+     * @return number of runs
+     */
+    int getNumRuns()
+    {
+        return numRuns;
+    }
+
+    /**
+     * Get the fraction by which the newer half of the known times is
+     * slower than the older half.  Slowdowns smaller than
+     * <tt>MIN_TREND_MILLIS</tt> are ignored.
+     *
+     * @return fractional slowdown (0 if there is no upward trend)
+     */
+    double getSlowdown()
+    {
+        if (numTimes < MIN_TREND_TIMES) {
+            return 0.0;
+        }
+
+        final double older = getOlderAverage();
+        final double newer = getNewerAverage();
+        if (older <= 0.0 || newer - older < MIN_TREND_MILLIS) {
+            return 0.0;
+        }
+
+        return (newer - older) / older;
+    }
+
+    /**
+     * Get the name printed in reports.
+     *
+     * @return test file name, followed by the test description if this is
+     *         a test case
+     */
+    String getLabel()
+    {
+        if (test == null) {
+            return suite;
+        }
+
+        return suite + " " + test;
+    }
+}
+
+/**
+ * Report slow tests, tests which are getting slower and tests with
+ * inconsistent results from the recorded history.
+ */
+class HistoryReport
+{
+    /** Formatter for times. */
+    private static final DecimalFormat timeFmt = new DecimalFormat("0.000");
+
+    /** List of <tt>HistoryStats</tt> for all test files and test cases. */
+    private ArrayList stats = new ArrayList();
+
+    /**
+     * Gather statistics for the most recent runs of every test file.
+     *
+     * @param history result history
+     * @param numRuns number of recent runs to use for each test file
+     *
+     * @throws PyTestException if the history could not be read
+     */
+    HistoryReport(ResultHistory history, int numRuns)
+        throws PyTestException
+    {
+        for (Iterator it = history.listSuites().iterator(); it.hasNext(); ) {
+            final String suite = (String) it.next();
+
+            List runs = history.read(suite);
+            if (numRuns > 0 && runs.size() > numRuns) {
+                runs = runs.subList(runs.size() - numRuns, runs.size());
+            }
+
+            HistoryStats suiteStats = new HistoryStats(suite, null);
+            stats.add(suiteStats);
+
+            LinkedHashMap caseStats = new LinkedHashMap();
+            for (Iterator ri = runs.iterator(); ri.hasNext(); ) {
+                HistoryRun run = (HistoryRun) ri.next();
+
+                suiteStats.add(run.isPassed(), run.getMillis(),
+                               run.getCommit());
+
+                for (Iterator ci = run.getCases().iterator(); ci.hasNext(); ) {
+                    HistoryCase hCase = (HistoryCase) ci.next();
+
+                    final String test = hCase.getName() + " (" +
+                        hCase.getClassName() + ")";
+
+                    HistoryStats cs = (HistoryStats) caseStats.get(test);
+                    if (cs == null) {
+                        cs = new HistoryStats(suite, test);
+                        caseStats.put(test, cs);
+                    }
+
+                    cs.add(hCase.isPassed(), hCase.getMillis(),
+                           run.getCommit());
+                }
+            }
+
+            stats.addAll(caseStats.values());
+        }
+    }
+
+    /**
+     * Get the tests with inconsistent results, starting with the ones
+     * whose results differed for the same commit and then the ones whose
+     * results changed most often.
+     *
+     * @param count maximum number of tests to return
+     *
+     * @return list of <tt>HistoryStats</tt>
+     */
+    List getInconsistent(int count)
+    {
+        ArrayList list = new ArrayList();
+        for (Iterator it = stats.iterator(); it.hasNext(); ) {
+            HistoryStats hs = (HistoryStats) it.next();
+            if (hs.getNumChanges() > 0) {
+                list.add(hs);
+            }
+        }
+
+        Collections.sort(list, new Comparator() {
+                public int compare(Object o1, Object o2)
+                {
+                    HistoryStats s1 = (HistoryStats) o1;
+                    HistoryStats s2 = (HistoryStats) o2;
+
+                    int val = s2.getMixedCommits() - s1.getMixedCommits();
+                    if (val == 0) {
+                        val = s2.getNumChanges() - s1.getNumChanges();
+                    }
+                    return val;
+                }
+            });
+
+        return truncate(list, count);
+    }
+
+    /**
+     * Get the slowest test files and test cases.
+     *
+     * @param count maximum number of tests to return
+     *
+     * @return list of <tt>HistoryStats</tt>, slowest first
+     */
+    List getSlowest(int count)
+    {
+        ArrayList list = new ArrayList();
+        for (Iterator it = stats.iterator(); it.hasNext(); ) {
+            HistoryStats hs = (HistoryStats) it.next();
+            if (hs.getAverage() >= 0.0) {
+                list.add(hs);
+            }
+        }
+
+        Collections.sort(list, new Comparator() {
+                public int compare(Object o1, Object o2)
+                {
+                    return Double.compare(((HistoryStats) o2).getAverage(),
+                                          ((HistoryStats) o1).getAverage());
+                }
+            });
+
+        return truncate(list, count);
+    }
+
+    /**
+     * Get the tests which are getting slower.
+     *
+     * @param count maximum number of tests to return
+     * @param minSlowdown smallest fractional slowdown to report
+     *
+     * @return list of <tt>HistoryStats</tt>, largest slowdown first
+     */
+    List getTrending(int count, double minSlowdown)
+    {
+        ArrayList list = new ArrayList();
+        for (Iterator it = stats.iterator(); it.hasNext(); ) {
+            HistoryStats hs = (HistoryStats) it.next();
+            final double slowdown = hs.getSlowdown();
+            if (slowdown > 0.0 && slowdown >= minSlowdown) {
+                list.add(hs);
+            }
+        }
+
+        Collections.sort(list, new Comparator() {
+                public int compare(Object o1, Object o2)
+                {
+                    return Double.compare(((HistoryStats) o2).getSlowdown(),
+                                          ((HistoryStats) o1).getSlowdown());
+                }
+            });
+
+        return truncate(list, count);
+    }
+
+    /**
+     * Print the report.
+     *
+     * @param out output stream
+     * @param count maximum number of tests in each section
+     * @param minSlowdown smallest fractional slowdown to report
+     */
+    void print(PrintStream out, int count, double minSlowdown)
+    {
+        out.println("Slowest tests:");
+        List list = getSlowest(count);
+        for (Iterator it = list.iterator(); it.hasNext(); ) {
+            HistoryStats hs = (HistoryStats) it.next();
+            out.println("  " + formatSecs(hs.getAverage()) + "  " +
+                        hs.getLabel());
+        }
+        printNone(out, list);
+
+        out.println();
+        out.println("Tests getting slower:");
+        list = getTrending(count, minSlowdown);
+        for (Iterator it = list.iterator(); it.hasNext(); ) {
+            HistoryStats hs = (HistoryStats) it.next();
+            out.println("  +" + Math.round(hs.getSlowdown() * 100.0) + "% " +
+                        formatSecs(hs.getOlderAverage()) + " -> " +
+                        formatSecs(hs.getNewerAverage()) + "  " +
+                        hs.getLabel());
+        }
+        printNone(out, list);
+
+        out.println();
+        out.println("Tests with inconsistent results:");
+        list = getInconsistent(count);
+        for (Iterator it = list.iterator(); it.hasNext(); ) {
+            HistoryStats hs = (HistoryStats) it.next();
+
+            String mixed;
+            if (hs.getMixedCommits() == 0) {
+                mixed = "";
+            } else {
+                mixed = ", " + hs.getMixedCommits() + " commits had both";
+            }
+
+            out.println("  " + hs.getNumFailed() + " of " + hs.getNumRuns() +
+                        " runs failed, " + hs.getNumChanges() + " changes" +
+                        mixed + "  " + hs.getLabel());
+        }
+        printNone(out, list);
+    }
+
+    /**
+     * Format milliseconds as seconds.
+     *
+     * @param millis milliseconds
+     *
+     * @return formatted seconds
+     */
+    private static String formatSecs(double millis)
+    {
+        return timeFmt.format(millis / 1000.0) + "s";
+    }
+
+    /**
+     * Note an empty report section.
+     *
+     * @param out output stream
+     * @param list section entries
+     */
+    private static void printNone(PrintStream out, List list)
+    {
+        if (list.size() == 0) {
+            out.println("  (none)");
+        }
+    }
+
+    /**
+     * Keep only the first entries of a list.
+     *
+     * @param list list
+     * @param count maximum number of entries
+     *
+     * @return truncated list
+     */
+    private static List truncate(List list, int count)
+    {
+        if (count <= 0 || list.size() <= count) {
+            return list;
+        }
+
+        return new ArrayList(list.subList(0, count));
+    }
+}
@@ -0,0 +1,135 @@
+package icecube.daq.maven.plugin;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One run of a single test file.
+ */
+class HistoryRun
+{
+    /** Status of a passing test file. */
+    static final String PASSED = "pass";
+    /** Status of a test file with failed tests. */
+    static final String FAILED = "fail";
+    /** Status of a test file which could not be run or parsed. */
+    static final String ERROR = "error";
+    /** Status of a test file which was stopped before it finished. */
+    static final String TIMEOUT = "timeout";
+
+    /** Status of a passing test case. */
+    static final String CASE_OK = "ok";
+
+    /** Time the build started. */
+    private long timestamp;
+    /** Test file status. */
+    private String status;
+    /** Wall-clock time taken by the test file. */
+    private long millis;
+    /** Python interpreter and version. */
+    private String interpreter;
+    /** Source commit (<tt>null</tt> if unknown). */
+    private String commit;
+    /** List of <tt>HistoryCase</tt>s. */
+    private ArrayList cases = new ArrayList();
+
+    /**
+     * Create a test file run.
+     *
+     * @param timestamp time the build started
+     * @param status test file status
+     * @param millis wall-clock time taken by the test file
+     * @param interpreter Python interpreter and version
+     * @param commit source commit (<tt>null</tt> if unknown)
+     */
+    HistoryRun(long timestamp, String status, long millis,
+               String interpreter, String commit)
+    {
+        this.timestamp = timestamp;
+        this.status = status;
+        this.millis = millis;
+        this.interpreter = interpreter;
+        this.commit = commit;
+    }
+
+    /**
+     * Add a test case result.
+     *
+     * @param hCase test case result
+     */
+    void addCase(HistoryCase hCase)
+    {
+        cases.add(hCase);
+    }
+
+    /**
+     * Get the test case results.
+     *
+     * @return list of <tt>HistoryCase</tt>s
+     */
+    List getCases()
+    {
+        return cases;
+    }
+
+    /**
+     * Get the source commit.
+     *
+     * @return <tt>null</tt> if unknown
+     */
+    String getCommit()
+    {
+        return commit;
+    }
+
+    /**
+     * Get the Python interpreter and version.
+     *
+     * @return interpreter description
+     */
+    String getInterpreter()
+    {
+        return interpreter;
+    }
+
+    /**
+     * Get the wall-clock time taken by the test file.
+     *
+     * @return milliseconds
+     */
+    long getMillis()
+    {
+        return millis;
+    }
+
+    /**
+     * Get the test file status.
+     *
+     * @return <tt>PASSED</tt>, <tt>FAILED</tt>, <tt>ERROR</tt> or
+     *         <tt>TIMEOUT</tt>
+     */
+    String getStatus()
+    {
+        return status;
+    }
+
+    /**
+     * Get the time the build started.
+     *
+     * @return milliseconds since the epoch
+     */
+    long getTimestamp()
+    {
+        return timestamp;
+    }
+
+    /**
+     * Did the test file pass?
+     *
+     * @return <tt>true</tt> if the test file passed
+     */
+    boolean isPassed()
+    {
+        return PASSED.equals(status);
+    }
+}
@@ -0,0 +1,801 @@
+package icecube.daq.maven.plugin;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The modules imported by each Python source and test file, used to find
+ * the test files affected by a change.  Imports are found by scanning the
+ * files for <tt>import</tt> and <tt>from ... import</tt> statements, and
+ * are saved along with each file's modification time so only new or
+ * changed files are scanned again.  The modification times of other files
+ * are also saved so changes to them can be reported.
+ */
+class ImportGraph
+{
+    /**
+     * Files changed this recently are saved as changed, since a further
+     * change within the timestamp granularity would be missed.
+     */
+    private static final long MTIME_SLOP_MILLIS = 2000;
+
+    /** Property holding the patterns which selected the test files. */
+    private static final String PATTERNS_KEY = "test.patterns";
+
+    /** Match an <tt>import</tt> statement. */
+    private static final Pattern importPat =
+        Pattern.compile("^\\s*import\\s+(.*)$");
+    /** Match a <tt>from ... import</tt> statement. */
+    private static final Pattern fromPat =
+        Pattern.compile("^\\s*from\\s+(\\.*[\\w.]*)\\s+import\\s+(.*)$");
+    /** Match the start of either kind of import statement. */
+    private static final Pattern startPat =
+        Pattern.compile("^\\s*(import|from)\\s");
+    /** Match a module or attribute name. */
+    private static final Pattern namePat = Pattern.compile("^[\\w.]+$");
+
+    /** State file. */
+    private File stateFile;
+    /** Patterns which selected the test files. */
+    private String testPatterns;
+    /** Was the state file loaded? */
+    private boolean loaded;
+    /** Were the test files selected with the same patterns last time? */
+    private boolean samePatterns;
+    /** Modification times and imports saved by the previous build. */
+    private Properties props = new Properties();
+
+    /** Map of each scanned file to its imports. */
+    private HashMap imports = new HashMap();
+    /** Map of each scanned file to its modification time. */
+    private HashMap mtimes = new HashMap();
+    /** Map of each module name to the list of files it may refer to. */
+    private HashMap modules = new HashMap();
+    /** Scanned files which are new or were changed after the last save. */
+    private HashSet changed = new HashSet();
+    /** Non-Python files which are new, changed or deleted. */
+    private ArrayList changedOther = new ArrayList();
+    /** Number of files which were read during the scan. */
+    private int numRead;
+
+    /**
+     * Load the imports saved by a previous build.  A missing or unreadable
+     * file results in an empty graph.
+     *
+     * @param stateFile state file
+     */
+    ImportGraph(File stateFile)
+    {
+        this(stateFile, "");
+    }
+
+    /**
+     * Load the imports saved by a previous build.  A missing or unreadable
+     * file results in an empty graph.
+     *
+     * @param stateFile state file
+     * @param testPatterns patterns which selected the test files, so a
+     *                     change to them can be noticed
+     */
+    ImportGraph(File stateFile, String testPatterns)
+    {
+        this.stateFile = stateFile;
+        this.testPatterns = testPatterns;
+
+        loaded = PropertiesFile.load(stateFile, props);
+
+        String saved = (String) props.remove(PATTERNS_KEY);
+        samePatterns = testPatterns.equals(saved == null ? "" : saved);
+    }
+
+    /**
+     * Add the names a file can be imported as from each directory on the
+     * Python path.
+     *
+     * @param f canonical file
+     * @param pathDirs canonical directories on the Python path
+     */
+    private void addModuleNames(File f, Set pathDirs)
+    {
+        String name = f.getName();
+        name = name.substring(0, name.length() - 3);
+
+        File dir = f.getParentFile();
+        if (name.equals("__init__")) {
+            // a package is imported by its directory name
+            if (dir == null) {
+                return;
+            }
+
+            name = dir.getName();
+            dir = dir.getParentFile();
+        }
+
+        while (dir != null) {
+            if (pathDirs.contains(dir)) {
+                List files = (List) modules.get(name);
+                if (files == null) {
+                    files = new ArrayList();
+                    modules.put(name, files);
+                }
+                files.add(f);
+            }
+
+            name = dir.getName() + "." + name;
+            dir = dir.getParentFile();
+        }
+    }
+
+    /**
+     * Add the modules named in a <tt>from ... import</tt> statement.
+     *
+     * @param list list of imported modules
+     * @param module module name, with a leading dot for each level of a
+     *               relative import
+     * @param names comma-separated list of imported names
+     */
+    private static void addFromImport(List list, String module, String names)
+    {
+        list.add(module);
+
+        String[] flds = stripParens(names).split(",");
+        for (int i = 0; i < flds.length; i++) {
+            String name = stripAlias(flds[i]);
+            if (name == null || name.equals("*")) {
+                continue;
+            }
+
+            // the name may be a submodule rather than an attribute
+            if (module.endsWith(".")) {
+                list.add(module + name);
+            } else {
+                list.add(module + "." + name);
+            }
+        }
+    }
+
+    /**
+     * Add the modules named in an <tt>import</tt> statement.
+     *
+     * @param list list of imported modules
+     * @param names comma-separated list of imported modules
+     */
+    private static void addImport(List list, String names)
+    {
+        String[] flds = stripParens(names).split(",");
+        for (int i = 0; i < flds.length; i++) {
+            String name = stripAlias(flds[i]);
+            if (name != null) {
+                list.add(name);
+            }
+        }
+    }
+
+    /**
+     * Find the files affected by changes to the specified files.  A file is
+     * affected if it changed or if it imports an affected file.
+     *
+     * @param changedFiles canonical files which changed
+     *
+     * @return set of canonical files
+     */
+    Set findAffected(Collection changedFiles)
+    {
+        // map each file to the files which import it
+        HashMap importers = new HashMap();
+        for (Iterator it = imports.keySet().iterator(); it.hasNext(); ) {
+            File f = (File) it.next();
+
+            for (Iterator di = resolve(f).iterator(); di.hasNext(); ) {
+                Object dep = di.next();
+
+                List list = (List) importers.get(dep);
+                if (list == null) {
+                    list = new ArrayList();
+                    importers.put(dep, list);
+                }
+                list.add(f);
+            }
+        }
+
+        HashSet affected = new HashSet(changedFiles);
+
+        LinkedList queue = new LinkedList(changedFiles);
+        while (queue.size() > 0) {
+            List list = (List) importers.get(queue.removeFirst());
+            if (list == null) {
+                continue;
+            }
+
+            for (Iterator it = list.iterator(); it.hasNext(); ) {
+                Object f = it.next();
+                if (affected.add(f)) {
+                    queue.add(f);
+                }
+            }
+        }
+
+        return affected;
+    }
+
+    /**
+     * Get the files changed since a git revision, relative to a directory.
+     * Untracked files which aren't ignored are included.
+     *
+     * @param dir directory inside the git working tree
+     * @param ref git revision
+     *
+     * @return list of files (some may no longer exist)
+     *
+     * @throws PyTestException if git could not be run
+     */
+    static List findGitChanges(File dir, String ref)
+        throws PyTestException
+    {
+        ArrayList files = new ArrayList();
+        runGit(dir, new String[] { "git", "diff", "--name-only", "--relative",
+                                   ref }, files);
+        runGit(dir, new String[] { "git", "ls-files", "--others",
+                                   "--exclude-standard" }, files);
+        return files;
+    }
+
+    /**
+     * Get the scanned files which are new or were changed after the graph
+     * was last saved.
+     *
+     * @return set of canonical files
+     */
+    Set getChanged()
+    {
+        return changed;
+    }
+
+    /**
+     * Get the files which were scanned in the previous build but no longer
+     * exist.
+     *
+     * @return list of files
+     */
+    List getDeleted()
+    {
+        ArrayList list = new ArrayList();
+        for (Iterator it = props.keySet().iterator(); it.hasNext(); ) {
+            final String path = (String) it.next();
+            if (!path.endsWith(".py")) {
+                continue;
+            }
+
+            File f = new File(path);
+            if (!imports.containsKey(f)) {
+                list.add(f);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Get the non-Python files which are new, were changed or were deleted
+     * after the graph was last saved.
+     *
+     * @return list of files
+     */
+    List getChangedOther()
+    {
+        ArrayList list = new ArrayList(changedOther);
+        for (Iterator it = props.keySet().iterator(); it.hasNext(); ) {
+            final String path = (String) it.next();
+            if (path.endsWith(".py")) {
+                continue;
+            }
+
+            File f = new File(path);
+            if (!imports.containsKey(f)) {
+                list.add(f);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Get the modification time saved for a file by the previous build.
+     *
+     * @param f canonical file
+     *
+     * @return saved time as a string (<tt>null</tt> if none)
+     */
+    private String getSavedTime(File f)
+    {
+        String val = props.getProperty(f.getPath());
+        if (val == null) {
+            return null;
+        }
+
+        final int tab = val.indexOf('\t');
+        if (tab < 0) {
+            return null;
+        }
+
+        return val.substring(0, tab);
+    }
+
+    /**
+     * Get the modification time to save for a file.  Files changed very
+     * recently are saved with an impossible time, so they are treated as
+     * changed by the next build.
+     *
+     * @param modTime file modification time
+     *
+     * @return time to save
+     */
+    private static Long getTimeToSave(long modTime)
+    {
+        if (System.currentTimeMillis() - modTime < MTIME_SLOP_MILLIS) {
+            return Long.valueOf(-1L);
+        }
+
+        return Long.valueOf(modTime);
+    }
+
+    /**
+     * Were the test files selected with the same patterns when the graph
+     * was saved?  If not, the saved state says nothing about the test files
+     * which weren't selected last time.
+     *
+     * @return <tt>true</tt> if the patterns are unchanged
+     */
+    boolean hasSamePatterns()
+    {
+        return samePatterns;
+    }
+
+    /**
+     * Get the number of files which had to be read during the scan.
+     *
+     * @return number of files read
+     */
+    int getNumRead()
+    {
+        return numRead;
+    }
+
+    /**
+     * Was there a state file from a previous build?
+     *
+     * @return <tt>true</tt> if the state file was loaded
+     */
+    boolean isLoaded()
+    {
+        return loaded;
+    }
+
+    /**
+     * Find the modules imported by a Python file.  Statements split across
+     * lines with parentheses or backslashes are joined first.
+     *
+     * @param f Python file
+     *
+     * @return list of module names, with a leading dot for each level of a
+     *         relative import
+     *
+     * @throws IOException if the file could not be read
+     */
+    static List parseImports(File f)
+        throws IOException
+    {
+        ArrayList list = new ArrayList();
+
+        BufferedReader rdr = new BufferedReader(new FileReader(f));
+        try {
+            StringBuilder stmt = new StringBuilder();
+            int depth = 0;
+
+            String line;
+            while ((line = rdr.readLine()) != null) {
+                final int hash = line.indexOf('#');
+                if (hash >= 0) {
+                    line = line.substring(0, hash);
+                }
+
+                if (stmt.length() > 0) {
+                    stmt.append(' ');
+                } else if (!startPat.matcher(line).find()) {
+                    continue;
+                }
+                stmt.append(line);
+
+                for (int i = 0; i < line.length(); i++) {
+                    final char ch = line.charAt(i);
+                    if (ch == '(') {
+                        depth++;
+                    } else if (ch == ')' && depth > 0) {
+                        depth--;
+                    }
+                }
+
+                if (depth > 0) {
+                    continue;
+                }
+
+                while (stmt.length() > 0 &&
+                       Character.isWhitespace(stmt.charAt(stmt.length() - 1)))
+                {
+                    stmt.setLength(stmt.length() - 1);
+                }
+
+                final int last = stmt.length() - 1;
+                if (last >= 0 && stmt.charAt(last) == '\\') {
+                    stmt.setLength(last);
+                    continue;
+                }
+
+                String[] parts = stmt.toString().split(";");
+                for (int i = 0; i < parts.length; i++) {
+                    parseStatement(list, parts[i]);
+                }
+
+                stmt.setLength(0);
+            }
+        } finally {
+            rdr.close();
+        }
+
+        return list;
+    }
+
+    /**
+     * Add the modules imported by a statement.
+     *
+     * @param list list of imported modules
+     * @param stmt Python statement
+     */
+    private static void parseStatement(List list, String stmt)
+    {
+        Matcher match = fromPat.matcher(stmt);
+        if (match.find()) {
+            addFromImport(list, match.group(1), match.group(2));
+            return;
+        }
+
+        match = importPat.matcher(stmt);
+        if (match.find()) {
+            addImport(list, match.group(1));
+        }
+    }
+
+    /**
+     * Get the files imported by a scanned file.  A module name which could
+     * refer to several files resolves to all of them, and importing a
+     * module also imports its parent packages.
+     *
+     * @param f canonical file
+     *
+     * @return set of canonical files
+     */
+    private Set resolve(File f)
+    {
+        HashSet deps = new HashSet();
+
+        String[] names = (String[]) imports.get(f);
+        for (int i = 0; i < names.length; i++) {
+            String name = names[i];
+
+            if (name.startsWith(".")) {
+                resolveRelative(f, name, deps);
+                continue;
+            }
+
+            while (true) {
+                List files = (List) modules.get(name);
+                if (files != null) {
+                    deps.addAll(files);
+                }
+
+                final int dot = name.lastIndexOf('.');
+                if (dot < 0) {
+                    break;
+                }
+                name = name.substring(0, dot);
+            }
+        }
+
+        deps.remove(f);
+        return deps;
+    }
+
+    /**
+     * Add the files named by a relative import.
+     *
+     * @param f canonical file which holds the import
+     * @param name module name, starting with one dot for the file's own
+     *             package and another for each parent package
+     * @param deps set of imported files
+     */
+    private void resolveRelative(File f, String name, Set deps)
+    {
+        File dir = f.getParentFile();
+
+        int idx = 1;
+        while (idx < name.length() && name.charAt(idx) == '.') {
+            if (dir != null) {
+                dir = dir.getParentFile();
+            }
+            idx++;
+        }
+
+        if (dir == null) {
+            return;
+        }
+
+        addIfScanned(deps, new File(dir, "__init__.py"));
+
+        if (idx < name.length()) {
+            String[] flds = name.substring(idx).split("\\.");
+            for (int i = 0; i < flds.length; i++) {
+                dir = new File(dir, flds[i]);
+                addIfScanned(deps, new File(dir, "__init__.py"));
+            }
+            addIfScanned(deps, new File(dir.getParentFile(),
+                                        dir.getName() + ".py"));
+        }
+    }
+
+    /**
+     * Add a file to the set if it was scanned.
+     *
+     * @param deps set of imported files
+     * @param f file
+     */
+    private void addIfScanned(Set deps, File f)
+    {
+        if (imports.containsKey(f)) {
+            deps.add(f);
+        }
+    }
+
+    /**
+     * Run a git command, adding the named files to a list.
+     *
+     * @param dir working directory
+     * @param args git command and arguments
+     * @param files list of files
+     *
+     * @throws PyTestException if the command failed
+     */
+    private static void runGit(File dir, String[] args, List files)
+        throws PyTestException
+    {
+        ProcessBuilder pBldr = new ProcessBuilder(args);
+        pBldr.directory(dir);
+        pBldr.redirectErrorStream(true);
+
+        Process proc;
+        try {
+            proc = pBldr.start();
+        } catch (IOException ioe) {
+            throw new PyTestException("Couldn't run git", ioe);
+        }
+
+        ArrayList lines = new ArrayList();
+        try {
+            proc.getOutputStream().close();
+
+            InputStream in = proc.getInputStream();
+            BufferedReader rdr = new BufferedReader(new InputStreamReader(in));
+            try {
+                String line;
+                while ((line = rdr.readLine()) != null) {
+                    lines.add(line);
+                }
+            } finally {
+                rdr.close();
+            }
+
+            if (proc.waitFor() != 0) {
+                throw new PyTestException("\"" + args[0] + " " + args[1] +
+                                          "\" failed: " +
+                                          (lines.size() == 0 ? "" :
+                                           lines.get(0)));
+            }
+        } catch (IOException ioe) {
+            throw new PyTestException("Couldn't read git output", ioe);
+        } catch (InterruptedException ie) {
+            throw new PyTestException("Interrupted while running git", ie);
+        } finally {
+            proc.destroy();
+        }
+
+        for (Iterator it = lines.iterator(); it.hasNext(); ) {
+            String line = (String) it.next();
+            if (line.length() > 0) {
+                files.add(new File(dir, line));
+            }
+        }
+    }
+
+    /**
+     * Save the imports of all scanned files, so only the files which change
+     * before the next save will be read again.
+     *
+     * @throws PyTestException if the file could not be written
+     */
+    void save()
+        throws PyTestException
+    {
+        Properties newProps = new Properties();
+        for (Iterator it = imports.keySet().iterator(); it.hasNext(); ) {
+            File f = (File) it.next();
+
+            StringBuilder buf = new StringBuilder();
+            buf.append(mtimes.get(f)).append('\t');
+
+            String[] names = (String[]) imports.get(f);
+            for (int i = 0; i < names.length; i++) {
+                if (i > 0) {
+                    buf.append(',');
+                }
+                buf.append(names[i]);
+            }
+
+            newProps.setProperty(f.getPath(), buf.toString());
+        }
+        newProps.setProperty(PATTERNS_KEY, testPatterns);
+
+        File dir = stateFile.getParentFile();
+        if (dir != null && !dir.exists()) {
+            dir.mkdirs();
+        }
+
+        try {
+            FileOutputStream out = new FileOutputStream(stateFile);
+            try {
+                newProps.store(out, "Python imports");
+            } finally {
+                out.close();
+            }
+        } catch (IOException ioe) {
+            throw new PyTestException("Couldn't write " + stateFile, ioe);
+        }
+    }
+
+    /**
+     * Find the imports of each file, reading only the files which are new
+     * or were modified after the graph was last saved.
+     *
+     * @param files canonical Python files
+     * @param pathDirs canonical directories on the Python path
+     *
+     * @throws PyTestException if a file could not be read
+     */
+    void scan(Collection files, Set pathDirs)
+        throws PyTestException
+    {
+        for (Iterator it = files.iterator(); it.hasNext(); ) {
+            File f = (File) it.next();
+            if (imports.containsKey(f)) {
+                continue;
+            }
+
+            final long modTime = f.lastModified();
+
+            String[] names = null;
+
+            if (Long.toString(modTime).equals(getSavedTime(f))) {
+                String val = props.getProperty(f.getPath());
+                names = split(val.substring(val.indexOf('\t') + 1));
+            }
+
+            if (names == null) {
+                try {
+                    List list = parseImports(f);
+                    names = (String[]) list.toArray(new String[list.size()]);
+                } catch (IOException ioe) {
+                    throw new PyTestException("Couldn't read " + f, ioe);
+                }
+
+                numRead++;
+                changed.add(f);
+            }
+
+            imports.put(f, names);
+            mtimes.put(f, getTimeToSave(modTime));
+            addModuleNames(f, pathDirs);
+        }
+    }
+
+    /**
+     * Note which non-Python files are new or were modified after the graph
+     * was last saved.  These files aren't read.
+     *
+     * @param files canonical files
+     */
+    void scanOther(Collection files)
+    {
+        for (Iterator it = files.iterator(); it.hasNext(); ) {
+            File f = (File) it.next();
+            if (imports.containsKey(f)) {
+                continue;
+            }
+
+            final long modTime = f.lastModified();
+            if (!Long.toString(modTime).equals(getSavedTime(f))) {
+                changedOther.add(f);
+            }
+
+            imports.put(f, new String[0]);
+            mtimes.put(f, getTimeToSave(modTime));
+        }
+    }
+
+    /**
+     * Split a comma-separated list.
+     *
+     * @param str list
+     *
+     * @return array of names
+     */
+    private static String[] split(String str)
+    {
+        if (str.length() == 0) {
+            return new String[0];
+        }
+
+        return str.split(",");
+    }
+
+    /**
+     * Remove the <tt>as</tt> clause from an imported name.
+     *
+     * @param str imported name, possibly followed by an alias
+     *
+     * @return module or attribute name, or <tt>null</tt> if <tt>str</tt> is
+     *         not a valid name
+     */
+    private static String stripAlias(String str)
+    {
+        String name = str.trim();
+
+        final int space = name.indexOf(' ');
+        if (space > 0) {
+            name = name.substring(0, space);
+        }
+
+        if (name.equals("*")) {
+            return name;
+        } else if (!namePat.matcher(name).find()) {
+            return null;
+        }
+
+        return name;
+    }
+
+    /**
+     * Remove the parentheses around a list of imported names.
+     *
+     * @param str list of names
+     *
+     * @return list without parentheses
+     */
+    private static String stripParens(String str)
+    {
+        return str.replace('(', ' ').replace(')', ' ');
+    }
+}
@@ -0,0 +1,69 @@
+package icecube.daq.maven.plugin;
+
+import java.lang.ref.WeakReference;
+
+import java.util.WeakHashMap;
+
+/**
+ * Canonical instances of values which repeat across many test cases, such
+ * as file, class and function names or whole tracebacks, so a cascade of
+ * identical failures keeps a single copy of each.  Values are only weakly
+ * held, so they are dropped once no test case refers to them.
+ */
+class InternPool
+{
+    /** Pool for the names found in test output. */
+    private static InternPool names = new InternPool();
+
+    /** Map of each value to a weak reference to its canonical instance. */
+    private WeakHashMap map = new WeakHashMap();
+
+    /**
+     * Get the canonical instance of a value.  The value must not be
+     * changed after it has been added to the pool.
+     *
+     * @param obj value
+     *
+     * @return previously added equal value, or <tt>obj</tt> if there is
+     *         none (<tt>null</tt> if <tt>obj</tt> is <tt>null</tt>)
+     */
+    synchronized Object intern(Object obj)
+    {
+        if (obj == null) {
+            return null;
+        }
+
+        WeakReference ref = (WeakReference) map.get(obj);
+        if (ref != null) {
+            Object canon = ref.get();
+            if (canon != null) {
+                return canon;
+            }
+        }
+
+        map.put(obj, new WeakReference(obj));
+        return obj;
+    }
+
+    /**
+     * Get the canonical instance of a file, class or function name.
+     *
+     * @param name name
+     *
+     * @return shared copy of the name
+     */
+    static String internName(String name)
+    {
+        return (String) names.intern(name);
+    }
+
+    /**
+     * Get the number of values in the pool.
+     *
+     * @return number of values
+     */
+    synchronized int size()
+    {
+        return map.size();
+    }
+}
@@ -0,0 +1,359 @@
+package icecube.daq.maven.plugin;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+import java.util.ArrayList;
+import java.util.Properties;
+
+/**
+ * Capabilities of a Python interpreter, found by running a short probe
+ * script.  Results are cached on disk so the probe only needs to be rerun
+ * when the interpreter or the Python path changes.
+ */
+class InterpreterInfo
+{
+    /** Python path environment variable. */
+    private static final String PATH_ENV_NAME = "PYTHONPATH";
+
+    /** Script which reports the interpreter's capabilities. */
+    private static final String PROBE_SCRIPT =
+        "import sys\n" +
+        "try:\n" +
+        "    import xmlrunner\n" +
+        "    xml = True\n" +
+        "except ImportError:\n" +
+        "    xml = False\n" +
+        "print(\"version=%d.%d.%d\" % tuple(sys.version_info[:3]))\n" +
+        "print(\"xmlrunner=%s\" % xml)\n";
+
+    /** Cache property names. */
+    private static final String PROP_EXECUTABLE = "executable";
+    private static final String PROP_MTIME = "mtime";
+    private static final String PROP_PATH = "pythonPath";
+    private static final String PROP_VERSION = "version";
+    private static final String PROP_XMLRUNNER = "xmlrunner";
+    private static final String PROP_STARTUP = "startupMillis";
+
+    /** Python version string. */
+    private String version;
+    /** Is the xmlrunner module available? */
+    private boolean hasXMLRunner;
+    /** Time needed to start the interpreter and run the probe. */
+    private long startupMillis;
+    /** Was this data loaded from the cache? */
+    private boolean cached;
+
+    /**
+     * Create an interpreter description.
+     *
+     * @param version Python version string
+     * @param hasXMLRunner <tt>true</tt> if xmlrunner is available
+     * @param startupMillis time needed to run the probe
+     * @param cached <tt>true</tt> if this data was loaded from the cache
+     */
+    private InterpreterInfo(String version, boolean hasXMLRunner,
+                            long startupMillis, boolean cached)
+    {
+        this.version = version;
+        this.hasXMLRunner = hasXMLRunner;
+        this.startupMillis = startupMillis;
+        this.cached = cached;
+    }
+
+    /**
+     * Find the interpreter file, searching <tt>PATH</tt> if necessary.
+     *
+     * @param exe interpreter name or path
+     *
+     * @return <tt>null</tt> if the interpreter was not found
+     */
+    static File findExecutable(String exe)
+    {
+        File f = new File(exe);
+        if (f.isAbsolute() || exe.indexOf(File.separatorChar) >= 0) {
+            if (f.isFile()) {
+                return f;
+            }
+
+            return null;
+        }
+
+        String path = System.getenv("PATH");
+        if (path == null) {
+            return null;
+        }
+
+        String[] dirs = path.split(File.pathSeparator);
+        for (int i = 0; i < dirs.length; i++) {
+            if (dirs[i].length() == 0) {
+                continue;
+            }
+
+            File tmp = new File(dirs[i], exe);
+            if (tmp.isFile()) {
+                return tmp;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Get the time needed to start the interpreter and run the probe script.
+     *
+     * @return startup time in milliseconds
+     */
+    long getStartupMillis()
+    {
+        return startupMillis;
+    }
+
+    /**
+     * Get the Python version.
+     *
+     * @return version string
+     */
+    String getVersion()
+    {
+        return version;
+    }
+
+    /**
+     * Is the xmlrunner module available?
+     *
+     * @return <tt>true</tt> if tests may be able to produce XML output
+     */
+    boolean hasXMLRunner()
+    {
+        return hasXMLRunner;
+    }
+
+    /**
+     * Was this data loaded from the cache?
+     *
+     * @return <tt>true</tt> if the probe was not run
+     */
+    boolean isCached()
+    {
+        return cached;
+    }
+
+    /**
+     * Load cached interpreter data if it matches the key values.
+     *
+     * @param cacheFile cache file
+     * @param exePath interpreter path
+     * @param mtime interpreter modification time
+     * @param pathEnv Python path
+     *
+     * @return <tt>null</tt> if there is no valid cached data
+     */
+    private static InterpreterInfo load(File cacheFile, String exePath,
+                                        long mtime, String pathEnv)
+    {
+        Properties props = new Properties();
+        if (!PropertiesFile.load(cacheFile, props)) {
+            return null;
+        }
+
+        if (!exePath.equals(props.getProperty(PROP_EXECUTABLE)) ||
+            !String.valueOf(mtime).equals(props.getProperty(PROP_MTIME)) ||
+            !String.valueOf(pathEnv).equals(props.getProperty(PROP_PATH)))
+        {
+            return null;
+        }
+
+        String version = props.getProperty(PROP_VERSION);
+        String xmlStr = props.getProperty(PROP_XMLRUNNER);
+        String startStr = props.getProperty(PROP_STARTUP);
+        if (version == null || xmlStr == null || startStr == null) {
+            return null;
+        }
+
+        long startup;
+        try {
+            startup = Long.parseLong(startStr);
+        } catch (NumberFormatException nfe) {
+            return null;
+        }
+
+        return new InterpreterInfo(version, Boolean.valueOf(xmlStr).
+                                   booleanValue(), startup, true);
+    }
+
+    /**
+     * Get the interpreter's capabilities, using cached data if the
+     * interpreter and Python path have not changed.
+     *
+     * @param exe interpreter name or path
+     * @param pathEnv Python path
+     * @param cacheFile cache file (may be <tt>null</tt>)
+     *
+     * @return interpreter data
+     *
+     * @throws PyTestException if the probe could not be run
+     */
+    static InterpreterInfo probe(String exe, String pathEnv, File cacheFile)
+        throws PyTestException
+    {
+        File exeFile = findExecutable(exe);
+
+        String exePath = null;
+        long mtime = 0;
+        if (exeFile != null) {
+            try {
+                exePath = exeFile.getCanonicalPath();
+            } catch (IOException ioe) {
+                exePath = exeFile.getAbsolutePath();
+            }
+            mtime = new File(exePath).lastModified();
+
+            if (cacheFile != null) {
+                InterpreterInfo info = load(cacheFile, exePath, mtime, pathEnv);
+                if (info != null) {
+                    return info;
+                }
+            }
+        }
+
+        InterpreterInfo info = runProbe(exe, pathEnv);
+
+        if (exePath != null && cacheFile != null) {
+            info.save(cacheFile, exePath, mtime, pathEnv);
+        }
+
+        return info;
+    }
+
+    /**
+     * Run the probe script.
+     *
+     * @param exe interpreter name or path
+     * @param pathEnv Python path
+     *
+     * @return interpreter data
+     *
+     * @throws PyTestException if the probe could not be run
+     */
+    private static InterpreterInfo runProbe(String exe, String pathEnv)
+        throws PyTestException
+    {
+        ArrayList args = new ArrayList();
+        args.add(exe);
+        args.add("-c");
+        args.add(PROBE_SCRIPT);
+
+        ProcessBuilder pBldr = new ProcessBuilder(args);
+        pBldr.redirectErrorStream(true);
+        if (pathEnv != null) {
+            pBldr.environment().put(PATH_ENV_NAME, pathEnv);
+        }
+
+        String version = null;
+        Boolean hasXML = null;
+
+        final long start = System.currentTimeMillis();
+
+        Process proc;
+        try {
+            proc = pBldr.start();
+        } catch (IOException ioe) {
+            throw new PyTestException("Couldn't run " + exe, ioe);
+        }
+
+        try {
+            proc.getOutputStream().close();
+
+            InputStream in = proc.getInputStream();
+            BufferedReader rdr = new BufferedReader(new InputStreamReader(in));
+            try {
+                while (true) {
+                    String line = rdr.readLine();
+                    if (line == null) {
+                        break;
+                    }
+
+                    if (line.startsWith("version=")) {
+                        version = line.substring(8).trim();
+                    } else if (line.startsWith("xmlrunner=")) {
+                        hasXML = Boolean.valueOf(line.substring(10).trim());
+                    }
+                }
+            } finally {
+                rdr.close();
+            }
+
+            proc.waitFor();
+        } catch (IOException ioe) {
+            throw new PyTestException("Couldn't read probe output from " + exe,
+                                      ioe);
+        } catch (InterruptedException ie) {
+            throw new PyTestException("Interrupted while probing " + exe, ie);
+        } finally {
+            proc.destroy();
+        }
+
+        final long elapsed = System.currentTimeMillis() - start;
+
+        if (version == null || hasXML == null) {
+            throw new PyTestException("Couldn't determine capabilities of " +
+                                      exe);
+        }
+
+        return new InterpreterInfo(version, hasXML.booleanValue(), elapsed,
+                                   false);
+    }
+
+    /**
+     * Save interpreter data to the cache file.  Failures are ignored since
+     * the probe will simply be rerun next time.
+     *
+     * @param cacheFile cache file
+     * @param exePath interpreter path
+     * @param mtime interpreter modification time
+     * @param pathEnv Python path
+     */
+    private void save(File cacheFile, String exePath, long mtime,
+                      String pathEnv)
+    {
+        Properties props = new Properties();
+        props.setProperty(PROP_EXECUTABLE, exePath);
+        props.setProperty(PROP_MTIME, String.valueOf(mtime));
+        props.setProperty(PROP_PATH, String.valueOf(pathEnv));
+        props.setProperty(PROP_VERSION, version);
+        props.setProperty(PROP_XMLRUNNER, String.valueOf(hasXMLRunner));
+        props.setProperty(PROP_STARTUP, String.valueOf(startupMillis));
+
+        File dir = cacheFile.getParentFile();
+        if (dir != null && !dir.exists()) {
+            dir.mkdirs();
+        }
+
+        try {
+            FileOutputStream out = new FileOutputStream(cacheFile);
+            try {
+                props.store(out, "Python interpreter capabilities");
+            } finally {
+                out.close();
+            }
+        } catch (IOException ioe) {
+            // ignore cache write errors
+        }
+    }
+
+    /**
+     * Debugging representation of this data.
+     *
+     * @return debugging string
+     */
+    public String toString()
+    {
+        return "Python " + version + ",xmlrunner=" + hasXMLRunner +
+            ",startup=" + startupMillis + "ms" + (cached ? ",cached" : "");
+    }
+}
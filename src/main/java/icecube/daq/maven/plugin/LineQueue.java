@@ -0,0 +1,290 @@
+package icecube.daq.maven.plugin;
+
+import java.io.InterruptedIOException;
+import java.io.Reader;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Bounded hand-off of output lines from the process reader thread to the
+ * parser thread.
+ */
+class LineQueue
+{
+    /** Marker added after the final line. */
+    private static final String END_OF_STREAM = new String("<EOS>");
+
+    /** Queued lines. */
+    private BlockingQueue queue;
+    /** Line which was peeked at but not yet consumed. */
+    private String pushback;
+    /** Has the end-of-stream marker been added? */
+    private boolean closed;
+    /** Has the end-of-stream marker been consumed? */
+    private boolean finished;
+
+    /**
+     * Create a line queue.
+     *
+     * @param capacity maximum number of lines waiting to be parsed
+     */
+    LineQueue(int capacity)
+    {
+        queue = new ArrayBlockingQueue(capacity);
+    }
+
+    /**
+     * Mark the end of the output.  Subsequent calls are ignored.
+     */
+    void close()
+    {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+        }
+
+        while (true) {
+            try {
+                queue.put(END_OF_STREAM);
+                break;
+            } catch (InterruptedException ie) {
+                // the consumer always drains the queue, so keep trying
+            }
+        }
+    }
+
+    /**
+     * Discard everything up to the end of the output, so the producer is
+     * never left blocked on a full queue.
+     */
+    void drain()
+    {
+        while (true) {
+            try {
+                if (take() == null) {
+                    break;
+                }
+            } catch (InterruptedException ie) {
+                // keep draining
+            }
+        }
+    }
+
+    /**
+     * Get an iterator which returns lines until the end of the output.
+     *
+     * @return blocking line iterator
+     */
+    Iterator iterator()
+    {
+        return new LineQueueIterator(this);
+    }
+
+    /**
+     * Return the next line without consuming it.
+     *
+     * @return <tt>null</tt> at the end of the output
+     *
+     * @throws InterruptedException if the thread was interrupted
+     */
+    String peek()
+        throws InterruptedException
+    {
+        if (pushback == null) {
+            pushback = take();
+        }
+
+        return pushback;
+    }
+
+    /**
+     * Add a line to the queue, waiting for space if necessary.
+     *
+     * @param line output line
+     *
+     * @throws InterruptedException if the thread was interrupted
+     */
+    void put(String line)
+        throws InterruptedException
+    {
+        queue.put(line);
+    }
+
+    /**
+     * Get a reader which returns the remaining output as a character stream.
+     *
+     * @return blocking reader
+     */
+    Reader reader()
+    {
+        return new LineQueueReader(this);
+    }
+
+    /**
+     * Remove the next line, waiting until one is available.
+     *
+     * @return <tt>null</tt> at the end of the output
+     *
+     * @throws InterruptedException if the thread was interrupted
+     */
+    String take()
+        throws InterruptedException
+    {
+        if (pushback != null) {
+            String line = pushback;
+            pushback = null;
+            return line;
+        }
+
+        if (finished) {
+            return null;
+        }
+
+        String line = (String) queue.take();
+        if (line == END_OF_STREAM) {
+            finished = true;
+            return null;
+        }
+
+        return line;
+    }
+}
+
+/**
+ * Iterate through the lines in a LineQueue.
+ */
+class LineQueueIterator
+    implements Iterator
+{
+    /** Source of lines. */
+    private LineQueue queue;
+
+    /**
+     * Create an iterator.
+     *
+     * @param queue source of lines
+     */
+    LineQueueIterator(LineQueue queue)
+    {
+        this.queue = queue;
+    }
+
+    /**
+     * Is there another line?  This may wait for the next line to arrive.
+     *
+     * @return <tt>false</tt> at the end of the output
+     */
+    public boolean hasNext()
+    {
+        try {
+            return queue.peek() != null;
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Get the next line.
+     *
+     * @return next line
+     */
+    public Object next()
+    {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        try {
+            return queue.take();
+        } catch (InterruptedException ie) {
+            // the line has already been peeked, so this can't happen
+            throw new Error("Interrupted while taking peeked line");
+        }
+    }
+
+    /**
+     * Unimplemented.
+     */
+    public void remove()
+    {
+        throw new UnsupportedOperationException();
+    }
+}
+
+/**
+ * Read the lines in a LineQueue as a character stream.
+ */
+class LineQueueReader
+    extends Reader
+{
+    /** Source of lines. */
+    private LineQueue queue;
+    /** Current line, including the trailing newline. */
+    private String curLine;
+    /** Index of the next unread character in the current line. */
+    private int curPos;
+
+    /**
+     * Create a reader.
+     *
+     * @param queue source of lines
+     */
+    LineQueueReader(LineQueue queue)
+    {
+        this.queue = queue;
+    }
+
+    /**
+     * Do nothing.
+     */
+    public void close()
+    {
+        // do nothing
+    }
+
+    /**
+     * Read characters into a portion of an array.
+     *
+     * @param cbuf destination buffer
+     * @param off offset at which to start storing characters
+     * @param len maximum number of characters to read
+     *
+     * @return number of characters read, or -1 at the end of the output
+     *
+     * @throws InterruptedIOException if the thread was interrupted
+     */
+    public int read(char[] cbuf, int off, int len)
+        throws InterruptedIOException
+    {
+        if (curLine == null || curPos >= curLine.length()) {
+            String line;
+            try {
+                line = queue.take();
+            } catch (InterruptedException ie) {
+                throw new InterruptedIOException("Interrupted while" +
+                                                 " reading output");
+            }
+
+            if (line == null) {
+                curLine = null;
+                return -1;
+            }
+
+            curLine = line + "\n";
+            curPos = 0;
+        }
+
+        int num = Math.min(len, curLine.length() - curPos);
+        curLine.getChars(curPos, curPos + num, cbuf, off);
+        curPos += num;
+        return num;
+    }
+}
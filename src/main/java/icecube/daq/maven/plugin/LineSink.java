@@ -0,0 +1,17 @@
+package icecube.daq.maven.plugin;
+
+/**
+ * Receiver for the lines read from one of a process's output streams.
+ */
+interface LineSink
+{
+    /**
+     * Accept a line.
+     *
+     * @param line output line
+     *
+     * @throws PyTestException if the line could not be saved
+     */
+    void addLine(String line)
+        throws PyTestException;
+}
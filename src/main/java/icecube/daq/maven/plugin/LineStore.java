@@ -0,0 +1,421 @@
+package icecube.daq.maven.plugin;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * An ordered collection of text lines which keeps the first lines in memory
+ * and writes the rest to a temporary file once the in-memory lines exceed
+ * a threshold, so a chatty test can't exhaust the heap.  If the file can't
+ * be written, the lines already in it are kept and later lines stay in
+ * memory.
+ */
+class LineStore
+    extends AbstractCollection
+{
+    /** Spill file name prefix. */
+    private static final String SPILL_PREFIX = "pytest-";
+    /** Spill file name suffix. */
+    private static final String SPILL_SUFFIX = ".out";
+
+    /** Number of characters collected before they are written to disk. */
+    private static final int BATCH_CHARS = 8192;
+
+    /** Directory for spill files (<tt>null</tt> for the default). */
+    private static File spillDir;
+    /** Number of characters kept in memory (0 means never spill). */
+    private static long spillThreshold;
+
+    /** Lines kept in memory. */
+    private ArrayList lines = new ArrayList();
+    /** Number of characters in the in-memory lines. */
+    private long numChars;
+    /** Spill file (<tt>null</tt> until the threshold is reached). */
+    private File spillFile;
+    /** Spill file stream (<tt>null</tt> while the lines are being read). */
+    private OutputStream spillOut;
+    /** Has creating or writing to the spill file failed? */
+    private boolean spillFailed;
+    /** Number of lines written to the spill file. */
+    private int numSpilled;
+    /**
+     * Lines added after the spill file was started which haven't been
+     * written to it yet.  If writing fails, all later lines are kept here.
+     */
+    private ArrayList pending = new ArrayList();
+    /** Number of characters in the pending lines. */
+    private int pendingChars;
+
+    /**
+     * Add a line.
+     *
+     * @param obj line
+     *
+     * @return <tt>true</tt>
+     */
+    public boolean add(Object obj)
+    {
+        String line = String.valueOf(obj);
+
+        if (spillFile != null) {
+            pending.add(line);
+            pendingChars += line.length() + 1;
+            if (pendingChars >= BATCH_CHARS) {
+                writePending();
+            }
+
+            return true;
+        }
+
+        lines.add(line);
+        numChars += line.length();
+
+        final long threshold = getThreshold();
+        if (threshold > 0 && numChars > threshold && !spillFailed) {
+            openSpill();
+        }
+
+        return true;
+    }
+
+    /**
+     * Insert a line at the front of the collection.
+     *
+     * @param line new line
+     */
+    void addFirst(String line)
+    {
+        lines.add(0, line);
+        numChars += line.length();
+    }
+
+    /**
+     * Remove all lines and delete the spill file.
+     */
+    public void clear()
+    {
+        lines.clear();
+        numChars = 0;
+        pending.clear();
+        pendingChars = 0;
+        closeSpill(true);
+    }
+
+    /**
+     * Close the spill file.
+     *
+     * @param delete <tt>true</tt> if the file should also be deleted
+     */
+    private void closeSpill(boolean delete)
+    {
+        if (spillOut != null) {
+            try {
+                spillOut.close();
+            } catch (IOException ioe) {
+                // ignore errors on close
+            }
+            spillOut = null;
+        }
+
+        if (delete) {
+            if (spillFile != null) {
+                spillFile.delete();
+                spillFile = null;
+            }
+            spillFailed = false;
+            numSpilled = 0;
+        }
+    }
+
+    /**
+     * Set the spill directory and threshold used by all line stores.  Any
+     * spill files left behind by an earlier build which was killed are
+     * deleted.
+     *
+     * @param dir directory for spill files
+     * @param threshold number of characters kept in memory before lines
+     *                  are written to disk (0 means never spill)
+     */
+    static synchronized void configure(File dir, long threshold)
+    {
+        spillDir = dir;
+        spillThreshold = threshold;
+
+        File[] list = (dir == null ? null : dir.listFiles());
+        if (list != null) {
+            for (int i = 0; i < list.length; i++) {
+                final String name = list[i].getName();
+                if (name.startsWith(SPILL_PREFIX) &&
+                    name.endsWith(SPILL_SUFFIX))
+                {
+                    list[i].delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the spill directory.
+     *
+     * @return spill directory
+     */
+    private static synchronized File getSpillDirectory()
+    {
+        return spillDir;
+    }
+
+    /**
+     * Get the spill threshold.
+     *
+     * @return number of characters kept in memory
+     */
+    private static synchronized long getThreshold()
+    {
+        return spillThreshold;
+    }
+
+    /**
+     * Have any lines been written to disk?
+     *
+     * @return <tt>true</tt> if there is a spill file
+     */
+    boolean isSpilled()
+    {
+        return spillFile != null;
+    }
+
+    /**
+     * Get an iterator which returns the in-memory lines followed by the
+     * lines in the spill file, which are read back as they are needed.
+     * The spill file is closed for writing, and is reopened if more lines
+     * are added.
+     *
+     * @return line iterator
+     */
+    public Iterator iterator()
+    {
+        if (spillFile != null) {
+            writePending();
+            closeSpill(false);
+        }
+
+        return new LineStoreIterator(lines.iterator(), spillFile, numSpilled,
+                                     pending.iterator());
+    }
+
+    /**
+     * Open a stream which writes to the spill file.
+     *
+     * @param file spill file
+     * @param append <tt>true</tt> to add to the end of the file
+     *
+     * @return output stream
+     *
+     * @throws IOException if the file could not be opened
+     */
+    OutputStream openSpillStream(File file, boolean append)
+        throws IOException
+    {
+        return new FileOutputStream(file, append);
+    }
+
+    /**
+     * Start writing lines to a spill file.
+     */
+    private void openSpill()
+    {
+        File dir = getSpillDirectory();
+        if (dir != null && !dir.exists()) {
+            dir.mkdirs();
+        }
+
+        try {
+            spillFile = File.createTempFile(SPILL_PREFIX, SPILL_SUFFIX, dir);
+            spillOut = openSpillStream(spillFile, false);
+        } catch (IOException ioe) {
+            // keep everything in memory
+            if (spillFile != null) {
+                spillFile.delete();
+                spillFile = null;
+            }
+            spillOut = null;
+            spillFailed = true;
+        }
+    }
+
+    /**
+     * Get the number of lines.
+     *
+     * @return number of lines
+     */
+    public int size()
+    {
+        return lines.size() + numSpilled + pending.size();
+    }
+
+    /**
+     * Write the pending lines to the spill file.  Each batch is written
+     * with a single unbuffered call, so if it fails the lines which were
+     * counted as written are known to be in the file, and the rest are
+     * kept in memory.
+     */
+    private void writePending()
+    {
+        if (spillFailed || pending.size() == 0) {
+            return;
+        }
+
+        StringBuffer buf = new StringBuffer(pendingChars);
+        for (Iterator it = pending.iterator(); it.hasNext(); ) {
+            buf.append((String) it.next()).append('\n');
+        }
+
+        try {
+            if (spillOut == null) {
+                spillOut = openSpillStream(spillFile, true);
+            }
+
+            spillOut.write(buf.toString().getBytes("UTF-8"));
+        } catch (IOException ioe) {
+            // keep what was written and leave everything else in memory
+            spillFailed = true;
+            closeSpill(false);
+            return;
+        }
+
+        numSpilled += pending.size();
+        pending.clear();
+        pendingChars = 0;
+    }
+}
+
+/**
+ * Iterate through the lines in a LineStore.
+ */
+class LineStoreIterator
+    implements Iterator
+{
+    /** In-memory lines. */
+    private Iterator memIter;
+    /** Spill file (<tt>null</tt> if there is none). */
+    private File spillFile;
+    /** Number of spill file lines which haven't been read. */
+    private int numUnread;
+    /** Lines added after the spill file lines. */
+    private Iterator tailIter;
+    /** Spill file reader, opened once the in-memory lines are used up. */
+    private BufferedReader rdr;
+    /** Next line from the spill file. */
+    private String nextLine;
+
+    /**
+     * Create an iterator.
+     *
+     * @param memIter in-memory line iterator
+     * @param spillFile spill file (may be <tt>null</tt>)
+     * @param numSpilled number of lines in the spill file
+     * @param tailIter iterator for the lines after the spill file lines
+     */
+    LineStoreIterator(Iterator memIter, File spillFile, int numSpilled,
+                      Iterator tailIter)
+    {
+        this.memIter = memIter;
+        this.spillFile = spillFile;
+        this.numUnread = numSpilled;
+        this.tailIter = tailIter;
+    }
+
+    /**
+     * Close the spill file reader.
+     */
+    private void closeReader()
+    {
+        if (rdr != null) {
+            try {
+                rdr.close();
+            } catch (IOException ioe) {
+                // ignore errors on close
+            }
+            rdr = null;
+        }
+        spillFile = null;
+    }
+
+    /**
+     * Is there another line?
+     *
+     * @return <tt>false</tt> at the end of the lines
+     */
+    public boolean hasNext()
+    {
+        if (memIter.hasNext()) {
+            return true;
+        }
+
+        if (nextLine == null && spillFile != null) {
+            if (numUnread > 0) {
+                try {
+                    if (rdr == null) {
+                        FileInputStream in = new FileInputStream(spillFile);
+                        rdr = new BufferedReader(new InputStreamReader(in,
+                                                                  "UTF-8"));
+                    }
+
+                    // a failed write may have left part of a batch behind
+                    nextLine = rdr.readLine();
+                    numUnread--;
+                } catch (IOException ioe) {
+                    nextLine = null;
+                }
+            }
+
+            if (nextLine == null) {
+                closeReader();
+            }
+        }
+
+        return nextLine != null || tailIter.hasNext();
+    }
+
+    /**
+     * Get the next line.
+     *
+     * @return next line
+     */
+    public Object next()
+    {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        if (memIter.hasNext()) {
+            return memIter.next();
+        }
+
+        if (nextLine == null) {
+            return tailIter.next();
+        }
+
+        String line = nextLine;
+        nextLine = null;
+        return line;
+    }
+
+    /**
+     * Unimplemented.
+     */
+    public void remove()
+    {
+        throw new UnsupportedOperationException();
+    }
+}
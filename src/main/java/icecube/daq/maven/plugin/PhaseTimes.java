@@ -0,0 +1,212 @@
+package icecube.daq.maven.plugin;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Time spent in each phase of running a single test file.
+ */
+class PhaseTimes
+{
+    /** Starting the Python process (0 when a worker is reused). */
+    static final int SPAWN = 0;
+    /** From process start (or request) until the first output line. */
+    static final int STARTUP = 1;
+    /** From the first output line until the tests finished. */
+    static final int EXECUTE = 2;
+    /** Parsing the output. */
+    static final int PARSE = 3;
+    /** Reporting the results. */
+    static final int REPORT = 4;
+
+    /** Phase names, indexed by phase. */
+    private static final String[] NAMES = {
+        "spawn", "startup", "execute", "parse", "report",
+    };
+
+    /** Milliseconds spent in each phase. */
+    private long[] millis = new long[NAMES.length];
+    /** Number of characters of output read from Python. */
+    private long outputChars;
+    /** Number of test cases. */
+    private int numCases;
+
+    /**
+     * Add time spent in a phase.  Pieces of a split file may be run on
+     * several threads at once, so their times are summed.
+     *
+     * @param phase phase index
+     * @param ms milliseconds spent in the phase
+     */
+    synchronized void add(int phase, long ms)
+    {
+        millis[phase] += ms;
+    }
+
+    /**
+     * Add to the number of output characters read.
+     *
+     * @param chars number of characters
+     */
+    synchronized void addOutput(long chars)
+    {
+        outputChars += chars;
+    }
+
+    /**
+     * Get the time spent in a phase.
+     *
+     * @param phase phase index
+     *
+     * @return milliseconds
+     */
+    synchronized long get(int phase)
+    {
+        return millis[phase];
+    }
+
+    /**
+     * Get the number of test cases.
+     *
+     * @return number of test cases
+     */
+    synchronized int getNumCases()
+    {
+        return numCases;
+    }
+
+    /**
+     * Get the number of output characters read.
+     *
+     * @return number of characters
+     */
+    synchronized long getOutputChars()
+    {
+        return outputChars;
+    }
+
+    /**
+     * Set the number of test cases.
+     *
+     * @param numCases number of test cases
+     */
+    synchronized void setNumCases(int numCases)
+    {
+        this.numCases = numCases;
+    }
+
+    /**
+     * Print the total time spent in each phase for all test files.
+     *
+     * @param results list of <tt>SuiteResult</tt>s
+     * @param discoveryMillis time spent finding the test files
+     * @param out output stream
+     */
+    static void summarize(List results, long discoveryMillis, PrintStream out)
+    {
+        long[] totals = new long[NAMES.length];
+        long totChars = 0;
+        int totCases = 0;
+        int numFiles = 0;
+
+        for (Iterator it = results.iterator(); it.hasNext(); ) {
+            PhaseTimes times = ((SuiteResult) it.next()).getPhaseTimes();
+            if (times == null) {
+                continue;
+            }
+
+            for (int i = 0; i < totals.length; i++) {
+                totals[i] += times.get(i);
+            }
+            totChars += times.getOutputChars();
+            totCases += times.getNumCases();
+            numFiles++;
+        }
+
+        out.println();
+        out.println("Phase timings for " + numFiles + " test files (ms):");
+        out.println(format("discovery", discoveryMillis));
+        for (int i = 0; i < totals.length; i++) {
+            out.println(format(NAMES[i], totals[i]));
+        }
+        out.println("  " + totChars + " output characters, " + totCases +
+                    " test cases");
+    }
+
+    /**
+     * Format a single line of the phase summary.
+     *
+     * @param name phase name
+     * @param ms milliseconds
+     *
+     * @return formatted line
+     */
+    private static String format(String name, long ms)
+    {
+        StringBuffer buf = new StringBuffer("  ");
+        buf.append(name);
+        for (int i = name.length(); i < 12; i++) {
+            buf.append(' ');
+        }
+        buf.append(ms);
+        return buf.toString();
+    }
+
+    /**
+     * Write the phase times for each test file as comma-separated values.
+     *
+     * @param file output file
+     * @param results list of <tt>SuiteResult</tt>s
+     *
+     * @throws PyTestException if the file could not be written
+     */
+    static void write(File file, List results)
+        throws PyTestException
+    {
+        File dir = file.getParentFile();
+        if (dir != null && !dir.exists()) {
+            dir.mkdirs();
+        }
+
+        try {
+            PrintWriter out = new PrintWriter(new FileWriter(file));
+            try {
+                out.print("file");
+                for (int i = 0; i < NAMES.length; i++) {
+                    out.print("," + NAMES[i]);
+                }
+                out.println(",chars,cases");
+
+                for (Iterator it = results.iterator(); it.hasNext(); ) {
+                    SuiteResult result = (SuiteResult) it.next();
+
+                    PhaseTimes times = result.getPhaseTimes();
+                    if (times == null) {
+                        continue;
+                    }
+
+                    out.print(result.getFile().getPath());
+                    for (int i = 0; i < NAMES.length; i++) {
+                        out.print("," + times.get(i));
+                    }
+                    out.println("," + times.getOutputChars() + "," +
+                                times.getNumCases());
+                }
+            } finally {
+                out.close();
+            }
+
+            if (out.checkError()) {
+                throw new IOException("Write failed");
+            }
+        } catch (IOException ioe) {
+            throw new PyTestException("Couldn't write " + file, ioe);
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package icecube.daq.maven.plugin;
+
+import java.io.File;
+import java.io.PrintStream;
+
+import java.text.DecimalFormat;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Print a line for each test case of a single test file as it finishes.
+ */
+class SuiteProgress
+    implements CaseListener
+{
+    /** Formatter for test case times. */
+    private static final DecimalFormat timeFmt = new DecimalFormat("0.000");
+
+    /** Test file name. */
+    private String fileName;
+    /** Output stream. */
+    private PrintStream out;
+    /** Time the test file was started. */
+    private long startTime;
+    /** Time the test file was started or the last test case finished. */
+    private long lastTime;
+
+    /**
+     * Create a progress printer for a test file.
+     *
+     * @param f test file
+     * @param out output stream
+     */
+    SuiteProgress(File f, PrintStream out)
+    {
+        this.fileName = f.getName();
+        this.out = out;
+
+        startTime = System.currentTimeMillis();
+        lastTime = startTime;
+    }
+
+    /**
+     * Print the test case name, status and time.  Text output doesn't
+     * include each test's time, so the time since the previous test
+     * finished is used instead.
+     *
+     * @param caseData test case data
+     * @param status "ok", "FAIL" or "ERROR"
+     */
+    public synchronized void caseFinished(CaseData caseData, String status)
+    {
+        final long now = System.currentTimeMillis();
+
+        double secs = caseData.getTime();
+        if (secs <= 0.0) {
+            secs = (double) (now - lastTime) / 1000.0;
+        }
+        lastTime = now;
+
+        out.println("  " + fileName + ": " + caseData.getName() + " (" +
+                    caseData.getClassName() + ") ... " + status + " " +
+                    timeFmt.format(secs) + "s");
+    }
+
+    /**
+     * Get the test file name.
+     *
+     * @return file name
+     */
+    String getFileName()
+    {
+        return fileName;
+    }
+
+    /**
+     * Get the time the test file was started.
+     *
+     * @return start time
+     */
+    long getStartTime()
+    {
+        return startTime;
+    }
+}
+
+/**
+ * Track running test files, reporting each test case as it finishes and
+ * periodically listing the files which are still running.
+ */
+class ProgressReporter
+    implements Runnable
+{
+    /** Output stream. */
+    private PrintStream out;
+    /** Time between heartbeat lines (0 for no heartbeat). */
+    private long heartbeatMillis;
+    /** Time the reporter was created. */
+    private long startTime;
+
+    /** Map of running test files to their <tt>SuiteProgress</tt>. */
+    private LinkedHashMap running = new LinkedHashMap();
+
+    /** Heartbeat thread (<tt>null</tt> if not started). */
+    private Thread thread;
+
+    /**
+     * Create a progress reporter.
+     *
+     * @param out output stream
+     * @param heartbeatMillis milliseconds between heartbeat lines
+     *                        (0 for no heartbeat)
+     */
+    ProgressReporter(PrintStream out, long heartbeatMillis)
+    {
+        this.out = out;
+        this.heartbeatMillis = heartbeatMillis;
+
+        startTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Format a number of milliseconds as minutes and seconds.
+     *
+     * @param millis elapsed milliseconds
+     *
+     * @return formatted time
+     */
+    static String formatElapsed(long millis)
+    {
+        final long secs = millis / 1000;
+        if (secs < 60) {
+            return secs + "s";
+        }
+
+        final long rem = secs % 60;
+        return (secs / 60) + "m" + (rem < 10 ? "0" : "") + rem + "s";
+    }
+
+    /**
+     * A test file has finished.
+     *
+     * @param f test file
+     */
+    synchronized void finished(File f)
+    {
+        running.remove(f);
+    }
+
+    /**
+     * Build the heartbeat line.
+     *
+     * @param now current time
+     *
+     * @return <tt>null</tt> if nothing is running
+     */
+    synchronized String getHeartbeat(long now)
+    {
+        if (running.size() == 0) {
+            return null;
+        }
+
+        StringBuffer buf = new StringBuffer("[");
+        buf.append(formatElapsed(now - startTime));
+        buf.append("] Still running: ");
+
+        boolean first = true;
+        for (Iterator it = running.values().iterator(); it.hasNext(); ) {
+            SuiteProgress progress = (SuiteProgress) it.next();
+
+            if (first) {
+                first = false;
+            } else {
+                buf.append(", ");
+            }
+
+            buf.append(progress.getFileName()).append(" (");
+            buf.append(formatElapsed(now - progress.getStartTime()));
+            buf.append(')');
+        }
+
+        return buf.toString();
+    }
+
+    /**
+     * Get the listener for a running test file.
+     *
+     * @param f test file
+     *
+     * @return <tt>null</tt> if the file is not running
+     */
+    synchronized CaseListener getListener(File f)
+    {
+        return (CaseListener) running.get(f);
+    }
+
+    /**
+     * Print heartbeat lines until the reporter is stopped.
+     */
+    public void run()
+    {
+        while (true) {
+            try {
+                Thread.sleep(heartbeatMillis);
+            } catch (InterruptedException ie) {
+                break;
+            }
+
+            String line = getHeartbeat(System.currentTimeMillis());
+            if (line != null) {
+                out.println(line);
+            }
+        }
+    }
+
+    /**
+     * Start the heartbeat thread, if there is a heartbeat.
+     */
+    void start()
+    {
+        if (heartbeatMillis > 0 && thread == null) {
+            thread = new Thread(this, "PyTest heartbeat");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * A test file has started.
+     *
+     * @param f test file
+     *
+     * @return listener for the test file's cases
+     */
+    synchronized CaseListener started(File f)
+    {
+        SuiteProgress progress = new SuiteProgress(f, out);
+        running.put(f, progress);
+        return progress;
+    }
+
+    /**
+     * Stop the heartbeat thread.
+     */
+    void stop()
+    {
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package icecube.daq.maven.plugin;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import java.util.Properties;
+
+/**
+ * Read the property files used to save state between builds.
+ */
+class PropertiesFile
+{
+    /**
+     * This class only has static methods.
+     */
+    private PropertiesFile()
+    {
+    }
+
+    /**
+     * Load saved properties.  If the file is missing, unreadable or
+     * corrupt (<tt>Properties.load()</tt> throws an unchecked exception
+     * for a malformed Unicode escape), <tt>props</tt> is left empty.
+     *
+     * @param file property file
+     * @param props properties to be filled
+     *
+     * @return <tt>true</tt> if the file was loaded
+     */
+    static boolean load(File file, Properties props)
+    {
+        if (!file.exists()) {
+            return false;
+        }
+
+        try {
+            FileInputStream in = new FileInputStream(file);
+            try {
+                props.load(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException ioe) {
+            props.clear();
+            return false;
+        } catch (IllegalArgumentException iae) {
+            props.clear();
+            return false;
+        }
+
+        return true;
+    }
+}
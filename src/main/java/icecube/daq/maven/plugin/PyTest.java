@@ -1,18 +1,22 @@
 package icecube.daq.maven.plugin;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.PrintStream;
 
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoExecutionException;
@@ -53,8 +57,6 @@ public class PyTest
     /**
      * Should we save test output to a file?
      *
-     * Note that the value is forced to 'false' until reporting is implemented
-     *
      * @parameter expression="${pytest.useFile}" default-value="false"
      */
     private boolean pyUseFile;
@@ -66,6 +68,198 @@ public class PyTest
      */
     private boolean useFile;
 
+    /**
+     * Directory where XML reports are written.
+     *
+     * @parameter expression="${project.build.directory}/surefire-reports"
+     */
+    private File reportsDirectory;
+
+    /**
+     * Number of test files to run concurrently.
+     *
+     * @parameter expression="${pytest.forkCount}" default-value="1"
+     */
+    private int forkCount;
+
+    /**
+     * Should test output be parsed while the test is running?
+     *
+     * @parameter expression="${pytest.streamOutput}" default-value="false"
+     */
+    private boolean streamOutput;
+
+    /**
+     * Should test files be run in long-lived Python worker processes?
+     *
+     * @parameter expression="${pytest.reuseForks}" default-value="false"
+     */
+    private boolean reuseForks;
+
+    /**
+     * Number of test files run by each worker process before it is replaced
+     * (0 means workers are never replaced).
+     *
+     * @parameter expression="${pytest.maxModulesPerFork}" default-value="100"
+     */
+    private int maxModulesPerFork;
+
+    /**
+     * Should test files which passed last time be skipped if neither they
+     * nor anything they depend on have changed?
+     *
+     * @parameter expression="${pytest.incremental}" default-value="false"
+     */
+    private boolean incremental;
+
+    /**
+     * Number of characters of captured output kept in memory for each
+     * stream before the rest is written to a temporary file (0 means
+     * output is always kept in memory).
+     *
+     * @parameter expression="${pytest.spillThreshold}" default-value="1048576"
+     */
+    private long spillThreshold;
+
+    /**
+     * List of patterns for test files which may be split into pieces and
+     * run on several threads at once (only used if forkCount is greater
+     * than 1).
+     *
+     * @parameter expression="${pytest.shardedTests}"
+     */
+    private String[] shardedTests;
+
+    /**
+     * Should sharded test files be split into one piece per TestCase
+     * class ('class') or one piece per test method ('method')?
+     *
+     * @parameter expression="${pytest.shardBy}" default-value="class"
+     */
+    private String shardBy;
+
+    /**
+     * Order in which test files are started when forkCount is greater than
+     * 1: 'balanced' starts the files which took longest in previous builds
+     * first, 'filesystem' uses the order in which the files were found.
+     *
+     * @parameter expression="${pytest.runOrder}" default-value="balanced"
+     */
+    private String runOrder;
+
+    /**
+     * Maximum number of seconds a test file may run before it is stopped
+     * (0 for no limit).
+     *
+     * @parameter expression="${pytest.timeout}" default-value="0"
+     */
+    private int timeout;
+
+    /**
+     * Maximum number of seconds a test file may run without writing any
+     * output before it is stopped (0 for no limit).
+     *
+     * @parameter expression="${pytest.inactivityTimeout}" default-value="0"
+     */
+    private int inactivityTimeout;
+
+    /**
+     * Should the time spent in each phase of each test file be reported?
+     *
+     * @parameter expression="${pytest.phaseTimings}" default-value="false"
+     */
+    private boolean phaseTimings;
+
+    /**
+     * Should the remaining test files be abandoned once enough test files
+     * have failed?
+     *
+     * @parameter expression="${pytest.failFast}" default-value="false"
+     */
+    private boolean failFast;
+
+    /**
+     * Number of failed test files which stops the run when
+     * <tt>failFast</tt> is set.
+     *
+     * @parameter expression="${pytest.failFastCount}" default-value="1"
+     */
+    private int failFastCount;
+
+    /**
+     * Should test and source directories be walked in parallel, reusing
+     * saved listings of directories which haven't changed?
+     *
+     * @parameter expression="${pytest.fastDiscovery}" default-value="false"
+     */
+    private boolean fastDiscovery;
+
+    /**
+     * Should each test case be reported as soon as it finishes?
+     *
+     * @parameter expression="${pytest.liveProgress}" default-value="false"
+     */
+    private boolean liveProgress;
+
+    /**
+     * Number of seconds between lines listing the test files which are
+     * still running, when <tt>liveProgress</tt> is set and forkCount is
+     * greater than 1 (0 for no heartbeat).
+     *
+     * @parameter expression="${pytest.heartbeatInterval}" default-value="30"
+     */
+    private int heartbeatInterval;
+
+    /**
+     * Directory where the results of every build are added to the test
+     * result history (no history is kept if this is not set).
+     *
+     * @parameter expression="${pytest.historyDirectory}"
+     */
+    private File historyDirectory;
+
+    /**
+     * Number of recent runs of each test file kept in the test result
+     * history (0 to keep every run).
+     *
+     * @parameter expression="${pytest.historyRuns}" default-value="20"
+     */
+    private int historyRuns;
+
+    /**
+     * Should only the test files which failed in the previous build be run?
+     * Where possible, only their failed tests are run.
+     *
+     * @parameter expression="${pytest.rerunFailed}" default-value="false"
+     */
+    private boolean rerunFailed;
+
+    /**
+     * Should identical errors and failures be printed once, with a list
+     * of the affected tests, instead of once per test?
+     *
+     * @parameter expression="${pytest.collapseFailures}" default-value="false"
+     */
+    private boolean collapseFailures;
+
+    /**
+     * Should only the test files affected by changes to Python files be
+     * run?  A test file is affected if it changed or if it imports,
+     * directly or indirectly, a file which changed.
+     *
+     * @parameter expression="${pytest.affectedTests}" default-value="false"
+     */
+    private boolean affectedTests;
+
+    /**
+     * Git revision used to find the changed files when
+     * <tt>affectedTests</tt> is set.  If this is not set, the files which
+     * changed since the previous build are used.
+     *
+     * @parameter expression="${pytest.changedSince}"
+     */
+    private String changedSince;
+
     /**
      * Name of test to run.
      *
@@ -88,6 +282,42 @@ public class PyTest
         "**/*test.py",
     };
 
+    /** Maximum number of output lines waiting to be parsed. */
+    private static final int STREAM_QUEUE_SIZE = 1000;
+
+    /** Name of the passing test result cache file. */
+    private static final String RESULT_CACHE_NAME = "pytest-results.properties";
+
+    /** Name of the interpreter capability cache file. */
+    private static final String INTERP_CACHE_NAME =
+        "pytest-interpreter.properties";
+
+    /** Name of the test timing history file. */
+    private static final String TIMING_HISTORY_NAME =
+        "pytest-timings.properties";
+
+    /** Name of the directory holding spilled test output. */
+    private static final String SPILL_DIR_NAME = "pytest-output";
+
+    /** Name of directory listing cache file. */
+    private static final String DIR_INDEX_NAME = "pytest-dirs.properties";
+
+    /** Name of per-file phase timing file. */
+    private static final String PHASE_TIMES_NAME = "pytest-phases.csv";
+
+    /** Name of the failed test file. */
+    private static final String FAILED_TESTS_NAME = "pytest-failed.properties";
+
+    /** Name of the Python import graph file. */
+    private static final String IMPORT_GRAPH_NAME = "pytest-imports.properties";
+
+    /** Patterns for compiled Python files, which change on every run. */
+    private static final String[] COMPILED_PY = {
+        "**/*.pyc",
+        "**/*.pyo",
+        "**/__pycache__/**",
+    };
+
     /**
      * List of patterns for excluded Python tests.
      *
@@ -118,6 +348,51 @@ public class PyTest
      */
     private File baseDir;
 
+    /**
+     * The build output directory, where cached data is saved.
+     *
+     * @parameter expression="${project.build.directory}"
+     */
+    private File buildDirectory;
+
+    /** Python interpreter capabilities (<tt>null</tt> if unknown). */
+    private InterpreterInfo interpInfo;
+
+    /** XML report writer (<tt>null</tt> if reports are not written). */
+    private ReportWriter reportWriter;
+
+    /** Passing results from previous builds (<tt>null</tt> if unused). */
+    private ResultCache resultCache;
+    /** Timings from previous builds. */
+    private TimingHistory timingHistory;
+    /** Saved directory listings (<tt>null</tt> if not used). */
+    private DirectoryIndex dirIndex;
+    /** All test files being run. */
+    private Set testFileSet;
+    /** Test files which may be split into pieces. */
+    private Set shardFileSet;
+
+    /** Thread pool used to run tests concurrently (<tt>null</tt> if unused). */
+    private ExecutorService testPool;
+    /** Live progress reporter (<tt>null</tt> if not used). */
+    private ProgressReporter progress;
+    /** Test result history (<tt>null</tt> if not kept). */
+    private ResultHistory resultHistory;
+    /** Test files which failed in previous builds. */
+    private FailedTests failedTests;
+    /** Imports of all Python files (<tt>null</tt> if not needed). */
+    private ImportGraph importGraph;
+
+    /** Python worker process used by each thread. */
+    private ThreadLocal threadWorker = new ThreadLocal();
+    /** All Python worker processes. */
+    private ArrayList allWorkers = new ArrayList();
+
+    /** Number of test files which have failed so far. */
+    private int numFailed;
+    /** Set once enough test files have failed to stop the run. */
+    private volatile boolean stopping;
+
     private static File buildPath(File baseDir, String dir, String defaultDir)
     {
         if (dir == null) {
@@ -132,7 +407,21 @@ public class PyTest
         return path;
     }
 
-    private void dumpOutput(List lines, PrintStream out)
+    /**
+     * Get the build output directory.
+     *
+     * @return build directory
+     */
+    private File getBuildDirectory()
+    {
+        if (buildDirectory == null) {
+            return new File(baseDir, "target");
+        }
+
+        return buildDirectory;
+    }
+
+    private void dumpOutput(Collection lines, PrintStream out)
     {
         for (Iterator it = lines.iterator(); it.hasNext(); ) {
             out.println(it.next());
@@ -175,24 +464,57 @@ public class PyTest
                                              "\" does not exist");
         }
 
-        DirectoryScanner scanner = new DirectoryScanner();
-        scanner.setBasedir(testPath);
-        scanner.setExcludes(excludes);
+        final long discoveryStart = System.currentTimeMillis();
+
+        dirIndex = null;
+        if (fastDiscovery) {
+            dirIndex =
+                new DirectoryIndex(new File(getBuildDirectory(),
+                                            DIR_INDEX_NAME));
+        }
+
+        String[] tstNames;
         if (includes == null) {
-            scanner.setIncludes(defaultIncludes);
+            tstNames = findFiles(testPath, defaultIncludes, excludes);
         } else {
-            scanner.setIncludes(includes);
+            tstNames = findFiles(testPath, includes, excludes);
         }
-        scanner.addDefaultExcludes();
-        scanner.setCaseSensitive(false);
-        scanner.scan();
 
-        String[] tstNames = scanner.getIncludedFiles();
-        if (tstNames == null) {
-            tstNames = new String[0];
+        shardFileSet = null;
+        if (shardedTests != null && shardedTests.length > 0 && forkCount > 1) {
+            if (!"class".equals(shardBy) && !"method".equals(shardBy)) {
+                throw new MojoExecutionException("Bad shardBy value \"" +
+                                                 shardBy + "\"; expected" +
+                                                 " \"class\" or \"method\"");
+            }
+
+            String[] shardNames = findFiles(testPath, shardedTests, null);
+            shardFileSet = new HashSet();
+            for (int i = 0; i < shardNames.length; i++) {
+                shardFileSet.add(new File(testPath, shardNames[i]));
+            }
         }
 
+        LineStore.configure(new File(getBuildDirectory(), SPILL_DIR_NAME),
+                            spillThreshold);
+        TestRunner.configureTimeouts(timeout, inactivityTimeout);
+
+        numFailed = 0;
+        stopping = false;
+
         HashMap allDirs = getSourcePaths(srcPath);
+        ArrayList srcDirs = new ArrayList(allDirs.keySet());
+
+        if (dirIndex != null) {
+            try {
+                dirIndex.save();
+            } catch (PyTestException pte) {
+                getLog().warn("Couldn't save directory listings", pte);
+            }
+        }
+
+        final long discoveryMillis =
+            System.currentTimeMillis() - discoveryStart;
 
         for (int i = 0; i < tstNames.length; i++) {
             File f = new File(testPath, tstNames[i]);
@@ -218,73 +540,230 @@ public class PyTest
 
         String path = TestRunner.buildPath(allDirs.keySet());
 
-        int totTests = 0;
-        int totFails = 0;
-        int totErrs = 0;
+        File cacheFile = new File(getBuildDirectory(), INTERP_CACHE_NAME);
+        try {
+            interpInfo =
+                InterpreterInfo.probe(pythonExecutable, path, cacheFile);
+            if (getLog().isDebugEnabled()) {
+                getLog().debug("Using " + pythonExecutable + ": " + interpInfo);
+            }
+        } catch (PyTestException pte) {
+            getLog().warn("Couldn't probe " + pythonExecutable, pte);
+            interpInfo = null;
+        }
 
-        ArrayList failed = new ArrayList();
+        ArrayList tstFiles = new ArrayList();
         for (int i = 0; i < tstNames.length; i++) {
-            if (tstNames[i] == null) {
-                continue;
+            if (tstNames[i] != null) {
+                tstFiles.add(new File(testPath, tstNames[i]));
             }
+        }
 
-            File f = new File(testPath, tstNames[i]);
+        resultCache = null;
+        if (incremental) {
+            String version;
+            if (interpInfo == null) {
+                version = null;
+            } else {
+                version = interpInfo.getVersion();
+            }
 
-            System.out.println("Running " + f.getName());
-            TestRunner runner = new TestRunner(pythonExecutable, f);
             try {
-                // try running tests using xmlrunner
-                runner.runTests(testPath, path, "-x");
-                // if that failed, use whatever test runner is available
-                if (!runner.isTextOutput() && !runner.isXMLOutput()) {
-                    runner.reset();
-                    runner.runTests(testPath, path, "-v");
+                String baseHash =
+                    ResultCache.computeBaseHash(pythonExecutable, version,
+                                                path, srcDirs);
+                resultCache =
+                    new ResultCache(new File(getBuildDirectory(),
+                                             RESULT_CACHE_NAME), baseHash);
+            } catch (PyTestException pte) {
+                getLog().warn("Couldn't fingerprint Python sources;" +
+                              " running all tests", pte);
+            }
+
+            testFileSet = new HashSet();
+            for (Iterator it = tstFiles.iterator(); it.hasNext(); ) {
+                testFileSet.add(((File) it.next()).getAbsoluteFile());
+            }
+        }
+
+        failedTests =
+            new FailedTests(new File(getBuildDirectory(), FAILED_TESTS_NAME));
+        if (rerunFailed) {
+            if (!failedTests.isLoaded()) {
+                getLog().warn("No results from a previous build;" +
+                              " running all tests");
+            } else {
+                for (Iterator it = tstFiles.iterator(); it.hasNext(); ) {
+                    if (!failedTests.contains((File) it.next())) {
+                        it.remove();
+                    }
                 }
 
-                if (runner.hasErrorLines()) {
-                    getLog().error("!! Unexpected output" +
-                                   " on standard error stream !!");
+                if (tstFiles.size() == 0) {
+                    System.out.println("No failed tests to rerun");
+                    return;
                 }
+            }
+        }
 
-                List outLines = runner.getOutputLines();
+        importGraph = null;
+        if (affectedTests) {
+            removeUnaffected(tstFiles, srcPath, testPath, allDirs.keySet());
 
-                SuiteData data = new SuiteData(f);
+            if (tstFiles.size() == 0) {
+                System.out.println("No tests are affected by the changes");
+                saveImportGraph();
+                return;
+            }
+        }
 
-                try {
-                    new PyTestParser(outLines, data);
-                } catch (PyTestException pte) {
-                    data = null;
-                    getLog().error("Couldn't parse output from " + f.getName(),
-                                   pte);
-                }
+        if (!"balanced".equals(runOrder) && !"filesystem".equals(runOrder)) {
+            throw new MojoExecutionException("Bad runOrder value \"" +
+                                             runOrder + "\"; expected" +
+                                             " \"balanced\" or" +
+                                             " \"filesystem\"");
+        }
 
-                if (useFile) {
-                    getLog().error("XML output is not implemented");
-                } else {
-                    if (data != null) {
-                        data.dump(System.out);
-                    } else {
-                        if (runner.hasOutputLines()) {
-                            dumpOutput(runner.getOutputLines(), System.out);
-                        }
-                        if (runner.hasErrorLines()) {
-                            dumpOutput(runner.getErrorLines(), System.err);
-                        }
+        timingHistory =
+            new TimingHistory(new File(getBuildDirectory(),
+                                       TIMING_HISTORY_NAME));
+
+        reportWriter = null;
+        if (useFile) {
+            File reportDir = reportsDirectory;
+            if (reportDir == null) {
+                reportDir = new File(getBuildDirectory(), "surefire-reports");
+            }
+
+            reportWriter = new ReportWriter(reportDir, testPath);
+        }
+
+        resultHistory = null;
+        if (historyDirectory != null) {
+            String interp = pythonExecutable;
+            if (interpInfo != null && interpInfo.getVersion() != null) {
+                interp += " " + interpInfo.getVersion();
+            }
+
+            resultHistory = new ResultHistory(historyDirectory, historyRuns);
+            resultHistory.startBuild(testPath, discoveryStart, interp,
+                                     ResultHistory.findCommit(baseDir));
+        }
+
+        progress = null;
+        if (liveProgress) {
+            long beatMillis = 0;
+            if (forkCount > 1) {
+                beatMillis = (long) heartbeatInterval * 1000L;
+            }
+
+            progress = new ProgressReporter(System.out, beatMillis);
+            progress.start();
+        }
+
+        List results;
+        try {
+            if (forkCount <= 1) {
+                results = new ArrayList();
+                for (Iterator it = tstFiles.iterator(); it.hasNext(); ) {
+                    File f = (File) it.next();
+
+                    if (stopping) {
+                        SuiteResult result = new SuiteResult(f);
+                        result.setNotRun();
+                        results.add(result);
+                        continue;
                     }
+
+                    System.out.println("Running " + f.getName());
+                    SuiteResult result = runSuite(f, testPath, path);
+                    checkFailFast(result);
+                    reportSuite(result);
+                    result.discardOutput();
+                    results.add(result);
                 }
+            } else {
+                results = runConcurrently(tstFiles, testPath, path);
+            }
+        } finally {
+            closeWorkers();
+
+            if (progress != null) {
+                progress.stop();
+                progress = null;
+            }
 
-                if (data != null) {
-                    System.out.println(data.summary());
-                    totTests += data.getNumTests();
-                    totFails += data.getNumFailures();
-                    totErrs += data.getNumErrors();
+            if (reportWriter != null) {
+                try {
+                    reportWriter.close();
+                } catch (PyTestException pte) {
+                    getLog().error("Couldn't write test reports", pte);
                 }
+                reportWriter = null;
+            }
+        }
+
+        int totTests = 0;
+        int totFails = 0;
+        int totErrs = 0;
+
+        ArrayList failed = new ArrayList();
+        ArrayList notRun = new ArrayList();
+        int numPassed = 0;
+        for (Iterator it = results.iterator(); it.hasNext(); ) {
+            SuiteResult result = (SuiteResult) it.next();
+
+            if (result.isNotRun()) {
+                notRun.add(result.getFile());
+                continue;
+            }
+
+            SuiteData data = result.getData();
+            if (data != null) {
+                totTests += data.getNumTests();
+                totFails += data.getNumFailures();
+                totErrs += data.getNumErrors();
+            }
+
+            if (result.isFailed()) {
+                failed.add(result.getFile());
+            } else if (data != null && result.getRunException() == null) {
+                numPassed++;
+            }
 
-                if (data == null || !data.isPassed()) {
-                    failed.add(f);
+            if (!result.isCached() && !result.isPartial()) {
+                if (resultCache != null) {
+                    resultCache.update(result.getFile(),
+                                       result.getFingerprint(), data);
                 }
+
+                timingHistory.update(result.getFile(), data,
+                                     result.getWallTime());
+            }
+        }
+
+        try {
+            timingHistory.save();
+        } catch (PyTestException pte) {
+            getLog().warn("Couldn't save test timings", pte);
+        }
+
+        try {
+            failedTests.save();
+        } catch (PyTestException pte) {
+            getLog().warn("Couldn't save failed tests", pte);
+        }
+
+        if (notRun.size() == 0) {
+            // otherwise the changes are still waiting to be tested
+            saveImportGraph();
+        }
+
+        if (resultCache != null) {
+            try {
+                resultCache.save();
             } catch (PyTestException pte) {
-                getLog().error("Couldn't run test " + f, pte);
+                getLog().warn("Couldn't save test results", pte);
             }
         }
 
@@ -299,342 +778,1196 @@ public class PyTest
             }
         }
 
+        if (notRun.size() > 0) {
+            System.out.println();
+            System.out.println("Tests not run:");
+            for (Iterator it = notRun.iterator(); it.hasNext(); ) {
+                System.out.println("  "  + it.next());
+            }
+        }
+
         System.out.println();
         System.out.println("Tests run: " + totTests + ", Failures: " +
                            totFails + ", Errors: " + totErrs);
+        if (failFast) {
+            System.out.println("Test files passed: " + numPassed +
+                               ", Failed: " + failed.size() +
+                               ", Not run: " + notRun.size());
+        }
+
+        if (phaseTimings) {
+            PhaseTimes.summarize(results, discoveryMillis, System.out);
+
+            File timesFile = new File(getBuildDirectory(), PHASE_TIMES_NAME);
+            try {
+                PhaseTimes.write(timesFile, results);
+            } catch (PyTestException pte) {
+                getLog().warn("Couldn't save phase timings", pte);
+            }
+        }
 
         if (failed.size() > 0) {
             throw new MojoFailureException("Test failed");
         }
     }
 
-    private HashMap getSourcePaths(File srcDir)
+    /**
+     * Count a failed test file and, if <tt>failFast</tt> is set and enough
+     * test files have failed, stop starting new test files and kill the
+     * ones which are running.
+     *
+     * @param result test file results
+     */
+    private void checkFailFast(SuiteResult result)
     {
-        HashMap allDirs = new HashMap();
-
-        DirectoryScanner scanner = new DirectoryScanner();
-        scanner.setBasedir(srcDir);
-        scanner.setIncludes(new String[] { "**/*.py" });
-        scanner.addDefaultExcludes();
-        scanner.setCaseSensitive(false);
-        scanner.scan();
-
-        String[] incFiles = scanner.getIncludedFiles();
-        for (int i = 0; i < incFiles.length; i++) {
-            File tmp = new File(srcDir, incFiles[i]);
+        if (!failFast || !result.isFailed()) {
+            return;
+        }
 
-            File f;
-            try {
-                f = tmp.getCanonicalFile();
-            } catch (IOException ioe) {
-                f = tmp;
+        synchronized (this) {
+            numFailed++;
+            if (stopping || numFailed < failFastCount) {
+                return;
             }
 
-            File dir = f.getParentFile();
-            if (!allDirs.containsKey(dir)) {
-                allDirs.put(dir, dir);
-            }
+            stopping = true;
         }
 
-        return allDirs;
+        getLog().warn("Stopping after " + numFailed + " failed test file" +
+                      (numFailed == 1 ? "" : "s"));
+        TestRunner.killRunning();
     }
-}
 
-/**
- * Run a Python test.
- */
-class TestRunner
-{
     /**
-     * Python path environment variable.
+     * Remove the test files which aren't affected by the changed Python
+     * files.  Test files which failed in the previous build are always
+     * kept, and nothing is removed if the changes can't be found.
+     *
+     * @param tstFiles list of test files
+     * @param srcPath source directory
+     * @param testPath test directory
+     * @param pathDirs directories on the Python path
+     *
+     * @throws MojoExecutionException if the Python files could not be found
      */
-    private static final String PATH_ENV_NAME = "PYTHONPATH";
+    private void removeUnaffected(List tstFiles, File srcPath, File testPath,
+                                  Collection pathDirs)
+        throws MojoExecutionException
+    {
+        final long start = System.currentTimeMillis();
 
-    /** Active process. */
-    private static Process testProc = null;
-    /** Process lock object. */
-    private static Object procLock = new Object();
+        HashSet dirs = new HashSet();
+        dirs.add(getCanonicalFile(srcPath));
+        dirs.add(getCanonicalFile(testPath));
+        for (Iterator it = pathDirs.iterator(); it.hasNext(); ) {
+            dirs.add(getCanonicalFile(new File(it.next().toString())));
+        }
 
-    static {
-        Runtime.getRuntime().addShutdownHook(new Thread("PyTest shutdown" ) {
-                public void run()
-                {
-                    synchronized (procLock) {
-                        if (testProc != null) {
-                            Process tmpProc = testProc;
-                            testProc = null;
-
-                            System.err.println( "Destroying test process" );
-                            tmpProc.destroy();
-                            System.err.println( "Destroyed test process" );
-                        }
-                    }
+        final String[] allIncludes = new String[] { "**/*" };
+
+        final String buildPath =
+            getCanonicalFile(getBuildDirectory()).getPath() + File.separator;
+
+        ArrayList pyFiles = new ArrayList();
+        ArrayList otherFiles = new ArrayList();
+        File[] roots = new File[] { srcPath, testPath };
+        for (int r = 0; r < roots.length; r++) {
+            String[] names = findFiles(roots[r], allIncludes, COMPILED_PY);
+            for (int i = 0; i < names.length; i++) {
+                File f = getCanonicalFile(new File(roots[r], names[i]));
+                if (names[i].toLowerCase().endsWith(".py")) {
+                    pyFiles.add(f);
+                } else if (!f.getPath().startsWith(buildPath)) {
+                    // build output changes every time the tests are run
+                    otherFiles.add(f);
                 }
-            });
-    }
-  
-    /** Python executable. */
-    private String pythonExecutable;
-    /** Python test script. */
-    private File testFile;
+            }
+        }
+
+        ImportGraph graph =
+            new ImportGraph(new File(getBuildDirectory(), IMPORT_GRAPH_NAME),
+                            getTestPatterns());
+        try {
+            graph.scan(pyFiles, dirs);
+        } catch (PyTestException pte) {
+            getLog().warn("Couldn't find Python imports; running all tests",
+                          pte);
+            return;
+        }
+        graph.scanOther(otherFiles);
+
+        // saving the graph marks the changes as tested, so it's only saved
+        // when every test file selected by the patterns will be considered
+        if (testName == null && !rerunFailed) {
+            importGraph = graph;
+        }
 
-    /** Does this test output contain an expected text output line? */
-    private boolean isText;
-    /** Does this test output contain an expected XML output line? */
-    private boolean isXML;
+        Collection changed;
+        if (changedSince != null && changedSince.length() > 0) {
+            changed = findGitChanges(srcPath, testPath);
+        } else if (!graph.isLoaded()) {
+            getLog().info("No imports saved by a previous build;" +
+                          " running all tests");
+            return;
+        } else if (!graph.hasSamePatterns()) {
+            getLog().info("Test file patterns changed since the imports were" +
+                          " saved; running all tests");
+            return;
+        } else if (graph.getDeleted().size() > 0) {
+            getLog().info("Python files were deleted; running all tests");
+            return;
+        } else {
+            changed = graph.getChanged();
+
+            List other = graph.getChangedOther();
+            if (other.size() > 0) {
+                getLog().warn(other.size() + " non-Python file" +
+                              (other.size() == 1 ? "" : "s") +
+                              " changed (" + ((File) other.get(0)).getName() +
+                              (other.size() == 1 ? "" : ", ...") +
+                              ") but only Python imports are followed;" +
+                              " tests which read " +
+                              (other.size() == 1 ? "it" : "them") +
+                              " may be skipped");
+            }
+        }
 
-    /** Lines written to the standard output stream. */
-    private ArrayList outLines = new ArrayList();
-    /** Lines written to the standard error stream. */
-    private ArrayList errLines = new ArrayList();
+        if (changed == null) {
+            return;
+        }
+
+        Set affected = graph.findAffected(changed);
+
+        int numSkipped = 0;
+        for (Iterator it = tstFiles.iterator(); it.hasNext(); ) {
+            File f = (File) it.next();
+            if (!affected.contains(getCanonicalFile(f)) &&
+                !failedTests.contains(f))
+            {
+                it.remove();
+                numSkipped++;
+            }
+        }
 
-    /** Test process exit value. */
-    private int exitVal = -1;
+        System.out.println("Skipping " + numSkipped + " of " +
+                           (tstFiles.size() + numSkipped) + " test files; " +
+                           changed.size() + " Python file" +
+                           (changed.size() == 1 ? "" : "s") + " changed (" +
+                           graph.getNumRead() + " scanned in " +
+                           (System.currentTimeMillis() - start) + "ms)");
+    }
 
     /**
-     * Create a test runner for the specified Python unit test script.
+     * Find the Python files which differ from the <tt>changedSince</tt>
+     * git revision.
      *
-     * @param f test file
+     * @param srcPath source directory
+     * @param testPath test directory
+     *
+     * @return set of canonical files, or <tt>null</tt> if all tests should
+     *         be run
      */
-    TestRunner(String pythonExecutable, File f)
+    private Set findGitChanges(File srcPath, File testPath)
     {
-        this.pythonExecutable = pythonExecutable;
-        testFile = f;
+        List gitFiles;
+        try {
+            gitFiles = ImportGraph.findGitChanges(baseDir, changedSince);
+        } catch (PyTestException pte) {
+            getLog().warn("Couldn't find changes since " + changedSince +
+                          "; running all tests", pte);
+            return null;
+        }
+
+        final String srcDir = getCanonicalFile(srcPath).getPath() +
+            File.separator;
+        final String testDir = getCanonicalFile(testPath).getPath() +
+            File.separator;
+
+        HashSet changed = new HashSet();
+        for (Iterator it = gitFiles.iterator(); it.hasNext(); ) {
+            File f = getCanonicalFile((File) it.next());
+
+            final String path = f.getPath();
+            if (!path.startsWith(srcDir) && !path.startsWith(testDir)) {
+                continue;
+            } else if (path.endsWith(".pyc") || path.endsWith(".pyo") ||
+                       path.indexOf("__pycache__") >= 0)
+            {
+                // compiled files are rewritten whenever Python runs
+                continue;
+            }
+
+            if (!path.endsWith(".py")) {
+                getLog().info(f.getName() + " is not a Python file;" +
+                              " running all tests");
+                return null;
+            } else if (!f.exists()) {
+                getLog().info(f.getName() + " was deleted; running all tests");
+                return null;
+            }
+
+            changed.add(f);
+        }
+
+        return changed;
     }
 
     /**
-     * Build a Unix-style path from 'elements'.
+     * Get the canonical version of a file.
      *
-     * @param elements collection of path elements
+     * @param f file
      *
-     * @return Unix-style path
+     * @return canonical file (or <tt>f</tt> if it can't be canonicalized)
      */
-    public static String buildPath(Collection elements)
+    private static File getCanonicalFile(File f)
     {
-        String path = System.getenv(PATH_ENV_NAME);
-        for (Iterator it = elements.iterator(); it.hasNext(); ) {
-            if (path == null || path.length() == 0) {
-                path = it.next().toString();
-            } else {
-                path += ":" + it.next().toString();
-            }
+        try {
+            return f.getCanonicalFile();
+        } catch (IOException ioe) {
+            return f;
         }
-        return path;
     }
 
     /**
-     * Get lines of text written to the standard error stream.
+     * Get the include and exclude patterns which select the test files.
      *
-     * @return error text lines
+     * @return patterns as a single string
+     */
+    private String getTestPatterns()
+    {
+        String[] incs = (includes == null ? defaultIncludes : includes);
+
+        StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < incs.length; i++) {
+            if (i > 0) {
+                buf.append(',');
+            }
+            buf.append(incs[i]);
+        }
+        buf.append('|');
+        if (excludes != null) {
+            for (int i = 0; i < excludes.length; i++) {
+                if (i > 0) {
+                    buf.append(',');
+                }
+                buf.append(excludes[i]);
+            }
+        }
+
+        return buf.toString();
+    }
+
+    /**
+     * Save the Python import graph, if it was used.
      */
-    List getErrorLines()
+    private void saveImportGraph()
     {
-        return errLines;
+        if (importGraph != null) {
+            try {
+                importGraph.save();
+            } catch (PyTestException pte) {
+                getLog().warn("Couldn't save Python imports", pte);
+            }
+            importGraph = null;
+        }
     }
 
     /**
-     * Get the test process exit value.
+     * Report the results from a single test file, recording how long it
+     * took.
      *
-     * @return exit value
+     * @param result test file results
      */
-    int getExitValue()
+    private void reportSuite(SuiteResult result)
     {
-        return exitVal;
+        final long start = System.currentTimeMillis();
+
+        failedTests.update(result);
+
+        if (resultHistory != null && !result.isCached() &&
+            !result.isPartial())
+        {
+            try {
+                resultHistory.record(result);
+            } catch (PyTestException pte) {
+                getLog().warn("Couldn't save test history", pte);
+                resultHistory = null;
+            }
+        }
+
+        showSuite(result);
+
+        PhaseTimes times = result.getPhaseTimes();
+        if (times != null) {
+            times.add(PhaseTimes.REPORT, System.currentTimeMillis() - start);
+        }
     }
 
     /**
-     * Get lines of text written to the standard output stream.
+     * Report the results from a single test file.
      *
-     * @return output text lines
+     * @param result test file results
      */
-    List getOutputLines()
+    private void showSuite(SuiteResult result)
     {
-        return outLines;
+        final File f = result.getFile();
+
+        if (result.isCached()) {
+            System.out.println(result.getData().summary() +
+                               " (unchanged since last pass)");
+            return;
+        }
+
+        if (result.getRunException() != null) {
+            getLog().error("Couldn't run test " + f, result.getRunException());
+            return;
+        }
+
+        if (result.getTimeoutMessage() != null) {
+            getLog().error(f.getName() + ": " + result.getTimeoutMessage() +
+                           "; reporting partial results");
+        }
+
+        TestRunner runner = result.getRunner();
+        final boolean strayErrors = runner.hasUnexpectedErrorLines();
+        if (strayErrors) {
+            getLog().error("!! Unexpected output" +
+                           " on standard error stream !!");
+        }
+
+        if (result.getParseException() != null) {
+            getLog().error("Couldn't parse output from " + f.getName(),
+                           result.getParseException());
+        }
+
+        SuiteData data = result.getData();
+        if (reportWriter != null) {
+            if (collapseFailures && data != null) {
+                // the full details are only written to the report
+                data.dumpCollapsed(System.out, false);
+            }
+
+            // the writer discards the details once they've been written
+            reportWriter.write(result);
+        } else {
+            if (data != null) {
+                if (collapseFailures) {
+                    data.dumpCollapsed(System.out, true);
+                } else {
+                    data.dump(System.out);
+                }
+            } else {
+                if (runner.hasOutputLines()) {
+                    dumpOutput(runner.getOutputLines(), System.out);
+                }
+                if (runner.hasErrorLines()) {
+                    dumpOutput(runner.getErrorLines(), System.err);
+                }
+            }
+        }
+
+        if (data != null && strayErrors) {
+            dumpOutput(runner.getUnexpectedErrorLines(), System.err);
+        }
+
+        if (data != null) {
+            System.out.println(data.summary());
+
+            if (reportWriter == null) {
+                data.discardDetails();
+            }
+        }
     }
 
     /**
-     * Was anything written to the standard error stream?
+     * Run all test files on a pool of <tt>forkCount</tt> worker threads.
+     * Results are reported in the original file order as each one becomes
+     * available, so console output doesn't depend on scheduling.
+     *
+     * @param tstFiles list of test files
+     * @param testPath test directory
+     * @param path Python path
+     *
+     * @return list of test file results, in the same order as
+     *         <tt>tstFiles</tt>
      *
-     * @return <tt>true</tt> if there are standard error lines
+     * @throws MojoExecutionException if a worker thread failed
      */
-    boolean hasErrorLines()
+    private List runConcurrently(List tstFiles, final File testPath,
+                                 final String path)
+        throws MojoExecutionException
     {
-        return errLines.size() > 0;
+        ExecutorService pool =
+            Executors.newFixedThreadPool(forkCount,
+                                         new WorkerFactory("PyTest worker"));
+        testPool = pool;
+
+        List startOrder;
+        if ("balanced".equals(runOrder)) {
+            startOrder = timingHistory.sortLongestFirst(tstFiles);
+        } else {
+            startOrder = tstFiles;
+        }
+
+        HashMap futures = new HashMap();
+        try {
+            for (Iterator it = startOrder.iterator(); it.hasNext(); ) {
+                final File f = (File) it.next();
+
+                futures.put(f, pool.submit(new Callable() {
+                        public Object call()
+                        {
+                            SuiteResult result = runSuite(f, testPath, path);
+                            checkFailFast(result);
+                            return result;
+                        }
+                    }));
+            }
+
+            // report results in the original order
+            ArrayList results = new ArrayList();
+            for (Iterator it = tstFiles.iterator(); it.hasNext(); ) {
+                Future future = (Future) futures.get(it.next());
+
+                SuiteResult result;
+                try {
+                    result = (SuiteResult) future.get();
+                } catch (InterruptedException ie) {
+                    throw new MojoExecutionException("Interrupted while" +
+                                                     " waiting for tests", ie);
+                } catch (ExecutionException ee) {
+                    throw new MojoExecutionException("Test worker failed",
+                                                     ee.getCause());
+                }
+
+                if (!result.isNotRun()) {
+                    System.out.println("Running " +
+                                       result.getFile().getName());
+                    reportSuite(result);
+                }
+                result.discardOutput();
+                results.add(result);
+            }
+
+            return results;
+        } finally {
+            testPool = null;
+            pool.shutdownNow();
+            closeWorkers();
+            TestRunner.destroyAll();
+        }
     }
 
     /**
-     * Was anything written to the standard output stream?
+     * Run a single test file and parse the output, recording how long it
+     * took.
+     *
+     * @param f test file
+     * @param testPath test directory
+     * @param path Python path
      *
-     * @return <tt>true</tt> if there are standard output lines
+     * @return test file results
      */
-    boolean hasOutputLines()
+    private SuiteResult runSuite(File f, File testPath, String path)
     {
-        return outLines.size() > 0;
+        final long start = System.currentTimeMillis();
+
+        SuiteResult result = new SuiteResult(f);
+        if (phaseTimings) {
+            result.setPhaseTimes(new PhaseTimes());
+        }
+
+        if (progress == null) {
+            runFile(result, testPath, path);
+        } else {
+            progress.started(f);
+            try {
+                runFile(result, testPath, path);
+            } finally {
+                progress.finished(f);
+            }
+        }
+
+        result.setWallTime(System.currentTimeMillis() - start);
+
+        PhaseTimes times = result.getPhaseTimes();
+        if (times != null && result.getData() != null) {
+            times.setNumCases(result.getData().getNumTests());
+        }
+
+        return result;
     }
 
     /**
-     * Does this test output contain an expected text output line?
+     * Run a single test file and parse the output.
      *
-     * @return <tt>true</tt> if the output appears to be text-oriented
+     * @param result test file results
+     * @param testPath test directory
+     * @param path Python path
      */
-    boolean isTextOutput()
+    private void runFile(SuiteResult result, File testPath, String path)
     {
-        return isText;
+        final File f = result.getFile();
+
+        if (resultCache != null) {
+            try {
+                String fingerprint = resultCache.fingerprint(f, testFileSet);
+                result.setFingerprint(fingerprint);
+
+                SuiteData cached = resultCache.getPassed(f, fingerprint);
+                if (cached != null) {
+                    result.setData(cached);
+                    result.setCached(true);
+                    return;
+                }
+            } catch (PyTestException pte) {
+                // couldn't read a file, so the test will be rerun
+                result.setFingerprint(null);
+            }
+        }
+
+        if (stopping) {
+            result.setNotRun();
+            return;
+        }
+
+        TestRunner runner = new TestRunner(pythonExecutable, f);
+        runner.setPhaseTimes(result.getPhaseTimes());
+        result.setRunner(runner);
+
+        if (rerunFailed) {
+            List names = failedTests.getTests(f);
+            if (names != null && names.size() > 0) {
+                try {
+                    SuiteData data = runShard(f, names, testPath, path,
+                                              result.getPhaseTimes());
+                    if (hasLoadFailure(data)) {
+                        throw new PyTestException("Couldn't load " + names +
+                                                  " from " + f.getName());
+                    }
+
+                    result.setOutputFormat(PyTestParser.TEXT_FORMAT);
+                    result.setPartial(true);
+                    result.setData(data);
+                    return;
+                } catch (PyTestException pte) {
+                    if (stopping) {
+                        result.setNotRun();
+                        return;
+                    }
+
+                    getLog().warn("Couldn't rerun failed tests in " +
+                                  f.getName() + "; rerunning the whole file",
+                                  pte);
+                }
+            }
+        }
+
+        if (shardFileSet != null && shardFileSet.contains(f)) {
+            SuiteData data =
+                runSharded(f, testPath, path, result.getPhaseTimes());
+            if (data != null) {
+                // the pieces are always run with the text runner
+                result.setOutputFormat(PyTestParser.TEXT_FORMAT);
+                result.setData(data);
+                return;
+            }
+
+            if (stopping) {
+                // the pieces were killed, so don't rerun the whole file
+                result.setNotRun();
+                return;
+            }
+        }
+
+        try {
+            boolean finished = false;
+            if (reuseForks) {
+                PythonWorker worker = getWorker(testPath, path);
+                finished = runTests(result, testPath, path, null, worker);
+                if (!finished && stopping) {
+                    // the worker was killed because other files failed,
+                    // or died when no more files should be started
+                    result.setNotRun();
+                    return;
+                } else if (!finished && runner.getTimeoutMessage() == null) {
+                    // the worker died, so run the file in its own process
+                    getLog().warn("Python worker died while running " +
+                                  f.getName() + "; rerunning it separately");
+                    runner.reset();
+                }
+            }
+
+            if (finished || runner.getTimeoutMessage() != null) {
+                // ran (or timed out) in a worker process
+            } else if (interpInfo != null && !interpInfo.hasXMLRunner()) {
+                // xmlrunner isn't installed, so don't bother trying it
+                runTests(result, testPath, path, "-v", null);
+            } else if (progress != null ||
+                       TestRunner.hasInactivityTimeout())
+            {
+                // xmlrunner only writes results after all the tests finish
+                runTests(result, testPath, path, "-v", null);
+            } else {
+                // try running tests using xmlrunner
+                runTests(result, testPath, path, "-x", null);
+                // if that failed, use whatever test runner is available
+                if (runner.getOutputFormat() == PyTestParser.UNKNOWN_FORMAT &&
+                    runner.getTimeoutMessage() == null && !stopping)
+                {
+                    runner.reset();
+                    runTests(result, testPath, path, "-v", null);
+                }
+            }
+        } catch (PyTestException pte) {
+            if (runner.isKilled()) {
+                result.setNotRun();
+            } else {
+                result.setRunException(pte);
+            }
+            return;
+        }
+
+        if (runner.isKilled()) {
+            // the process was killed because other files failed
+            result.setNotRun();
+            return;
+        }
+
+        final String timeoutMsg = runner.getTimeoutMessage();
+
+        result.setOutputFormat(runner.getOutputFormat());
+
+        if (!isStreaming()) {
+            final long parseStart = System.currentTimeMillis();
+
+            SuiteData data = new SuiteData(f);
+            try {
+                new PyTestParser(runner.getReportLines(), data,
+                                 runner.getOutputFormat());
+                result.setData(data);
+            } catch (PyTestException pte) {
+                if (timeoutMsg == null) {
+                    result.setParseException(pte);
+                } else {
+                    // keep whatever was parsed before the output ended
+                    result.setData(data);
+                }
+            }
+
+            PhaseTimes times = result.getPhaseTimes();
+            if (times != null) {
+                times.add(PhaseTimes.PARSE,
+                          System.currentTimeMillis() - parseStart);
+            }
+        }
+
+        if (timeoutMsg != null) {
+            SuiteData data = result.getData();
+            if (data == null) {
+                data = new SuiteData(f);
+                result.setData(data);
+            }
+
+            data.markTimedOut(timeoutMsg);
+            result.setParseException(null);
+            result.setTimeoutMessage(timeoutMsg);
+        }
     }
 
     /**
-     * Does this test output contain an expected XML output line?
+     * Split a test file into pieces and run them on this thread and on any
+     * pool threads which become idle.
+     *
+     * @param f test file
+     * @param testPath test directory
+     * @param path Python path
+     * @param times phase times (<tt>null</tt> if not being recorded)
      *
-     * @return <tt>true</tt> if the output appears to be XML-oriented
+     * @return merged results, or <tt>null</tt> if the file could not be
+     *         split or one of the pieces failed, in which case the caller
+     *         should run the whole file
      */
-    boolean isXMLOutput()
+    private SuiteData runSharded(File f, final File testPath,
+                                 final String path, final PhaseTimes times)
     {
-        return isXML;
+        List shards;
+        try {
+            shards = listShards(f, testPath, path);
+        } catch (PyTestException pte) {
+            getLog().warn("Couldn't list tests in " + f.getName(), pte);
+            return null;
+        }
+
+        if (shards == null || shards.size() < 2) {
+            return null;
+        }
+
+        final ShardQueue queue = new ShardQueue(f, shards);
+
+        // idle threads help out once they've finished the other files
+        ExecutorService pool = testPool;
+        final int numHelpers = Math.min(forkCount, queue.size()) - 1;
+        for (int i = 0; pool != null && i < numHelpers; i++) {
+            pool.submit(new Runnable() {
+                    public void run()
+                    {
+                        runShards(queue, testPath, path, times);
+                    }
+                });
+        }
+
+        runShards(queue, testPath, path, times);
+
+        try {
+            return queue.waitForAll();
+        } catch (PyTestException pte) {
+            getLog().warn("Couldn't run " + f.getName() + " in pieces;" +
+                          " rerunning the whole file", pte);
+            return null;
+        }
     }
 
     /**
-     * Open the stream as a Reader.
+     * List the pieces a test file can be split into.
+     *
+     * @param f test file
+     * @param testPath test directory
+     * @param path Python path
      *
-     * @param in input stream
+     * @return list of pieces, each of which is a list of test names
+     *         (<tt>null</tt> if the tests could not be listed)
      *
-     * @return encapsulated input stream
+     * @throws PyTestException if the tests could not be listed
      */
-    private static BufferedReader openReader(InputStream in)
+    private List listShards(File f, File testPath, String path)
+        throws PyTestException
     {
-        return new BufferedReader(new InputStreamReader(in));
+        List names;
+        if (reuseForks) {
+            names = getWorker(testPath, path).listTests(f);
+        } else {
+            PythonWorker worker =
+                new PythonWorker(pythonExecutable, testPath, path, 1);
+            try {
+                names = worker.listTests(f);
+            } finally {
+                worker.close();
+            }
+        }
+
+        if (names == null) {
+            return null;
+        }
+
+        final boolean byClass = "class".equals(shardBy);
+
+        ArrayList shards = new ArrayList();
+        HashSet classes = new HashSet();
+        for (Iterator it = names.iterator(); it.hasNext(); ) {
+            String name = (String) it.next();
+
+            if (byClass) {
+                int dot = name.lastIndexOf('.');
+                if (dot > 0) {
+                    name = name.substring(0, dot);
+                }
+                if (!classes.add(name)) {
+                    continue;
+                }
+            }
+
+            ArrayList shard = new ArrayList();
+            shard.add(name);
+            shards.add(shard);
+        }
+
+        return shards;
     }
 
     /**
-     * Reset to the initial state.
+     * Run the unclaimed pieces of a test file until there are none left.
+     *
+     * @param queue pieces of the test file
+     * @param testPath test directory
+     * @param path Python path
+     * @param times phase times (<tt>null</tt> if not being recorded)
      */
-    void reset()
+    private void runShards(ShardQueue queue, File testPath, String path,
+                           PhaseTimes times)
     {
-        isText = false;
-        isXML = false;
-        outLines.clear();
-        errLines.clear();
-        exitVal = -1;
+        while (true) {
+            int index = queue.claim();
+            if (index < 0) {
+                break;
+            }
+
+            if (stopping) {
+                queue.finished(index, null,
+                               new PyTestException("Stopped after other" +
+                                                   " test files failed"));
+                continue;
+            }
+
+            SuiteData data = null;
+            PyTestException exc = null;
+            try {
+                data = runShard(queue.getFile(), queue.getShard(index),
+                                testPath, path, times);
+            } catch (PyTestException pte) {
+                exc = pte;
+            } catch (RuntimeException rte) {
+                exc = new PyTestException("Couldn't run part of " +
+                                          queue.getFile().getName(), rte);
+            }
+
+            queue.finished(index, data, exc);
+        }
     }
 
     /**
-     * Run the unit tests.
+     * Run one piece of a test file and parse its output.
+     *
+     * @param f test file
+     * @param names names of the tests to run
+     * @param testPath test directory
+     * @param path Python path
+     * @param times phase times (<tt>null</tt> if not being recorded)
      *
-     * @param pathEnv Python path
-     * @param arg python argument (if non-null)
+     * @return results for this piece
      *
-     * @throws PyTestException if there is a problem
+     * @throws PyTestException if the tests could not be run or parsed
      */
-    void runTests(File testDir, String pathEnv, String arg)
+    private SuiteData runShard(File f, List names, File testPath, String path,
+                               PhaseTimes times)
         throws PyTestException
     {
-        ArrayList args = new ArrayList();
-        args.add(pythonExecutable);
-        args.add(testFile.toString());
-        if (arg != null && arg.length() > 0) {
-            args.add(arg);
+        PythonWorker worker;
+        if (reuseForks) {
+            worker = getWorker(testPath, path);
+        } else {
+            worker = new PythonWorker(pythonExecutable, testPath, path, 1);
         }
 
-        ProcessBuilder pBldr = new ProcessBuilder(args);
-        pBldr.redirectErrorStream(true);
+        TestRunner runner = new TestRunner(pythonExecutable, f);
+        runner.setPhaseTimes(times);
+        try {
+            if (!worker.runTests(f, names, runner)) {
+                final String msg = runner.getTimeoutMessage();
+                if (msg == null) {
+                    throw new PyTestException("Python process died while" +
+                                              " running " + names +
+                                              " from " + f.getName());
+                }
 
-        // set working directory
-        pBldr.directory(testDir);
+                // report the partial results instead of rerunning the file
+                SuiteData data = new SuiteData(f);
+                try {
+                    new PyTestParser(runner.getOutputLines(), data, false);
+                } catch (PyTestException pte) {
+                    // keep whatever was parsed before the output ended
+                }
+                getLog().error(f.getName() + " " + names + ": " + msg);
+                data.markTimedOut(msg);
+                return data;
+            }
 
-        // set PYTHONPATH envvar
-        Map env = pBldr.environment();
-        env.put(PATH_ENV_NAME, pathEnv);
+            final long parseStart = System.currentTimeMillis();
 
-        BufferedReader stdout = null;
-        BufferedReader stderr = null;
+            SuiteData data = new SuiteData(f);
+            if (progress != null) {
+                data.setCaseListener(progress.getListener(f));
+            }
+            new PyTestParser(runner.getOutputLines(), data, false);
+            if (times != null) {
+                times.add(PhaseTimes.PARSE,
+                          System.currentTimeMillis() - parseStart);
+            }
+            if (!data.isInitialized()) {
+                throw new PyTestException("No results for " + names +
+                                          " from " + f.getName());
+            }
 
-        synchronized (procLock) {
-            try {
-                testProc = pBldr.start();
-            } catch (IOException ioe) {
-                throw new PyTestException("Couldn't run " + testFile, ioe);
+            return data;
+        } finally {
+            runner.release();
+            if (!reuseForks) {
+                worker.close();
             }
+        }
+    }
+
+    /**
+     * Run a test file once.  If output is being streamed, it is parsed
+     * as it arrives and the parsed data is saved in <tt>result</tt>.
+     *
+     * @param result test file results
+     * @param testPath test directory
+     * @param path Python path
+     * @param arg python argument (ignored if a worker is used)
+     * @param worker Python worker process (<tt>null</tt> to run the test
+     *               file in its own process)
+     *
+     * @return <tt>false</tt> if the worker died before the tests finished
+     *
+     * @throws PyTestException if the test could not be run
+     */
+    private boolean runTests(SuiteResult result, File testPath, String path,
+                             String arg, PythonWorker worker)
+        throws PyTestException
+    {
+        TestRunner runner = result.getRunner();
+        if (!isStreaming()) {
+            return runTests(runner, testPath, path, arg, worker);
+        }
+
+        LineQueue queue = new LineQueue(STREAM_QUEUE_SIZE);
+        runner.setLineQueue(queue);
 
+        SuiteData streamData = new SuiteData(result.getFile());
+        if (progress != null) {
+            streamData.setCaseListener(progress.getListener(result.getFile()));
+        }
+
+        StreamingParser parser = new StreamingParser(queue, streamData);
+        parser.start();
+
+        boolean finished;
+        boolean ran = false;
+        long waitStart;
+        try {
+            finished = runTests(runner, testPath, path, arg, worker);
+            ran = true;
+        } finally {
+            // most parsing overlaps the run; only the wait is counted
+            waitStart = System.currentTimeMillis();
+            queue.close();
             try {
-                testProc.getOutputStream().close();
-            } catch (IOException ioe) {
-                // ignore errors on close
+                parser.waitForParser();
+            } catch (PyTestException pte) {
+                if (ran) {
+                    throw pte;
+                }
+
+                // don't hide the reason the run failed
+                Thread.currentThread().interrupt();
             }
+        }
 
-            stdout = openReader(testProc.getInputStream());
-            // ignoring error stream
+        PhaseTimes times = result.getPhaseTimes();
+        if (times != null) {
+            times.add(PhaseTimes.PARSE, System.currentTimeMillis() - waitStart);
         }
 
-        while (stdout != null || stderr != null) {
-            String line;
+        if (runner.getTimeoutMessage() != null) {
+            // keep whatever was parsed before the output ended
+            result.setData(parser.getPartialData());
+        } else {
+            result.setData(parser.getData());
+            result.setParseException(parser.getParseException());
+        }
 
-            for (int i = 0; i < 2; i++) {
-                String name;
-                BufferedReader rdr;
-                List list;
+        return finished;
+    }
 
-                if (i == 0) {
-                    name = "stdout";
-                    rdr = stdout;
-                    list = outLines;
-                } else {
-                    name = "stdout";
-                    rdr = stderr;
-                    list = errLines;
-                }
+    /**
+     * Run a test file once, either in its own process or in a worker.
+     *
+     * @param runner test runner
+     * @param testPath test directory
+     * @param path Python path
+     * @param arg python argument (ignored if a worker is used)
+     * @param worker Python worker process (may be <tt>null</tt>)
+     *
+     * @return <tt>false</tt> if the worker died before the tests finished
+     *
+     * @throws PyTestException if the test could not be run
+     */
+    private static boolean runTests(TestRunner runner, File testPath,
+                                    String path, String arg,
+                                    PythonWorker worker)
+        throws PyTestException
+    {
+        if (worker != null) {
+            return runner.runTests(worker);
+        }
 
-                if (rdr != null) {
-                    try {
-                        line = rdr.readLine();
-                    } catch (IOException ioe) {
-                        if (testProc == null) {
-                            break;
-                        }
+        runner.runTests(testPath, path, arg);
+        return true;
+    }
 
-                        throw new PyTestException("Couldn't read " + name, ioe);
-                    }
+    /**
+     * Stop all Python worker processes.
+     */
+    private void closeWorkers()
+    {
+        synchronized (allWorkers) {
+            for (Iterator it = allWorkers.iterator(); it.hasNext(); ) {
+                ((PythonWorker) it.next()).close();
+            }
 
-                    if (line == null) {
-                        rdr = null;
-                    } else {
-                        if (line.startsWith("Ran ") &&
-                            (line.contains(" test in ") ||
-                             line.contains(" tests in ")))
-                        {
-                            isText = true;
-                        } else if (line.startsWith("<testsuite")) {
-                            isXML = true;
-                        }
+            allWorkers.clear();
+        }
+    }
 
-                        list.add(line);
-                    }
+    /**
+     * Get the Python worker process for the current thread.
+     *
+     * @param testPath test directory
+     * @param path Python path
+     *
+     * @return worker process
+     */
+    private PythonWorker getWorker(File testPath, String path)
+    {
+        PythonWorker worker = (PythonWorker) threadWorker.get();
+        if (worker == null) {
+            worker = new PythonWorker(pythonExecutable, testPath, path,
+                                      maxModulesPerFork);
+            threadWorker.set(worker);
+
+            synchronized (allWorkers) {
+                allWorkers.add(worker);
+            }
+        }
 
-                    if (rdr == null) {
-                        if (i == 0) {
-                            stdout = null;
-                        } else {
-                            stderr = null;
-                        }
-                    }
-                }
+        return worker;
+    }
+
+    /**
+     * Find the files in a directory tree which match the patterns.
+     * Matching is case-insensitive and <tt>DirectoryScanner</tt>'s default
+     * excludes are always applied.
+     *
+     * @param dir base directory
+     * @param incs patterns for included files
+     * @param excs patterns for excluded files (may be <tt>null</tt>)
+     *
+     * @return paths of matching files, relative to <tt>dir</tt>
+     *
+     * @throws MojoExecutionException if the directory could not be read
+     */
+    private String[] findFiles(File dir, String[] incs, String[] excs)
+        throws MojoExecutionException
+    {
+        if (dirIndex != null) {
+            try {
+                return dirIndex.findFiles(dir, incs, excs);
+            } catch (PyTestException pte) {
+                throw new MojoExecutionException("Couldn't find files in " +
+                                                 dir, pte);
             }
         }
 
-        synchronized (procLock) {
+        DirectoryScanner scanner = new DirectoryScanner();
+        scanner.setBasedir(dir);
+        scanner.setExcludes(excs);
+        scanner.setIncludes(incs);
+        scanner.addDefaultExcludes();
+        scanner.setCaseSensitive(false);
+        scanner.scan();
+
+        String[] names = scanner.getIncludedFiles();
+        if (names == null) {
+            return new String[0];
+        }
+
+        return names;
+    }
+
+    /**
+     * Did any of the tests fail to load?  Newer versions of Python report
+     * a name which can't be loaded as an error from a placeholder test.
+     *
+     * @param data test suite data
+     *
+     * @return <tt>true</tt> if a test could not be loaded
+     */
+    private static boolean hasLoadFailure(SuiteData data)
+    {
+        if (data.getCases() == null) {
+            return false;
+        }
+
+        for (Iterator it = data.getCases().iterator(); it.hasNext(); ) {
+            String className = ((CaseData) it.next()).getClassName();
+            if (className != null &&
+                className.startsWith("unittest.loader."))
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Is test output parsed while the test is running?  This is always
+     * done when live progress is reported.
+     *
+     * @return <tt>true</tt> if output is parsed as it is read
+     */
+    private boolean isStreaming()
+    {
+        return streamOutput || progress != null;
+    }
+
+    /**
+     * Get the parent directories of all Python files in the source tree.
+     *
+     * @param srcDir source directory
+     *
+     * @return map of source directories
+     *
+     * @throws MojoExecutionException if the directory could not be read
+     */
+    private HashMap getSourcePaths(File srcDir)
+        throws MojoExecutionException
+    {
+        HashMap allDirs = new HashMap();
+
+        if (dirIndex != null) {
+            // directories are canonicalized once instead of once per file
+            List dirs;
             try {
-                if (testProc != null) {
-                    testProc.waitFor();
-                }
-            } catch (InterruptedException ie) {
-                throw new PyTestException("Couldn't wait for " + testFile, ie);
+                dirs = dirIndex.findDirectories(srcDir, ".py");
+            } catch (PyTestException pte) {
+                throw new MojoExecutionException("Couldn't find files in " +
+                                                 srcDir, pte);
+            }
+
+            for (Iterator it = dirs.iterator(); it.hasNext(); ) {
+                File dir = (File) it.next();
+                allDirs.put(dir, dir);
             }
 
-            exitVal = testProc.exitValue();
+            return allDirs;
         }
 
-        if (isText && isXML) {
-            final String errMsg = "Test output has both text and XML elements";
+        DirectoryScanner scanner = new DirectoryScanner();
+        scanner.setBasedir(srcDir);
+        scanner.setIncludes(new String[] { "**/*.py" });
+        scanner.addDefaultExcludes();
+        scanner.setCaseSensitive(false);
+        scanner.scan();
 
-            throw new PyTestException(errMsg);
+        String[] incFiles = scanner.getIncludedFiles();
+        for (int i = 0; i < incFiles.length; i++) {
+            File tmp = new File(srcDir, incFiles[i]);
+
+            File f;
+            try {
+                f = tmp.getCanonicalFile();
+            } catch (IOException ioe) {
+                f = tmp;
+            }
+
+            File dir = f.getParentFile();
+            if (!allDirs.containsKey(dir)) {
+                allDirs.put(dir, dir);
+            }
         }
+
+        return allDirs;
     }
 }
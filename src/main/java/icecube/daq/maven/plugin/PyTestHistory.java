@@ -0,0 +1,77 @@
+package icecube.daq.maven.plugin;
+
+import java.io.File;
+
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+
+/**
+ * Report slow tests, tests which are getting slower and tests with
+ * inconsistent results from the history recorded by the <tt>pytest</tt>
+ * goal.
+ *
+ * @goal history
+ */
+public class PyTestHistory
+    extends AbstractMojo
+{
+    /**
+     * Directory holding the test result history.
+     *
+     * @parameter expression="${pytest.historyDirectory}"
+     */
+    private File historyDirectory;
+
+    /**
+     * Number of recent runs of each test file to examine.
+     *
+     * @parameter expression="${pytest.historyRuns}" default-value="20"
+     */
+    private int historyRuns;
+
+    /**
+     * Maximum number of tests listed in each section of the report.
+     *
+     * @parameter expression="${pytest.historyCount}" default-value="10"
+     */
+    private int historyCount;
+
+    /**
+     * Smallest slowdown reported, as a percentage of a test's earlier
+     * average time.
+     *
+     * @parameter expression="${pytest.trendPercent}" default-value="20"
+     */
+    private int trendPercent;
+
+    /**
+     * Print the report.
+     *
+     * @throws MojoExecutionException if the history could not be read
+     */
+    public void execute()
+        throws MojoExecutionException
+    {
+        if (historyDirectory == null) {
+            throw new MojoExecutionException("No history directory;" +
+                                             " set pytest.historyDirectory");
+        }
+
+        if (!historyDirectory.isDirectory()) {
+            getLog().info("No test history in " + historyDirectory);
+            return;
+        }
+
+        HistoryReport report;
+        try {
+            report = new HistoryReport(new ResultHistory(historyDirectory),
+                                       historyRuns);
+        } catch (PyTestException pte) {
+            throw new MojoExecutionException("Couldn't read test history",
+                                             pte);
+        }
+
+        System.out.println();
+        report.print(System.out, historyCount, (double) trendPercent / 100.0);
+    }
+}
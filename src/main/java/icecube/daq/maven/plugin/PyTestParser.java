@@ -1,10 +1,11 @@
 package icecube.daq.maven.plugin;
 
 import java.io.IOException;
-import java.io.StringReader;
+import java.io.Reader;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
-import java.util.List;
 
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -18,6 +19,7 @@ import org.xml.sax.SAXException;
 import org.xml.sax.SAXParseException;
 import org.xml.sax.XMLReader;
 
+import org.xml.sax.helpers.DefaultHandler;
 import org.xml.sax.helpers.XMLReaderFactory;
 
 /**
@@ -124,6 +126,16 @@ class TracebackParser
 class TestXMLParser
     implements ContentHandler
 {
+    /** Handler installed in idle readers so they don't hold onto data. */
+    private static final ContentHandler IDLE_HANDLER = new DefaultHandler();
+
+    /**
+     * XML readers which aren't being used, since creating one is expensive.
+     * Streamed results are parsed by a new thread for each test file,
+     * so the readers are shared by all threads rather than kept per thread.
+     */
+    private static ArrayList idleReaders = new ArrayList();
+
     /** parser states. */
     private static final int INITIAL = 1;
     private static final int IN_SUITE = 2;
@@ -145,6 +157,10 @@ class TestXMLParser
     private StreamData curOut;
     /** Traceback parser */
     private TracebackParser tracebackParser;
+    /** Text after the last newline seen by characters(). */
+    private StringBuilder partial = new StringBuilder();
+    /** Has characters() been called since the last tag? */
+    private boolean hasText;
 
     /**
      * Create a parser for the Python unit test XML output.
@@ -168,14 +184,48 @@ class TestXMLParser
     public void characters(char[] ch, int start, int length)
         throws SAXException
     {
+        if (partial.length() == 0 && state != IN_STDOUT &&
+            state != IN_STDERR && state != IN_ERROR && state != IN_FAILURE &&
+            isBlank(ch, start, length))
+        {
+            // blank text between tags would be ignored by parseLine()
+            return;
+        }
+
+        hasText = true;
+
         int substart = start;
         for (int i = start; i < start + length; i++) {
             if (ch[i] == '\n' || ch[i] == '\r') {
-                parseLine(String.valueOf(ch, substart, i - substart));
+                if (partial.length() == 0) {
+                    parseLine(String.valueOf(ch, substart, i - substart));
+                } else {
+                    partial.append(ch, substart, i - substart);
+                    parseLine(partial.toString());
+                    partial.setLength(0);
+                }
                 substart = i + 1;
             }
         }
-        parseLine(String.valueOf(ch, substart, (start + length) - substart));
+
+        // the parser may split text into several calls, so hang onto
+        // the final partial line until the next newline or tag
+        partial.append(ch, substart, (start + length) - substart);
+    }
+
+    /**
+     * Parse any text left over from the last call to characters().
+     *
+     * @throws SAXException if there is a parsing error
+     */
+    private void flushText()
+        throws SAXException
+    {
+        if (hasText) {
+            parseLine(partial.toString());
+            partial.setLength(0);
+            hasText = false;
+        }
     }
 
     /**
@@ -200,6 +250,8 @@ class TestXMLParser
     public void endElement(String namespaceURI, String localName, String qName)
         throws SAXException
     {
+        flushText();
+
         if (namespaceURI.length() > 0) {
             throw new SAXException("Unknown namespaceURI \"" + namespaceURI +
                                    "\"");
@@ -221,6 +273,17 @@ class TestXMLParser
                 }
 
                 data.addCase(curCase);
+
+                String status;
+                if (curCase.getError() != null) {
+                    status = "ERROR";
+                } else if (curCase.getFailure() != null) {
+                    status = "FAIL";
+                } else {
+                    status = "ok";
+                }
+                data.caseFinished(curCase, status);
+
                 curCase = null;
                 state = IN_SUITE;
             } else {
@@ -341,6 +404,27 @@ class TestXMLParser
         return name;
     }
 
+    /**
+     * Get an idle XML reader, creating one if necessary.
+     *
+     * @return XML reader
+     *
+     * @throws SAXException if the reader could not be created
+     */
+    private static XMLReader getReader()
+        throws SAXException
+    {
+        synchronized (idleReaders) {
+            if (idleReaders.size() > 0) {
+                return (XMLReader) idleReaders.remove(idleReaders.size() - 1);
+            }
+        }
+
+        XMLReader reader = XMLReaderFactory.createXMLReader();
+        reader.setErrorHandler(new SuppressErrors());
+        return reader;
+    }
+
     /**
      * Do nothing.
      */
@@ -349,19 +433,76 @@ class TestXMLParser
         // do nothing
     }
 
-    public void parse(List lines)
+    /**
+     * Parse the Python unit test XML output.
+     *
+     * @param lines list of text lines
+     *
+     * @throws PyTestException if there is a problem reading the lines
+     * @throws SAXException if the lines could not be parsed
+     */
+    public void parse(Collection lines)
+        throws PyTestException, SAXException
+    {
+        parse(new ListReader(lines));
+    }
+
+    /**
+     * Parse the Python unit test XML output.
+     *
+     * @param rdr XML character stream
+     *
+     * @throws PyTestException if there is a problem reading the stream
+     * @throws SAXException if the stream could not be parsed
+     */
+    public void parse(Reader rdr)
         throws PyTestException, SAXException
     {
+        XMLReader parser = getReader();
+        parser.setContentHandler(this);
+
+        boolean reusable = false;
         try {
-            XMLReader parser = XMLReaderFactory.createXMLReader();
-            parser.setContentHandler(this);
-            parser.setErrorHandler(new SuppressErrors());
-            parser.parse(new InputSource(new ListReader(lines)));
+            parser.parse(new InputSource(rdr));
+            reusable = true;
         } catch (IOException ioe) {
+            reusable = true;
             throw new PyTestException(ioe);
+        } catch (SAXException se) {
+            reusable = true;
+            throw se;
+        } finally {
+            parser.setContentHandler(IDLE_HANDLER);
+
+            // don't reuse a reader which may be in a bad state
+            if (reusable) {
+                synchronized (idleReaders) {
+                    idleReaders.add(parser);
+                }
+            }
         }
     }
 
+    /**
+     * Is the text entirely whitespace?
+     *
+     * @param ch array of characters
+     * @param start starting position
+     * @param length number of characters
+     *
+     * @return <tt>true</tt> if there are no non-whitespace characters
+     */
+    private static boolean isBlank(char[] ch, int start, int length)
+    {
+        for (int i = start; i < start + length; i++) {
+            if (ch[i] > ' ') {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
     /**
      * Parse a line of text.
      *
@@ -462,6 +603,8 @@ throw err;
                              String qName, Attributes attrs)
         throws SAXException
     {
+        flushText();
+
         if (namespaceURI.length() > 0) {
             throw new SAXException("Unknown namespaceURI \"" + namespaceURI +
                                    "\"");
@@ -633,9 +776,13 @@ throw err;
 }
 
 /**
- * Python unit test test result parser.
+ * Recognize the lines of Python unit test verbose output in a single scan,
+ * without creating a <tt>Matcher</tt> for each pattern.  Each
+ * <tt>match</tt> method gives the same answer and groups as the regular
+ * expression it replaces.  Lines containing line terminators, which the
+ * expressions treat specially, are handed to the expressions instead.
  */
-class TestTextParser
+class TextLineScanner
 {
     /** Match a start-of-test line. */
     private static final Pattern testPat =
@@ -663,6 +810,601 @@ class TestTextParser
         Pattern.compile("FAILED\\s+\\((\\S+)=(\\d+)(,\\s+(\\S+)" +
                         "=(\\d+))?\\)\\s*$");
 
+    /** Traceback header text. */
+    private static final String TRACE_HEADER =
+        "Traceback (most recent call last):";
+
+    /** Maximum number of groups set by the hand-written matchers. */
+    private static final int MAX_GROUPS = 3;
+
+    /** If <tt>true</tt>, always use the regular expressions. */
+    private boolean regexOnly;
+
+    /** Current line. */
+    private CharSequence line;
+    /** Length of the current line. */
+    private int len;
+    /** Can the current line be scanned by hand? */
+    private boolean plain;
+    /** Has <tt>plain</tt> been set for the current line? */
+    private boolean checked;
+
+    /** Matcher used for the last match (<tt>null</tt> if it was scanned). */
+    private Matcher match;
+    /** Number of groups in the last scanned match. */
+    private int numGroups;
+    /** Group start offsets for the last scanned match (-1 if unset). */
+    private int[] starts = new int[MAX_GROUPS + 1];
+    /** Group end offsets for the last scanned match. */
+    private int[] ends = new int[MAX_GROUPS + 1];
+
+    /**
+     * Create a line scanner.
+     *
+     * @param regexOnly if <tt>true</tt>, always use the regular expressions
+     */
+    TextLineScanner(boolean regexOnly)
+    {
+        this.regexOnly = regexOnly;
+    }
+
+    /**
+     * Get the end offset of a group from the last match.
+     *
+     * @param group group number
+     *
+     * @return end offset, or -1 if the group did not match
+     */
+    int end(int group)
+    {
+        if (match != null) {
+            return match.end(group);
+        }
+
+        return ends[group];
+    }
+
+    /**
+     * Find a run of characters.
+     *
+     * @param start starting offset
+     * @param ch character
+     *
+     * @return offset of the first other character (or the line length)
+     */
+    private int skip(int start, char ch)
+    {
+        int i = start;
+        while (i < len && line.charAt(i) == ch) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Find a run of digits.
+     *
+     * @param start starting offset
+     *
+     * @return offset of the first non-digit (or the line length)
+     */
+    private int skipDigits(int start)
+    {
+        int i = start;
+        while (i < len && line.charAt(i) >= '0' && line.charAt(i) <= '9') {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Find a run of non-whitespace characters.
+     *
+     * @param start starting offset
+     *
+     * @return offset of the first whitespace character (or the line length)
+     */
+    private int skipNonSpace(int start)
+    {
+        int i = start;
+        while (i < len && !isSpace(line.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Find a run of whitespace characters.
+     *
+     * @param start starting offset
+     *
+     * @return offset of the first non-whitespace character (or the line
+     *         length)
+     */
+    private int skipSpace(int start)
+    {
+        int i = start;
+        while (i < len && isSpace(line.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Get a group from the last match.
+     *
+     * @param group group number
+     *
+     * @return group text, or <tt>null</tt> if the group did not match
+     */
+    String group(int group)
+    {
+        if (match != null) {
+            return match.group(group);
+        }
+
+        if (starts[group] < 0) {
+            return null;
+        }
+
+        return line.subSequence(starts[group], ends[group]).toString();
+    }
+
+    /**
+     * Get the number of groups in the last match's pattern.
+     *
+     * @return number of groups
+     */
+    int groupCount()
+    {
+        if (match != null) {
+            return match.groupCount();
+        }
+
+        return numGroups;
+    }
+
+    /**
+     * Is the line a traceback header?
+     *
+     * @return <tt>true</tt> if the line matches
+     */
+    boolean isTraceHeader()
+    {
+        if (!isPlain()) {
+            return tracePat.matcher(line).find();
+        }
+
+        final int hdrLen = TRACE_HEADER.length();
+        if (len < hdrLen || !startsWith(0, TRACE_HEADER)) {
+            return false;
+        }
+
+        return skipSpace(hdrLen) == len;
+    }
+
+    /**
+     * Is the line a separator of equals signs?
+     *
+     * @return <tt>true</tt> if the line matches
+     */
+    boolean isEqualSeparator()
+    {
+        if (!isPlain()) {
+            return sepEqualPat.matcher(line).find();
+        }
+
+        return lastNonSpace() == '=';
+    }
+
+    /**
+     * Is the line a separator of minus signs?
+     *
+     * @return <tt>true</tt> if the line matches
+     */
+    boolean isMinusSeparator()
+    {
+        if (!isPlain()) {
+            return sepMinusPat.matcher(line).find();
+        }
+
+        return lastNonSpace() == '-';
+    }
+
+    /**
+     * Can the current line be scanned by hand?  Lines containing line
+     * terminators are left to the regular expressions.  This is checked
+     * the first time a line is matched, since lines which are simply
+     * collected are never matched.
+     *
+     * @return <tt>true</tt> if the line can be scanned
+     */
+    private boolean isPlain()
+    {
+        if (!checked) {
+            plain = !regexOnly;
+            for (int i = 0; plain && i < len; i++) {
+                final char ch = line.charAt(i);
+                if (ch == '\n' || ch == '\r' || ch == '\u0085' ||
+                    ch == '\u2028' || ch == '\u2029')
+                {
+                    plain = false;
+                }
+            }
+
+            checked = true;
+        }
+
+        return plain;
+    }
+
+    /**
+     * Is this one of the whitespace characters matched by <tt>\s</tt>?
+     *
+     * @param ch character
+     *
+     * @return <tt>true</tt> if the character is whitespace
+     */
+    private static boolean isSpace(char ch)
+    {
+        return ch == ' ' || ch == '\t' || ch == '\n' || ch == '\u000B' ||
+            ch == '\f' || ch == '\r';
+    }
+
+    /**
+     * Get the last non-whitespace character.  The separator patterns are
+     * not anchored at the start of the line, so any line whose last
+     * non-whitespace character is the separator character matches.
+     *
+     * @return last non-whitespace character, or <tt>0</tt> if the line is
+     *         blank
+     */
+    private char lastNonSpace()
+    {
+        int i = len;
+        while (i > 0 && isSpace(line.charAt(i - 1))) {
+            i--;
+        }
+
+        if (i == 0) {
+            return 0;
+        }
+
+        return line.charAt(i - 1);
+    }
+
+    /**
+     * Try to match a pattern against the line, saving the matcher for
+     * <tt>group()</tt>.
+     *
+     * @param pat pattern
+     *
+     * @return <tt>true</tt> if the pattern matched
+     */
+    private boolean matchPattern(Pattern pat)
+    {
+        Matcher m = pat.matcher(line);
+        if (!m.find()) {
+            return false;
+        }
+
+        match = m;
+        return true;
+    }
+
+    /**
+     * Match a test case detail line:
+     * <tt>(type): (name) \((class)\)</tt>.
+     *
+     * @return <tt>true</tt> if the line matches
+     */
+    boolean matchDetail()
+    {
+        if (!isPlain()) {
+            return matchPattern(detailPat);
+        }
+
+        if (len == 0 || isSpace(line.charAt(0))) {
+            return false;
+        }
+
+        // the type is followed by a colon and whitespace
+        final int typeEnd = skipNonSpace(0);
+        if (typeEnd < 2 || line.charAt(typeEnd - 1) != ':') {
+            return false;
+        }
+
+        final int nameStart = skipSpace(typeEnd);
+        if (nameStart == typeEnd) {
+            return false;
+        }
+
+        final int nameEnd = skipNonSpace(nameStart);
+        if (nameEnd == nameStart) {
+            return false;
+        }
+
+        final int clsStart = skipSpace(nameEnd);
+        if (clsStart == nameEnd || !isParenthesized(clsStart)) {
+            return false;
+        }
+
+        final int clsEnd = skipNonSpace(clsStart);
+        if (skipSpace(clsEnd) != len) {
+            return false;
+        }
+
+        setGroups(3);
+        setGroup(1, 0, typeEnd - 1);
+        setGroup(2, nameStart, nameEnd);
+        setGroup(3, clsStart + 1, clsEnd - 1);
+        return true;
+    }
+
+    /**
+     * Match a test case detail type line: <tt>(type)(: (text))?</tt>.  The
+     * second group includes the colon.
+     *
+     * @return <tt>true</tt> if the line matches
+     */
+    boolean matchDetailType()
+    {
+        if (!isPlain()) {
+            return matchPattern(detailTypePat);
+        }
+
+        if (len == 0 || isSpace(line.charAt(0))) {
+            return false;
+        }
+
+        final int typeEnd = skipNonSpace(0);
+
+        setGroups(3);
+        if (skipSpace(typeEnd) == len) {
+            setGroup(1, 0, typeEnd);
+            return true;
+        }
+
+        // text must follow a colon at the end of the type
+        if (typeEnd < 2 || line.charAt(typeEnd - 1) != ':') {
+            return false;
+        }
+
+        setGroup(1, 0, typeEnd - 1);
+        setGroup(2, typeEnd - 1, len);
+        setGroup(3, skipSpace(typeEnd), len);
+        return true;
+    }
+
+    /**
+     * Match a failed test suite summary line.  This line appears once per
+     * suite, so the regular expression is always used if the line might
+     * match.
+     *
+     * @return <tt>true</tt> if the line matches
+     */
+    boolean matchFailed()
+    {
+        if (isPlain() && indexOf("FAILED", 0) < 0) {
+            return false;
+        }
+
+        return matchPattern(failPat);
+    }
+
+    /**
+     * Match a successful test suite summary line:
+     * <tt>Ran (num) tests in (time)s</tt>.
+     *
+     * @return <tt>true</tt> if the line matches
+     */
+    boolean matchRun()
+    {
+        if (!isPlain()) {
+            return matchPattern(runPat);
+        }
+
+        // like Matcher.find(), try each possible starting point
+        for (int i = indexOf("Ran ", 0); i >= 0; i = indexOf("Ran ", i + 1)) {
+            final int numStart = i + 4;
+            final int numEnd = skipDigits(numStart);
+            if (numEnd == numStart || !startsWith(numEnd, " test")) {
+                continue;
+            }
+
+            int j = numEnd + 5;
+            if (j < len && line.charAt(j) == 's') {
+                j++;
+            }
+            if (!startsWith(j, " in ")) {
+                continue;
+            }
+
+            final int timeStart = j + 4;
+            final int dot = skipDigits(timeStart);
+            if (dot == timeStart || dot >= len || line.charAt(dot) != '.') {
+                continue;
+            }
+
+            final int timeEnd = skipDigits(dot + 1);
+            if (timeEnd == dot + 1 || timeEnd >= len ||
+                line.charAt(timeEnd) != 's' || skipSpace(timeEnd + 1) != len)
+            {
+                continue;
+            }
+
+            setGroups(2);
+            setGroup(1, numStart, numEnd);
+            setGroup(2, timeStart, timeEnd);
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Match a start-of-test line: <tt>(name) \((class)\) ... (status)</tt>.
+     *
+     * @return <tt>true</tt> if the line matches
+     */
+    boolean matchTest()
+    {
+        if (!isPlain()) {
+            return matchPattern(testPat);
+        }
+
+        final int nameStart = skipSpace(0);
+        final int nameEnd = skipNonSpace(nameStart);
+        if (nameEnd == nameStart) {
+            return false;
+        }
+
+        final int clsStart = skipSpace(nameEnd);
+        if (clsStart == nameEnd || !isParenthesized(clsStart)) {
+            return false;
+        }
+
+        // the class is followed by one whitespace character, three dots
+        // and one more whitespace character
+        final int clsEnd = skipNonSpace(clsStart);
+        if (clsEnd + 5 > len || skip(clsEnd + 1, '.') != clsEnd + 4 ||
+            !isSpace(line.charAt(clsEnd + 4)))
+        {
+            return false;
+        }
+
+        setGroups(3);
+        setGroup(1, nameStart, nameEnd);
+        setGroup(2, clsStart + 1, clsEnd - 1);
+        setGroup(3, clsEnd + 5, len);
+        return true;
+    }
+
+    /**
+     * Find a string in the line.
+     *
+     * @param str string
+     * @param from starting offset
+     *
+     * @return offset of the string, or -1 if it was not found
+     */
+    private int indexOf(String str, int from)
+    {
+        final int last = len - str.length();
+        for (int i = from; i <= last; i++) {
+            if (startsWith(i, str)) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Does a run of non-whitespace characters start with '(' and end with
+     * ')' with at least one character in between?
+     *
+     * @param start starting offset
+     *
+     * @return <tt>true</tt> if the run is parenthesized
+     */
+    private boolean isParenthesized(int start)
+    {
+        if (start >= len || line.charAt(start) != '(') {
+            return false;
+        }
+
+        final int end = skipNonSpace(start);
+        return end - start >= 3 && line.charAt(end - 1) == ')';
+    }
+
+    /**
+     * Set the line to be matched.
+     *
+     * @param line text line
+     */
+    void setLine(CharSequence line)
+    {
+        this.line = line;
+        len = line.length();
+        match = null;
+        checked = false;
+    }
+
+    /**
+     * Set the offsets of a group.
+     *
+     * @param group group number
+     * @param start start offset
+     * @param end end offset
+     */
+    private void setGroup(int group, int start, int end)
+    {
+        starts[group] = start;
+        ends[group] = end;
+    }
+
+    /**
+     * Clear the groups before a scanned match.
+     *
+     * @param num number of groups in the equivalent pattern
+     */
+    private void setGroups(int num)
+    {
+        numGroups = num;
+        for (int i = 0; i < starts.length; i++) {
+            starts[i] = -1;
+            ends[i] = -1;
+        }
+        starts[0] = 0;
+        ends[0] = len;
+    }
+
+    /**
+     * Get the start offset of a group from the last match.
+     *
+     * @param group group number
+     *
+     * @return start offset, or -1 if the group did not match
+     */
+    int start(int group)
+    {
+        if (match != null) {
+            return match.start(group);
+        }
+
+        return starts[group];
+    }
+
+    /**
+     * Does the line contain the string at the specified offset?
+     *
+     * @param offset offset
+     * @param str string
+     *
+     * @return <tt>true</tt> if the string is found at the offset
+     */
+    private boolean startsWith(int offset, String str)
+    {
+        if (offset < 0 || offset + str.length() > len) {
+            return false;
+        }
+
+        for (int i = 0; i < str.length(); i++) {
+            if (line.charAt(offset + i) != str.charAt(i)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
+
+/**
+ * Python unit test test result parser.
+ */
+class TestTextParser
+{
     /** All possible parser states. */
     private static final int INITIAL = 1;
     private static final int IN_CASE = 2;
@@ -688,6 +1430,8 @@ class TestTextParser
     private boolean isDetailError;
     /** Traceback parser */
     private TracebackParser tracebackParser;
+    /** Line scanner */
+    private TextLineScanner scanner;
 
     /**
      * Create a parser for the Python unit test text output.
@@ -695,8 +1439,22 @@ class TestTextParser
      * @param data test suite data
      */
     TestTextParser(SuiteData data)
+    {
+        this(data, false);
+    }
+
+    /**
+     * Create a parser for the Python unit test text output.
+     *
+     * @param data test suite data
+     * @param regexOnly if <tt>true</tt>, match every line with regular
+     *                  expressions instead of scanning it by hand
+     */
+    TestTextParser(SuiteData data, boolean regexOnly)
     {
         this.data = data;
+
+        scanner = new TextLineScanner(regexOnly);
     }
 
     /**
@@ -749,7 +1507,20 @@ class TestTextParser
      *
      * @throws PyTestException if there is a problem
      */
-    void parse(List lines)
+    void parse(Collection lines)
+        throws PyTestException
+    {
+        parse(lines.iterator());
+    }
+
+    /**
+     * Parse the Python unit test output.
+     *
+     * @param iter text line iterator
+     *
+     * @throws PyTestException if there is a problem
+     */
+    void parse(Iterator iter)
         throws PyTestException
     {
         // set to true to see bad lines
@@ -759,62 +1530,67 @@ class TestTextParser
         StreamData errData = new StreamData();
 
         int state = INITIAL;
+        CaseData runCase = null;
 
-        for (Iterator iter = lines.iterator(); iter.hasNext(); ) {
+        while (iter.hasNext()) {
             String line = (String) iter.next();
 
-            if (state == INITIAL) {
-                Matcher match;
+            scanner.setLine(line);
 
-                match = testPat.matcher(line);
-                if (match.find()) {
+            if (state == INITIAL) {
+                if (scanner.matchTest()) {
                     CaseData caseData = new CaseData();
-                    caseData.setName(match.group(1));
-                    caseData.setClassName(match.group(2));
+                    caseData.setName(scanner.group(1));
+                    caseData.setClassName(scanner.group(2));
 
                     data.addCase(caseData);
 
-                    final String status = match.group(3);
+                    // check the status in place to avoid copying it
+                    final int statStart = scanner.start(3);
+                    final int statEnd = scanner.end(3);
 
-                    boolean isValid = false;
+                    String status = null;
                     for (int i = 0; i < validStatus.length; i++) {
-                        if (status.endsWith(validStatus[i])) {
-                            final int newLen =
-                                status.length() - validStatus[i].length();
+                        final int vLen = validStatus[i].length();
+                        final int newLen = statEnd - statStart - vLen;
+                        if (newLen >= 0 &&
+                            line.startsWith(validStatus[i], statEnd - vLen))
+                        {
                             if (newLen > 0) {
-                                String subLine = status.substring(0, newLen);
-                                errData.addLine(subLine);
+                                errData.addLine(line.substring(statStart,
+                                                               statStart +
+                                                               newLen));
                             }
 
-                            isValid = true;
+                            status = validStatus[i];
                         }
                     }
 
-                    if (isValid) {
+                    if (status != null) {
+                        data.caseFinished(caseData, status);
                         state = INITIAL;
                     } else {
-                        errData.addLine(status);
+                        errData.addLine(line.substring(statStart, statEnd));
+                        runCase = caseData;
                         state = IN_CASE;
                     }
 
                     continue;
                 }
 
-                match = sepEqualPat.matcher(line);
-                if (match.find()) {
+                if (scanner.isEqualSeparator()) {
                     state = IN_DETAIL;
                     continue;
                 }
 
-                match = sepMinusPat.matcher(line);
-                if (match.find()) {
+                if (scanner.isMinusSeparator()) {
                     state = IN_FINAL;
                     continue;
                 }
             }
 
             if (state == IN_CASE) {
-                boolean isValid = false;
+                String status = null;
                 for (int i = 0; i < validStatus.length; i++) {
                     if (line.endsWith(validStatus[i])) {
                         final int newLen =
@@ -823,11 +1599,12 @@ class TestTextParser
                             errData.addLine(line.substring(0, newLen));
                         }
 
-                        isValid = true;
+                        status = validStatus[i];
                     }
                 }
 
-                if (isValid) {
+                if (status != null) {
+                    data.caseFinished(runCase, status);
                     state = INITIAL;
                 } else {
                     errData.addLine(line);
@@ -846,13 +1623,12 @@ class TestTextParser
                                               " for testcase");
                 }
 
-                Matcher match = detailPat.matcher(line);
-                if (!match.find()) {
+                if (!scanner.matchDetail()) {
                     throw new PyTestException("Expected details after \"===\"");
                 }
 
-                final String name = match.group(2);
-                final String className = match.group(3);
+                final String name = scanner.group(2);
+                final String className = scanner.group(3);
 
                 curCase = data.findCase(className, name);
                 if (curCase == null) {
@@ -861,7 +1637,7 @@ class TestTextParser
                                               name);
                 }
 
-                final String detailType = match.group(1);
+                final String detailType = scanner.group(1);
                 if (detailType.equals("ERROR")) {
                     isDetailError = true;
                 } else if (detailType.equals("FAIL")) {
@@ -883,8 +1659,7 @@ class TestTextParser
                     throw new PyTestException("Found detail for testcase");
                 }
 
-                Matcher match = sepMinusPat.matcher(line);
-                if (!match.find()) {
+                if (!scanner.isMinusSeparator()) {
                     throw new PyTestException("Expected \"---\" after" +
                                               " detail header");
                 }
@@ -901,10 +1676,7 @@ class TestTextParser
                     throw new PyTestException("No detail for testcase");
                 }
 
-                Matcher match;
-
-                match = tracePat.matcher(line);
-                if (match.find()) {
+                if (scanner.isTraceHeader()) {
                     continue;
                 }
 
@@ -916,10 +1688,9 @@ class TestTextParser
                     continue;
                 }
 
-                match = detailTypePat.matcher(line);
-                if (match.find()) {
-                    detail.setExceptionName(match.group(1));
-                    detail.setExceptionText(match.group(2));
+                if (scanner.matchDetailType()) {
+                    detail.setExceptionName(scanner.group(1));
+                    detail.setExceptionText(scanner.group(2));
                     state = IN_DETAIL_END;
                     continue;
                 }
@@ -954,13 +1725,10 @@ class TestTextParser
             }
 
             if (state == IN_FINAL) {
-                Matcher match;
-
-                match = runPat.matcher(line);
-                if (match.find()) {
+                if (scanner.matchRun()) {
                     int numTests;
                     try {
-                        numTests = Integer.parseInt(match.group(1));
+                        numTests = Integer.parseInt(scanner.group(1));
                     } catch (NumberFormatException nfe) {
                         throw new PyTestException("Bad number of tests in " +
                                                   line);
@@ -969,7 +1737,7 @@ class TestTextParser
 
                     double time;
                     try {
-                        time = Double.parseDouble(match.group(2));
+                        time = Double.parseDouble(scanner.group(2));
                     } catch (NumberFormatException nfe) {
                         throw new PyTestException("Bad test time in " + line);
                     }
@@ -978,14 +1746,13 @@ class TestTextParser
                     continue;
                 }
 
-                match = failPat.matcher(line);
-                if (match.find()) {
-                    for (int i = 0; i + 2 < match.groupCount(); i += 3) {
-                        String fld = match.group(i + 1);
+                if (scanner.matchFailed()) {
+                    for (int i = 0; i + 2 < scanner.groupCount(); i += 3) {
+                        String fld = scanner.group(i + 1);
 
                         int val;
                         try {
-                            val = Integer.parseInt(match.group(i + 2));
+                            val = Integer.parseInt(scanner.group(i + 2));
                         } catch (NumberFormatException nfe) {
                             throw new PyTestException("Bad number of " + fld +
                                                       " in \"" + line + "\"");
@@ -1024,6 +1791,10 @@ class TestTextParser
             }
         }
 
+        if (state == IN_CASE) {
+            data.setUnfinishedCase(runCase);
+        }
+
         if (!outData.isEmpty()) {
             data.setSystemOut(outData);
         }
@@ -1035,45 +1806,74 @@ class TestTextParser
 }
 
 /**
- * An inefficient Reader which converts a List of lines to a single string
- * which is passed to a StringReader to 'read'.
+ * A Reader which returns a collection of lines as a single newline-separated
+ * character stream, one line at a time.
  */
 class ListReader
-    extends StringReader
+    extends Reader
 {
+    /** Remaining lines. */
+    private Iterator iter;
+    /** Current line. */
+    private String curLine;
+    /** Index of the next unread character in the current line. */
+    private int curPos;
+    /** Does a newline need to be returned before the next line? */
+    private boolean needNewline;
+
     /**
      * 'Read' a list of text lines.
      *
      * @param lines list of test lines
      */
-    ListReader(List lines)
+    ListReader(Collection lines)
     {
-        super(join(lines));
+        iter = lines.iterator();
     }
 
     /**
-     * Join the lines into a single string.
+     * Do nothing.
+     */
+    public void close()
+    {
+        // do nothing
+    }
+
+    /**
+     * Read characters into a portion of an array.
      *
-     * @param lines list of text lines
+     * @param cbuf destination buffer
+     * @param off offset at which to start storing characters
+     * @param len maximum number of characters to read
+     *
+     * @return number of characters read, or -1 at the end of the list
      */
-    private static String join(List lines)
+    public int read(char[] cbuf, int off, int len)
     {
-        StringBuilder buf = new StringBuilder();
+        if (len == 0) {
+            return 0;
+        }
 
-        boolean needNewline = false;
-        for (Iterator iter = lines.iterator(); iter.hasNext(); ) {
-            Object obj = iter.next();
+        while (curLine == null || curPos >= curLine.length()) {
+            if (!iter.hasNext()) {
+                return -1;
+            }
+
+            curLine = String.valueOf(iter.next());
+            curPos = 0;
 
             if (!needNewline) {
                 needNewline = true;
             } else {
-                buf.append('\n');
+                cbuf[off] = '\n';
+                return 1;
             }
-
-            buf.append(obj);
         }
 
-        return buf.toString();
+        int num = Math.min(len, curLine.length() - curPos);
+        curLine.getChars(curPos, curPos + num, cbuf, off);
+        curPos += num;
+        return num;
     }
 }
 
@@ -1082,6 +1882,13 @@ class ListReader
  */
 public class PyTestParser
 {
+    /** Output format has not been detected. */
+    static final int UNKNOWN_FORMAT = 0;
+    /** Plain-text unittest output. */
+    static final int TEXT_FORMAT = 1;
+    /** XML output from xmlrunner. */
+    static final int XML_FORMAT = 2;
+
     /**
      * Parse Python XML or plain-text output.
      *
@@ -1090,10 +1897,10 @@ public class PyTestParser
      *
      * @throws PyTestException if the lines cannot be parsed
      */
-    public PyTestParser(List lines, SuiteData data)
+    public PyTestParser(Collection lines, SuiteData data)
         throws PyTestException
     {
-        this(lines, data, true);
+        this(lines, data, UNKNOWN_FORMAT);
     }
 
     /**
@@ -1105,25 +1912,150 @@ public class PyTestParser
      *
      * @throws PyTestException if the lines cannot be parsed
      */
-    public PyTestParser(List lines, SuiteData data, boolean isXML)
+    public PyTestParser(Collection lines, SuiteData data, boolean isXML)
+        throws PyTestException
+    {
+        this(lines, data, isXML ? UNKNOWN_FORMAT : TEXT_FORMAT);
+    }
+
+    /**
+     * Parse Python XML or plain-text output.  If the format is unknown,
+     * the lines are searched for the unittest summary line or the XML
+     * <tt>testsuite</tt> tag, so the output is only parsed once.
+     *
+     * @param lines unit test output lines
+     * @param data test suite data container
+     * @param format output format (<tt>UNKNOWN_FORMAT</tt> to detect it)
+     *
+     * @throws PyTestException if the lines cannot be parsed
+     */
+    public PyTestParser(Collection lines, SuiteData data, int format)
         throws PyTestException
     {
-        boolean tryText;
-        if (!isXML) {
-            tryText = true;
+        if (format == UNKNOWN_FORMAT) {
+            format = detectFormat(lines);
+        }
+
+        if (format == XML_FORMAT) {
+            try {
+                new TestXMLParser(data).parse(lines);
+            } catch (SAXException se) {
+                throw new PyTestException("Couldn't parse XML output", se);
+            }
         } else {
+            TestTextParser txtParser = new TestTextParser(data);
+            txtParser.parse(lines);
+        }
+    }
+
+    /**
+     * Parse Python XML or plain-text output as it is read from the test
+     * process.  Since lines are consumed as they are parsed, the format is
+     * chosen from the first non-blank line rather than by trying XML first.
+     *
+     * @param queue unit test output lines
+     * @param data test suite data container
+     *
+     * @throws PyTestException if the lines cannot be parsed
+     */
+    public PyTestParser(LineQueue queue, SuiteData data)
+        throws PyTestException
+    {
+        String first;
+        try {
+            while (true) {
+                first = queue.peek();
+                if (first == null || first.trim().length() > 0) {
+                    break;
+                }
+
+                queue.take();
+            }
+        } catch (InterruptedException ie) {
+            throw new PyTestException("Interrupted while parsing output", ie);
+        }
+
+        if (first != null && isXMLStart(first)) {
             try {
-                TestXMLParser txtParser = new TestXMLParser(data);
-                txtParser.parse(lines);
-                tryText = false;
+                new TestXMLParser(data).parse(queue.reader());
             } catch (SAXException se) {
-                tryText = true;
+                throw new PyTestException("Couldn't parse XML output", se);
             }
+        } else {
+            new TestTextParser(data).parse(queue.iterator());
         }
+    }
 
-        if (tryText) {
-            TestTextParser txtParser = new TestTextParser(data);
-            txtParser.parse(lines);
+    /**
+     * Find the format of a single output line.
+     *
+     * @param line output line
+     *
+     * @return <tt>TEXT_FORMAT</tt> for the unittest summary line,
+     *         <tt>XML_FORMAT</tt> for the start of the XML document,
+     *         otherwise <tt>UNKNOWN_FORMAT</tt>
+     */
+    static int detectFormat(String line)
+    {
+        if (line.startsWith("Ran ") &&
+            (line.contains(" test in ") || line.contains(" tests in ")))
+        {
+            return TEXT_FORMAT;
+        } else if (isXMLStart(line)) {
+            return XML_FORMAT;
         }
+
+        return UNKNOWN_FORMAT;
+    }
+
+    /**
+     * Does the line start the xmlrunner output?  This is either the
+     * <tt>testsuite</tt> tag or the XML declaration, possibly indented.
+     *
+     * @param line output line
+     *
+     * @return <tt>true</tt> if the XML output starts with this line
+     */
+    static boolean isXMLStart(String line)
+    {
+        String trimmed = line.trim();
+        return trimmed.startsWith("<testsuite") || trimmed.startsWith("<?xml");
+    }
+
+    /**
+     * Does the line start the unittest text results?  This is the first
+     * test line, or the separator before the details or the summary if no
+     * test lines were written.
+     *
+     * @param line output line
+     *
+     * @return <tt>true</tt> if the results start with this line
+     */
+    static boolean isTextResultStart(String line)
+    {
+        TextLineScanner scanner = new TextLineScanner(false);
+        scanner.setLine(line);
+        return scanner.matchTest() || scanner.isEqualSeparator() ||
+            scanner.isMinusSeparator();
+    }
+
+    /**
+     * Find the format of the output from the first line which identifies
+     * it.
+     *
+     * @param lines output lines
+     *
+     * @return output format (<tt>UNKNOWN_FORMAT</tt> if none was found)
+     */
+    static int detectFormat(Collection lines)
+    {
+        for (Iterator it = lines.iterator(); it.hasNext(); ) {
+            int fmt = detectFormat((String) it.next());
+            if (fmt != UNKNOWN_FORMAT) {
+                return fmt;
+            }
+        }
+
+        return UNKNOWN_FORMAT;
     }
 }
@@ -0,0 +1,527 @@
+package icecube.daq.maven.plugin;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A long-lived Python process which runs test files sent to it over its
+ * standard input, so the interpreter start-up and imports of the code under
+ * test are only paid once per worker rather than once per test file.
+ * Standard output and standard error are read separately, as they are for
+ * a test file run in its own process.
+ */
+class PythonWorker
+{
+    /** Python path environment variable. */
+    private static final String PATH_ENV_NAME = "PYTHONPATH";
+
+    /** Line written by the worker after each test file has finished. */
+    static final String END_MARKER = "##pytest-plugin:end##";
+    /** Prefix for each test name written in response to a LIST request. */
+    private static final String TEST_PREFIX = "##pytest-plugin:test:";
+
+    /** Request which runs the tests. */
+    private static final String RUN_REQUEST = "run";
+    /** Request which lists the tests without running them. */
+    private static final String LIST_REQUEST = "list";
+
+    /**
+     * Script which loads each requested test file as a module and either
+     * runs its tests with a verbose TextTestRunner or lists their names.
+     * Each request is a tab-separated line holding the request type,
+     * the test file path and, optionally, the names of the tests to load.
+     * Requests are read from a private copy of the original standard
+     * input, which is then pointed at the null device so a test that reads
+     * standard input can't swallow the next request.  The end marker is
+     * written to standard error before standard output, so once it is seen
+     * on standard output, every error line from the request is on its way.
+     */
+    private static final String WORKER_SCRIPT =
+        "import os, sys, traceback, types, unittest\n" +
+        "topdir = os.getcwd()\n" +
+        "ctl = os.fdopen(os.dup(0), 'r')\n" +
+        "nul = os.open(os.devnull, os.O_RDONLY)\n" +
+        "os.dup2(nul, 0)\n" +
+        "os.close(nul)\n" +
+        "def ids(suite):\n" +
+        "    for t in suite:\n" +
+        "        if isinstance(t, unittest.TestSuite):\n" +
+        "            for i in ids(t):\n" +
+        "                yield i\n" +
+        "        else:\n" +
+        "            yield t.id()\n" +
+        "while True:\n" +
+        "    line = ctl.readline()\n" +
+        "    if not line:\n" +
+        "        break\n" +
+        "    args = line.rstrip('\\r\\n').split('\\t')\n" +
+        "    cmd, path, names = args[0], args[1], args[2:]\n" +
+        "    os.chdir(topdir)\n" +
+        "    sys.argv = [path]\n" +
+        "    name = os.path.splitext(os.path.basename(path))[0]\n" +
+        "    mod = types.ModuleType(name)\n" +
+        "    mod.__file__ = path\n" +
+        "    try:\n" +
+        "        f = open(path)\n" +
+        "        try:\n" +
+        "            src = f.read()\n" +
+        "        finally:\n" +
+        "            f.close()\n" +
+        "        exec(compile(src, path, 'exec'), mod.__dict__)\n" +
+        "        ldr = unittest.defaultTestLoader\n" +
+        "        if names:\n" +
+        "            suite = ldr.loadTestsFromNames(names, mod)\n" +
+        "        else:\n" +
+        "            suite = ldr.loadTestsFromModule(mod)\n" +
+        "        if cmd == '" + LIST_REQUEST + "':\n" +
+        "            for tid in ids(suite):\n" +
+        "                sys.stdout.write('" + TEST_PREFIX + "' + tid +" +
+        " '\\n')\n" +
+        "        else:\n" +
+        "            unittest.TextTestRunner(stream=sys.stdout," +
+        " verbosity=2).run(suite)\n" +
+        "    except:\n" +
+        "        traceback.print_exc(file=sys.stdout)\n" +
+        "    sys.stderr.flush()\n" +
+        "    sys.__stderr__.write('" + END_MARKER + "\\n')\n" +
+        "    sys.__stderr__.flush()\n" +
+        "    sys.stdout.write('" + END_MARKER + "\\n')\n" +
+        "    sys.stdout.flush()\n";
+
+    /** Python executable. */
+    private String pythonExecutable;
+    /** Working directory. */
+    private File testDir;
+    /** Python path. */
+    private String pathEnv;
+    /** Number of test files to run before the process is replaced. */
+    private int maxModules;
+
+    /** Worker process. */
+    private Process proc;
+    /** Worker process ID (-1 if unknown). */
+    private int pid = -1;
+    /** Worker's standard input. */
+    private Writer stdin;
+    /** Worker's standard output. */
+    private BufferedReader stdout;
+    /** Reader for the worker's standard error. */
+    private StreamDrainer stderr;
+    /** Number of test files run by the current process. */
+    private int numModules;
+
+    /** Runner which gets standard error lines (<tt>null</tt> if idle). */
+    private TestRunner errRunner;
+    /** Standard error lines written while no request was running. */
+    private ArrayList errPending = new ArrayList();
+    /** Has the end marker for the current request reached stderr? */
+    private boolean errFinished;
+    /** Problem seen while passing a standard error line to the runner. */
+    private PyTestException errException;
+
+    /**
+     * Create a worker.  The process is not started until it is needed.
+     *
+     * @param pythonExecutable Python executable
+     * @param testDir working directory
+     * @param pathEnv Python path
+     * @param maxModules number of test files to run before the process is
+     *                   replaced (0 means never replace it)
+     */
+    PythonWorker(String pythonExecutable, File testDir, String pathEnv,
+                 int maxModules)
+    {
+        this.pythonExecutable = pythonExecutable;
+        this.testDir = testDir;
+        this.pathEnv = pathEnv;
+        this.maxModules = maxModules;
+    }
+
+    /**
+     * Stop the worker process.
+     */
+    void close()
+    {
+        if (proc == null) {
+            return;
+        }
+
+        try {
+            stdin.close();
+        } catch (IOException ioe) {
+            // ignore errors on close
+        }
+
+        try {
+            stdout.close();
+        } catch (IOException ioe) {
+            // ignore errors on close
+        }
+
+        TestRunner.removeActive(proc);
+        proc.destroy();
+
+        synchronized (this) {
+            proc = null;
+            errRunner = null;
+            errPending.clear();
+        }
+        pid = -1;
+        stdin = null;
+        stdout = null;
+        stderr = null;
+        numModules = 0;
+    }
+
+    /**
+     * Pass a line from the worker's standard error to the runner for the
+     * current request.
+     *
+     * @param owner process which wrote the line
+     * @param line output line
+     */
+    private synchronized void addErrorLine(Process owner, String line)
+    {
+        if (owner != proc) {
+            // left over from a worker which has been closed
+            return;
+        }
+
+        String text = line;
+        boolean atEnd = false;
+        if (line.endsWith(END_MARKER)) {
+            // a test may have left a partial line
+            text = line.substring(0, line.length() - END_MARKER.length());
+            atEnd = true;
+        }
+
+        if (!atEnd || text.length() > 0) {
+            if (errRunner == null) {
+                errPending.add(text);
+            } else if (errException == null) {
+                try {
+                    errRunner.addErrorLine(text);
+                } catch (PyTestException pte) {
+                    errException = pte;
+                }
+            }
+        }
+
+        if (atEnd) {
+            errFinished = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Start sending standard error lines to a runner, including any which
+     * were written since the last request.
+     *
+     * @param runner runner for the next request
+     */
+    private synchronized void attachErrors(TestRunner runner)
+    {
+        errRunner = runner;
+        errFinished = false;
+        errException = null;
+
+        for (Iterator it = errPending.iterator(); it.hasNext(); ) {
+            String line = (String) it.next();
+            if (errException == null) {
+                try {
+                    runner.addErrorLine(line);
+                } catch (PyTestException pte) {
+                    errException = pte;
+                }
+            }
+        }
+        errPending.clear();
+    }
+
+    /**
+     * Wait for the current request's standard error lines, then stop
+     * sending them to the runner.
+     *
+     * @throws PyTestException if a line could not be saved or the wait was
+     *                         interrupted
+     */
+    private synchronized void detachErrors()
+        throws PyTestException
+    {
+        try {
+            while (!errFinished) {
+                wait();
+            }
+        } catch (InterruptedException ie) {
+            throw new PyTestException("Interrupted while reading stderr", ie);
+        } finally {
+            errRunner = null;
+        }
+
+        if (errException != null) {
+            PyTestException pte = errException;
+            errException = null;
+            throw pte;
+        }
+    }
+
+    /**
+     * List the names of the tests in a single file.  Names are relative
+     * to the test module (e.g. <tt>FooTest.testBar</tt>).
+     *
+     * @param testFile test file
+     *
+     * @return list of test names, or <tt>null</tt> if the tests could not
+     *         be listed
+     *
+     * @throws PyTestException if the worker could not be started
+     */
+    List listTests(File testFile)
+        throws PyTestException
+    {
+        TestRunner runner = new TestRunner(pythonExecutable, testFile);
+        try {
+            if (!sendRequest(LIST_REQUEST, testFile, null, runner)) {
+                return null;
+            }
+
+            String modName = testFile.getName();
+            int dot = modName.lastIndexOf('.');
+            if (dot > 0) {
+                modName = modName.substring(0, dot);
+            }
+            final String modPrefix = TEST_PREFIX + modName + ".";
+
+            ArrayList names = new ArrayList();
+            for (Iterator it = runner.getOutputLines().iterator();
+                 it.hasNext(); )
+            {
+                String line = (String) it.next();
+                if (line.startsWith(modPrefix)) {
+                    names.add(line.substring(modPrefix.length()));
+                } else if (line.startsWith(TEST_PREFIX)) {
+                    // tests which were imported from another module or
+                    // which failed to load can't be requested by name
+                    return null;
+                }
+            }
+
+            return names;
+        } finally {
+            runner.release();
+        }
+    }
+
+    /**
+     * Run the tests in a single file, passing each output line to the
+     * runner.
+     *
+     * @param testFile test file
+     * @param runner runner which collects the output
+     *
+     * @return <tt>false</tt> if the worker died before the tests finished
+     *
+     * @throws PyTestException if the worker could not be started
+     */
+    boolean runModule(File testFile, TestRunner runner)
+        throws PyTestException
+    {
+        return sendRequest(RUN_REQUEST, testFile, null, runner);
+    }
+
+    /**
+     * Run some of the tests in a single file, passing each output line to
+     * the runner.
+     *
+     * @param testFile test file
+     * @param names names of the tests to run, as returned by
+     *              <tt>listTests()</tt> or with the method name removed
+     *              to run an entire class
+     * @param runner runner which collects the output
+     *
+     * @return <tt>false</tt> if the worker died before the tests finished
+     *
+     * @throws PyTestException if the worker could not be started
+     */
+    boolean runTests(File testFile, List names, TestRunner runner)
+        throws PyTestException
+    {
+        return sendRequest(RUN_REQUEST, testFile, names, runner);
+    }
+
+    /**
+     * Send a request to the worker, passing each output line to the runner.
+     *
+     * @param request request type
+     * @param testFile test file
+     * @param names names of the tests to load (<tt>null</tt> to load all
+     *              the tests in the file)
+     * @param runner runner which collects the output
+     *
+     * @return <tt>false</tt> if the worker died before the request finished
+     *
+     * @throws PyTestException if the worker could not be started
+     */
+    private boolean sendRequest(String request, File testFile, List names,
+                                TestRunner runner)
+        throws PyTestException
+    {
+        final long spawnStart = System.currentTimeMillis();
+        if (proc == null) {
+            start();
+        }
+        runner.markStarted(System.currentTimeMillis() - spawnStart);
+
+        attachErrors(runner);
+
+        try {
+            stdin.write(request);
+            stdin.write('\t');
+            stdin.write(testFile.getPath());
+            if (names != null) {
+                for (Iterator it = names.iterator(); it.hasNext(); ) {
+                    stdin.write('\t');
+                    stdin.write((String) it.next());
+                }
+            }
+            stdin.write('\n');
+            stdin.flush();
+        } catch (IOException ioe) {
+            close();
+            return false;
+        }
+
+        boolean finished = false;
+        runner.startRunning(proc);
+        runner.watch(proc, pid);
+        try {
+            while (true) {
+                String line;
+                try {
+                    line = stdout.readLine();
+                } catch (IOException ioe) {
+                    line = null;
+                }
+
+                if (line == null) {
+                    break;
+                }
+
+                if (line.endsWith(END_MARKER)) {
+                    // a test may have left a partial line
+                    if (line.length() > END_MARKER.length()) {
+                        final int len = line.length() - END_MARKER.length();
+                        runner.addOutputLine(line.substring(0, len));
+                    }
+
+                    finished = true;
+                    break;
+                }
+
+                runner.addOutputLine(line);
+            }
+
+            if (finished) {
+                detachErrors();
+            } else {
+                // keep any stack dump written as the worker was stopped
+                try {
+                    stderr.waitFor();
+                } catch (PyTestException pte) {
+                    // the worker is being replaced anyway
+                }
+            }
+        } catch (PyTestException pte) {
+            close();
+            throw pte;
+        } finally {
+            runner.markFinished();
+            runner.unwatch();
+            runner.stopRunning();
+        }
+
+        if (!finished) {
+            close();
+            return false;
+        }
+
+        numModules++;
+        if (maxModules > 0 && numModules >= maxModules) {
+            close();
+        }
+
+        return true;
+    }
+
+    /**
+     * Start the worker process.
+     *
+     * @throws PyTestException if the process could not be started
+     */
+    private void start()
+        throws PyTestException
+    {
+        ArrayList args = new ArrayList();
+        args.add(pythonExecutable);
+        args.add("-u");
+        args.add("-c");
+        if (TestRunner.hasTimeouts()) {
+            args.add(TestRunner.WATCH_PREAMBLE + WORKER_SCRIPT);
+        } else {
+            args.add(WORKER_SCRIPT);
+        }
+
+        ProcessBuilder pBldr = new ProcessBuilder(args);
+        pBldr.directory(testDir);
+        pBldr.environment().put(PATH_ENV_NAME, pathEnv);
+
+        final Process newProc;
+        try {
+            newProc = pBldr.start();
+        } catch (IOException ioe) {
+            throw new PyTestException("Couldn't start Python worker", ioe);
+        }
+
+        synchronized (this) {
+            proc = newProc;
+            errPending.clear();
+        }
+
+        TestRunner.addActive(proc);
+
+        stdin = new OutputStreamWriter(proc.getOutputStream());
+        stdout =
+            new BufferedReader(new InputStreamReader(proc.getInputStream()));
+        numModules = 0;
+
+        // stderr is read on its own thread so neither pipe can fill up
+        LineSink errSink = new LineSink() {
+                public void addLine(String line)
+                {
+                    addErrorLine(newProc, line);
+                }
+            };
+        stderr = StreamDrainer.start("stderr", proc, proc.getErrorStream(),
+                                     errSink);
+
+        if (TestRunner.hasTimeouts()) {
+            // the preamble starts by writing the process ID
+            try {
+                String line = stdout.readLine();
+                if (line != null) {
+                    pid = TestRunner.parsePid(line);
+                }
+            } catch (IOException ioe) {
+                pid = -1;
+            }
+        }
+    }
+}
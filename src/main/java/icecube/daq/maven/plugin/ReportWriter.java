@@ -0,0 +1,385 @@
+package icecube.daq.maven.plugin;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import java.text.DecimalFormat;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Write Surefire-compatible <tt>TEST-<i>suite</i>.xml</tt> reports on a
+ * background thread.  Reports are written directly to the file as they are
+ * generated, and the detailed test data is discarded once it has been
+ * written.
+ */
+class ReportWriter
+{
+    /** Formatter for time. */
+    private final DecimalFormat timeFmt = new DecimalFormat("####0.000");
+
+    /** Report directory. */
+    private File reportDir;
+    /** Test directory, used to build report names. */
+    private File testDir;
+    /** Thread which writes the reports. */
+    private ExecutorService executor;
+    /** Pending report tasks. */
+    private ArrayList pending = new ArrayList();
+
+    /**
+     * Create a report writer.
+     *
+     * @param reportDir report directory
+     * @param testDir test directory
+     */
+    ReportWriter(File reportDir, File testDir)
+    {
+        this.reportDir = reportDir;
+        this.testDir = testDir;
+
+        executor =
+            Executors.newSingleThreadExecutor(new WorkerFactory("PyTest" +
+                                                                " report"));
+    }
+
+    /**
+     * Escape a string for use in XML text or attribute values.  Characters
+     * which are illegal in XML 1.0 are replaced with '?'.
+     *
+     * @param out output
+     * @param str string to escape
+     *
+     * @throws IOException if there is a problem writing the string
+     */
+    private static void escape(Writer out, String str)
+        throws IOException
+    {
+        final int len = str.length();
+        for (int i = 0; i < len; i++) {
+            char ch = str.charAt(i);
+            switch (ch) {
+            case '&':
+                out.write("&amp;");
+                break;
+            case '<':
+                out.write("&lt;");
+                break;
+            case '>':
+                out.write("&gt;");
+                break;
+            case '"':
+                out.write("&quot;");
+                break;
+            case '\t':
+            case '\n':
+            case '\r':
+                out.write(ch);
+                break;
+            default:
+                if (ch < 0x20 || ch == 0xfffe || ch == 0xffff) {
+                    out.write('?');
+                } else {
+                    out.write(ch);
+                }
+                break;
+            }
+        }
+    }
+
+    /**
+     * Get the report name for a test file, based on its path relative to
+     * the test directory (e.g. <tt>sub/fooTest.py</tt> becomes
+     * <tt>sub.fooTest</tt>).
+     *
+     * @param testDir test directory
+     * @param testFile test file
+     *
+     * @return report name
+     */
+    static String getReportName(File testDir, File testFile)
+    {
+        String dirPath = testDir.getAbsolutePath();
+        String path = testFile.getAbsolutePath();
+
+        String name;
+        if (path.startsWith(dirPath + File.separator)) {
+            name = path.substring(dirPath.length() + 1);
+        } else {
+            name = testFile.getName();
+        }
+
+        if (name.toLowerCase().endsWith(".py")) {
+            name = name.substring(0, name.length() - 3);
+        }
+
+        return name.replace(File.separatorChar, '.');
+    }
+
+    /**
+     * Wait for all reports to be written.
+     *
+     * @throws PyTestException if any report could not be written
+     */
+    void close()
+        throws PyTestException
+    {
+        executor.shutdown();
+
+        PyTestException firstExc = null;
+        for (Iterator it = pending.iterator(); it.hasNext(); ) {
+            Future future = (Future) it.next();
+            try {
+                future.get();
+            } catch (InterruptedException ie) {
+                executor.shutdownNow();
+                throw new PyTestException("Interrupted while writing" +
+                                          " reports", ie);
+            } catch (ExecutionException ee) {
+                if (firstExc == null) {
+                    firstExc = new PyTestException("Couldn't write report",
+                                                   ee.getCause());
+                }
+            }
+        }
+        pending.clear();
+
+        if (firstExc != null) {
+            throw firstExc;
+        }
+    }
+
+    /**
+     * Queue a report for a test file.
+     *
+     * @param result test file results
+     */
+    void write(SuiteResult result)
+    {
+        final String name = getReportName(testDir, result.getFile());
+        final SuiteData data = result.getData();
+
+        final String errMsg;
+        final TestRunner runner;
+        if (data != null) {
+            errMsg = null;
+            runner = null;
+        } else {
+            PyTestException exc = result.getRunException();
+            if (exc == null) {
+                exc = result.getParseException();
+            }
+
+            if (exc == null) {
+                errMsg = "No results for " + result.getFile();
+            } else {
+                errMsg = exc.getMessage();
+            }
+
+            // the raw output is released once it's been written
+            runner = result.getRunner();
+            result.setRunner(null);
+        }
+
+        final PhaseTimes times = result.getPhaseTimes();
+
+        pending.add(executor.submit(new Runnable() {
+                public void run()
+                {
+                    final long start = System.currentTimeMillis();
+                    try {
+                        if (runner == null) {
+                            writeFile(name, data, errMsg, null, null);
+                        } else {
+                            writeFile(name, data, errMsg,
+                                      runner.getOutputLines(),
+                                      runner.getErrorLines());
+                        }
+                    } catch (IOException ioe) {
+                        throw new RuntimeException(ioe);
+                    } finally {
+                        if (times != null) {
+                            times.add(PhaseTimes.REPORT,
+                                      System.currentTimeMillis() - start);
+                        }
+                        if (data != null) {
+                            data.discardDetails();
+                        }
+                        if (runner != null) {
+                            runner.release();
+                        }
+                    }
+                }
+            }));
+    }
+
+    /**
+     * Write a single case.
+     *
+     * @param out output
+     * @param cd test case data
+     *
+     * @throws IOException if there is a problem
+     */
+    private void writeCase(Writer out, CaseData cd)
+        throws IOException
+    {
+        out.write("  <testcase name=\"");
+        escape(out, String.valueOf(cd.getName()));
+        out.write("\" classname=\"");
+        escape(out, String.valueOf(cd.getClassName()));
+        out.write("\" time=\"");
+        out.write(timeFmt.format(cd.getTime()));
+        out.write('"');
+
+        if (cd.getError() == null && cd.getFailure() == null) {
+            out.write("/>\n");
+            return;
+        }
+
+        out.write(">\n");
+        if (cd.getError() != null) {
+            writeError(out, cd.getError());
+        }
+        if (cd.getFailure() != null) {
+            writeError(out, cd.getFailure());
+        }
+        out.write("  </testcase>\n");
+    }
+
+    /**
+     * Write a <tt>&lt;system-out&gt;</tt> or <tt>&lt;system-err&gt;</tt>
+     * element.
+     *
+     * @param out output
+     * @param tag element name
+     * @param lines text lines
+     *
+     * @throws IOException if there is a problem
+     */
+    private static void writeLines(Writer out, String tag,
+                                   Collection lines)
+        throws IOException
+    {
+        if (lines == null || lines.size() == 0) {
+            return;
+        }
+
+        out.write("  <" + tag + ">");
+        for (Iterator it = lines.iterator(); it.hasNext(); ) {
+            escape(out, String.valueOf(it.next()));
+            out.write('\n');
+        }
+        out.write("</" + tag + ">\n");
+    }
+
+    /**
+     * Write an <tt>&lt;error&gt;</tt> or <tt>&lt;failure&gt;</tt> element.
+     *
+     * @param out output
+     * @param err error data
+     *
+     * @throws IOException if there is a problem
+     */
+    private static void writeError(Writer out, ErrorData err)
+        throws IOException
+    {
+        final String tag = err.isError() ? "error" : "failure";
+
+        out.write("    <" + tag);
+        if (err.getExceptionText() != null) {
+            out.write(" message=\"");
+            escape(out, err.getExceptionText());
+            out.write('"');
+        }
+        if (err.getExceptionName() != null) {
+            out.write(" type=\"");
+            escape(out, err.getExceptionName());
+            out.write('"');
+        }
+        out.write('>');
+        escape(out, err.getTraceback());
+        out.write("</" + tag + ">\n");
+    }
+
+    /**
+     * Write a report file.
+     *
+     * @param name report name
+     * @param data test suite data (<tt>null</tt> if the test file could not
+     *             be run or its output could not be parsed)
+     * @param errMsg error message used if <tt>data</tt> is <tt>null</tt>
+     * @param rawLines raw output used if <tt>data</tt> is <tt>null</tt>
+     * @param rawErrLines raw error output used if <tt>data</tt> is
+     *                    <tt>null</tt>
+     *
+     * @throws IOException if there is a problem
+     */
+    private void writeFile(String name, SuiteData data, String errMsg,
+                           Collection rawLines, Collection rawErrLines)
+        throws IOException
+    {
+        if (!reportDir.exists()) {
+            reportDir.mkdirs();
+        }
+
+        File file = new File(reportDir, "TEST-" + name + ".xml");
+        FileOutputStream fout = new FileOutputStream(file);
+        Writer out = new BufferedWriter(new OutputStreamWriter(fout, "UTF-8"));
+        try {
+            out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+
+            out.write("<testsuite name=\"");
+            escape(out, name);
+            out.write('"');
+
+            if (data == null) {
+                out.write(" time=\"0\" tests=\"1\" errors=\"1\"" +
+                          " skipped=\"0\" failures=\"0\">\n");
+                out.write("  <testcase name=\"");
+                escape(out, name);
+                out.write("\" classname=\"");
+                escape(out, name);
+                out.write("\" time=\"0\">\n");
+                out.write("    <error message=\"");
+                escape(out, String.valueOf(errMsg));
+                out.write("\"/>\n");
+                out.write("  </testcase>\n");
+                writeLines(out, "system-out", rawLines);
+                writeLines(out, "system-err", rawErrLines);
+            } else {
+                out.write(" time=\"" + timeFmt.format(data.getTime()) +
+                          "\" tests=\"" + data.getNumTests() +
+                          "\" errors=\"" + data.getNumErrors() +
+                          "\" skipped=\"0\" failures=\"" +
+                          data.getNumFailures() + "\">\n");
+
+                List cases = data.getCases();
+                if (cases != null) {
+                    for (Iterator it = cases.iterator(); it.hasNext(); ) {
+                        writeCase(out, (CaseData) it.next());
+                    }
+                }
+
+                writeLines(out, "system-out", data.getOutputLines());
+                writeLines(out, "system-err", data.getErrorLines());
+            }
+
+            out.write("</testsuite>\n");
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,341 @@
+package icecube.daq.maven.plugin;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Results of passing test files from previous builds, keyed by a
+ * fingerprint of everything the test depends on.  A test file whose
+ * fingerprint hasn't changed since it last passed doesn't need to be rerun.
+ */
+class ResultCache
+{
+    /** Property name suffixes. */
+    private static final String SUFFIX_HASH = ".hash";
+    private static final String SUFFIX_NAME = ".name";
+    private static final String SUFFIX_TESTS = ".tests";
+    private static final String SUFFIX_TIME = ".time";
+
+    /** Characters used to format a digest. */
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /** Cache file. */
+    private File cacheFile;
+    /** Cached results. */
+    private Properties props = new Properties();
+    /** Fingerprint shared by all tests (interpreter, path and sources). */
+    private String baseHash;
+    /** Cached hashes of helper files in each test directory. */
+    private HashMap dirHashes = new HashMap();
+
+    /**
+     * Load the result cache.  A missing or unreadable file results in an
+     * empty cache.
+     *
+     * @param cacheFile cache file
+     * @param baseHash fingerprint shared by all tests
+     */
+    ResultCache(File cacheFile, String baseHash)
+    {
+        this.cacheFile = cacheFile;
+        this.baseHash = baseHash;
+
+        PropertiesFile.load(cacheFile, props);
+    }
+
+    /**
+     * Compute the fingerprint shared by all tests.
+     *
+     * @param exe Python executable name or path
+     * @param version Python version (may be <tt>null</tt>)
+     * @param pathEnv Python path
+     * @param srcDirs Python source directories
+     *
+     * @return fingerprint
+     *
+     * @throws PyTestException if a source file could not be read
+     */
+    static String computeBaseHash(String exe, String version, String pathEnv,
+                                  Collection srcDirs)
+        throws PyTestException
+    {
+        MessageDigest md = createDigest();
+
+        File exeFile = InterpreterInfo.findExecutable(exe);
+        if (exeFile == null) {
+            update(md, exe);
+        } else {
+            update(md, exeFile.getAbsolutePath());
+            update(md, String.valueOf(exeFile.lastModified()));
+        }
+        update(md, String.valueOf(version));
+        update(md, String.valueOf(pathEnv));
+
+        String[] dirs = new String[srcDirs.size()];
+        int n = 0;
+        for (Iterator it = srcDirs.iterator(); it.hasNext(); ) {
+            dirs[n++] = it.next().toString();
+        }
+        Arrays.sort(dirs);
+
+        for (int i = 0; i < dirs.length; i++) {
+            updateDirectory(md, new File(dirs[i]), null);
+        }
+
+        return toHex(md.digest());
+    }
+
+    /**
+     * Create a message digest.
+     *
+     * @return new digest
+     */
+    private static MessageDigest createDigest()
+    {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new Error("SHA-1 is not available", nsae);
+        }
+    }
+
+    /**
+     * Compute the fingerprint for a test file.
+     *
+     * @param testFile test file
+     * @param testFiles all test files (these are excluded from the
+     *                  fingerprint of the test file's directory)
+     *
+     * @return fingerprint
+     *
+     * @throws PyTestException if a file could not be read
+     */
+    String fingerprint(File testFile, Set testFiles)
+        throws PyTestException
+    {
+        File dir = testFile.getAbsoluteFile().getParentFile();
+
+        String dirHash;
+        synchronized (dirHashes) {
+            dirHash = (String) dirHashes.get(dir);
+            if (dirHash == null) {
+                MessageDigest md = createDigest();
+                updateDirectory(md, dir, testFiles);
+                dirHash = toHex(md.digest());
+                dirHashes.put(dir, dirHash);
+            }
+        }
+
+        MessageDigest md = createDigest();
+        update(md, baseHash);
+        update(md, dirHash);
+        updateFile(md, testFile);
+
+        return toHex(md.digest());
+    }
+
+    /**
+     * Get the cached result for a test file if it passed and nothing has
+     * changed since.
+     *
+     * @param testFile test file
+     * @param fingerprint current fingerprint for the test file
+     *
+     * @return <tt>null</tt> if the test file needs to be run
+     */
+    synchronized SuiteData getPassed(File testFile, String fingerprint)
+    {
+        final String key = testFile.getAbsolutePath();
+
+        if (!fingerprint.equals(props.getProperty(key + SUFFIX_HASH))) {
+            return null;
+        }
+
+        SuiteData data = new SuiteData(testFile);
+        try {
+            String name = props.getProperty(key + SUFFIX_NAME);
+            if (name != null) {
+                data.setName(name);
+            }
+            data.setNumTests(Integer.parseInt(props.getProperty(key +
+                                                                SUFFIX_TESTS)));
+            data.setTime(Double.parseDouble(props.getProperty(key +
+                                                              SUFFIX_TIME)));
+        } catch (RuntimeException rte) {
+            // missing or bad value
+            return null;
+        }
+
+        if (!data.isPassed()) {
+            return null;
+        }
+
+        return data;
+    }
+
+    /**
+     * Save the cache file.
+     *
+     * @throws PyTestException if the file could not be written
+     */
+    synchronized void save()
+        throws PyTestException
+    {
+        File dir = cacheFile.getParentFile();
+        if (dir != null && !dir.exists()) {
+            dir.mkdirs();
+        }
+
+        try {
+            FileOutputStream out = new FileOutputStream(cacheFile);
+            try {
+                props.store(out, "Passing Python test results");
+            } finally {
+                out.close();
+            }
+        } catch (IOException ioe) {
+            throw new PyTestException("Couldn't write " + cacheFile, ioe);
+        }
+    }
+
+    /**
+     * Format a digest as a hexadecimal string.
+     *
+     * @param bytes digest bytes
+     *
+     * @return hex string
+     */
+    private static String toHex(byte[] bytes)
+    {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Record the result for a test file.  Only passing results are kept.
+     *
+     * @param testFile test file
+     * @param fingerprint fingerprint for the test file
+     * @param data test suite data (<tt>null</tt> if the output was not
+     *             parsed)
+     */
+    synchronized void update(File testFile, String fingerprint,
+                             SuiteData data)
+    {
+        final String key = testFile.getAbsolutePath();
+
+        if (fingerprint == null || data == null || !data.isPassed()) {
+            props.remove(key + SUFFIX_HASH);
+            props.remove(key + SUFFIX_NAME);
+            props.remove(key + SUFFIX_TESTS);
+            props.remove(key + SUFFIX_TIME);
+            return;
+        }
+
+        props.setProperty(key + SUFFIX_HASH, fingerprint);
+        props.setProperty(key + SUFFIX_NAME, data.getName());
+        props.setProperty(key + SUFFIX_TESTS,
+                          String.valueOf(data.getNumTests()));
+        props.setProperty(key + SUFFIX_TIME, String.valueOf(data.getTime()));
+    }
+
+    /**
+     * Add a string to the digest.
+     *
+     * @param md message digest
+     * @param str string
+     */
+    private static void update(MessageDigest md, String str)
+    {
+        try {
+            md.update(str.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException uee) {
+            throw new Error("UTF-8 is not supported", uee);
+        }
+        md.update((byte) 0);
+    }
+
+    /**
+     * Add the names and contents of the Python files in a directory to
+     * the digest.
+     *
+     * @param md message digest
+     * @param dir directory
+     * @param exclude files to skip (may be <tt>null</tt>)
+     *
+     * @throws PyTestException if a file could not be read
+     */
+    private static void updateDirectory(MessageDigest md, File dir,
+                                        Set exclude)
+        throws PyTestException
+    {
+        File[] list = dir.listFiles();
+        if (list == null) {
+            return;
+        }
+
+        Arrays.sort(list);
+
+        for (int i = 0; i < list.length; i++) {
+            if (!list[i].isFile() ||
+                !list[i].getName().toLowerCase().endsWith(".py") ||
+                (exclude != null &&
+                 exclude.contains(list[i].getAbsoluteFile())))
+            {
+                continue;
+            }
+
+            update(md, list[i].getName());
+            updateFile(md, list[i]);
+        }
+    }
+
+    /**
+     * Add the contents of a file to the digest.
+     *
+     * @param md message digest
+     * @param file file
+     *
+     * @throws PyTestException if the file could not be read
+     */
+    private static void updateFile(MessageDigest md, File file)
+        throws PyTestException
+    {
+        byte[] buf = new byte[8192];
+        try {
+            FileInputStream in = new FileInputStream(file);
+            try {
+                while (true) {
+                    int n = in.read(buf);
+                    if (n < 0) {
+                        break;
+                    }
+
+                    md.update(buf, 0, n);
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException ioe) {
+            throw new PyTestException("Couldn't read " + file, ioe);
+        }
+        md.update((byte) 0);
+    }
+}
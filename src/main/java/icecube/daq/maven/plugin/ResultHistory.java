@@ -0,0 +1,606 @@
+package icecube.daq.maven.plugin;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Results of every build which recorded them, kept in a file for each test
+ * file so the results for one test file or test case can be found without
+ * reading everything else.  Only the most recent runs of each test file are
+ * kept.
+ *
+ * Each run of a test file is written as a run line followed by a line for
+ * each test case, with tab-separated fields:
+ * <pre>
+ * R  timestamp  status  millis  interpreter  commit
+ * C  status  millis  className  name
+ * </pre>
+ */
+class ResultHistory
+{
+    /** Suffix of history files. */
+    private static final String SUFFIX = ".hist";
+
+    /** Field separator. */
+    private static final char SEP = '\t';
+    /** Placeholder for an unknown value. */
+    private static final String UNKNOWN = "-";
+
+    /** Characters used to escape file names. */
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    /** History directory. */
+    private File dir;
+    /** Maximum number of runs kept for each test file (0 for no limit). */
+    private int maxRuns;
+
+    /** Prefix removed from test file paths to get their names. */
+    private String testPrefix;
+    /** Time the current build started. */
+    private long buildTime;
+    /** Python interpreter and version used by the current build. */
+    private String interpreter;
+    /** Source commit used by the current build (<tt>null</tt> if unknown). */
+    private String commit;
+
+    /**
+     * Create a history kept in the specified directory.
+     *
+     * @param dir history directory
+     */
+    ResultHistory(File dir)
+    {
+        this(dir, 0);
+    }
+
+    /**
+     * Create a history kept in the specified directory which keeps only
+     * the most recent runs of each test file.
+     *
+     * @param dir history directory
+     * @param maxRuns maximum number of runs kept for each test file
+     *                (0 for no limit)
+     */
+    ResultHistory(File dir, int maxRuns)
+    {
+        this.dir = dir;
+        this.maxRuns = maxRuns;
+    }
+
+    /**
+     * Clean up a value so it can be written as a single field.
+     *
+     * @param val field value
+     *
+     * @return value without tabs or line breaks
+     */
+    private static String clean(String val)
+    {
+        if (val == null || val.length() == 0) {
+            return UNKNOWN;
+        }
+
+        return val.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+    }
+
+    /**
+     * Convert a history file name back into a test file name.
+     *
+     * @param fileName history file name
+     *
+     * @return test file name (<tt>null</tt> if the name is badly escaped)
+     */
+    private static String decode(String fileName)
+    {
+        String name = fileName.substring(0, fileName.length() -
+                                         SUFFIX.length());
+
+        StringBuffer buf = new StringBuffer(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            char ch = name.charAt(i);
+            if (ch != '%') {
+                buf.append(ch);
+                continue;
+            }
+
+            if (i + 2 >= name.length()) {
+                return null;
+            }
+
+            try {
+                buf.append((char) Integer.parseInt(name.substring(i + 1,
+                                                                  i + 3),
+                                                   16));
+            } catch (NumberFormatException nfe) {
+                return null;
+            }
+            i += 2;
+        }
+
+        return buf.toString();
+    }
+
+    /**
+     * Get the history file for a test file.  Anything other than letters,
+     * digits, '.', '-' and '_' is escaped so the test file's directories
+     * don't become subdirectories.
+     *
+     * @param suite test file name, relative to the test directory
+     *
+     * @return history file
+     */
+    private File getFile(String suite)
+    {
+        StringBuffer buf = new StringBuffer(suite.length() + SUFFIX.length());
+        for (int i = 0; i < suite.length(); i++) {
+            char ch = suite.charAt(i);
+            if ((ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z') ||
+                (ch >= '0' && ch <= '9') || ch == '.' || ch == '-' ||
+                ch == '_')
+            {
+                buf.append(ch);
+            } else if (ch < 256) {
+                buf.append('%').append(HEX_DIGITS[(ch >> 4) & 0xf]);
+                buf.append(HEX_DIGITS[ch & 0xf]);
+            } else {
+                // rare enough that a lossy name is acceptable
+                buf.append('_');
+            }
+        }
+        buf.append(SUFFIX);
+
+        return new File(dir, buf.toString());
+    }
+
+    /**
+     * Find the commit checked out in the Git working tree containing
+     * <tt>dir</tt>.  The repository files are read directly so
+     * <tt>git</tt> doesn't need to be installed.
+     *
+     * @param dir directory inside the working tree
+     *
+     * @return <tt>null</tt> if the commit could not be found
+     */
+    static String findCommit(File dir)
+    {
+        File gitDir = null;
+        for (File d = dir.getAbsoluteFile(); d != null; d = d.getParentFile()) {
+            File f = new File(d, ".git");
+            if (f.isDirectory()) {
+                gitDir = f;
+                break;
+            } else if (f.isFile()) {
+                // worktrees and submodules point to the real directory
+                String line = readFirstLine(f);
+                if (line != null && line.startsWith("gitdir:")) {
+                    gitDir = new File(line.substring(7).trim());
+                    if (!gitDir.isAbsolute()) {
+                        gitDir = new File(d, gitDir.getPath());
+                    }
+                }
+                break;
+            }
+        }
+
+        if (gitDir == null) {
+            return null;
+        }
+
+        String head = readFirstLine(new File(gitDir, "HEAD"));
+        if (head == null || !head.startsWith("ref:")) {
+            return head;
+        }
+
+        final String ref = head.substring(4).trim();
+
+        String commit = readFirstLine(new File(gitDir, ref));
+        if (commit != null) {
+            return commit;
+        }
+
+        // worktrees keep shared refs in the main repository
+        String common = readFirstLine(new File(gitDir, "commondir"));
+        if (common != null) {
+            File commonDir = new File(common);
+            if (!commonDir.isAbsolute()) {
+                commonDir = new File(gitDir, common);
+            }
+
+            commit = readFirstLine(new File(commonDir, ref));
+            if (commit != null) {
+                return commit;
+            }
+
+            gitDir = commonDir;
+        }
+
+        return findPackedRef(new File(gitDir, "packed-refs"), ref);
+    }
+
+    /**
+     * Find a reference in a <tt>packed-refs</tt> file.
+     *
+     * @param file <tt>packed-refs</tt> file
+     * @param ref reference name
+     *
+     * @return <tt>null</tt> if the reference was not found
+     */
+    private static String findPackedRef(File file, String ref)
+    {
+        if (!file.exists()) {
+            return null;
+        }
+
+        try {
+            BufferedReader rdr = new BufferedReader(new FileReader(file));
+            try {
+                String line;
+                while ((line = rdr.readLine()) != null) {
+                    int sp = line.indexOf(' ');
+                    if (sp > 0 && line.substring(sp + 1).equals(ref)) {
+                        return line.substring(0, sp);
+                    }
+                }
+            } finally {
+                rdr.close();
+            }
+        } catch (IOException ioe) {
+            // treat an unreadable file as a missing reference
+        }
+
+        return null;
+    }
+
+    /**
+     * Get the test files which have a history.
+     *
+     * @return sorted list of test file names
+     */
+    List listSuites()
+    {
+        ArrayList suites = new ArrayList();
+
+        String[] names = dir.list();
+        if (names != null) {
+            for (int i = 0; i < names.length; i++) {
+                if (names[i].endsWith(SUFFIX)) {
+                    String suite = decode(names[i]);
+                    if (suite != null) {
+                        suites.add(suite);
+                    }
+                }
+            }
+        }
+
+        Collections.sort(suites);
+        return suites;
+    }
+
+    /**
+     * Set the details of the current build, which are recorded with each
+     * test file's results.
+     *
+     * @param testDir test directory
+     * @param buildTime time the build started
+     * @param interpreter Python interpreter and version
+     * @param commit source commit (<tt>null</tt> if unknown)
+     */
+    void startBuild(File testDir, long buildTime, String interpreter,
+                    String commit)
+    {
+        this.testPrefix = testDir.getAbsolutePath() + File.separator;
+        this.buildTime = buildTime;
+        this.interpreter = interpreter;
+        this.commit = commit;
+    }
+
+    /**
+     * Parse a millisecond value.
+     *
+     * @param val field value
+     *
+     * @return milliseconds (-1 if unknown)
+     */
+    private static long parseMillis(String val)
+    {
+        if (UNKNOWN.equals(val)) {
+            return -1;
+        }
+
+        return Long.parseLong(val);
+    }
+
+    /**
+     * Read all the runs of a test file.  Damaged lines (from a build which
+     * was killed while writing, for instance) are skipped.
+     *
+     * @param suite test file name, relative to the test directory
+     *
+     * @return list of <tt>HistoryRun</tt>s, oldest first
+     *
+     * @throws PyTestException if the history could not be read
+     */
+    List read(String suite)
+        throws PyTestException
+    {
+        ArrayList runs = new ArrayList();
+
+        File file = getFile(suite);
+        if (!file.exists()) {
+            return runs;
+        }
+
+        try {
+            FileInputStream in = new FileInputStream(file);
+            BufferedReader rdr =
+                new BufferedReader(new InputStreamReader(in, "UTF-8"));
+            try {
+                HistoryRun run = null;
+
+                String line;
+                while ((line = rdr.readLine()) != null) {
+                    String[] flds = line.split("\t");
+                    try {
+                        if (flds.length == 6 && flds[0].equals("R")) {
+                            String commit = flds[5];
+                            if (UNKNOWN.equals(commit)) {
+                                commit = null;
+                            }
+
+                            run = new HistoryRun(Long.parseLong(flds[1]),
+                                                 flds[2],
+                                                 parseMillis(flds[3]),
+                                                 flds[4], commit);
+                            runs.add(run);
+                        } else if (flds.length == 5 && flds[0].equals("C") &&
+                                   run != null)
+                        {
+                            run.addCase(new HistoryCase(run, flds[3], flds[4],
+                                                        flds[1],
+                                                        parseMillis(flds[2])));
+                        }
+                    } catch (NumberFormatException nfe) {
+                        // skip damaged line
+                    }
+                }
+            } finally {
+                rdr.close();
+            }
+        } catch (IOException ioe) {
+            throw new PyTestException("Couldn't read " + file, ioe);
+        }
+
+        return runs;
+    }
+
+    /**
+     * Get the name used for a test file in the history.
+     *
+     * @param f test file
+     *
+     * @return path relative to the test directory
+     */
+    String getSuiteName(File f)
+    {
+        String name = f.getAbsolutePath();
+        if (testPrefix != null && name.startsWith(testPrefix)) {
+            name = name.substring(testPrefix.length());
+        }
+
+        return name.replace(File.separatorChar, '/');
+    }
+
+    /**
+     * Read the first line of a small file.
+     *
+     * @param file file
+     *
+     * @return trimmed line (<tt>null</tt> if the file could not be read)
+     */
+    private static String readFirstLine(File file)
+    {
+        if (!file.isFile()) {
+            return null;
+        }
+
+        try {
+            BufferedReader rdr = new BufferedReader(new FileReader(file));
+            try {
+                String line = rdr.readLine();
+                if (line == null) {
+                    return null;
+                }
+
+                return line.trim();
+            } finally {
+                rdr.close();
+            }
+        } catch (IOException ioe) {
+            return null;
+        }
+    }
+
+    /**
+     * Read the text of each run in a history file.
+     *
+     * @param file history file
+     *
+     * @return list of run texts, oldest first
+     *
+     * @throws IOException if the file could not be read
+     */
+    private static List readRunText(File file)
+        throws IOException
+    {
+        ArrayList runs = new ArrayList();
+
+        BufferedReader rdr =
+            new BufferedReader(new InputStreamReader(new FileInputStream(file),
+                                                     "UTF-8"));
+        try {
+            StringBuffer buf = null;
+
+            String line;
+            while ((line = rdr.readLine()) != null) {
+                if (line.startsWith("R" + SEP)) {
+                    if (buf != null) {
+                        runs.add(buf.toString());
+                    }
+                    buf = new StringBuffer();
+                }
+
+                if (buf != null) {
+                    buf.append(line).append('\n');
+                }
+            }
+
+            if (buf != null) {
+                runs.add(buf.toString());
+            }
+        } finally {
+            rdr.close();
+        }
+
+        return runs;
+    }
+
+    /**
+     * Append the results of a test file run to the history.  The run is
+     * written with a single call so a build which dies doesn't leave half
+     * a run behind.  If the file already holds the maximum number of runs,
+     * it is replaced by one holding only the most recent runs.  This must
+     * be called before the test case details are discarded.
+     *
+     * @param result test file results
+     *
+     * @throws PyTestException if the history could not be written
+     */
+    void record(SuiteResult result)
+        throws PyTestException
+    {
+        SuiteData data = result.getData();
+
+        String status;
+        if (result.getTimeoutMessage() != null) {
+            status = HistoryRun.TIMEOUT;
+        } else if (result.getRunException() != null || data == null ||
+                   result.getParseException() != null)
+        {
+            status = HistoryRun.ERROR;
+        } else if (result.isFailed()) {
+            status = HistoryRun.FAILED;
+        } else {
+            status = HistoryRun.PASSED;
+        }
+
+        StringBuffer buf = new StringBuffer();
+        buf.append('R').append(SEP).append(buildTime);
+        buf.append(SEP).append(status);
+        buf.append(SEP).append(result.getWallTime());
+        buf.append(SEP).append(clean(interpreter));
+        buf.append(SEP).append(clean(commit)).append('\n');
+
+        // plain-text output doesn't include each test's time
+        final boolean hasTimes =
+            result.getOutputFormat() == PyTestParser.XML_FORMAT;
+
+        if (data != null && data.getCases() != null) {
+            for (Iterator it = data.getCases().iterator(); it.hasNext(); ) {
+                CaseData cd = (CaseData) it.next();
+
+                String caseStatus;
+                if (cd.getError() != null) {
+                    caseStatus = "ERROR";
+                } else if (cd.getFailure() != null) {
+                    caseStatus = "FAIL";
+                } else {
+                    caseStatus = HistoryRun.CASE_OK;
+                }
+
+                buf.append('C').append(SEP).append(caseStatus).append(SEP);
+                if (hasTimes) {
+                    buf.append(Math.round(cd.getTime() * 1000.0));
+                } else {
+                    buf.append(UNKNOWN);
+                }
+                buf.append(SEP).append(clean(cd.getClassName()));
+                buf.append(SEP).append(clean(cd.getName())).append('\n');
+            }
+        }
+
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+
+        File file = getFile(getSuiteName(result.getFile()));
+
+        List oldRuns = null;
+        if (maxRuns > 0 && file.exists()) {
+            try {
+                oldRuns = readRunText(file);
+            } catch (IOException ioe) {
+                throw new PyTestException("Couldn't read " + file, ioe);
+            }
+        }
+
+        if (oldRuns == null || oldRuns.size() < maxRuns) {
+            write(file, buf.toString(), true);
+            return;
+        }
+
+        StringBuffer trimmed = new StringBuffer();
+        for (int i = oldRuns.size() - maxRuns + 1; i < oldRuns.size(); i++) {
+            trimmed.append((String) oldRuns.get(i));
+        }
+        trimmed.append(buf);
+
+        // write a new copy so a build which dies doesn't lose the history
+        File tmpFile = new File(dir, file.getName() + ".new");
+        write(tmpFile, trimmed.toString(), false);
+        if (!tmpFile.renameTo(file)) {
+            file.delete();
+            if (!tmpFile.renameTo(file)) {
+                tmpFile.delete();
+                throw new PyTestException("Couldn't replace " + file);
+            }
+        }
+    }
+
+    /**
+     * Write text to a file with a single call.
+     *
+     * @param file file
+     * @param text text
+     * @param append <tt>true</tt> to add the text to the end of the file
+     *
+     * @throws PyTestException if the file could not be written
+     */
+    private static void write(File file, String text, boolean append)
+        throws PyTestException
+    {
+        try {
+            Writer out =
+                new OutputStreamWriter(new FileOutputStream(file, append),
+                                       "UTF-8");
+            try {
+                out.write(text);
+            } finally {
+                out.close();
+            }
+        } catch (IOException ioe) {
+            throw new PyTestException("Couldn't write " + file, ioe);
+        }
+    }
+}
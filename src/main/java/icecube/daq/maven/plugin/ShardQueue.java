@@ -0,0 +1,148 @@
+package icecube.daq.maven.plugin;
+
+import java.io.File;
+
+import java.util.List;
+
+/**
+ * The pieces of a single test file which is being split across several
+ * threads.  Each thread takes the next unclaimed piece when it finishes
+ * the previous one, so threads which become idle pick up the remaining
+ * work instead of following a fixed split.
+ */
+class ShardQueue
+{
+    /** Test file. */
+    private File file;
+    /** Pieces of the file, each of which is a list of test names. */
+    private List shards;
+    /** Results for each piece. */
+    private SuiteData[] results;
+
+    /** Index of the next unclaimed piece. */
+    private int nextShard;
+    /** Number of claimed pieces which have finished. */
+    private int numDone;
+    /** First problem encountered while running a piece. */
+    private PyTestException error;
+
+    /**
+     * Create a queue for the pieces of a test file.
+     *
+     * @param file test file
+     * @param shards list of pieces, each of which is a list of test names
+     */
+    ShardQueue(File file, List shards)
+    {
+        this.file = file;
+        this.shards = shards;
+
+        results = new SuiteData[shards.size()];
+    }
+
+    /**
+     * Claim the next piece.
+     *
+     * @return index of the piece, or -1 if there are no more pieces to
+     *         run (or one of them failed)
+     */
+    synchronized int claim()
+    {
+        if (error != null || nextShard >= shards.size()) {
+            return -1;
+        }
+
+        return nextShard++;
+    }
+
+    /**
+     * Record the results of a piece.
+     *
+     * @param index piece index
+     * @param data piece results (<tt>null</tt> if the piece failed)
+     * @param pte problem encountered while running the piece
+     *            (<tt>null</tt> if it succeeded)
+     */
+    synchronized void finished(int index, SuiteData data, PyTestException pte)
+    {
+        if (pte != null) {
+            if (error == null) {
+                error = pte;
+            }
+        } else {
+            results[index] = data;
+        }
+
+        numDone++;
+        notifyAll();
+    }
+
+    /**
+     * Get the test file.
+     *
+     * @return test file
+     */
+    File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * Get the names of the tests in a piece.
+     *
+     * @param index piece index
+     *
+     * @return list of test names
+     */
+    List getShard(int index)
+    {
+        return (List) shards.get(index);
+    }
+
+    /**
+     * Get the number of pieces.
+     *
+     * @return number of pieces
+     */
+    int size()
+    {
+        return shards.size();
+    }
+
+    /**
+     * Wait for all claimed pieces to finish, then merge their results in
+     * their original order.  This should only be called once
+     * <tt>claim()</tt> has returned -1.  Since pieces are only waited for
+     * once they've been claimed, this can't deadlock on a piece which is
+     * still waiting for a thread.
+     *
+     * @return merged test suite results
+     *
+     * @throws PyTestException if a piece failed or the thread was
+     *                         interrupted
+     */
+    synchronized SuiteData waitForAll()
+        throws PyTestException
+    {
+        while (numDone < nextShard) {
+            try {
+                wait();
+            } catch (InterruptedException ie) {
+                throw new PyTestException("Interrupted while waiting for " +
+                                          file.getName(), ie);
+            }
+        }
+
+        if (error != null) {
+            throw error;
+        }
+
+        SuiteData data = new SuiteData(file);
+        for (int i = 0; i < results.length; i++) {
+            data.merge(results[i]);
+            results[i] = null;
+        }
+
+        return data;
+    }
+}
@@ -2,17 +2,16 @@ package icecube.daq.maven.plugin;
 
 import java.io.PrintStream;
 
-import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
-import java.util.List;
 
 /**
  * Output/error stream data.
  */
 class StreamData
 {
-    /** List of lines read from stream. */
-    private ArrayList lines;
+    /** Lines read from stream. */
+    private LineStore lines;
 
     /**
      * Add a line to the list.
@@ -22,7 +21,7 @@ class StreamData
     void addLine(String line)
     {
         if (lines == null) {
-            lines = new ArrayList();
+            lines = new LineStore();
         }
 
         lines.add(line);
@@ -45,9 +44,9 @@ class StreamData
     /**
      * Get the lines from this stream.
      *
-     * @return list of lines
+     * @return collection of lines
      */
-    List getLines()
+    Collection getLines()
     {
         return lines;
     }
@@ -60,10 +59,10 @@ class StreamData
     void insertLine(String line)
     {
         if (lines == null) {
-            lines = new ArrayList();
+            lines = new LineStore();
         }
 
-        lines.add(0, line);
+        lines.addFirst(line);
     }
 
     /**
@@ -75,4 +74,15 @@ class StreamData
     {
         return lines == null || lines.size() == 0;
     }
+
+    /**
+     * Throw away all lines, deleting any temporary file.
+     */
+    void release()
+    {
+        if (lines != null) {
+            lines.clear();
+            lines = null;
+        }
+    }
 }
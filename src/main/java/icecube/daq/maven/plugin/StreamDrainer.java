@@ -0,0 +1,166 @@
+package icecube.daq.maven.plugin;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Read one output stream of a test process, passing each line to a sink.
+ * Readers run on a shared pool of daemon threads, so the standard output
+ * and standard error streams are drained at the same time and neither pipe
+ * can fill up and stall the Python process.
+ */
+class StreamDrainer
+    implements Runnable
+{
+    /** Threads which read process output, shared by all test processes. */
+    private static ExecutorService pool =
+        Executors.newCachedThreadPool(new WorkerFactory("PyTest reader"));
+
+    /** Stream name used in error messages. */
+    private String name;
+    /** Process which owns the stream. */
+    private Process proc;
+    /** Stream reader. */
+    private BufferedReader rdr;
+    /** Line receiver. */
+    private LineSink sink;
+
+    /** Has the whole stream been read? */
+    private boolean done;
+    /** First problem seen while reading the stream. */
+    private PyTestException error;
+
+    /**
+     * Create a stream reader.
+     *
+     * @param name stream name
+     * @param proc process which owns the stream
+     * @param in stream
+     * @param sink line receiver
+     */
+    private StreamDrainer(String name, Process proc, InputStream in,
+                          LineSink sink)
+    {
+        this.name = name;
+        this.proc = proc;
+        this.sink = sink;
+
+        rdr = new BufferedReader(new InputStreamReader(in));
+    }
+
+    /**
+     * Close the reader, ignoring any errors.
+     */
+    private void closeReader()
+    {
+        try {
+            rdr.close();
+        } catch (IOException ioe) {
+            // ignore errors on close
+        }
+    }
+
+    /**
+     * Mark the stream as finished.
+     *
+     * @param exc problem which ended the read (<tt>null</tt> if none)
+     */
+    private synchronized void finish(PyTestException exc)
+    {
+        if (error == null) {
+            error = exc;
+        }
+
+        done = true;
+        notifyAll();
+    }
+
+    /**
+     * Read lines until the end of the stream.  If the sink fails, the rest
+     * of the stream is still read (and discarded) so the process can exit.
+     */
+    public void run()
+    {
+        PyTestException exc = null;
+        try {
+            while (true) {
+                String line;
+                try {
+                    line = rdr.readLine();
+                } catch (IOException ioe) {
+                    if (TestRunner.isActive(proc)) {
+                        exc = new PyTestException("Couldn't read " + name,
+                                                  ioe);
+                    }
+
+                    // otherwise the process was destroyed
+                    break;
+                }
+
+                if (line == null) {
+                    break;
+                }
+
+                if (exc == null) {
+                    try {
+                        sink.addLine(line);
+                    } catch (PyTestException pte) {
+                        exc = pte;
+                    } catch (RuntimeException rte) {
+                        exc = new PyTestException("Couldn't save " + name +
+                                                  " line", rte);
+                    }
+                }
+            }
+        } finally {
+            closeReader();
+            finish(exc);
+        }
+    }
+
+    /**
+     * Start reading a stream.
+     *
+     * @param name stream name
+     * @param proc process which owns the stream
+     * @param in stream
+     * @param sink line receiver
+     *
+     * @return stream reader
+     */
+    static StreamDrainer start(String name, Process proc, InputStream in,
+                               LineSink sink)
+    {
+        StreamDrainer drainer = new StreamDrainer(name, proc, in, sink);
+        pool.execute(drainer);
+        return drainer;
+    }
+
+    /**
+     * Wait until the whole stream has been read.
+     *
+     * @throws PyTestException if the stream could not be read or the wait
+     *                         was interrupted
+     */
+    synchronized void waitFor()
+        throws PyTestException
+    {
+        while (!done) {
+            try {
+                wait();
+            } catch (InterruptedException ie) {
+                throw new PyTestException("Interrupted while reading " +
+                                          name, ie);
+            }
+        }
+
+        if (error != null) {
+            throw error;
+        }
+    }
+}
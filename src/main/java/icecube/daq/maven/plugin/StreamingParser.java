@@ -0,0 +1,99 @@
+package icecube.daq.maven.plugin;
+
+/**
+ * Parse test output on a separate thread while the test process is still
+ * running.
+ */
+class StreamingParser
+    extends Thread
+{
+    /** Source of output lines. */
+    private LineQueue queue;
+    /** Parsed test suite data. */
+    private SuiteData data;
+    /** Problem encountered while parsing. */
+    private PyTestException parseExc;
+
+    /**
+     * Create a parser thread.
+     *
+     * @param queue source of output lines
+     * @param data test suite data container
+     */
+    StreamingParser(LineQueue queue, SuiteData data)
+    {
+        super("PyTest parser");
+        setDaemon(true);
+
+        this.queue = queue;
+        this.data = data;
+    }
+
+    /**
+     * Get the parsed test suite data.
+     *
+     * @return <tt>null</tt> if the output could not be parsed
+     */
+    SuiteData getData()
+    {
+        if (parseExc != null) {
+            return null;
+        }
+
+        return data;
+    }
+
+    /**
+     * Get whatever test suite data was parsed, even if the parser failed.
+     *
+     * @return partial test suite data
+     */
+    SuiteData getPartialData()
+    {
+        return data;
+    }
+
+    /**
+     * Get the problem encountered while parsing.
+     *
+     * @return <tt>null</tt> if the output was parsed
+     */
+    PyTestException getParseException()
+    {
+        return parseExc;
+    }
+
+    /**
+     * Parse lines until the end of the output.
+     */
+    public void run()
+    {
+        try {
+            new PyTestParser(queue, data);
+        } catch (PyTestException pte) {
+            parseExc = pte;
+        } catch (RuntimeException rte) {
+            parseExc = new PyTestException("Couldn't parse output", rte);
+        } catch (Error err) {
+            parseExc = new PyTestException("Couldn't parse output", err);
+        } finally {
+            // don't leave the process reader stuck on a full queue
+            queue.drain();
+        }
+    }
+
+    /**
+     * Wait for the parser to finish.
+     *
+     * @throws PyTestException if the wait was interrupted
+     */
+    void waitForParser()
+        throws PyTestException
+    {
+        try {
+            join();
+        } catch (InterruptedException ie) {
+            throw new PyTestException("Interrupted while parsing output", ie);
+        }
+    }
+}
@@ -6,8 +6,12 @@ import java.io.PrintStream;
 import java.text.DecimalFormat;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Python unit test suite results.
@@ -32,6 +36,17 @@ public class SuiteData
 
     /** List of individual test case data. */
     private List cases;
+    /** Index of test cases by class and test name. */
+    private HashMap caseIndex;
+    /** Case which was still running when the output ended. */
+    private CaseData unfinished;
+    /**
+     * Status of cases reported as failed or erroneous before their details
+     * were parsed.  Plain-text details only appear once every test has run.
+     */
+    private LinkedHashMap badFinished;
+    /** Notified as each case finishes (<tt>null</tt> if none). */
+    private CaseListener listener;
 
     /** Standard output stream data from tests. */
     private StreamData sysOut;
@@ -64,9 +79,58 @@ public class SuiteData
     {
         if (cases == null) {
             cases = new ArrayList();
+            caseIndex = new HashMap();
         }
 
         cases.add(caseData);
+
+        // keep the first case if there are duplicates, like a list search
+        Object key = getKey(caseData.getClassName(), caseData.getName());
+        if (!caseIndex.containsKey(key)) {
+            caseIndex.put(key, caseData);
+        }
+    }
+
+    /**
+     * Report a finished test case to the listener, if any.
+     *
+     * @param caseData test case data
+     * @param status "ok", "FAIL" or "ERROR"
+     */
+    void caseFinished(CaseData caseData, String status)
+    {
+        if ((status.equals("FAIL") || status.equals("ERROR")) &&
+            caseData.getError() == null && caseData.getFailure() == null)
+        {
+            if (badFinished == null) {
+                badFinished = new LinkedHashMap();
+            }
+            badFinished.put(caseData, status);
+        }
+
+        if (listener != null) {
+            listener.caseFinished(caseData, status);
+        }
+    }
+
+    /**
+     * Throw away test case and output data once it has been reported,
+     * keeping only the summary values.
+     */
+    void discardDetails()
+    {
+        cases = null;
+        caseIndex = null;
+        unfinished = null;
+        badFinished = null;
+        if (sysOut != null) {
+            sysOut.release();
+            sysOut = null;
+        }
+        if (sysErr != null) {
+            sysErr.release();
+            sysErr = null;
+        }
     }
 
     /**
@@ -94,6 +158,76 @@ public class SuiteData
         }
     }
 
+    /**
+     * Dump test suite output to output stream, printing each distinct
+     * error or failure once along with the test cases which reported it.
+     *
+     * @param out output stream
+     * @param withOutput if <tt>false</tt>, the standard output and error
+     *                   text is left out
+     */
+    void dumpCollapsed(PrintStream out, boolean withOutput)
+    {
+        if (withOutput && sysErr != null) {
+            sysErr.dump(out);
+        }
+        if (withOutput && sysOut != null) {
+            sysOut.dump(out);
+        }
+        if (cases == null) {
+            return;
+        }
+
+        // map each signature to its first instance and the affected cases
+        LinkedHashMap groups = new LinkedHashMap();
+        for (Iterator iter = cases.iterator(); iter.hasNext(); ) {
+            CaseData cd = (CaseData) iter.next();
+
+            addToGroup(groups, cd.getError(), cd);
+            addToGroup(groups, cd.getFailure(), cd);
+        }
+
+        for (Iterator iter = groups.values().iterator(); iter.hasNext(); ) {
+            List group = (List) iter.next();
+
+            ErrorData err = (ErrorData) group.get(0);
+            List groupCases = group.subList(1, group.size());
+            if (groupCases.size() == 1) {
+                CaseData cd = (CaseData) groupCases.get(0);
+                err.dump(cd.getClassName(), cd.getName(), out);
+            } else {
+                err.dump(groupCases, out);
+            }
+            out.println();
+        }
+    }
+
+    /**
+     * Add a test case to the group for its error or failure.
+     *
+     * @param groups map of signatures to lists holding the first error
+     *               followed by the affected cases
+     * @param err error or failure (ignored if <tt>null</tt>)
+     * @param cd test case
+     */
+    private static void addToGroup(HashMap groups, ErrorData err,
+                                   CaseData cd)
+    {
+        if (err == null) {
+            return;
+        }
+
+        final Object sig = err.getSignature();
+
+        List group = (List) groups.get(sig);
+        if (group == null) {
+            group = new ArrayList();
+            group.add(err);
+            groups.put(sig, group);
+        }
+        group.add(cd);
+    }
+
     /**
      * Does this case have output data to dump?
      *
@@ -125,17 +259,35 @@ public class SuiteData
      */
     CaseData findCase(String className, String name)
     {
-        if (cases != null) {
-            for (Iterator iter = cases.iterator(); iter.hasNext(); ) {
-                CaseData cd = (CaseData) iter.next();
-
-                if (cd.isMatch(className, name)) {
-                    return cd;
-                }
-            }
+        if (caseIndex == null) {
+            return null;
         }
 
-        return null;
+        return (CaseData) caseIndex.get(getKey(className, name));
+    }
+
+    /**
+     * Build the index key for a test case.  Test names can't contain
+     * newlines, so they make an unambiguous separator.
+     *
+     * @param className test runner class name
+     * @param name test name
+     *
+     * @return index key
+     */
+    private static String getKey(String className, String name)
+    {
+        return className + "\n" + name;
+    }
+
+    /**
+     * Get the list of test cases.
+     *
+     * @return <tt>null</tt> if there are no test cases
+     */
+    List getCases()
+    {
+        return cases;
     }
 
     /**
@@ -143,7 +295,7 @@ public class SuiteData
      *
      * @return error text lines
      */
-    List getErrorLines()
+    Collection getErrorLines()
     {
         if (sysErr == null) {
             return null;
@@ -152,6 +304,16 @@ public class SuiteData
         return sysErr.getLines();
     }
 
+    /**
+     * Get the test suite name.
+     *
+     * @return test suite name
+     */
+    String getName()
+    {
+        return name;
+    }
+
     /**
      * Get the number of erroneous tests.
      *
@@ -197,7 +359,7 @@ public class SuiteData
      *
      * @return output text lines
      */
-    List getOutputLines()
+    Collection getOutputLines()
     {
         if (sysOut == null) {
             return null;
@@ -247,6 +409,123 @@ public class SuiteData
         return name != null && numTests != 0 && numErrors == 0 && numFails == 0;
     }
 
+    /**
+     * Record that the test process was stopped before it finished.  The
+     * case which was running (or a new placeholder case, if that isn't
+     * known) is marked as an error, and any cases which finished are kept.
+     *
+     * @param msg reason the process was stopped
+     */
+    void markTimedOut(String msg)
+    {
+        // the summary line was never seen, so count the cases which had
+        // already failed and give them placeholder details
+        if (badFinished != null) {
+            for (Iterator it = badFinished.entrySet().iterator();
+                 it.hasNext(); )
+            {
+                Map.Entry entry = (Map.Entry) it.next();
+
+                CaseData cd = (CaseData) entry.getKey();
+                if (cd.getError() != null || cd.getFailure() != null) {
+                    continue;
+                }
+
+                final boolean isError = entry.getValue().equals("ERROR");
+
+                ErrorData bad = new ErrorData(isError);
+                bad.setExceptionName(isError ? "Error" : "Failure");
+                bad.setExceptionText("Details were lost when the test" +
+                                     " file timed out");
+                if (isError) {
+                    cd.setError(bad);
+                    numErrors++;
+                } else {
+                    cd.setFailure(bad);
+                    numFails++;
+                }
+            }
+            badFinished = null;
+        }
+
+        ErrorData err = new ErrorData(true);
+        err.setExceptionName("Timeout");
+        err.setExceptionText(msg);
+
+        CaseData cd = unfinished;
+        if (cd == null || cd.getError() != null || cd.getFailure() != null) {
+            cd = new CaseData();
+            cd.setClassName(name);
+            cd.setName("timeout");
+            addCase(cd);
+        }
+        cd.setError(err);
+        unfinished = null;
+
+        numErrors++;
+        if (numTests < cases.size()) {
+            numTests = cases.size();
+        }
+    }
+
+    /**
+     * Add the results from part of the same test suite which was run
+     * separately.  The output from <tt>other</tt> is moved into this suite.
+     *
+     * @param other partial test suite results
+     */
+    void merge(SuiteData other)
+    {
+        numTests += other.numTests;
+        numErrors += other.numErrors;
+        numFails += other.numFails;
+        time += other.time;
+
+        if (other.cases != null) {
+            for (Iterator iter = other.cases.iterator(); iter.hasNext(); ) {
+                addCase((CaseData) iter.next());
+            }
+        }
+
+        sysOut = mergeStream(sysOut, other.sysOut);
+        sysErr = mergeStream(sysErr, other.sysErr);
+
+        other.discardDetails();
+    }
+
+    /**
+     * Append one set of stream data to another.
+     *
+     * @param data original stream data (may be <tt>null</tt>)
+     * @param other additional stream data (may be <tt>null</tt>)
+     *
+     * @return combined stream data
+     */
+    private static StreamData mergeStream(StreamData data, StreamData other)
+    {
+        if (other == null || other.isEmpty()) {
+            return data;
+        }
+
+        if (data == null) {
+            data = new StreamData();
+        }
+        for (Iterator iter = other.getLines().iterator(); iter.hasNext(); ) {
+            data.addLine((String) iter.next());
+        }
+        return data;
+    }
+
+    /**
+     * Set the listener notified as each test case finishes.
+     *
+     * @param listener case listener (<tt>null</tt> for none)
+     */
+    void setCaseListener(CaseListener listener)
+    {
+        this.listener = listener;
+    }
+
     /**
      * Set the test suite name.
      *
@@ -307,6 +586,16 @@ public class SuiteData
         sysOut = data;
     }
 
+    /**
+     * Remember the case which was still running when the output ended.
+     *
+     * @param caseData unfinished test case
+     */
+    void setUnfinishedCase(CaseData caseData)
+    {
+        unfinished = caseData;
+    }
+
     /**
      * Set the total time used to run the test suite.
      *
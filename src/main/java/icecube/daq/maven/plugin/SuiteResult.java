@@ -0,0 +1,334 @@
+package icecube.daq.maven.plugin;
+
+import java.io.File;
+
+/**
+ * Results from running a single Python test file.
+ */
+class SuiteResult
+{
+    /** Test file. */
+    private File file;
+    /** Runner used to execute the test file. */
+    private TestRunner runner;
+    /** Parsed test suite data (<tt>null</tt> if output was not parsed). */
+    private SuiteData data;
+    /** Problem encountered while running the test file. */
+    private PyTestException runExc;
+    /** Problem encountered while parsing the test output. */
+    private PyTestException parseExc;
+    /** Fingerprint of the test file and its dependencies. */
+    private String fingerprint;
+    /** Was this result loaded from the result cache? */
+    private boolean cached;
+    /** Was the test file skipped because too many others failed? */
+    private boolean notRun;
+    /** Were only some of the test file's tests run? */
+    private boolean partial;
+    /** Wall-clock time taken to run and parse the test file. */
+    private long wallTime;
+    /** Reason the test process was stopped (<tt>null</tt> if it wasn't). */
+    private String timeoutMsg;
+    /** Time spent in each phase (<tt>null</tt> if not being recorded). */
+    private PhaseTimes phaseTimes;
+    /** Format of the test output. */
+    private int outputFormat = PyTestParser.UNKNOWN_FORMAT;
+
+    /**
+     * Create a result holder for the specified test file.
+     *
+     * @param file test file
+     */
+    SuiteResult(File file)
+    {
+        this.file = file;
+    }
+
+    /**
+     * Release the runner (and the raw output it holds) once the results
+     * have been reported.
+     */
+    void discardOutput()
+    {
+        if (runner != null) {
+            runner.release();
+            runner = null;
+        }
+    }
+
+    /**
+     * Get the parsed test suite data.
+     *
+     * @return <tt>null</tt> if the test output could not be parsed
+     */
+    SuiteData getData()
+    {
+        return data;
+    }
+
+    /**
+     * Get the test file.
+     *
+     * @return test file
+     */
+    File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * Get the fingerprint of the test file and its dependencies.
+     *
+     * @return <tt>null</tt> if no fingerprint was computed
+     */
+    String getFingerprint()
+    {
+        return fingerprint;
+    }
+
+    /**
+     * Get the problem encountered while parsing the test output.
+     *
+     * @return <tt>null</tt> if the output was parsed
+     */
+    PyTestException getParseException()
+    {
+        return parseExc;
+    }
+
+    /**
+     * Get the problem encountered while running the test file.
+     *
+     * @return <tt>null</tt> if the test file was run
+     */
+    PyTestException getRunException()
+    {
+        return runExc;
+    }
+
+    /**
+     * Get the format of the test output.
+     *
+     * @return <tt>PyTestParser.TEXT_FORMAT</tt>,
+     *         <tt>PyTestParser.XML_FORMAT</tt>, or
+     *         <tt>PyTestParser.UNKNOWN_FORMAT</tt> if the file was not run
+     *         or its format could not be detected
+     */
+    int getOutputFormat()
+    {
+        return outputFormat;
+    }
+
+    /**
+     * Get the time spent in each phase of running the test file.
+     *
+     * @return <tt>null</tt> if phase times are not being recorded
+     */
+    PhaseTimes getPhaseTimes()
+    {
+        return phaseTimes;
+    }
+
+    /**
+     * Get the runner used to execute the test file.
+     *
+     * @return test runner
+     */
+    TestRunner getRunner()
+    {
+        return runner;
+    }
+
+    /**
+     * Get the reason the test process was stopped before it finished.
+     *
+     * @return <tt>null</tt> if the test file did not time out
+     */
+    String getTimeoutMessage()
+    {
+        return timeoutMsg;
+    }
+
+    /**
+     * Get the wall-clock time taken to run and parse the test file.
+     *
+     * @return elapsed milliseconds
+     */
+    long getWallTime()
+    {
+        return wallTime;
+    }
+
+    /**
+     * Was this result loaded from the result cache instead of being run?
+     *
+     * @return <tt>true</tt> if the test file was not run
+     */
+    boolean isCached()
+    {
+        return cached;
+    }
+
+    /**
+     * Did the test file run and report one or more problems?
+     *
+     * @return <tt>true</tt> if the test file should be reported as failed
+     */
+    boolean isFailed()
+    {
+        return !notRun && runExc == null && (data == null || !data.isPassed());
+    }
+
+    /**
+     * Were only some of the test file's tests run?
+     *
+     * @return <tt>true</tt> if only some tests were run
+     */
+    boolean isPartial()
+    {
+        return partial;
+    }
+
+    /**
+     * Was the test file skipped (or stopped) because too many other test
+     * files failed?
+     *
+     * @return <tt>true</tt> if the test file was not run
+     */
+    boolean isNotRun()
+    {
+        return notRun;
+    }
+
+    /**
+     * Mark this result as having been loaded from the result cache.
+     *
+     * @param cached <tt>true</tt> if the test file was not run
+     */
+    void setCached(boolean cached)
+    {
+        this.cached = cached;
+    }
+
+    /**
+     * Mark this test file as not run because too many other test files
+     * failed.  Any partial results are thrown away.
+     */
+    void setNotRun()
+    {
+        notRun = true;
+        data = null;
+        parseExc = null;
+        timeoutMsg = null;
+    }
+
+    /**
+     * Record that only some of the test file's tests were run.
+     *
+     * @param partial <tt>true</tt> if only some tests were run
+     */
+    void setPartial(boolean partial)
+    {
+        this.partial = partial;
+    }
+
+    /**
+     * Set the parsed test suite data.
+     *
+     * @param data test suite data
+     */
+    void setData(SuiteData data)
+    {
+        this.data = data;
+    }
+
+    /**
+     * Set the fingerprint of the test file and its dependencies.
+     *
+     * @param fingerprint fingerprint
+     */
+    void setFingerprint(String fingerprint)
+    {
+        this.fingerprint = fingerprint;
+    }
+
+    /**
+     * Set the problem encountered while parsing the test output.
+     *
+     * @param pte parser exception
+     */
+    void setParseException(PyTestException pte)
+    {
+        parseExc = pte;
+    }
+
+    /**
+     * Set the problem encountered while running the test file.
+     *
+     * @param pte runner exception
+     */
+    void setRunException(PyTestException pte)
+    {
+        runExc = pte;
+    }
+
+    /**
+     * Record the format of the test output.
+     *
+     * @param format output format
+     */
+    void setOutputFormat(int format)
+    {
+        outputFormat = format;
+    }
+
+    /**
+     * Record the time spent in each phase of running the test file.
+     *
+     * @param times phase times
+     */
+    void setPhaseTimes(PhaseTimes times)
+    {
+        phaseTimes = times;
+    }
+
+    /**
+     * Set the runner used to execute the test file.
+     *
+     * @param runner test runner
+     */
+    void setRunner(TestRunner runner)
+    {
+        this.runner = runner;
+    }
+
+    /**
+     * Record that the test process was stopped before it finished.
+     *
+     * @param msg reason the process was stopped
+     */
+    void setTimeoutMessage(String msg)
+    {
+        timeoutMsg = msg;
+    }
+
+    /**
+     * Set the wall-clock time taken to run and parse the test file.
+     *
+     * @param millis elapsed milliseconds
+     */
+    void setWallTime(long millis)
+    {
+        wallTime = millis;
+    }
+
+    /**
+     * Debugging representation of this data.
+     *
+     * @return debugging string
+     */
+    public String toString()
+    {
+        return "Result:" + file.getName() + "," + data;
+    }
+}
@@ -0,0 +1,1010 @@
+package icecube.daq.maven.plugin;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Run a Python test.
+ */
+class TestRunner
+{
+    /**
+     * Python path environment variable.
+     */
+    private static final String PATH_ENV_NAME = "PYTHONPATH";
+
+    /** Number of output lines kept when output is being streamed. */
+    private static final int MAX_TAIL_LINES = 100;
+
+    /** Text results have not started on the standard error stream. */
+    private static final int ERR_BEFORE_RESULTS = 0;
+    /** Standard error lines are part of the text results. */
+    private static final int ERR_IN_RESULTS = 1;
+    /** The text results summary line has been seen. */
+    private static final int ERR_IN_SUMMARY = 2;
+    /** The text results have finished. */
+    private static final int ERR_AFTER_RESULTS = 3;
+
+    /** Prefix for the process ID line written by watched processes. */
+    static final String PID_PREFIX = "##pytest-plugin:pid:";
+
+    /**
+     * Python code run before a test process with a timeout.  It puts the
+     * process in its own process group so the whole group can be killed,
+     * asks faulthandler to dump all thread stacks when the process is
+     * terminated, and reports the process ID.
+     */
+    static final String WATCH_PREAMBLE =
+        "import os, sys\n" +
+        "try:\n" +
+        "    os.setpgrp()\n" +
+        "except (AttributeError, OSError):\n" +
+        "    pass\n" +
+        "try:\n" +
+        "    import faulthandler, signal\n" +
+        "    faulthandler.register(signal.SIGTERM, all_threads=True," +
+        " chain=True)\n" +
+        "except (ImportError, AttributeError, ValueError):\n" +
+        "    pass\n" +
+        "sys.stdout.write('" + PID_PREFIX + "%d\\n' % os.getpid())\n" +
+        "sys.stdout.flush()\n";
+
+    /** Script which runs a test file as '__main__' after the preamble. */
+    private static final String WATCH_SCRIPT =
+        WATCH_PREAMBLE +
+        "import runpy\n" +
+        "sys.argv = sys.argv[1:]\n" +
+        "sys.path[0] = os.path.dirname(os.path.abspath(sys.argv[0]))\n" +
+        "runpy.run_path(sys.argv[0], run_name='__main__')\n";
+
+    /** Time allowed for a timed-out process to exit before it is killed. */
+    private static final long KILL_GRACE_MILLIS = 5000;
+
+    /** Maximum time allowed for a test file (0 for no limit). */
+    private static long fileTimeout;
+    /** Maximum time allowed without any output (0 for no limit). */
+    private static long inactivityTimeout;
+
+    /** Active processes. */
+    private static HashSet activeProcs = new HashSet();
+    /** Map of each runner to the process running its tests. */
+    private static HashMap runningProcs = new HashMap();
+    /** Process lock object. */
+    private static Object procLock = new Object();
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread("PyTest shutdown" ) {
+                public void run()
+                {
+                    destroyAll();
+                }
+            });
+    }
+  
+    /** Python executable. */
+    private String pythonExecutable;
+    /** Python test script. */
+    private File testFile;
+
+    /** Does this test output contain an expected text output line? */
+    private boolean isText;
+    /** Does this test output contain an expected XML output line? */
+    private boolean isXML;
+    /** Were test results seen on the standard output stream? */
+    private boolean reportOnOut;
+    /** Were test results seen on the standard error stream? */
+    private boolean reportOnErr;
+
+    /** Lines written to the standard output stream. */
+    private LineStore outLines = new LineStore();
+    /** Lines written to the standard error stream. */
+    private LineStore errLines = new LineStore();
+    /**
+     * Lines written to the standard error stream before or after the
+     * unittest text results.
+     */
+    private LineStore strayErrLines = new LineStore();
+    /** Number of non-blank lines in <tt>strayErrLines</tt>. */
+    private int numStrayErrLines;
+    /** Position in the text results on the standard error stream. */
+    private int errState = ERR_BEFORE_RESULTS;
+    /** Final few output lines, kept when output is being streamed. */
+    private ArrayList tailLines = new ArrayList();
+    /** Lock for the output state shared by both stream readers. */
+    private Object outputLock = new Object();
+
+    /** Test process exit value. */
+    private int exitVal = -1;
+    /** Was the process killed by <tt>killRunning()</tt>? */
+    private volatile boolean killed;
+
+    /** Running test process. */
+    private Process testProc;
+
+    /** If non-null, output lines are passed here as they are read. */
+    private LineQueue lineQueue;
+    /**
+     * Total number of output lines.  If lines are being streamed, only the
+     * final few lines are kept in <tt>tailLines</tt>.
+     */
+    private int numOutLines;
+
+    /** Process being checked for timeouts (<tt>null</tt> if none). */
+    private Process watchedProc;
+    /** ID of the watched process (-1 if unknown). */
+    private int watchedPid = -1;
+    /** Time the watched process was started. */
+    private long watchStart;
+    /** Time of the last output line. */
+    private volatile long lastOutput;
+    /** Reason the process was stopped (<tt>null</tt> if it wasn't). */
+    private volatile String timeoutMsg;
+    /** Time the process was stopped. */
+    private long expireTime;
+
+    /** Time spent in each phase (<tt>null</tt> if not being recorded). */
+    private PhaseTimes phaseTimes;
+    /** Time the process was started or the request was sent. */
+    private long runStart;
+    /** Time the first output line was read (0 if none yet). */
+    private long firstOutput;
+
+    /**
+     * Create a test runner for the specified Python unit test script.
+     *
+     * @param f test file
+     */
+    TestRunner(String pythonExecutable, File f)
+    {
+        this.pythonExecutable = pythonExecutable;
+        testFile = f;
+    }
+
+    /**
+     * Save a line written to the standard error stream.  The unittest text
+     * runner writes its results here, so the line is also passed to the
+     * output line queue if there is one.
+     *
+     * @param line error line
+     *
+     * @throws PyTestException if the thread was interrupted while waiting
+     *                         for room in the queue
+     */
+    void addErrorLine(String line)
+        throws PyTestException
+    {
+        noteOutput(line);
+
+        final boolean isSummary = checkFormat(line);
+        if (isSummary) {
+            reportOnErr = true;
+        }
+
+        errLines.add(line);
+
+        if (!isResultLine(line, isSummary)) {
+            strayErrLines.add(line);
+            if (line.trim().length() > 0) {
+                numStrayErrLines++;
+            }
+        }
+
+        if (lineQueue != null) {
+            queueLine(line);
+        }
+    }
+
+    /**
+     * Save a line written to the standard output stream, passing it to the
+     * output line queue if there is one.
+     *
+     * @param line output line
+     *
+     * @throws PyTestException if the thread was interrupted while waiting
+     *                         for room in the queue
+     */
+    void addOutputLine(String line)
+        throws PyTestException
+    {
+        noteOutput(line);
+
+        if (checkFormat(line)) {
+            reportOnOut = true;
+        }
+
+        numOutLines++;
+
+        if (lineQueue == null) {
+            outLines.add(line);
+            return;
+        }
+
+        queueLine(line);
+    }
+
+    /**
+     * Start tracking a process so it will be destroyed if Maven exits.
+     *
+     * @param proc process
+     */
+    static void addActive(Process proc)
+    {
+        synchronized (procLock) {
+            activeProcs.add(proc);
+        }
+    }
+
+    /**
+     * Check whether the line indicates text or XML output.
+     *
+     * @param line output line
+     *
+     * @return <tt>true</tt> if the line identified the output format
+     */
+    private boolean checkFormat(String line)
+    {
+        switch (PyTestParser.detectFormat(line)) {
+        case PyTestParser.TEXT_FORMAT:
+            isText = true;
+            return true;
+        case PyTestParser.XML_FORMAT:
+            isXML = true;
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Stop the watched process if it has run for too long or stopped
+     * producing output.  The process is first asked to dump its stacks
+     * and exit, and is killed if it hasn't exited after a grace period.
+     *
+     * @param now current time
+     */
+    void checkTimeouts(long now)
+    {
+        Process proc;
+        int pid;
+        boolean force;
+
+        synchronized (this) {
+            if (watchedProc == null) {
+                return;
+            }
+
+            if (timeoutMsg != null) {
+                if (now - expireTime <= KILL_GRACE_MILLIS) {
+                    return;
+                }
+
+                force = true;
+            } else if (fileTimeout > 0 && now - watchStart > fileTimeout) {
+                timeoutMsg = "Timed out after " + (fileTimeout / 1000) +
+                    " seconds";
+                force = false;
+            } else if (inactivityTimeout > 0 &&
+                       now - lastOutput > inactivityTimeout)
+            {
+                timeoutMsg = "No output for " + (inactivityTimeout / 1000) +
+                    " seconds";
+                force = false;
+            } else {
+                return;
+            }
+
+            expireTime = now;
+            proc = watchedProc;
+            pid = watchedPid;
+        }
+
+        // running 'kill' can be slow, so don't hold up the runner meanwhile
+        Watchdog.kill(proc, pid, force);
+    }
+
+    /**
+     * Complain if the output contained both text and XML results.
+     *
+     * @throws PyTestException if both formats were seen
+     */
+    private void checkMixedFormat()
+        throws PyTestException
+    {
+        if (isText && isXML) {
+            final String errMsg = "Test output has both text and XML elements";
+
+            throw new PyTestException(errMsg);
+        }
+    }
+
+    /**
+     * Build a Unix-style path from 'elements'.
+     *
+     * @param elements collection of path elements
+     *
+     * @return Unix-style path
+     */
+    public static String buildPath(Collection elements)
+    {
+        String path = System.getenv(PATH_ENV_NAME);
+        for (Iterator it = elements.iterator(); it.hasNext(); ) {
+            if (path == null || path.length() == 0) {
+                path = it.next().toString();
+            } else {
+                path += ":" + it.next().toString();
+            }
+        }
+        return path;
+    }
+
+    /**
+     * Destroy all active test processes.
+     */
+    static void destroyAll()
+    {
+        destroyAll(true);
+    }
+
+    /**
+     * Destroy all active test processes.
+     *
+     * @param verbose <tt>true</tt> to report each process as it's destroyed
+     */
+    static void destroyAll(boolean verbose)
+    {
+        ArrayList procs;
+        synchronized (procLock) {
+            if (activeProcs.size() == 0) {
+                return;
+            }
+
+            procs = new ArrayList(activeProcs);
+            activeProcs.clear();
+        }
+
+        for (Iterator it = procs.iterator(); it.hasNext(); ) {
+            Process proc = (Process) it.next();
+
+            if (verbose) {
+                System.err.println( "Destroying test process" );
+            }
+            proc.destroy();
+            if (verbose) {
+                System.err.println( "Destroyed test process" );
+            }
+        }
+    }
+
+    /**
+     * Get lines of text written to the standard error stream.
+     *
+     * @return error text lines
+     */
+    Collection getErrorLines()
+    {
+        return errLines;
+    }
+
+    /**
+     * Get the lines written to the standard error stream which aren't part
+     * of the test results.
+     *
+     * @return unexpected error text lines
+     */
+    Collection getUnexpectedErrorLines()
+    {
+        if (reportOnErr && !reportOnOut) {
+            return strayErrLines;
+        }
+
+        return errLines;
+    }
+
+    /**
+     * Has the process exited?
+     *
+     * @param proc process
+     *
+     * @return <tt>true</tt> if the process is still running
+     */
+    private static boolean isAlive(Process proc)
+    {
+        try {
+            proc.exitValue();
+            return false;
+        } catch (IllegalThreadStateException itse) {
+            return true;
+        }
+    }
+
+    /**
+     * Is the process still being tracked as active?  Processes are removed
+     * from the active set when they are destroyed by the shutdown hook.
+     *
+     * @param proc process
+     *
+     * @return <tt>true</tt> if the process is active
+     */
+    static boolean isActive(Process proc)
+    {
+        synchronized (procLock) {
+            return activeProcs.contains(proc);
+        }
+    }
+
+    /**
+     * Get the test process exit value.
+     *
+     * @return exit value
+     */
+    int getExitValue()
+    {
+        return exitVal;
+    }
+
+    /**
+     * Get lines of text written to the standard output stream.  If output
+     * is being streamed, this is only the final few lines.
+     *
+     * @return output text lines
+     */
+    Collection getOutputLines()
+    {
+        if (lineQueue != null) {
+            return tailLines;
+        }
+
+        return outLines;
+    }
+
+    /**
+     * Get the lines which hold the test results.  XML results are written
+     * to the standard output stream, but the unittest text runner writes its
+     * results to the standard error stream, so that stream is used unless
+     * results were seen on standard output.  If output is being streamed,
+     * this is only the final few lines of both streams.
+     *
+     * @return test result lines
+     */
+    Collection getReportLines()
+    {
+        if (lineQueue != null) {
+            return tailLines;
+        } else if (!reportOnOut && errLines.size() > 0) {
+            return errLines;
+        }
+
+        return outLines;
+    }
+
+    /**
+     * Was anything written to the standard error stream?
+     *
+     * @return <tt>true</tt> if there are standard error lines
+     */
+    boolean hasErrorLines()
+    {
+        return errLines.size() > 0;
+    }
+
+    /**
+     * Was anything written to the standard output stream?
+     *
+     * @return <tt>true</tt> if there are standard output lines
+     */
+    boolean hasOutputLines()
+    {
+        return numOutLines > 0;
+    }
+
+    /**
+     * Was anything other than the test results written to the standard
+     * error stream?  When the unittest text runner writes its results
+     * there, only lines before or after the results are unexpected; stray
+     * text inside the results is saved with the test cases by the parser.
+     *
+     * @return <tt>true</tt> if there are unexpected standard error lines
+     */
+    boolean hasUnexpectedErrorLines()
+    {
+        if (reportOnErr && !reportOnOut) {
+            return numStrayErrLines > 0;
+        }
+
+        return errLines.size() > 0;
+    }
+
+    /**
+     * Is this standard error line part of the unittest text results?
+     *
+     * @param line error line
+     * @param isSummary <tt>true</tt> if this is the results summary line
+     *
+     * @return <tt>false</tt> if the line came before or after the results
+     */
+    private boolean isResultLine(String line, boolean isSummary)
+    {
+        if (isSummary) {
+            errState = ERR_IN_SUMMARY;
+            return true;
+        }
+
+        switch (errState) {
+        case ERR_BEFORE_RESULTS:
+            if (!PyTestParser.isTextResultStart(line)) {
+                return false;
+            }
+
+            errState = ERR_IN_RESULTS;
+            return true;
+        case ERR_IN_RESULTS:
+            return true;
+        case ERR_IN_SUMMARY:
+            if (line.startsWith("OK") || line.startsWith("FAILED")) {
+                errState = ERR_AFTER_RESULTS;
+            }
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Get the format detected while the output was read.
+     *
+     * @return <tt>PyTestParser.TEXT_FORMAT</tt>,
+     *         <tt>PyTestParser.XML_FORMAT</tt>, or
+     *         <tt>PyTestParser.UNKNOWN_FORMAT</tt> if neither the unittest
+     *         summary line nor the XML <tt>testsuite</tt> tag was seen
+     */
+    int getOutputFormat()
+    {
+        if (isXML) {
+            return PyTestParser.XML_FORMAT;
+        } else if (isText) {
+            return PyTestParser.TEXT_FORMAT;
+        }
+
+        return PyTestParser.UNKNOWN_FORMAT;
+    }
+
+    /**
+     * Set the timeouts used for all test processes.
+     *
+     * @param fileSecs maximum number of seconds allowed for a test file
+     *                 (0 for no limit)
+     * @param inactivitySecs maximum number of seconds allowed without any
+     *                       output (0 for no limit)
+     */
+    static void configureTimeouts(int fileSecs, int inactivitySecs)
+    {
+        fileTimeout = (long) fileSecs * 1000L;
+        inactivityTimeout = (long) inactivitySecs * 1000L;
+    }
+
+    /**
+     * Get the reason the test process was stopped.
+     *
+     * @return <tt>null</tt> if the process did not time out
+     */
+    String getTimeoutMessage()
+    {
+        return timeoutMsg;
+    }
+
+    /**
+     * Are test processes stopped when they go too long without output?
+     *
+     * @return <tt>true</tt> if the inactivity timeout has been set
+     */
+    static boolean hasInactivityTimeout()
+    {
+        return inactivityTimeout > 0;
+    }
+
+    /**
+     * Are test processes being checked for timeouts?
+     *
+     * @return <tt>true</tt> if either timeout has been set
+     */
+    static boolean hasTimeouts()
+    {
+        return fileTimeout > 0 || inactivityTimeout > 0;
+    }
+
+    /**
+     * Record that the tests have finished (or the process has died).
+     */
+    void markFinished()
+    {
+        if (phaseTimes == null) {
+            return;
+        }
+
+        long start = firstOutput;
+        if (start == 0) {
+            start = runStart;
+        }
+        phaseTimes.add(PhaseTimes.EXECUTE, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Record that the test process was started or the request was sent to
+     * a worker.
+     *
+     * @param spawnMillis time taken to start the process (0 if an
+     *                    existing process was used)
+     */
+    void markStarted(long spawnMillis)
+    {
+        if (phaseTimes == null) {
+            return;
+        }
+
+        phaseTimes.add(PhaseTimes.SPAWN, spawnMillis);
+        runStart = System.currentTimeMillis();
+        firstOutput = 0;
+    }
+
+    /**
+     * Note the arrival of a line on either output stream.
+     *
+     * @param line output line
+     */
+    private void noteOutput(String line)
+    {
+        lastOutput = System.currentTimeMillis();
+
+        if (phaseTimes != null) {
+            synchronized (outputLock) {
+                if (firstOutput == 0) {
+                    firstOutput = lastOutput;
+                    phaseTimes.add(PhaseTimes.STARTUP,
+                                   firstOutput - runStart);
+                }
+            }
+            phaseTimes.addOutput(line.length() + 1);
+        }
+    }
+
+    /**
+     * Get the process ID from a line written by <tt>WATCH_PREAMBLE</tt>.
+     *
+     * @param line output line
+     *
+     * @return process ID, or -1 if this is not a process ID line
+     */
+    static int parsePid(String line)
+    {
+        if (!line.startsWith(PID_PREFIX)) {
+            return -1;
+        }
+
+        try {
+            return Integer.parseInt(line.substring(PID_PREFIX.length()).trim());
+        } catch (NumberFormatException nfe) {
+            return -1;
+        }
+    }
+
+    /**
+     * Pass a line to the output line queue, keeping it as one of the final
+     * few lines.
+     *
+     * @param line output line
+     *
+     * @throws PyTestException if the thread was interrupted while waiting
+     *                         for room in the queue
+     */
+    private void queueLine(String line)
+        throws PyTestException
+    {
+        synchronized (outputLock) {
+            try {
+                lineQueue.put(line);
+            } catch (InterruptedException ie) {
+                throw new PyTestException("Interrupted while queuing" +
+                                          " output from " + testFile, ie);
+            }
+
+            if (tailLines.size() >= MAX_TAIL_LINES) {
+                tailLines.remove(0);
+            }
+            tailLines.add(line);
+        }
+    }
+
+    /**
+     * Was the test process killed because other test files failed?
+     *
+     * @return <tt>true</tt> if the process was killed by
+     *         <tt>killRunning()</tt>
+     */
+    boolean isKilled()
+    {
+        return killed;
+    }
+
+    /**
+     * Kill all active processes, marking the runners whose tests were
+     * still running as killed.  Runners whose process had already exited
+     * keep their results.
+     */
+    static void killRunning()
+    {
+        synchronized (procLock) {
+            for (Iterator it = runningProcs.entrySet().iterator();
+                 it.hasNext(); )
+            {
+                Map.Entry entry = (Map.Entry) it.next();
+                if (isAlive((Process) entry.getValue())) {
+                    ((TestRunner) entry.getKey()).killed = true;
+                }
+            }
+        }
+
+        destroyAll(false);
+    }
+
+    /**
+     * Record that a process has started running this runner's tests.
+     *
+     * @param proc process
+     */
+    void startRunning(Process proc)
+    {
+        synchronized (procLock) {
+            runningProcs.put(this, proc);
+        }
+    }
+
+    /**
+     * Record that this runner's tests are no longer running.
+     */
+    void stopRunning()
+    {
+        synchronized (procLock) {
+            runningProcs.remove(this);
+        }
+    }
+
+    /**
+     * Stop tracking a process.
+     *
+     * @param proc process
+     */
+    static void removeActive(Process proc)
+    {
+        synchronized (procLock) {
+            activeProcs.remove(proc);
+        }
+    }
+
+    /**
+     * Reset to the initial state.
+     */
+    void reset()
+    {
+        isText = false;
+        isXML = false;
+        reportOnOut = false;
+        reportOnErr = false;
+        outLines.clear();
+        errLines.clear();
+        strayErrLines.clear();
+        numStrayErrLines = 0;
+        errState = ERR_BEFORE_RESULTS;
+        tailLines.clear();
+        numOutLines = 0;
+        exitVal = -1;
+        timeoutMsg = null;
+        killed = false;
+    }
+
+    /**
+     * Throw away all saved output, deleting any temporary files.
+     */
+    void release()
+    {
+        outLines.clear();
+        errLines.clear();
+        strayErrLines.clear();
+        tailLines.clear();
+    }
+
+    /**
+     * Stop checking the watched process for timeouts.
+     */
+    synchronized void unwatch()
+    {
+        if (watchedProc != null) {
+            Watchdog.getInstance().remove(this);
+            watchedProc = null;
+            watchedPid = -1;
+        }
+    }
+
+    /**
+     * Start checking a process for timeouts, if any have been set.
+     *
+     * @param proc process
+     * @param pid process ID (-1 if unknown)
+     */
+    synchronized void watch(Process proc, int pid)
+    {
+        if (!hasTimeouts()) {
+            return;
+        }
+
+        watchedProc = proc;
+        watchedPid = pid;
+        watchStart = System.currentTimeMillis();
+        lastOutput = watchStart;
+
+        Watchdog.getInstance().add(this);
+    }
+
+    /**
+     * Set the ID of the watched process once it is known.
+     *
+     * @param pid process ID
+     */
+    synchronized void setWatchedPid(int pid)
+    {
+        watchedPid = pid;
+    }
+
+    /**
+     * Record the time spent in each phase.
+     *
+     * @param times phase times (<tt>null</tt> to stop recording)
+     */
+    void setPhaseTimes(PhaseTimes times)
+    {
+        phaseTimes = times;
+    }
+
+    /**
+     * Pass output lines to the queue as they are read instead of saving
+     * them all.
+     *
+     * @param queue output line queue
+     */
+    void setLineQueue(LineQueue queue)
+    {
+        lineQueue = queue;
+    }
+
+    /**
+     * Run the unit tests.
+     *
+     * @param pathEnv Python path
+     * @param arg python argument (if non-null)
+     *
+     * @throws PyTestException if there is a problem
+     */
+    void runTests(File testDir, String pathEnv, String arg)
+        throws PyTestException
+    {
+        final boolean watched = hasTimeouts();
+
+        ArrayList args = new ArrayList();
+        args.add(pythonExecutable);
+        if (watched) {
+            // unbuffered, so inactivity is measured from the real output
+            args.add("-u");
+            args.add("-c");
+            args.add(WATCH_SCRIPT);
+        }
+        args.add(testFile.toString());
+        if (arg != null && arg.length() > 0) {
+            args.add(arg);
+        }
+
+        ProcessBuilder pBldr = new ProcessBuilder(args);
+
+        // set working directory
+        pBldr.directory(testDir);
+
+        // set PYTHONPATH envvar
+        Map env = pBldr.environment();
+        env.put(PATH_ENV_NAME, pathEnv);
+
+        final long spawnStart = System.currentTimeMillis();
+        try {
+            testProc = pBldr.start();
+        } catch (IOException ioe) {
+            throw new PyTestException("Couldn't run " + testFile, ioe);
+        }
+        markStarted(System.currentTimeMillis() - spawnStart);
+
+        addActive(testProc);
+        startRunning(testProc);
+        watch(testProc, -1);
+
+        try {
+            testProc.getOutputStream().close();
+        } catch (IOException ioe) {
+            // ignore errors on close
+        }
+
+        LineSink outSink = new LineSink() {
+                public void addLine(String line)
+                    throws PyTestException
+                {
+                    if (watched && numOutLines == 0 && parsePid(line) > 0) {
+                        // the preamble's first line isn't test output
+                        setWatchedPid(parsePid(line));
+                    } else {
+                        addOutputLine(line);
+                    }
+                }
+            };
+        LineSink errSink = new LineSink() {
+                public void addLine(String line)
+                    throws PyTestException
+                {
+                    addErrorLine(line);
+                }
+            };
+
+        // both streams are read at once so neither pipe can fill up
+        StreamDrainer stdout =
+            StreamDrainer.start("stdout", testProc, testProc.getInputStream(),
+                                outSink);
+        StreamDrainer stderr =
+            StreamDrainer.start("stderr", testProc, testProc.getErrorStream(),
+                                errSink);
+
+        try {
+            stdout.waitFor();
+            stderr.waitFor();
+            testProc.waitFor();
+        } catch (PyTestException pte) {
+            testProc.destroy();
+            throw pte;
+        } catch (InterruptedException ie) {
+            testProc.destroy();
+            throw new PyTestException("Couldn't wait for " + testFile, ie);
+        } finally {
+            markFinished();
+            unwatch();
+            stopRunning();
+            removeActive(testProc);
+        }
+
+        exitVal = testProc.exitValue();
+
+        checkMixedFormat();
+    }
+
+    /**
+     * Run the unit tests in a persistent worker process.
+     *
+     * @param worker Python worker process
+     *
+     * @return <tt>false</tt> if the worker died before finishing the tests
+     *
+     * @throws PyTestException if there is a problem
+     */
+    boolean runTests(PythonWorker worker)
+        throws PyTestException
+    {
+        if (!worker.runModule(testFile, this)) {
+            return false;
+        }
+
+        exitVal = 0;
+
+        checkMixedFormat();
+
+        return true;
+    }
+}
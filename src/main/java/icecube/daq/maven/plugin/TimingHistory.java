@@ -0,0 +1,227 @@
+package icecube.daq.maven.plugin;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * How long each test file took to run in previous builds.  This is used to
+ * start the slowest test files first so they don't finish long after
+ * everything else.
+ */
+class TimingHistory
+{
+    /** Property name suffixes. */
+    private static final String SUFFIX_TIME = ".time";
+    private static final String SUFFIX_WALL = ".wall";
+
+    /** History file. */
+    private File historyFile;
+    /** Saved timings. */
+    private Properties props = new Properties();
+
+    /**
+     * Load the timing history.  A missing or unreadable file results in an
+     * empty history.
+     *
+     * @param historyFile history file
+     */
+    TimingHistory(File historyFile)
+    {
+        this.historyFile = historyFile;
+
+        PropertiesFile.load(historyFile, props);
+    }
+
+    /**
+     * Get the key used for a test file.
+     *
+     * @param testFile test file
+     *
+     * @return property key prefix
+     */
+    private static String getKey(File testFile)
+    {
+        return testFile.getAbsolutePath();
+    }
+
+    /**
+     * Get the wall-clock time taken by a test file in the last build which
+     * ran it.
+     *
+     * @param testFile test file
+     *
+     * @return elapsed milliseconds, or -1 if the file has never been run
+     */
+    synchronized long getWallTime(File testFile)
+    {
+        String val = props.getProperty(getKey(testFile) + SUFFIX_WALL);
+        if (val == null) {
+            return -1;
+        }
+
+        try {
+            return Long.parseLong(val);
+        } catch (NumberFormatException nfe) {
+            return -1;
+        }
+    }
+
+    /**
+     * Save the timings in the history file.
+     *
+     * @throws PyTestException if the file could not be written
+     */
+    synchronized void save()
+        throws PyTestException
+    {
+        File dir = historyFile.getParentFile();
+        if (dir != null && !dir.exists()) {
+            dir.mkdirs();
+        }
+
+        try {
+            FileOutputStream out = new FileOutputStream(historyFile);
+            try {
+                props.store(out, "Python test timings");
+            } finally {
+                out.close();
+            }
+        } catch (IOException ioe) {
+            throw new PyTestException("Couldn't write " + historyFile, ioe);
+        }
+    }
+
+    /**
+     * Sort test files so the ones expected to take longest come first.
+     * Files which have never been run are assumed to take time in
+     * proportion to their size, using the average speed of the files which
+     * have been run.
+     *
+     * @param testFiles list of test files
+     *
+     * @return new sorted list of test files
+     */
+    List sortLongestFirst(List testFiles)
+    {
+        long knownMillis = 0;
+        long knownBytes = 0;
+        for (Iterator it = testFiles.iterator(); it.hasNext(); ) {
+            File f = (File) it.next();
+
+            long wall = getWallTime(f);
+            if (wall >= 0) {
+                knownMillis += wall;
+                knownBytes += f.length();
+            }
+        }
+
+        double millisPerByte;
+        if (knownMillis > 0 && knownBytes > 0) {
+            millisPerByte = (double) knownMillis / (double) knownBytes;
+        } else {
+            millisPerByte = 1.0;
+        }
+
+        ArrayList timed = new ArrayList();
+        for (Iterator it = testFiles.iterator(); it.hasNext(); ) {
+            File f = (File) it.next();
+
+            double estimate = getWallTime(f);
+            if (estimate < 0) {
+                estimate = f.length() * millisPerByte;
+            }
+
+            timed.add(new TimedFile(f, estimate));
+        }
+
+        // sort is stable, so equal estimates keep their original order
+        Collections.sort(timed);
+
+        ArrayList sorted = new ArrayList();
+        for (Iterator it = timed.iterator(); it.hasNext(); ) {
+            sorted.add(((TimedFile) it.next()).getFile());
+        }
+
+        return sorted;
+    }
+
+    /**
+     * Record the timings from a test file which was just run.
+     *
+     * @param testFile test file
+     * @param data test results (<tt>null</tt> if the output wasn't parsed)
+     * @param wallMillis wall-clock time taken to run the file
+     */
+    synchronized void update(File testFile, SuiteData data, long wallMillis)
+    {
+        final String key = getKey(testFile);
+
+        props.setProperty(key + SUFFIX_WALL, Long.toString(wallMillis));
+        if (data == null) {
+            props.remove(key + SUFFIX_TIME);
+        } else {
+            props.setProperty(key + SUFFIX_TIME,
+                              Double.toString(data.getTime()));
+        }
+    }
+}
+
+/**
+ * A test file with its expected run time.
+ */
+class TimedFile
+    implements Comparable
+{
+    /** Test file. */
+    private File file;
+    /** Expected run time. */
+    private double estimate;
+
+    /**
+     * Create a test file with its expected run time.
+     *
+     * @param file test file
+     * @param estimate expected run time
+     */
+    TimedFile(File file, double estimate)
+    {
+        this.file = file;
+        this.estimate = estimate;
+    }
+
+    /**
+     * Compare by expected run time, longest first.
+     *
+     * @param obj object being compared
+     *
+     * @return the usual comparison values
+     */
+    public int compareTo(Object obj)
+    {
+        final double other = ((TimedFile) obj).estimate;
+        if (estimate > other) {
+            return -1;
+        } else if (estimate < other) {
+            return 1;
+        }
+
+        return 0;
+    }
+
+    /**
+     * Get the test file.
+     *
+     * @return test file
+     */
+    File getFile()
+    {
+        return file;
+    }
+}
@@ -0,0 +1,143 @@
+package icecube.daq.maven.plugin;
+
+import java.io.IOException;
+
+import java.util.HashSet;
+
+/**
+ * A single background thread which checks running tests for timeouts.
+ */
+class Watchdog
+    implements Runnable
+{
+    /** Time between checks. */
+    private static final long POLL_MILLIS = 250;
+
+    /** The only watchdog. */
+    private static Watchdog instance;
+
+    /** Runners being watched. */
+    private HashSet runners = new HashSet();
+
+    /**
+     * Create the watchdog.  Use <tt>getInstance()</tt> instead.
+     */
+    private Watchdog()
+    {
+    }
+
+    /**
+     * Start watching a runner.
+     *
+     * @param runner test runner
+     */
+    synchronized void add(TestRunner runner)
+    {
+        runners.add(runner);
+    }
+
+    /**
+     * Get the watchdog, starting its thread if necessary.
+     *
+     * @return watchdog
+     */
+    static synchronized Watchdog getInstance()
+    {
+        if (instance == null) {
+            instance = new Watchdog();
+
+            Thread thread = new Thread(instance, "PyTest watchdog");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        return instance;
+    }
+
+    /**
+     * Kill a Python process along with any processes it started.  Test
+     * processes with timeouts are started in their own process group, so
+     * the signal is sent to the whole group.  If the process ID is unknown
+     * or the <tt>kill</tt> command isn't available, only the process itself
+     * is destroyed.
+     *
+     * @param proc process
+     * @param pid process ID (-1 if unknown)
+     * @param force <tt>true</tt> to send <tt>SIGKILL</tt> instead of
+     *              <tt>SIGTERM</tt> (which asks Python to dump its thread
+     *              stacks before exiting)
+     */
+    static void kill(Process proc, int pid, boolean force)
+    {
+        boolean killed = false;
+        if (pid > 0) {
+            final String sig = (force ? "-KILL" : "-TERM");
+
+            killed = runKill(new String[] { "kill", sig, "--", "-" + pid });
+            if (!killed) {
+                // not a process group leader
+                killed = runKill(new String[] { "kill", sig, "" + pid });
+            }
+        }
+
+        if (!killed || force) {
+            proc.destroy();
+        }
+    }
+
+    /**
+     * Stop watching a runner.
+     *
+     * @param runner test runner
+     */
+    synchronized void remove(TestRunner runner)
+    {
+        runners.remove(runner);
+    }
+
+    /**
+     * Check all runners until the JVM exits.
+     */
+    public void run()
+    {
+        while (true) {
+            try {
+                Thread.sleep(POLL_MILLIS);
+            } catch (InterruptedException ie) {
+                // ignore interrupts
+            }
+
+            Object[] list;
+            synchronized (this) {
+                list = runners.toArray();
+            }
+
+            final long now = System.currentTimeMillis();
+            for (int i = 0; i < list.length; i++) {
+                ((TestRunner) list[i]).checkTimeouts(now);
+            }
+        }
+    }
+
+    /**
+     * Run a <tt>kill</tt> command.
+     *
+     * @param cmd command and arguments
+     *
+     * @return <tt>true</tt> if the command succeeded
+     */
+    private static boolean runKill(String[] cmd)
+    {
+        try {
+            Process proc = Runtime.getRuntime().exec(cmd);
+            proc.getOutputStream().close();
+            proc.getInputStream().close();
+            proc.getErrorStream().close();
+            return proc.waitFor() == 0;
+        } catch (IOException ioe) {
+            return false;
+        } catch (InterruptedException ie) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package icecube.daq.maven.plugin;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Create daemon threads for the concurrent test runner and report writer.
+ */
+class WorkerFactory
+    implements ThreadFactory
+{
+    /** Number of threads created so far. */
+    private int num;
+    /** Thread name prefix. */
+    private String prefix;
+
+    /**
+     * Create a thread factory.
+     *
+     * @param prefix thread name prefix
+     */
+    WorkerFactory(String prefix)
+    {
+        this.prefix = prefix;
+    }
+
+    /**
+     * Create a new worker thread.
+     *
+     * @param r task to run
+     *
+     * @return new thread
+     */
+    public synchronized Thread newThread(Runnable r)
+    {
+        Thread thread = new Thread(r, prefix + " #" + num++);
+        thread.setDaemon(true);
+        return thread;
+    }
+}
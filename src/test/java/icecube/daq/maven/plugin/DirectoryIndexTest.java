@@ -0,0 +1,171 @@
+package icecube.daq.maven.plugin;
+
+import org.apache.maven.plugin.testing.AbstractMojoTestCase;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import java.util.List;
+
+public class DirectoryIndexTest
+    extends AbstractMojoTestCase
+{
+    private File testDir;
+
+    private File createDir(File parent, String name)
+    {
+        File dir = new File(parent, name);
+        dir.mkdirs();
+        return dir;
+    }
+
+    private void createFile(File dir, String name)
+        throws IOException
+    {
+        new File(dir, name).createNewFile();
+    }
+
+    private static void deleteTree(File f)
+    {
+        File[] list = f.listFiles();
+        for (int i = 0; list != null && i < list.length; i++) {
+            deleteTree(list[i]);
+        }
+        f.delete();
+    }
+
+    protected void setUp()
+        throws Exception
+    {
+        // required for mojo lookups to work
+        super.setUp();
+
+        testDir = new File(getBasedir(), "target/test-dirindex");
+        deleteTree(testDir);
+        testDir.mkdirs();
+    }
+
+    public void testFindFiles()
+        throws Exception
+    {
+        File root = createDir(testDir, "tree");
+        File sub = createDir(root, "sub");
+        File svn = createDir(sub, ".svn");
+
+        createFile(root, "FooTest.py");
+        createFile(root, "README");
+        createFile(sub, "BarTest.py");
+        createFile(sub, ".#BarTest.py");
+        createFile(svn, "BazTest.py");
+
+        // make the listings old enough to be reused
+        final long oldTime = System.currentTimeMillis() - 60000L;
+        root.setLastModified(oldTime);
+        sub.setLastModified(oldTime);
+
+        File indexFile = new File(testDir, "dirs.properties");
+        final String[] incs = new String[] { "**/*test.py" };
+
+        DirectoryIndex index = new DirectoryIndex(indexFile);
+        String[] names = index.findFiles(root, incs, null);
+        assertEquals("Bad number of files", 2, names.length);
+        assertEquals("Bad first file", "FooTest.py", names[0]);
+        assertEquals("Bad second file",
+                     "sub" + File.separator + "BarTest.py", names[1]);
+
+        List dirs = index.findDirectories(root, ".py");
+        assertEquals("Bad number of directories", 2, dirs.size());
+        assertEquals("Bad directory", sub.getCanonicalFile(), dirs.get(1));
+
+        index.save();
+
+        // a listing is reused as long as the directory time is unchanged
+        createFile(sub, "NewTest.py");
+        sub.setLastModified(oldTime);
+
+        names = new DirectoryIndex(indexFile).findFiles(root, incs, null);
+        assertEquals("Unchanged directory should not be reread",
+                     2, names.length);
+
+        sub.setLastModified(oldTime + 1000L);
+
+        names = new DirectoryIndex(indexFile).findFiles(root, incs, null);
+        assertEquals("Changed directory should be reread", 3, names.length);
+        assertEquals("Bad new file",
+                     "sub" + File.separator + "NewTest.py", names[2]);
+    }
+
+    private static boolean createLink(File link, File target)
+        throws Exception
+    {
+        Process proc;
+        try {
+            proc = Runtime.getRuntime().exec(new String[] {
+                    "ln", "-s", target.getAbsolutePath(),
+                    link.getAbsolutePath(),
+                });
+        } catch (IOException ioe) {
+            return false;
+        }
+
+        return proc.waitFor() == 0;
+    }
+
+    public void testSymlinks()
+        throws Exception
+    {
+        File root = createDir(testDir, "tree");
+        File real = createDir(root, "real");
+        File outside = createDir(testDir, "outside");
+
+        createFile(real, "ATest.py");
+        createFile(outside, "BTest.py");
+
+        if (!createLink(new File(root, "alink"), real) ||
+            !createLink(new File(root, "zlink"), real) ||
+            !createLink(new File(root, "l2"), outside) ||
+            !createLink(new File(root, "l1"), outside))
+        {
+            System.err.println("Couldn't create symbolic links;" +
+                               " skipping testSymlinks");
+            return;
+        }
+
+        final String[] incs = new String[] { "**/*test.py" };
+
+        // threads race to each directory, so repeat the walk a few times
+        for (int i = 0; i < 10; i++) {
+            File indexFile = new File(testDir, "dirs" + i + ".properties");
+
+            String[] names =
+                new DirectoryIndex(indexFile).findFiles(root, incs, null);
+            assertEquals("Bad number of files", 2, names.length);
+            assertEquals("Linked directory should use the first link",
+                         "l1" + File.separator + "BTest.py", names[0]);
+            assertEquals("Real directory should not use a link",
+                         "real" + File.separator + "ATest.py", names[1]);
+        }
+    }
+
+    public void testCorruptIndex()
+        throws Exception
+    {
+        File root = createDir(testDir, "tree");
+        createFile(root, "FooTest.py");
+
+        // a malformed escape makes Properties.load() give up
+        File indexFile = new File(testDir, "dirs.properties");
+        FileWriter out = new FileWriter(indexFile);
+        try {
+            out.write("\\u00zz = garbage\n");
+        } finally {
+            out.close();
+        }
+
+        String[] names = new DirectoryIndex(indexFile).
+            findFiles(root, new String[] { "**/*test.py" }, null);
+        assertEquals("Bad number of files", 1, names.length);
+        assertEquals("Bad file", "FooTest.py", names[0]);
+    }
+}
@@ -0,0 +1,137 @@
+package icecube.daq.maven.plugin;
+
+import org.apache.maven.plugin.testing.AbstractMojoTestCase;
+
+import java.io.File;
+import java.io.FileWriter;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class FailedTestsTest
+    extends AbstractMojoTestCase
+{
+    protected void setUp()
+        throws Exception
+    {
+        // required for mojo lookups to work
+        super.setUp();
+    }
+
+    public void testGetTestName()
+    {
+        CaseData cd = new CaseData();
+        cd.setName("testBar");
+        cd.setClassName("__main__.FooTest");
+        assertEquals("Bad name for old-style class name", "FooTest.testBar",
+                     FailedTests.getTestName(cd));
+
+        cd.setClassName("FooModule.FooTest.testBar");
+        assertEquals("Bad name for new-style class name", "FooTest.testBar",
+                     FailedTests.getTestName(cd));
+    }
+
+    public void testUpdate()
+        throws Exception
+    {
+        File testDir = new File(getBasedir(), "target/test-failed");
+        testDir.mkdirs();
+
+        File stateFile = new File(testDir, "failed.properties");
+        stateFile.delete();
+
+        // the test file must exist or it's dropped when the state is saved
+        File f = new File(testDir, "FailTest.py");
+        new FileWriter(f).close();
+
+        String[] lines = new String[] {
+            "testA (__main__.FailTest) ... ok",
+            "testB (__main__.FailTest) ... FAIL",
+            "",
+            "================================================",
+            "FAIL: testB (__main__.FailTest)",
+            "------------------------------------------------",
+            "Traceback (most recent call last):",
+            "  File \"FailTest.py\", line 7, in testB",
+            "    self.fail(\"Bad\")",
+            "AssertionError: Bad",
+            "",
+            "------------------------------------------------",
+            "Ran 2 tests in 0.001s",
+            "",
+            "FAILED (failures=1)",
+        };
+
+        SuiteData data = new SuiteData(f);
+        new PyTestParser(Arrays.asList(lines), data, false);
+
+        SuiteResult result = new SuiteResult(f);
+        result.setData(data);
+
+        FailedTests failed = new FailedTests(stateFile);
+        assertFalse("Nothing should have been loaded", failed.isLoaded());
+
+        failed.update(result);
+        failed.save();
+
+        failed = new FailedTests(stateFile);
+        assertTrue("State should have been loaded", failed.isLoaded());
+        assertTrue("File should have failed", failed.contains(f));
+
+        List names = failed.getTests(f);
+        assertEquals("Bad number of failed tests", 1, names.size());
+        assertEquals("Bad failed test", "FailTest.testB", names.get(0));
+
+        result = new SuiteResult(f);
+        result.setRunException(new PyTestException("Couldn't run"));
+        failed.update(result);
+        assertEquals("Whole file should be rerun", 0,
+                     failed.getTests(f).size());
+
+        result = new SuiteResult(f);
+        result.setNotRun();
+        failed.update(result);
+        assertTrue("Skipped file should still be a failure",
+                   failed.contains(f));
+
+        data = new SuiteData(f);
+        new PyTestParser(Arrays.asList(new String[] {
+                    "testB (__main__.FailTest) ... ok",
+                    "",
+                    "------------------------------------------------",
+                    "Ran 1 test in 0.001s",
+                    "",
+                    "OK",
+                }), data, false);
+
+        result = new SuiteResult(f);
+        result.setData(data);
+        failed.update(result);
+        assertFalse("Passing file should not be a failure",
+                    failed.contains(f));
+    }
+
+    public void testCorruptFile()
+        throws Exception
+    {
+        File testDir = new File(getBasedir(), "target/test-failed");
+        testDir.mkdirs();
+
+        File f = new File(testDir, "FailTest.py");
+        new FileWriter(f).close();
+
+        // a malformed escape makes Properties.load() give up
+        File stateFile = new File(testDir, "corrupt.properties");
+        FileWriter out = new FileWriter(stateFile);
+        try {
+            out.write(f.getAbsolutePath().replace('\\', '/') +
+                      "=\\u00zz\n");
+        } finally {
+            out.close();
+        }
+
+        FailedTests failed = new FailedTests(stateFile);
+        assertFalse("Corrupt state should not be loaded", failed.isLoaded());
+        assertFalse("Corrupt state should be ignored", failed.contains(f));
+    }
+}
@@ -0,0 +1,210 @@
+package icecube.daq.maven.plugin;
+
+import org.apache.maven.plugin.testing.AbstractMojoTestCase;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class ImportGraphTest
+    extends AbstractMojoTestCase
+{
+    private File testDir;
+
+    private static void deleteTree(File dir)
+    {
+        File[] list = dir.listFiles();
+        if (list != null) {
+            for (int i = 0; i < list.length; i++) {
+                if (list[i].isDirectory()) {
+                    deleteTree(list[i]);
+                }
+                list[i].delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private File writeFile(String path, String text)
+        throws IOException
+    {
+        File f = new File(testDir, path);
+        f.getParentFile().mkdirs();
+
+        FileWriter out = new FileWriter(f);
+        try {
+            out.write(text);
+        } finally {
+            out.close();
+        }
+
+        // files changed in the last couple of seconds are never trusted
+        f.setLastModified(System.currentTimeMillis() - 60000L);
+
+        return f.getCanonicalFile();
+    }
+
+    protected void setUp()
+        throws Exception
+    {
+        // required for mojo lookups to work
+        super.setUp();
+
+        testDir = new File(getBasedir(), "target/test-imports");
+        deleteTree(testDir);
+    }
+
+    public void testParseImports()
+        throws IOException
+    {
+        File f = writeFile("ParseTest.py",
+                           "import os, sys as system\n" +
+                           "from pkg.sub import (alpha,\n" +
+                           "    beta as b)  # comment\n" +
+                           "from .. import gamma\n" +
+                           "from . import *\n" +
+                           "import a.b.c; import d\n" +
+                           "x = 'import nothing'\n" +
+                           "from e import \\\n" +
+                           "    f\n");
+
+        List expected = Arrays.asList(new String[] {
+                "os", "sys", "pkg.sub", "pkg.sub.alpha", "pkg.sub.beta",
+                "..", "..gamma", ".", "a.b.c", "d", "e", "e.f",
+            });
+        assertEquals("Bad imports", expected, ImportGraph.parseImports(f));
+    }
+
+    public void testAffected()
+        throws Exception
+    {
+        File core = writeFile("src/pkg/core.py", "import os\n");
+        File pkgInit = writeFile("src/pkg/__init__.py", "");
+        File helper = writeFile("src/pkg/sub/helper.py",
+                                "from ..core import base\n");
+        File subInit = writeFile("src/pkg/sub/__init__.py", "");
+        File other = writeFile("src/other.py", "import json\n");
+        File helperTest = writeFile("test/HelperTest.py",
+                                    "from pkg.sub import helper\n");
+        File coreTest = writeFile("test/CoreTest.py", "import pkg.core\n");
+        File otherTest = writeFile("test/OtherTest.py", "import other\n");
+
+        List files = Arrays.asList(new File[] {
+                core, pkgInit, helper, subInit, other, helperTest, coreTest,
+                otherTest,
+            });
+
+        Set pathDirs = new HashSet();
+        pathDirs.add(new File(testDir, "src").getCanonicalFile());
+        pathDirs.add(new File(testDir, "test").getCanonicalFile());
+
+        File stateFile = new File(testDir, "imports.properties");
+
+        ImportGraph graph = new ImportGraph(stateFile);
+        assertFalse("Graph should not have been loaded", graph.isLoaded());
+        graph.scan(files, pathDirs);
+        assertEquals("All files should have been read", files.size(),
+                     graph.getNumRead());
+
+        ArrayList changed = new ArrayList();
+        changed.add(core);
+
+        Set affected = graph.findAffected(changed);
+        assertTrue("Changed file is affected", affected.contains(core));
+        assertTrue("Relative import missed", affected.contains(helper));
+        assertTrue("Direct import missed", affected.contains(coreTest));
+        assertTrue("Indirect import missed", affected.contains(helperTest));
+        assertFalse("Unrelated test is affected",
+                    affected.contains(otherTest));
+
+        graph.save();
+
+        ImportGraph reloaded = new ImportGraph(stateFile);
+        assertTrue("Graph was not loaded", reloaded.isLoaded());
+        reloaded.scan(files, pathDirs);
+        assertEquals("Unchanged files should not be read", 0,
+                     reloaded.getNumRead());
+        assertEquals("Bad number of changed files", 0,
+                     reloaded.getChanged().size());
+        assertEquals("Bad number of deleted files", 0,
+                     reloaded.getDeleted().size());
+
+        affected = reloaded.findAffected(changed);
+        assertTrue("Cached imports were lost", affected.contains(helperTest));
+    }
+
+    public void testRecentChange()
+        throws Exception
+    {
+        File mod = writeFile("src/mod.py", "import os\n");
+        File data = writeFile("src/data.txt", "abc\n");
+
+        List files = Arrays.asList(new File[] { mod });
+        List others = Arrays.asList(new File[] { data });
+
+        Set pathDirs = new HashSet();
+        pathDirs.add(new File(testDir, "src").getCanonicalFile());
+
+        File stateFile = new File(testDir, "imports.properties");
+
+        // a file changed just before the scan may change again unnoticed
+        mod.setLastModified(System.currentTimeMillis());
+
+        ImportGraph graph = new ImportGraph(stateFile, "a|b");
+        graph.scan(files, pathDirs);
+        graph.scanOther(others);
+        graph.save();
+
+        ImportGraph reloaded = new ImportGraph(stateFile, "a|b");
+        assertTrue("Patterns should match", reloaded.hasSamePatterns());
+        reloaded.scan(files, pathDirs);
+        reloaded.scanOther(others);
+        assertTrue("Recently changed file should still be changed",
+                   reloaded.getChanged().contains(mod));
+        assertEquals("Data file should not have changed", 0,
+                     reloaded.getChangedOther().size());
+
+        data.setLastModified(data.lastModified() - 10000L);
+        reloaded.save();
+
+        ImportGraph third = new ImportGraph(stateFile, "a|c");
+        assertFalse("Patterns should not match", third.hasSamePatterns());
+        third.scan(files, pathDirs);
+        third.scanOther(others);
+        assertEquals("Data file change was missed", 1,
+                     third.getChangedOther().size());
+
+        data.delete();
+        ImportGraph fourth = new ImportGraph(stateFile, "a|b");
+        fourth.scan(files, pathDirs);
+        fourth.scanOther(new ArrayList());
+        assertEquals("Data file deletion was missed", 1,
+                     fourth.getChangedOther().size());
+        assertEquals("Deleted data file isn't a Python file", 0,
+                     fourth.getDeleted().size());
+    }
+
+    public void testCorruptState()
+        throws Exception
+    {
+        File mod = writeFile("src/mod.py", "import os\n");
+
+        // a malformed escape makes Properties.load() give up
+        File stateFile = writeFile("imports.properties", "\\u00zz = x\n");
+
+        ImportGraph graph = new ImportGraph(stateFile);
+        assertFalse("Corrupt graph should not be loaded", graph.isLoaded());
+
+        Set pathDirs = new HashSet();
+        pathDirs.add(new File(testDir, "src").getCanonicalFile());
+
+        graph.scan(Arrays.asList(new File[] { mod }), pathDirs);
+        assertEquals("File should have been read", 1, graph.getNumRead());
+    }
+}
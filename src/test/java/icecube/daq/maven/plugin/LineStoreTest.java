@@ -0,0 +1,247 @@
+package icecube.daq.maven.plugin;
+
+import org.apache.maven.plugin.testing.AbstractMojoTestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.util.Iterator;
+
+public class LineStoreTest
+    extends AbstractMojoTestCase
+{
+    private File spillDir;
+
+    /**
+     * Stream which fails once a limit is reached and remembers whether
+     * it was closed.
+     */
+    class LimitedStream
+        extends FilterOutputStream
+    {
+        private long limit;
+        private long written;
+        private boolean closed;
+
+        LimitedStream(OutputStream out, long limit)
+        {
+            super(out);
+
+            this.limit = limit;
+        }
+
+        public void close()
+            throws IOException
+        {
+            closed = true;
+            super.close();
+        }
+
+        boolean isClosed()
+        {
+            return closed;
+        }
+
+        public void write(byte[] buf, int off, int len)
+            throws IOException
+        {
+            if (limit >= 0 && written + len > limit) {
+                // write part of the buffer, like a full disk would
+                final int part = (int) (limit - written);
+                out.write(buf, off, part);
+                written += part;
+                throw new IOException("No space left on device");
+            }
+
+            out.write(buf, off, len);
+            written += len;
+        }
+    }
+
+    /**
+     * Line store whose spill file fails after a number of bytes.
+     */
+    class LimitedStore
+        extends LineStore
+    {
+        private long limit;
+        private int numOpened;
+        private LimitedStream stream;
+
+        LimitedStore(long limit)
+        {
+            this.limit = limit;
+        }
+
+        LimitedStream getStream()
+        {
+            return stream;
+        }
+
+        int getNumOpened()
+        {
+            return numOpened;
+        }
+
+        OutputStream openSpillStream(File file, boolean append)
+            throws IOException
+        {
+            numOpened++;
+            stream = new LimitedStream(new FileOutputStream(file, append),
+                                       limit);
+            return stream;
+        }
+    }
+
+    private void checkLines(LineStore store, int numLines)
+    {
+        assertEquals("Bad number of lines", numLines, store.size());
+
+        Iterator iter = store.iterator();
+        for (int i = 0; i < numLines; i++) {
+            assertTrue("Missing line " + i, iter.hasNext());
+            assertEquals("Bad line", "line " + i, iter.next());
+        }
+        assertFalse("Found extra lines", iter.hasNext());
+    }
+
+    private void checkEmptyDir()
+    {
+        String[] files = spillDir.list();
+        assertTrue("Spill directory is not empty",
+                   files == null || files.length == 0);
+    }
+
+    protected void setUp()
+        throws Exception
+    {
+        // required for mojo lookups to work
+        super.setUp();
+
+        spillDir = new File(getBasedir(), "target/test-spill");
+    }
+
+    protected void tearDown()
+        throws Exception
+    {
+        LineStore.configure(null, 0);
+
+        super.tearDown();
+    }
+
+    public void testSpill()
+    {
+        LineStore.configure(spillDir, 100);
+
+        LineStore store = new LineStore();
+
+        final int numLines = 1000;
+        for (int i = 0; i < numLines; i++) {
+            store.add("line " + i);
+        }
+        store.addFirst("first");
+
+        assertTrue("Lines were not written to disk", store.isSpilled());
+        assertEquals("Bad number of lines", numLines + 1, store.size());
+
+        // make sure the lines can be read more than once
+        for (int pass = 0; pass < 2; pass++) {
+            Iterator iter = store.iterator();
+            assertEquals("Bad first line", "first", iter.next());
+            for (int i = 0; i < numLines; i++) {
+                assertTrue("Missing line " + i, iter.hasNext());
+                assertEquals("Bad line", "line " + i, iter.next());
+            }
+            assertFalse("Found extra lines", iter.hasNext());
+        }
+
+        store.clear();
+        assertEquals("Store was not cleared", 0, store.size());
+        assertFalse("Spill file was not deleted", store.isSpilled());
+
+        String[] files = spillDir.list();
+        assertTrue("Spill directory is not empty",
+                   files == null || files.length == 0);
+    }
+
+    public void testNoSpill()
+    {
+        LineStore.configure(spillDir, 0);
+
+        LineStore store = new LineStore();
+        for (int i = 0; i < 1000; i++) {
+            store.add("line " + i);
+        }
+
+        assertFalse("Lines were written to disk", store.isSpilled());
+        assertEquals("Bad number of lines", 1000, store.size());
+    }
+
+    public void testWriteFailure()
+    {
+        LineStore.configure(spillDir, 100);
+
+        LimitedStore store = new LimitedStore(20000);
+
+        final int numLines = 10000;
+        for (int i = 0; i < numLines; i++) {
+            store.add("line " + i);
+        }
+
+        assertTrue("Lines were not written to disk", store.isSpilled());
+        assertTrue("Spill file was not closed after failing",
+                   store.getStream().isClosed());
+
+        // lines written before the failure are kept, the rest are in memory
+        checkLines(store, numLines);
+
+        store.clear();
+        assertFalse("Spill file was not deleted", store.isSpilled());
+        checkEmptyDir();
+    }
+
+    public void testReopen()
+    {
+        LineStore.configure(spillDir, 100);
+
+        LimitedStore store = new LimitedStore(-1);
+
+        final int numLines = 5000;
+        for (int i = 0; i < numLines / 2; i++) {
+            store.add("line " + i);
+        }
+        checkLines(store, numLines / 2);
+        assertTrue("Spill file was not closed for reading",
+                   store.getStream().isClosed());
+
+        for (int i = numLines / 2; i < numLines; i++) {
+            store.add("line " + i);
+        }
+        checkLines(store, numLines);
+        assertEquals("Spill file was not reopened", 2, store.getNumOpened());
+
+        store.clear();
+        checkEmptyDir();
+    }
+
+    public void testRemoveStale()
+        throws IOException
+    {
+        spillDir.mkdirs();
+
+        File stale = new File(spillDir, "pytest-123.out");
+        new FileOutputStream(stale).close();
+        File other = new File(spillDir, "keep.txt");
+        new FileOutputStream(other).close();
+
+        LineStore.configure(spillDir, 100);
+
+        assertFalse("Stale spill file was not deleted", stale.exists());
+        assertTrue("Other file was deleted", other.exists());
+
+        other.delete();
+    }
+}
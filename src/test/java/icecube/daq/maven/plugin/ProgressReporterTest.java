@@ -0,0 +1,71 @@
+package icecube.daq.maven.plugin;
+
+import org.apache.maven.plugin.testing.AbstractMojoTestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+
+import java.util.Arrays;
+
+public class ProgressReporterTest
+    extends AbstractMojoTestCase
+{
+    protected void setUp()
+        throws Exception
+    {
+        // required for mojo lookups to work
+        super.setUp();
+    }
+
+    public void testCaseLines()
+        throws Exception
+    {
+        String[] lines = new String[] {
+            "test_a (__main__.LiveTest) ... ok",
+            "test_b (__main__.LiveTest) ... some output",
+            "FAIL",
+            "test_c (__main__.LiveTest) ... ERROR",
+        };
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(bytes);
+
+        File f = new File("LiveTest.py");
+        ProgressReporter progress = new ProgressReporter(out, 0);
+
+        SuiteData data = new SuiteData(f);
+        data.setCaseListener(progress.started(f));
+        new PyTestParser(Arrays.asList(lines), data, false);
+
+        String hb = progress.getHeartbeat(System.currentTimeMillis());
+        assertNotNull("Missing heartbeat", hb);
+        assertTrue("Heartbeat should list running file: " + hb,
+                   hb.indexOf("LiveTest.py (") > 0);
+
+        progress.finished(f);
+        assertNull("Heartbeat without running files",
+                   progress.getHeartbeat(System.currentTimeMillis()));
+
+        out.close();
+
+        String[] printed = bytes.toString().split("\n");
+        assertEquals("Bad number of progress lines", 3, printed.length);
+        assertTrue("Bad first line: " + printed[0],
+                   printed[0].startsWith("  LiveTest.py: test_a" +
+                                         " (__main__.LiveTest) ... ok "));
+        assertTrue("Bad second line: " + printed[1],
+                   printed[1].indexOf("test_b (__main__.LiveTest) ... FAIL") >
+                   0);
+        assertTrue("Bad third line: " + printed[2],
+                   printed[2].indexOf("test_c (__main__.LiveTest) ... ERROR") >
+                   0);
+    }
+
+    public void testFormatElapsed()
+    {
+        assertEquals("Bad seconds", "5s", ProgressReporter.formatElapsed(5999));
+        assertEquals("Bad minutes", "2m05s",
+                     ProgressReporter.formatElapsed(125000));
+    }
+}
@@ -3,9 +3,12 @@ package icecube.daq.maven.plugin;
 import org.apache.maven.plugin.testing.AbstractMojoTestCase;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringReader;
 
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -165,4 +168,361 @@ public class PyTestParserTest
             expData.check(tstOut[i], suite, isXML);
         }
     }
+
+    public void testStreaming()
+        throws Exception
+    {
+        File tstDir =
+            new File(getBasedir(), "/target/test-classes/test-output");
+
+        File[] tstOut = tstDir.listFiles();
+        Arrays.sort(tstOut);
+
+        ExpectedData expData = null;
+        for (int i = 0; i < tstOut.length; i++) {
+            final List lines = readFile(tstOut[i]);
+
+            if (tstOut[i].getName().endsWith(".exp")) {
+                expData = new ExpectedData(tstOut[i], lines);
+                continue;
+            }
+
+            // use a tiny queue so the parser has to keep up with the writer
+            final LineQueue queue = new LineQueue(2);
+
+            Thread writer = new Thread() {
+                    public void run()
+                    {
+                        try {
+                            for (Iterator it = lines.iterator();
+                                 it.hasNext(); )
+                            {
+                                queue.put((String) it.next());
+                            }
+                        } catch (InterruptedException ie) {
+                            // give up
+                        } finally {
+                            queue.close();
+                        }
+                    }
+                };
+            writer.start();
+
+            SuiteData suite = new SuiteData(tstOut[i]);
+            try {
+                new PyTestParser(queue, suite);
+            } finally {
+                queue.drain();
+            }
+            writer.join();
+
+            boolean isXML = tstOut[i].getName().endsWith(".xout");
+            expData.check(tstOut[i], suite, isXML);
+        }
+    }
+
+    private static SuiteData parseQueued(String[] lines)
+        throws PyTestException
+    {
+        LineQueue queue = new LineQueue(lines.length + 1);
+        try {
+            for (int i = 0; i < lines.length; i++) {
+                queue.put(lines[i]);
+            }
+        } catch (InterruptedException ie) {
+            fail("Interrupted while filling queue");
+        }
+        queue.close();
+
+        SuiteData suite = new SuiteData(new File("DetectTest.py"));
+        try {
+            new PyTestParser(queue, suite);
+        } finally {
+            queue.drain();
+        }
+
+        return suite;
+    }
+
+    public void testDetectFormat()
+        throws PyTestException
+    {
+        final String suiteTag = "<testsuite errors=\"0\" failures=\"0\"" +
+            " name=\"unittest.TestSuite\" tests=\"1\" time=\"0.5\">";
+        final String caseTag = "  <testcase classname=\"__main__.DetectTest\"" +
+            " name=\"testA\" time=\"0.5\"/>";
+
+        String[][] xmlOutput = new String[][] {
+            { "", "  " + suiteTag, caseTag, "</testsuite>", },
+            { "<?xml version=\"1.0\" encoding=\"UTF-8\"?>", suiteTag,
+              caseTag, "</testsuite>", },
+        };
+
+        for (int i = 0; i < xmlOutput.length; i++) {
+            List lines = Arrays.asList(xmlOutput[i]);
+            assertEquals("Bad format for output #" + i,
+                         PyTestParser.XML_FORMAT,
+                         PyTestParser.detectFormat(lines));
+
+            SuiteData suite = new SuiteData(new File("DetectTest.py"));
+            new PyTestParser(lines, suite);
+            assertEquals("Bad number of tests for output #" + i, 1,
+                         suite.getNumTests());
+
+            suite = parseQueued(xmlOutput[i]);
+            assertEquals("Bad number of streamed tests for output #" + i, 1,
+                         suite.getNumTests());
+        }
+
+        String[] text = new String[] {
+            "testA (__main__.DetectTest) ... ok",
+            "",
+            "----------------------------------------------------------------" +
+            "------",
+            "Ran 1 test in 0.500s",
+            "",
+            "OK",
+        };
+
+        assertEquals("Bad format for text output", PyTestParser.TEXT_FORMAT,
+                     PyTestParser.detectFormat(Arrays.asList(text)));
+        assertEquals("Bad number of streamed text tests", 1,
+                     parseQueued(text).getNumTests());
+    }
+
+    public void testLongXMLText()
+        throws PyTestException, org.xml.sax.SAXException
+    {
+        ArrayList lines = new ArrayList();
+        lines.add("<testsuite errors=\"0\" failures=\"1\"" +
+                  " name=\"unittest.TestSuite\" tests=\"1\" time=\"0.5\">");
+        lines.add("  <testcase classname=\"__main__.LongTest\"" +
+                  " name=\"testLong\" time=\"0.5\">");
+        lines.add("    <failure type=\"exceptions.AssertionError\">Bad");
+
+        // make sure the text is much larger than the SAX parser's buffer
+        for (int i = 0; i < 2000; i++) {
+            lines.add("  File \"/path/to/some/module" + i + ".py\", line " + i +
+                      ", in function" + i);
+            lines.add("    call(" + i + ")");
+        }
+
+        lines.add("    </failure>");
+        lines.add("  </testcase>");
+        lines.add("  <system-out><![CDATA[]]></system-out>");
+        lines.add("  <system-err><![CDATA[]]></system-err>");
+        lines.add("</testsuite>");
+
+        StringBuilder buf = new StringBuilder();
+        for (Iterator it = lines.iterator(); it.hasNext(); ) {
+            buf.append(it.next()).append('\n');
+        }
+
+        SuiteData suite = new SuiteData(new File("LongTest.py"));
+        new TestXMLParser(suite).parse(new StringReader(buf.toString()));
+
+        assertEquals("Bad number of tests", 1, suite.getNumTests());
+        assertEquals("Bad number of failures", 1, suite.getNumFailures());
+
+        CaseData cd = suite.findCase("__main__.LongTest", "testLong");
+        assertNotNull("Missing testcase", cd);
+        assertNotNull("Missing failure", cd.getFailure());
+        assertEquals("Bad exception text", "Bad",
+                     cd.getFailure().getExceptionText());
+    }
+
+    public void testXMLReaderReuse()
+        throws Exception
+    {
+        String xml = "<testsuite errors=\"0\" failures=\"0\"" +
+            " name=\"unittest.TestSuite\" tests=\"1\" time=\"0.5\">\n" +
+            "  <testcase classname=\"__main__.SumTest\" name=\"testA\"" +
+            " time=\"0.5\"/>\n" +
+            "  <system-out><![CDATA[some output]]></system-out>\n" +
+            "  <system-err><![CDATA[]]></system-err>\n" +
+            "</testsuite>\n";
+
+        SuiteData bad = new SuiteData(new File("SumTest.py"));
+        try {
+            new TestXMLParser(bad).parse(new StringReader("<testsuite>\n"));
+            fail("Truncated XML should not parse");
+        } catch (org.xml.sax.SAXException se) {
+            // expected
+        }
+
+        // readers are shared, so make sure a reused one reads everything
+        for (int i = 0; i < 2; i++) {
+            SuiteData full = new SuiteData(new File("SumTest.py"));
+            new TestXMLParser(full).parse(new StringReader(xml));
+
+            assertEquals("Bad number of tests", 1, full.getNumTests());
+            assertNotNull("Missing testcase",
+                          full.findCase("__main__.SumTest", "testA"));
+        }
+    }
+
+    public void testTimedOut()
+        throws Exception
+    {
+        String[] lines = new String[] {
+            "test_a (__main__.HangTest) ... ok",
+            "test_b (__main__.HangTest) ... FAIL",
+            "test_c (__main__.HangTest) ... ERROR",
+            "test_hang (__main__.HangTest) ... about to hang",
+            "Current thread 0x00007f3a7eaa52c0 (most recent call first):",
+            "  File \"HangTest.py\", line 8 in test_hang",
+        };
+
+        SuiteData data = new SuiteData(new File("HangTest.py"));
+        new PyTestParser(Arrays.asList(lines), data, false);
+        data.markTimedOut("Timed out after 10 seconds");
+
+        assertEquals("Bad number of tests", 4, data.getNumTests());
+        assertEquals("Bad number of errors", 2, data.getNumErrors());
+        assertEquals("Bad number of failures", 1, data.getNumFailures());
+
+        CaseData hung = data.findCase("__main__.HangTest", "test_hang");
+        assertNotNull("Couldn't find hung test", hung);
+        assertNotNull("Hung test was not marked", hung.getError());
+        assertEquals("Bad exception", "Timeout",
+                     hung.getError().getExceptionName());
+
+        CaseData done = data.findCase("__main__.HangTest", "test_a");
+        assertNull("Finished test was marked", done.getError());
+
+        // failures finished before the hang must still be rerun
+        CaseData failed = data.findCase("__main__.HangTest", "test_b");
+        assertNotNull("Failed test was not marked", failed.getFailure());
+        CaseData errored = data.findCase("__main__.HangTest", "test_c");
+        assertNotNull("Erroneous test was not marked", errored.getError());
+
+        SuiteResult result = new SuiteResult(new File("HangTest.py"));
+        result.setData(data);
+
+        File stateFile =
+            new File(getBasedir(), "target/test-timedout.properties");
+        stateFile.delete();
+        FailedTests failedTests = new FailedTests(stateFile);
+        failedTests.update(result);
+
+        List names = failedTests.getTests(new File("HangTest.py"));
+        assertEquals("Bad failed tests",
+                     Arrays.asList(new String[] {
+                             "HangTest.test_b", "HangTest.test_c",
+                             "HangTest.test_hang",
+                         }), names);
+    }
+
+    public void testSharedTracebacks()
+        throws Exception
+    {
+        final String sep = "------------------------------------------------";
+        final String[] names = { "testA", "testB", "testC" };
+
+        ArrayList lines = new ArrayList();
+        for (int i = 0; i < names.length; i++) {
+            lines.add(names[i] + " (__main__.FixtureTest) ... ERROR");
+        }
+        for (int i = 0; i < names.length; i++) {
+            lines.add("");
+            lines.add("================================================");
+            lines.add("ERROR: " + names[i] + " (__main__.FixtureTest)");
+            lines.add(sep);
+            lines.add("Traceback (most recent call last):");
+            lines.add("  File \"FixtureTest.py\", line 6, in setUp");
+            lines.add("    self.conn = connect()");
+            lines.add("  File \"/usr/lib/db.py\", line 12, in connect");
+            lines.add("    raise IOError(\"No database\")");
+            lines.add("IOError: No database");
+        }
+        lines.add("");
+        lines.add(sep);
+        lines.add("Ran " + names.length + " tests in 0.001s");
+        lines.add("");
+        lines.add("FAILED (errors=" + names.length + ")");
+
+        SuiteData data = new SuiteData(new File("FixtureTest.py"));
+        new PyTestParser(lines, data, false);
+        assertEquals("Bad number of errors", names.length,
+                     data.getNumErrors());
+
+        CaseData first = data.findCase("__main__.FixtureTest", names[0]);
+        assertNotNull("Missing frames", first.getError().getFrames());
+        assertEquals("Bad number of frames", 2,
+                     first.getError().getFrames().size());
+
+        for (int i = 1; i < names.length; i++) {
+            CaseData cd = data.findCase("__main__.FixtureTest", names[i]);
+            assertSame("Class name was not shared", first.getClassName(),
+                       cd.getClassName());
+            assertSame("Traceback was not shared",
+                       first.getError().getFrames(),
+                       cd.getError().getFrames());
+            assertEquals("Bad traceback", first.getError().getTraceback(),
+                         cd.getError().getTraceback());
+        }
+    }
+
+    private static String parseText(File f, List lines, boolean regexOnly)
+        throws PyTestException
+    {
+        SuiteData suite = new SuiteData(f);
+        new TestTextParser(suite, regexOnly).parse(lines);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(bytes);
+        suite.dump(out);
+        out.println(suite.summary());
+        out.close();
+
+        return bytes.toString();
+    }
+
+    public void testScannerMatchesRegex()
+        throws IOException, PyTestException
+    {
+        File tstDir =
+            new File(getBasedir(), "/target/test-classes/test-output");
+
+        File[] tstOut = tstDir.listFiles();
+        Arrays.sort(tstOut);
+
+        for (int i = 0; i < tstOut.length; i++) {
+            if (!tstOut[i].getName().endsWith(".out")) {
+                continue;
+            }
+
+            List lines = readFile(tstOut[i]);
+            assertEquals("Scanner and regex results differ for " + tstOut[i],
+                         parseText(tstOut[i], lines, true),
+                         parseText(tstOut[i], lines, false));
+        }
+
+        TextLineScanner scanner = new TextLineScanner(false);
+
+        scanner.setLine("  testFoo (__main__.FooTest) ... noise ok");
+        assertTrue("Test line was not matched", scanner.matchTest());
+        assertEquals("Bad name", "testFoo", scanner.group(1));
+        assertEquals("Bad class", "__main__.FooTest", scanner.group(2));
+        assertEquals("Bad status", "noise ok", scanner.group(3));
+
+        scanner.setLine("testFoo (__main__.FooTest)  ... ok");
+        assertFalse("Extra space was accepted", scanner.matchTest());
+
+        scanner.setLine("ERROR: testFoo (__main__.FooTest) \u2028");
+        assertTrue("Line separator should fall back to the regex",
+                   scanner.matchDetail());
+        assertEquals("Bad fallback class", "__main__.FooTest",
+                     scanner.group(3));
+
+        scanner.setLine("ValueError: : boom");
+        assertTrue("Detail type was not matched", scanner.matchDetailType());
+        assertEquals("Bad exception name", "ValueError", scanner.group(1));
+        assertEquals("Bad exception text", ": : boom", scanner.group(2));
+
+        scanner.setLine("Ran 1 test in 0.001s");
+        assertTrue("Summary was not matched", scanner.matchRun());
+        assertEquals("Bad number of tests", "1", scanner.group(1));
+        assertEquals("Bad time", "0.001", scanner.group(2));
+    }
 }
@@ -0,0 +1,92 @@
+package icecube.daq.maven.plugin;
+
+import org.apache.maven.plugin.testing.AbstractMojoTestCase;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+public class PythonWorkerTest
+    extends AbstractMojoTestCase
+{
+    private File testDir;
+
+    private static void deleteTree(File dir)
+    {
+        File[] list = dir.listFiles();
+        if (list != null) {
+            for (int i = 0; i < list.length; i++) {
+                if (list[i].isDirectory()) {
+                    deleteTree(list[i]);
+                }
+                list[i].delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private File writeFile(String name, String text)
+        throws IOException
+    {
+        File f = new File(testDir, name);
+
+        FileWriter out = new FileWriter(f);
+        try {
+            out.write(text);
+        } finally {
+            out.close();
+        }
+
+        return f;
+    }
+
+    protected void setUp()
+        throws Exception
+    {
+        // required for mojo lookups to work
+        super.setUp();
+
+        testDir = new File(getBasedir(), "target/test-worker");
+        deleteTree(testDir);
+        testDir.mkdirs();
+    }
+
+    public void testStdinAndStderr()
+        throws Exception
+    {
+        File readFile =
+            writeFile("ReadTest.py",
+                      "import sys, unittest\n" +
+                      "class ReadTest(unittest.TestCase):\n" +
+                      "    def testRead(self):\n" +
+                      "        sys.stderr.write('from ReadTest\\n')\n" +
+                      "        self.assertEqual(sys.stdin.read(), '')\n");
+        File nextFile =
+            writeFile("NextTest.py",
+                      "import unittest\n" +
+                      "class NextTest(unittest.TestCase):\n" +
+                      "    def testNext(self):\n" +
+                      "        pass\n");
+
+        PythonWorker worker = new PythonWorker("python", testDir, "", 0);
+        try {
+            // reading stdin must not swallow the request for the next file
+            TestRunner reader = new TestRunner("python", readFile);
+            assertTrue("Worker died while running " + readFile,
+                       reader.runTests(worker));
+            TestRunner next = new TestRunner("python", nextFile);
+            assertTrue("Worker died while running " + nextFile,
+                       next.runTests(worker));
+
+            assertTrue("Standard error line was lost",
+                       reader.getErrorLines().contains("from ReadTest"));
+            assertFalse("Standard error line was sent to standard output",
+                        reader.getOutputLines().contains("from ReadTest"));
+            assertFalse("Second file got standard error lines",
+                        next.hasErrorLines());
+            assertTrue("Second file has no output", next.hasOutputLines());
+        } finally {
+            worker.close();
+        }
+    }
+}
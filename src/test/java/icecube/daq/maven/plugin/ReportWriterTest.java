@@ -0,0 +1,102 @@
+package icecube.daq.maven.plugin;
+
+import org.apache.maven.plugin.testing.AbstractMojoTestCase;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+public class ReportWriterTest
+    extends AbstractMojoTestCase
+{
+    private List readFile(File file)
+        throws IOException
+    {
+        BufferedReader rdr = new BufferedReader(new FileReader(file));
+
+        ArrayList lines = new ArrayList();
+        while (true) {
+            String line = rdr.readLine();
+            if (line == null) {
+                break;
+            }
+
+            lines.add(line);
+        }
+
+        return lines;
+    }
+
+    protected void setUp()
+        throws Exception
+    {
+        // required for mojo lookups to work
+        super.setUp();
+    }
+
+    public void testReportName()
+    {
+        File testDir = new File("/tmp/tests");
+
+        assertEquals("Bad report name", "fooTest",
+                     ReportWriter.getReportName(testDir,
+                                                new File(testDir,
+                                                         "fooTest.py")));
+        assertEquals("Bad report name", "sub.barTest",
+                     ReportWriter.getReportName(testDir,
+                                                new File(testDir,
+                                                         "sub/barTest.py")));
+    }
+
+    public void testWrite()
+        throws Exception
+    {
+        File base = new File(getBasedir(), "/target/test-classes");
+        File tstFile = new File(base, "test-output/DAQConfigTest.out");
+
+        SuiteData data = new SuiteData(tstFile);
+        new PyTestParser(readFile(tstFile), data, false);
+
+        SuiteResult result =
+            new SuiteResult(new File(base, "DAQConfigTest.py"));
+        result.setData(data);
+
+        File reportDir = new File(getBasedir(), "/target/test-reports");
+
+        ReportWriter writer = new ReportWriter(reportDir, base);
+        writer.write(result);
+        writer.close();
+
+        File report = new File(reportDir, "TEST-DAQConfigTest.xml");
+        assertTrue("Report " + report + " was not written", report.exists());
+
+        Document doc = DocumentBuilderFactory.newInstance().
+            newDocumentBuilder().parse(report);
+
+        Element suite = doc.getDocumentElement();
+        assertEquals("Bad root element", "testsuite", suite.getTagName());
+        assertEquals("Bad number of tests", "5", suite.getAttribute("tests"));
+        assertEquals("Bad number of errors", "2",
+                     suite.getAttribute("errors"));
+
+        NodeList cases = suite.getElementsByTagName("testcase");
+        assertEquals("Bad number of testcases", 5, cases.getLength());
+
+        NodeList errors = suite.getElementsByTagName("error");
+        assertEquals("Bad number of errors", 2, errors.getLength());
+        assertEquals("Bad error type", "DOMNotInConfigException",
+                     ((Element) errors.item(0)).getAttribute("type"));
+
+        assertNull("Details were not discarded", data.getCases());
+    }
+}
@@ -0,0 +1,234 @@
+package icecube.daq.maven.plugin;
+
+import org.apache.maven.plugin.testing.AbstractMojoTestCase;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+
+public class ResultCacheTest
+    extends AbstractMojoTestCase
+{
+    private File testDir;
+    private File srcDir;
+    private File tstDir;
+    private File cacheFile;
+
+    private static void deleteTree(File dir)
+    {
+        File[] list = dir.listFiles();
+        if (list != null) {
+            for (int i = 0; i < list.length; i++) {
+                if (list[i].isDirectory()) {
+                    deleteTree(list[i]);
+                }
+                list[i].delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private static File writeFile(File dir, String name, String text)
+        throws IOException
+    {
+        dir.mkdirs();
+
+        File f = new File(dir, name);
+        FileWriter out = new FileWriter(f);
+        try {
+            out.write(text);
+        } finally {
+            out.close();
+        }
+
+        return f.getAbsoluteFile();
+    }
+
+    private String computeBaseHash()
+        throws PyTestException
+    {
+        ArrayList srcDirs = new ArrayList();
+        srcDirs.add(srcDir);
+
+        return ResultCache.computeBaseHash("python", "2.7.18",
+                                           srcDir.getPath(), srcDirs);
+    }
+
+    private static SuiteData makeResult(File f, int numTests, int numFails)
+    {
+        SuiteData data = new SuiteData(f);
+        data.setName("unittest.TestSuite");
+        data.setNumTests(numTests);
+        data.setNumFailures(numFails);
+        data.setTime(1.25);
+        return data;
+    }
+
+    protected void setUp()
+        throws Exception
+    {
+        // required for mojo lookups to work
+        super.setUp();
+
+        testDir = new File(getBasedir(), "target/test-cache");
+        deleteTree(testDir);
+
+        srcDir = new File(testDir, "src");
+        tstDir = new File(testDir, "test");
+        cacheFile = new File(testDir, "cache.properties");
+
+        writeFile(srcDir, "mod.py", "X = 1\n");
+    }
+
+    public void testCached()
+        throws Exception
+    {
+        File tst = writeFile(tstDir, "FooTest.py", "import mod\n");
+        File other = writeFile(tstDir, "BarTest.py", "import mod\n");
+        File helper = writeFile(tstDir, "helper.py", "Y = 2\n");
+
+        Set tests = new HashSet();
+        tests.add(tst);
+        tests.add(other);
+
+        ResultCache cache = new ResultCache(cacheFile, computeBaseHash());
+        String fp = cache.fingerprint(tst, tests);
+        assertNull("Empty cache has a result", cache.getPassed(tst, fp));
+
+        cache.update(tst, fp, makeResult(tst, 3, 0));
+        cache.save();
+
+        cache = new ResultCache(cacheFile, computeBaseHash());
+        fp = cache.fingerprint(tst, tests);
+        SuiteData data = cache.getPassed(tst, fp);
+        assertNotNull("Passing result was not cached", data);
+        assertEquals("Bad name", "unittest.TestSuite", data.getName());
+        assertEquals("Bad number of tests", 3, data.getNumTests());
+        assertEquals("Bad time", 1.25, data.getTime(), 0.0001);
+
+        // other test files in the directory aren't part of the fingerprint
+        writeFile(tstDir, "BarTest.py", "import mod\nimport helper\n");
+        cache = new ResultCache(cacheFile, computeBaseHash());
+        assertEquals("Other test file changed the fingerprint", fp,
+                     cache.fingerprint(tst, tests));
+
+        writeFile(tstDir, "FooTest.py", "import mod\nimport helper\n");
+        cache = new ResultCache(cacheFile, computeBaseHash());
+        String newFP = cache.fingerprint(tst, tests);
+        assertFalse("Test file change was missed", fp.equals(newFP));
+        assertNull("Changed test file has a result",
+                   cache.getPassed(tst, newFP));
+
+        cache.update(tst, newFP, makeResult(tst, 3, 0));
+        writeFile(tstDir, "helper.py", "Y = 3\n");
+        cache = new ResultCache(cacheFile, computeBaseHash());
+        assertFalse("Helper file change was missed",
+                    newFP.equals(cache.fingerprint(tst, tests)));
+    }
+
+    public void testBaseHashChanged()
+        throws Exception
+    {
+        File tst = writeFile(tstDir, "FooTest.py", "import mod\n");
+
+        Set tests = new HashSet();
+        tests.add(tst);
+
+        final String baseHash = computeBaseHash();
+        assertEquals("Base hash is not repeatable", baseHash,
+                     computeBaseHash());
+
+        ResultCache cache = new ResultCache(cacheFile, baseHash);
+        String fp = cache.fingerprint(tst, tests);
+        cache.update(tst, fp, makeResult(tst, 1, 0));
+        cache.save();
+
+        writeFile(srcDir, "mod.py", "X = 2\n");
+
+        final String newBase = computeBaseHash();
+        assertFalse("Source change was missed", baseHash.equals(newBase));
+
+        cache = new ResultCache(cacheFile, newBase);
+        String newFP = cache.fingerprint(tst, tests);
+        assertFalse("Base hash is not part of the fingerprint",
+                    fp.equals(newFP));
+        assertNull("Result survived a source change",
+                   cache.getPassed(tst, newFP));
+
+        ArrayList srcDirs = new ArrayList();
+        srcDirs.add(srcDir);
+        assertFalse("Python version change was missed",
+                    newBase.equals(ResultCache.computeBaseHash("python",
+                                                               "3.11.2",
+                                                               srcDir.getPath(),
+                                                               srcDirs)));
+    }
+
+    public void testMissingOrCorrupt()
+        throws Exception
+    {
+        File tst = writeFile(tstDir, "FooTest.py", "import mod\n");
+
+        Set tests = new HashSet();
+        tests.add(tst);
+
+        ResultCache cache = new ResultCache(cacheFile, computeBaseHash());
+        String fp = cache.fingerprint(tst, tests);
+        assertNull("Missing cache file has a result",
+                   cache.getPassed(tst, fp));
+
+        // a malformed escape makes Properties.load() give up
+        writeFile(testDir, cacheFile.getName(), "\\u00zz = garbage\n");
+        cache = new ResultCache(cacheFile, computeBaseHash());
+        assertNull("Unreadable cache file has a result",
+                   cache.getPassed(tst, fp));
+
+        final String key = tst.getAbsolutePath();
+        writeFile(testDir, cacheFile.getName(),
+                  key.replace('\\', '/') + ".hash=" + fp + "\n" +
+                  key.replace('\\', '/') + ".tests=many\n");
+        cache = new ResultCache(cacheFile, computeBaseHash());
+        assertNull("Bad cached values were used", cache.getPassed(tst, fp));
+
+        // the bad cache is replaced by the next save
+        cache.update(tst, fp, makeResult(tst, 1, 0));
+        cache.save();
+        cache = new ResultCache(cacheFile, computeBaseHash());
+        assertNotNull("Result was not cached", cache.getPassed(tst, fp));
+    }
+
+    public void testFailedNotCached()
+        throws Exception
+    {
+        File tst = writeFile(tstDir, "FooTest.py", "import mod\n");
+
+        Set tests = new HashSet();
+        tests.add(tst);
+
+        ResultCache cache = new ResultCache(cacheFile, computeBaseHash());
+        String fp = cache.fingerprint(tst, tests);
+
+        cache.update(tst, fp, makeResult(tst, 2, 1));
+        assertNull("Failed result was cached", cache.getPassed(tst, fp));
+
+        // a failure with the same fingerprint replaces an earlier pass
+        cache.update(tst, fp, makeResult(tst, 2, 0));
+        assertNotNull("Passing result was not cached",
+                      cache.getPassed(tst, fp));
+        cache.update(tst, fp, makeResult(tst, 2, 1));
+        cache.save();
+
+        cache = new ResultCache(cacheFile, computeBaseHash());
+        assertNull("Failed result was saved", cache.getPassed(tst, fp));
+
+        // neither unparsed output nor an empty run counts as a pass
+        cache.update(tst, fp, null);
+        assertNull("Unparsed result was cached", cache.getPassed(tst, fp));
+        cache.update(tst, fp, makeResult(tst, 0, 0));
+        assertNull("Empty result was cached", cache.getPassed(tst, fp));
+    }
+}
@@ -0,0 +1,169 @@
+package icecube.daq.maven.plugin;
+
+import org.apache.maven.plugin.testing.AbstractMojoTestCase;
+
+import java.io.File;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class ResultHistoryTest
+    extends AbstractMojoTestCase
+{
+    private File testDir;
+
+    private static void deleteTree(File dir)
+    {
+        File[] list = dir.listFiles();
+        if (list != null) {
+            for (int i = 0; i < list.length; i++) {
+                if (list[i].isDirectory()) {
+                    deleteTree(list[i]);
+                }
+                list[i].delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private SuiteResult makeResult(File f, boolean passB, long wallTime)
+        throws PyTestException
+    {
+        final String sep = "------------------------------------------------";
+
+        String[] lines;
+        if (passB) {
+            lines = new String[] {
+                "testA (__main__.HistTest) ... ok",
+                "testB (__main__.HistTest) ... ok",
+                "",
+                sep,
+                "Ran 2 tests in 0.001s",
+                "",
+                "OK",
+            };
+        } else {
+            lines = new String[] {
+                "testA (__main__.HistTest) ... ok",
+                "testB (__main__.HistTest) ... FAIL",
+                "",
+                "================================================",
+                "FAIL: testB (__main__.HistTest)",
+                sep,
+                "Traceback (most recent call last):",
+                "  File \"HistTest.py\", line 7, in testB",
+                "    self.fail(\"Bad\")",
+                "AssertionError: Bad",
+                "",
+                sep,
+                "Ran 2 tests in 0.001s",
+                "",
+                "FAILED (failures=1)",
+            };
+        }
+
+        SuiteData data = new SuiteData(f);
+        new PyTestParser(Arrays.asList(lines), data, false);
+
+        SuiteResult result = new SuiteResult(f);
+        result.setData(data);
+        result.setWallTime(wallTime);
+        return result;
+    }
+
+    protected void setUp()
+        throws Exception
+    {
+        // required for mojo lookups to work
+        super.setUp();
+
+        testDir = new File(getBasedir(), "target/test-history");
+        deleteTree(testDir);
+    }
+
+    public void testRecordAndReport()
+        throws Exception
+    {
+        File tstDir = new File(testDir, "python");
+        File f = new File(new File(tstDir, "pkg"), "HistTest.py");
+
+        ResultHistory hist = new ResultHistory(new File(testDir, "history"));
+
+        final boolean[] passB = { true, false, true, true, false, true };
+        for (int i = 0; i < passB.length; i++) {
+            hist.startBuild(tstDir, 1000L + i, "python 2.7", "c" + (i / 2));
+            hist.record(makeResult(f, passB[i], 1000 + i * 200));
+        }
+
+        List suites = hist.listSuites();
+        assertEquals("Bad number of test files", 1, suites.size());
+        assertEquals("Bad test file name", "pkg/HistTest.py", suites.get(0));
+
+        List runs = hist.read("pkg/HistTest.py");
+        assertEquals("Bad number of runs", passB.length, runs.size());
+
+        HistoryRun run = (HistoryRun) runs.get(1);
+        assertEquals("Bad timestamp", 1001L, run.getTimestamp());
+        assertEquals("Bad status", HistoryRun.FAILED, run.getStatus());
+        assertEquals("Bad time", 1200L, run.getMillis());
+        assertEquals("Bad interpreter", "python 2.7", run.getInterpreter());
+        assertEquals("Bad commit", "c0", run.getCommit());
+        assertEquals("Bad number of cases", 2, run.getCases().size());
+
+        for (int i = 0; i < passB.length; i++) {
+            run = (HistoryRun) runs.get(i);
+            HistoryCase hCase = (HistoryCase) run.getCases().get(1);
+            assertEquals("Bad test name", "testB", hCase.getName());
+            assertEquals("Bad result #" + i, passB[i], hCase.isPassed());
+            assertEquals("Text output has no test times", -1L,
+                         hCase.getMillis());
+        }
+
+        HistoryReport report = new HistoryReport(hist, 0);
+
+        List slowest = report.getSlowest(10);
+        assertEquals("Only the test file has times", 1, slowest.size());
+
+        List trending = report.getTrending(10, 0.2);
+        assertEquals("Test file should be getting slower", 1,
+                     trending.size());
+        HistoryStats hs = (HistoryStats) trending.get(0);
+        assertEquals("Bad older average", 1200.0, hs.getOlderAverage(), 0.01);
+        assertEquals("Bad newer average", 1800.0, hs.getNewerAverage(), 0.01);
+
+        List flaky = report.getInconsistent(10);
+        assertEquals("Test file and testB should be inconsistent", 2,
+                     flaky.size());
+        hs = (HistoryStats) flaky.get(0);
+        assertEquals("Bad number of changes", 4, hs.getNumChanges());
+        assertEquals("Bad number of mixed commits", 2, hs.getMixedCommits());
+    }
+
+    public void testTrimRuns()
+        throws Exception
+    {
+        File tstDir = new File(testDir, "python");
+        File f = new File(tstDir, "TrimTest.py");
+
+        File histDir = new File(testDir, "history");
+        ResultHistory hist = new ResultHistory(histDir, 3);
+
+        for (int i = 0; i < 7; i++) {
+            hist.startBuild(tstDir, 1000L + i, "python 2.7", null);
+            hist.record(makeResult(f, (i % 2) == 0, 1000 + i));
+        }
+
+        List runs = hist.read("TrimTest.py");
+        assertEquals("Bad number of runs", 3, runs.size());
+        for (int i = 0; i < runs.size(); i++) {
+            HistoryRun run = (HistoryRun) runs.get(i);
+            assertEquals("Bad timestamp #" + i, 1004L + i,
+                         run.getTimestamp());
+            assertEquals("Bad number of cases #" + i, 2,
+                         run.getCases().size());
+        }
+
+        assertEquals("Temporary file was left behind", 1,
+                     histDir.list().length);
+    }
+}
@@ -0,0 +1,155 @@
+package icecube.daq.maven.plugin;
+
+import org.apache.maven.plugin.testing.AbstractMojoTestCase;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class StreamDrainerTest
+    extends AbstractMojoTestCase
+{
+    /** Enough output to fill either pipe many times over. */
+    private static final int NUM_LINES = 20000;
+
+    /** Text added to each line so the output is large. */
+    private static final String PADDING =
+        "...................................................................";
+
+    class ListSink
+        implements LineSink
+    {
+        private ArrayList lines = new ArrayList();
+        private int failAt;
+
+        ListSink(int failAt)
+        {
+            this.failAt = failAt;
+        }
+
+        public void addLine(String line)
+            throws PyTestException
+        {
+            if (lines.size() == failAt) {
+                throw new PyTestException("Failed at line " + failAt);
+            }
+
+            lines.add(line);
+        }
+
+        List getLines()
+        {
+            return lines;
+        }
+    }
+
+    /**
+     * Write lines to both output streams, taking turns, so a reader which
+     * only reads one stream at a time fills up the other pipe.
+     */
+    public static void main(String[] args)
+    {
+        final int num = Integer.parseInt(args[0]);
+
+        for (int i = 0; i < num; i++) {
+            System.out.println("out " + i + " " + PADDING);
+            System.err.println("err " + i + " " + PADDING);
+        }
+
+        System.out.flush();
+        System.err.flush();
+    }
+
+    private static Process startWriter(int numLines)
+        throws IOException
+    {
+        File javaBin =
+            new File(new File(System.getProperty("java.home"), "bin"), "java");
+
+        ProcessBuilder pBldr =
+            new ProcessBuilder(new String[] {
+                    javaBin.getPath(), "-cp",
+                    System.getProperty("java.class.path"),
+                    StreamDrainerTest.class.getName(),
+                    Integer.toString(numLines),
+                });
+
+        Process proc = pBldr.start();
+        proc.getOutputStream().close();
+        return proc;
+    }
+
+    private static void checkLines(String prefix, List lines)
+    {
+        assertEquals("Bad number of " + prefix + " lines", NUM_LINES,
+                     lines.size());
+        for (int i = 0; i < NUM_LINES; i++) {
+            assertEquals("Bad " + prefix + " line",
+                         prefix + " " + i + " " + PADDING, lines.get(i));
+        }
+    }
+
+    protected void setUp()
+        throws Exception
+    {
+        // required for mojo lookups to work
+        super.setUp();
+    }
+
+    public void testDrainBoth()
+        throws Exception
+    {
+        Process proc = startWriter(NUM_LINES);
+
+        ListSink outSink = new ListSink(-1);
+        ListSink errSink = new ListSink(-1);
+
+        StreamDrainer stdout =
+            StreamDrainer.start("stdout", proc, proc.getInputStream(),
+                                outSink);
+        StreamDrainer stderr =
+            StreamDrainer.start("stderr", proc, proc.getErrorStream(),
+                                errSink);
+
+        stdout.waitFor();
+        stderr.waitFor();
+        assertEquals("Bad exit value", 0, proc.waitFor());
+
+        checkLines("out", outSink.getLines());
+        checkLines("err", errSink.getLines());
+    }
+
+    public void testSinkFailure()
+        throws Exception
+    {
+        Process proc = startWriter(NUM_LINES);
+
+        ListSink outSink = new ListSink(10);
+        ListSink errSink = new ListSink(-1);
+
+        StreamDrainer stdout =
+            StreamDrainer.start("stdout", proc, proc.getInputStream(),
+                                outSink);
+        StreamDrainer stderr =
+            StreamDrainer.start("stderr", proc, proc.getErrorStream(),
+                                errSink);
+
+        try {
+            stdout.waitFor();
+            fail("Sink failure was not reported");
+        } catch (PyTestException pte) {
+            assertEquals("Bad exception", "Failed at line 10",
+                         pte.getMessage());
+        }
+
+        // the rest of the stream is still read, so the process can finish
+        stderr.waitFor();
+        assertEquals("Bad exit value", 0, proc.waitFor());
+
+        assertEquals("Bad number of saved lines", 10,
+                     outSink.getLines().size());
+        checkLines("err", errSink.getLines());
+    }
+}
@@ -0,0 +1,145 @@
+package icecube.daq.maven.plugin;
+
+import org.apache.maven.plugin.testing.AbstractMojoTestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+
+import java.util.List;
+
+public class SuiteDataTest
+    extends AbstractMojoTestCase
+{
+    private static CaseData createCase(String className, String name)
+    {
+        CaseData cd = new CaseData();
+        cd.setClassName(className);
+        cd.setName(name);
+        return cd;
+    }
+
+    private static int countMatches(String text, String str)
+    {
+        int num = 0;
+        for (int i = text.indexOf(str); i >= 0;
+             i = text.indexOf(str, i + str.length()))
+        {
+            num++;
+        }
+        return num;
+    }
+
+    private static ErrorData createError(String test, String excText)
+    {
+        ErrorData err = new ErrorData(true);
+        err.addTraceFile("FooTest.py", 6, "setUp");
+        err.addTraceSource("self.conn = connect()");
+        err.addTraceFile("/usr/lib/db.py", 12, test);
+        err.setExceptionName("IOError");
+        err.setExceptionText(excText);
+        return err;
+    }
+
+    protected void setUp()
+        throws Exception
+    {
+        // required for mojo lookups to work
+        super.setUp();
+    }
+
+    public void testDumpCollapsed()
+    {
+        SuiteData data = new SuiteData(new File("fooTest.py"));
+
+        final int numCases = 50;
+        for (int i = 0; i < numCases; i++) {
+            CaseData cd = createCase("__main__.FooTest", "test" + i);
+            if (i == 7) {
+                cd.setError(createError("connect", "Other problem"));
+            } else {
+                cd.setError(createError("connect", "No database"));
+            }
+            data.addCase(cd);
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(bytes);
+        data.dumpCollapsed(out, true);
+        out.close();
+
+        final String text = bytes.toString();
+        assertEquals("Shared error should be printed once", 1,
+                     countMatches(text, "IOError: No database"));
+        assertTrue("Missing count: " + text,
+                   text.indexOf("ERROR: " + (numCases - 1) + " tests") >= 0);
+        assertTrue("Missing affected test",
+                   text.indexOf("  test49 (__main__.FooTest)") >= 0);
+        assertTrue("Missing distinct error",
+                   text.indexOf("ERROR: test7 (__main__.FooTest)\n") >= 0);
+        assertEquals("Bad number of tracebacks", 2,
+                     countMatches(text, "Traceback"));
+    }
+
+    public void testFindCase()
+    {
+        SuiteData data = new SuiteData(new File("fooTest.py"));
+        assertNull("Found case in empty suite", data.findCase("a", "b"));
+
+        final int numCases = 1000;
+        for (int i = 0; i < numCases; i++) {
+            data.addCase(createCase("__main__.FooTest", "test" + i));
+        }
+
+        CaseData dup = createCase("__main__.FooTest", "test7");
+        data.addCase(dup);
+
+        for (int i = 0; i < numCases; i++) {
+            CaseData cd = data.findCase("__main__.FooTest", "test" + i);
+            assertNotNull("Couldn't find test" + i, cd);
+            assertEquals("Bad test name", "test" + i, cd.getName());
+        }
+
+        assertNull("Found case with wrong class",
+                   data.findCase("__main__.BarTest", "test1"));
+        assertNull("Found case with combined name",
+                   data.findCase("__main__.FooTest\ntest1", ""));
+
+        CaseData first = data.findCase("__main__.FooTest", "test7");
+        assertFalse("Duplicate case replaced the original", first == dup);
+
+        List cases = data.getCases();
+        assertEquals("Bad number of cases", numCases + 1, cases.size());
+        assertEquals("Cases are out of order", "test0",
+                     ((CaseData) cases.get(0)).getName());
+        assertSame("Duplicate case was not appended", dup,
+                   cases.get(numCases));
+    }
+
+    public void testMerge()
+    {
+        SuiteData data = new SuiteData(new File("fooTest.py"));
+
+        for (int i = 0; i < 3; i++) {
+            SuiteData part = new SuiteData(new File("fooTest.py"));
+            part.addCase(createCase("FooTest.Part" + i, "test" + i));
+            part.setNumTests(1);
+            part.setNumFailures(i == 1 ? 1 : 0);
+            part.setTime(0.5);
+
+            StreamData out = new StreamData();
+            out.addLine("output " + i);
+            part.setSystemOut(out);
+
+            data.merge(part);
+        }
+
+        assertEquals("Bad number of tests", 3, data.getNumTests());
+        assertEquals("Bad number of failures", 1, data.getNumFailures());
+        assertEquals("Bad time", 1.5, data.getTime(), 0.0001);
+        assertNotNull("Couldn't find merged case",
+                      data.findCase("FooTest.Part2", "test2"));
+        assertEquals("Bad number of output lines", 3,
+                     data.getOutputLines().size());
+    }
+}
@@ -0,0 +1,184 @@
+package icecube.daq.maven.plugin;
+
+import org.apache.maven.plugin.testing.AbstractMojoTestCase;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+
+public class TestRunnerTest
+    extends AbstractMojoTestCase
+{
+    private static final String[] RESULTS = new String[] {
+        "testA (__main__.StrayTest) ... ok",
+        "testB (__main__.StrayTest) ... ok",
+        "",
+        "----------------------------------------------------------------",
+        "Ran 2 tests in 0.001s",
+        "",
+        "OK",
+    };
+
+    private static ArrayList toList(Iterator iter)
+    {
+        ArrayList list = new ArrayList();
+        while (iter.hasNext()) {
+            list.add(iter.next());
+        }
+        return list;
+    }
+
+    private File testDir;
+
+    private static void deleteTree(File dir)
+    {
+        File[] list = dir.listFiles();
+        if (list != null) {
+            for (int i = 0; i < list.length; i++) {
+                if (list[i].isDirectory()) {
+                    deleteTree(list[i]);
+                }
+                list[i].delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private File writeFile(String name, String text)
+        throws IOException
+    {
+        File f = new File(testDir, name);
+
+        FileWriter out = new FileWriter(f);
+        try {
+            out.write(text);
+        } finally {
+            out.close();
+        }
+
+        return f;
+    }
+
+    protected void setUp()
+        throws Exception
+    {
+        // required for mojo lookups to work
+        super.setUp();
+
+        testDir = new File(getBasedir(), "target/test-runner");
+        deleteTree(testDir);
+        testDir.mkdirs();
+    }
+
+    public void testKillRunning()
+        throws Exception
+    {
+        File failFile =
+            writeFile("FailTest.py",
+                      "import unittest\n" +
+                      "class FailTest(unittest.TestCase):\n" +
+                      "    def testFail(self):\n" +
+                      "        self.fail('Bad')\n" +
+                      "if __name__ == '__main__':\n" +
+                      "    unittest.main()\n");
+        File hangFile =
+            writeFile("HangTest.py",
+                      "import sys, time\n" +
+                      "sys.stderr.write('started\\n')\n" +
+                      "sys.stderr.flush()\n" +
+                      "time.sleep(60)\n");
+
+        final TestRunner failed = new TestRunner("python", failFile);
+        failed.runTests(testDir, "", "-v");
+        assertTrue("Test file should have failed",
+                   failed.getExitValue() != 0);
+
+        final TestRunner hung = new TestRunner("python", hangFile);
+        final PyTestException[] runExc = new PyTestException[1];
+        Thread thread = new Thread() {
+                public void run()
+                {
+                    try {
+                        hung.runTests(testDir, "", null);
+                    } catch (PyTestException pte) {
+                        runExc[0] = pte;
+                    }
+                }
+            };
+        thread.start();
+
+        for (int i = 0; i < 200 && !hung.hasErrorLines(); i++) {
+            Thread.sleep(50);
+        }
+        assertTrue("Hanging test did not start", hung.hasErrorLines());
+
+        // the failed file finished before the others were stopped
+        TestRunner.killRunning();
+
+        thread.join(10000);
+        assertFalse("Hanging test was not killed", thread.isAlive());
+        assertNull("Killed test threw " + runExc[0], runExc[0]);
+
+        assertTrue("Hanging test should be marked as killed",
+                   hung.isKilled());
+        assertFalse("Finished test should not be marked as killed",
+                    failed.isKilled());
+    }
+
+    public void testTextResultsOnly()
+        throws PyTestException
+    {
+        TestRunner runner = new TestRunner("python", new File("StrayTest.py"));
+        for (int i = 0; i < RESULTS.length; i++) {
+            runner.addErrorLine(RESULTS[i]);
+        }
+
+        assertTrue("Should have error lines", runner.hasErrorLines());
+        assertFalse("Results are not unexpected",
+                    runner.hasUnexpectedErrorLines());
+    }
+
+    public void testStrayErrorLines()
+        throws PyTestException
+    {
+        TestRunner runner = new TestRunner("python", new File("StrayTest.py"));
+        runner.addErrorLine("StrayTest.py:3: DeprecationWarning: old");
+        runner.addErrorLine("  import imp");
+        for (int i = 0; i < RESULTS.length; i++) {
+            runner.addErrorLine(RESULTS[i]);
+        }
+        runner.addErrorLine("Exception ignored in atexit callback");
+
+        assertTrue("Stray lines were not noticed",
+                   runner.hasUnexpectedErrorLines());
+
+        ArrayList stray =
+            toList(runner.getUnexpectedErrorLines().iterator());
+        assertEquals("Bad number of stray lines", 3, stray.size());
+        assertEquals("Bad stray line", "  import imp", stray.get(1));
+        assertEquals("Bad stray line", "Exception ignored in atexit callback",
+                     stray.get(2));
+
+        runner.reset();
+        assertFalse("Reset runner has stray lines",
+                    runner.hasUnexpectedErrorLines());
+    }
+
+    public void testErrorsWithXML()
+        throws PyTestException
+    {
+        TestRunner runner = new TestRunner("python", new File("XMLTest.py"));
+        runner.addErrorLine("warning");
+        runner.addOutputLine("<testsuite errors=\"0\" failures=\"0\"" +
+                             " name=\"x\" tests=\"0\" time=\"0.0\">");
+        runner.addOutputLine("</testsuite>");
+
+        assertTrue("Standard error is unexpected with XML results",
+                   runner.hasUnexpectedErrorLines());
+        assertEquals("Bad number of stray lines", 1,
+                     runner.getUnexpectedErrorLines().size());
+    }
+}
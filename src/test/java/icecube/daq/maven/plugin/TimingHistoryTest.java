@@ -0,0 +1,111 @@
+package icecube.daq.maven.plugin;
+
+import org.apache.maven.plugin.testing.AbstractMojoTestCase;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class TimingHistoryTest
+    extends AbstractMojoTestCase
+{
+    private File testDir;
+
+    private File createFile(String name, int size)
+        throws IOException
+    {
+        File f = new File(testDir, name);
+
+        FileWriter out = new FileWriter(f);
+        try {
+            for (int i = 0; i < size; i++) {
+                out.write('#');
+            }
+        } finally {
+            out.close();
+        }
+
+        return f;
+    }
+
+    protected void setUp()
+        throws Exception
+    {
+        // required for mojo lookups to work
+        super.setUp();
+
+        testDir = new File(getBasedir(), "target/test-timings");
+        testDir.mkdirs();
+    }
+
+    public void testSortLongestFirst()
+        throws Exception
+    {
+        File small = createFile("smallTest.py", 100);
+        File big = createFile("bigTest.py", 1000);
+        File slow = createFile("slowTest.py", 10);
+        File fast = createFile("fastTest.py", 1000);
+
+        File histFile = new File(testDir, "timings.properties");
+        histFile.delete();
+
+        TimingHistory hist = new TimingHistory(histFile);
+
+        ArrayList files = new ArrayList();
+        files.add(small);
+        files.add(big);
+        files.add(slow);
+        files.add(fast);
+
+        List sorted = hist.sortLongestFirst(files);
+        assertEquals("Unseen files should be sorted by size", big,
+                     sorted.get(0));
+        assertEquals("Files of equal size should keep their order", fast,
+                     sorted.get(1));
+        assertEquals("Unseen files should be sorted by size", small,
+                     sorted.get(2));
+        assertEquals("Unseen files should be sorted by size", slow,
+                     sorted.get(3));
+
+        // 1010 bytes took 5010 ms, so the unseen files should take
+        // about 4960 ms (big) and 496 ms (small)
+        hist.update(slow, null, 5000);
+        hist.update(fast, null, 10);
+        hist.save();
+
+        sorted = new TimingHistory(histFile).sortLongestFirst(files);
+        assertEquals("Bad first file", slow, sorted.get(0));
+        assertEquals("Bad second file", big, sorted.get(1));
+        assertEquals("Bad third file", small, sorted.get(2));
+        assertEquals("Bad fourth file", fast, sorted.get(3));
+    }
+
+    public void testCorruptFile()
+        throws Exception
+    {
+        File small = createFile("smallTest.py", 100);
+        File big = createFile("bigTest.py", 1000);
+
+        // a malformed escape makes Properties.load() give up
+        File histFile = new File(testDir, "timings.properties");
+        FileWriter out = new FileWriter(histFile);
+        try {
+            out.write("\\u00zz = garbage\n");
+        } finally {
+            out.close();
+        }
+
+        ArrayList files = new ArrayList();
+        files.add(small);
+        files.add(big);
+
+        List sorted = new TimingHistory(histFile).sortLongestFirst(files);
+        assertEquals("Unseen files should be sorted by size", big,
+                     sorted.get(0));
+        assertEquals("Unseen files should be sorted by size", small,
+                     sorted.get(1));
+    }
+}